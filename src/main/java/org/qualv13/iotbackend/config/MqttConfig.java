@@ -4,15 +4,8 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.integration.annotation.ServiceActivator;
-import org.springframework.integration.channel.DirectChannel;
 import org.springframework.integration.mqtt.core.DefaultMqttPahoClientFactory;
 import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
-import org.springframework.integration.mqtt.outbound.MqttPahoMessageHandler;
-import org.springframework.messaging.MessageChannel;
-import org.springframework.messaging.MessageHandler;
-
-import java.util.UUID;
 
 @Configuration
 public class MqttConfig {
@@ -26,8 +19,8 @@ public class MqttConfig {
     @Value("${mqtt.password:iotproject}")
     private String password;
 
-    @Value("${mqtt.client-id:iot_backend_sender}")
-    private String clientId;
+    @Value("${mqtt.outbound.max-inflight:100}")
+    private int maxInflight;
 
     @Bean
     public MqttPahoClientFactory mqttClientFactory() {
@@ -38,26 +31,10 @@ public class MqttConfig {
         options.setPassword(password.toCharArray());
         options.setCleanSession(true);
         options.setAutomaticReconnect(true);
+        // Okno niepotwierdzonych publikacji klienta Paho - nie mniejsze niż okno OutboundPublisher
+        options.setMaxInflight(maxInflight);
         factory.setConnectionOptions(options);
         return factory;
     }
 
-
-    @Bean
-    @ServiceActivator(inputChannel = "mqttOutboundChannel")
-    public MqttPahoMessageHandler mqttOutbound() {
-        String client = clientId + "-" + UUID.randomUUID().toString();
-
-        MqttPahoMessageHandler messageHandler =
-                new MqttPahoMessageHandler(client, mqttClientFactory());
-
-        messageHandler.setAsync(true);
-        messageHandler.setDefaultTopic("test/topic");
-        return messageHandler;
-    }
-
-    @Bean
-    public MessageChannel mqttOutboundChannel() {
-        return new DirectChannel();
-    }
 }
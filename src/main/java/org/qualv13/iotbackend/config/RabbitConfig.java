@@ -1,13 +1,22 @@
 package org.qualv13.iotbackend.config;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.retry.MessageBatchRecoverer;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.List;
+
+@Slf4j
 @EnableRabbit
 @Configuration
 public class RabbitConfig {
@@ -20,13 +29,56 @@ public class RabbitConfig {
     @Value("${mqtt.broker-url:tcp://srv38.mikr.us:40131}")
     private String brokerUrl;
 
+    // Ingest wsadowy: ile raportów naraz i jak długo czekać na domknięcie paczki
+    @Value("${ingest.batch-size:200}") private int batchSize;
+    @Value("${ingest.batch-linger-ms:500}") private long batchLingerMs;
+    // Ile razy próbować zapisać paczkę, zanim trafi do kolejki dead-letter
+    @Value("${ingest.max-attempts:3}") private int maxAttempts;
+    @Value("${ingest.retry-backoff-ms:1000}") private long retryBackoffMs;
+
+    // Pula kanałów wydawcy dla transportu komend AMQP (mqtt.outbound.transport: amqp)
+    @Value("${mqtt.outbound.amqp-channels:8}") private int publisherChannels;
+
     public static final String QUEUE_NAME = "lamps_metrics_queue";
+    public static final String DEAD_LETTER_QUEUE_NAME = "lamps_metrics_dlq";
+    // Nagłówek wiadomości już obsłużonej (zapisanej albo odłożonej) - ponowienie paczki ją pomija
+    public static final String HANDLED_HEADER = "x-ingest-handled";
 
     @Bean
     public Queue myQueue() {
         return new Queue(QUEUE_NAME, true);
     }
 
+    // Osobna kolejka zamiast argumentów x-dead-letter-* na lamps_metrics_queue -
+    // zmiana argumentów istniejącej kolejki kończy się PRECONDITION_FAILED przy deklaracji
+    @Bean
+    public Queue deadLetterQueue() {
+        return new Queue(DEAD_LETTER_QUEUE_NAME, true);
+    }
+
+    /**
+     * Wiadomości, których nie udało się zapisać, trafiają do {@value #DEAD_LETTER_QUEUE_NAME}
+     * (z oryginalnym routing key i przyczyną w nagłówkach) zamiast wracać w pętli do kolejki.
+     * Wiadomości oznaczone {@link #HANDLED_HEADER} (już zapisane) są pomijane.
+     */
+    @Bean
+    public MessageBatchRecoverer ingestDeadLetterRecoverer(ConnectionFactory connectionFactory) {
+        RabbitTemplate template = new RabbitTemplate(connectionFactory);
+        return (messages, cause) -> {
+            List<Message> pending = messages.stream()
+                    .filter(m -> !Boolean.TRUE.equals(m.getMessageProperties().getHeader(HANDLED_HEADER)))
+                    .toList();
+            if (pending.isEmpty()) return;
+            log.error("Ingest: {} wiadomości do {} - {}", pending.size(), DEAD_LETTER_QUEUE_NAME, cause.getMessage());
+            for (Message message : pending) {
+                MessageProperties properties = message.getMessageProperties();
+                properties.setHeader("x-original-routing-key", properties.getReceivedRoutingKey());
+                properties.setHeader("x-exception-message", String.valueOf(cause.getMessage()));
+                template.send("", DEAD_LETTER_QUEUE_NAME, message);
+            }
+        };
+    }
+
     @Bean
     public TopicExchange mqttExchange() {
         return new TopicExchange("amq.topic");
@@ -40,12 +92,48 @@ public class RabbitConfig {
         connectionFactory.setPort(Integer.parseInt(port));
         connectionFactory.setUsername(username);
         connectionFactory.setPassword(password);
+        // Potwierdzenia per wiadomość (CorrelationData) - używa ich tylko AmqpOutboundTransport
+        connectionFactory.setPublisherConfirmType(CachingConnectionFactory.ConfirmType.CORRELATED);
+        if (connectionFactory.getPublisherConnectionFactory() instanceof CachingConnectionFactory publisher) {
+            publisher.setChannelCacheSize(publisherChannels);
+        }
 
         return connectionFactory;
     }
 
+    /**
+     * Kontener dla listenera wsadowego. ACK (tryb AUTO) idzie dopiero po powrocie listenera,
+     * czyli po zapisie paczki. Błąd listenera to najwyżej {@code ingest.max-attempts} prób z odstępem,
+     * potem paczka idzie do dead-letter - nigdy z powrotem do kolejki (bez pętli requeue).
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                              MessageBatchRecoverer ingestDeadLetterRecoverer) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setAcknowledgeMode(AcknowledgeMode.AUTO);
+        factory.setDefaultRequeueRejected(false);
+        factory.setAdviceChain(RetryInterceptorBuilder.stateless()
+                .maxAttempts(maxAttempts)
+                .backOffOptions(retryBackoffMs, 2.0, retryBackoffMs * 4)
+                .recoverer(ingestDeadLetterRecoverer)
+                .build());
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setPrefetchCount(batchSize);
+        factory.setBatchReceiveTimeout(batchLingerMs);
+        return factory;
+    }
+
     @Bean
-    public Binding binding(Queue queue, TopicExchange exchange) {
+    public Binding binding(@Qualifier("myQueue") Queue queue, TopicExchange exchange) {
         return BindingBuilder.bind(queue).to(exchange).with("lamps.*.status");
     }
+
+    // Potwierdzenia komend (CommandAck) z tematu lamps/{id}/ack
+    @Bean
+    public Binding ackBinding(@Qualifier("myQueue") Queue queue, TopicExchange exchange) {
+        return BindingBuilder.bind(queue).to(exchange).with("lamps.*.ack");
+    }
 }
\ No newline at end of file
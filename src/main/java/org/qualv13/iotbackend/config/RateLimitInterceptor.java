@@ -0,0 +1,68 @@
+package org.qualv13.iotbackend.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.service.OwnershipIndex;
+import org.qualv13.iotbackend.service.RateLimiter;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.security.Principal;
+import java.util.Map;
+
+/**
+ * Limit wywołań endpointów wysyłających komendy do lamp (ścieżki w {@link WebConfig}).
+ * Kluczem celu jest lampa albo flota ze ścieżki; po przekroczeniu 429 z nagłówkiem Retry-After (sekundy).
+ * Limit celu obciążamy dopiero, gdy użytkownik ma dostęp do lampy / floty - inaczej obcy mógłby
+ * wyczerpać limit cudzej lampy. Odmowę dostępu zwraca potem kontroler.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private final RateLimiter rateLimiter;
+    private final OwnershipIndex ownershipIndex;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if (HttpMethod.GET.matches(request.getMethod())) return true;
+
+        Principal principal = request.getUserPrincipal();
+        String username = principal != null ? principal.getName() : null;
+        RateLimiter.Decision decision = rateLimiter.tryAcquire(targetKey(request, username), username);
+        if (decision.allowed()) return true;
+
+        long retryAfterSeconds = Math.max(1, (decision.retryAfterMillis() + 999) / 1000);
+        log.warn("Rate limit ({}) dla '{}': {} {}", decision.rejectedBy(), username, request.getMethod(), request.getRequestURI());
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader("Retry-After", Long.toString(retryAfterSeconds));
+        return false;
+    }
+
+    /** @return klucz celu albo null, gdy ścieżka nie ma celu lub użytkownik nie ma do niego dostępu */
+    @SuppressWarnings("unchecked")
+    private String targetKey(HttpServletRequest request, String username) {
+        Map<String, String> vars = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        if (vars == null || username == null) return null;
+        try {
+            if (vars.containsKey("lampId")) {
+                ownershipIndex.checkLampAccess(username, vars.get("lampId"));
+                return "lamp:" + vars.get("lampId");
+            }
+            if (vars.containsKey("fleetId")) {
+                ownershipIndex.checkFleetAccess(username, Long.valueOf(vars.get("fleetId")));
+                return "fleet:" + vars.get("fleetId");
+            }
+        } catch (RuntimeException e) {
+            // Brak dostępu albo nieistniejący cel - liczy się tylko limit użytkownika
+            return null;
+        }
+        return null;
+    }
+}
@@ -1,13 +1,38 @@
 package org.qualv13.iotbackend.config;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.converter.protobuf.ProtobufHttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @Configuration
-public class WebConfig {
+@RequiredArgsConstructor
+public class WebConfig implements WebMvcConfigurer {
+
+    private final RateLimitInterceptor rateLimitInterceptor;
+
     @Bean
     ProtobufHttpMessageConverter protobufHttpMessageConverter() {
         return new ProtobufHttpMessageConverter();
     }
-}
\ No newline at end of file
+
+    // Endpointy, które kończą się publikacją do lamp (GET pomijany w interceptorze)
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(rateLimitInterceptor).addPathPatterns(
+                "/lamps/*/command",
+                "/lamps/*/blink",
+                "/lamps/*/reboot",
+                "/lamps/*/wifi",
+                "/lamps/*/config",
+                "/lamps/*/config/refresh",
+                "/lamps/*/presets/*",
+                "/lamps/*/alerts/ack",
+                "/fleets/*/command",
+                "/fleets/*/config",
+                "/ota/lamps/*/trigger"
+        );
+    }
+}
@@ -11,8 +11,8 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.web.bind.annotation.*;import org.qualv13.iotbackend.dto.RefreshTokenRequest;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UserDetailsService;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
 
 @Slf4j
 @RestController
@@ -23,7 +23,6 @@ public class AuthController {
     private final AuthenticationManager authenticationManager;
     private final UserRepository userRepository;
     private final JwtService jwtService;
-    private final UserDetailsService userDetailsService;
 
     @PostMapping("/login")
     public ResponseEntity<AuthResponse> login(@RequestBody LoginRequest request) {
@@ -47,20 +46,20 @@ public class AuthController {
     @PostMapping("/refresh")
     public ResponseEntity<AuthResponse> refresh(@RequestBody RefreshTokenRequest request) {
         log.info("POST /auth/refresh");
-        String refreshToken = request.getRefreshToken();
-        String username = jwtService.extractUsername(refreshToken);
-
-        if (username != null) {
-            UserDetails userDetails = this.userDetailsService.loadUserByUsername(username);
-
-            if (jwtService.isTokenValid(refreshToken, userDetails)) {
-                User user = (User) userDetails;
+        Claims claims;
+        try {
+            claims = jwtService.parseClaims(request.getRefreshToken());
+        } catch (JwtException | IllegalArgumentException e) {
+            return ResponseEntity.status(403).build();
+        }
 
-                String newAccessToken = jwtService.generateAccessToken(user);
-                String newRefreshToken = jwtService.generateRefreshToken(user);
+        User user = claims.getSubject() != null ? userRepository.findByUsername(claims.getSubject()).orElse(null) : null;
+        // Refresh token sprzed zmiany hasła nie odnawia sesji
+        if (user != null && user.currentTokenVersion() == JwtService.tokenVersion(claims)) {
+            String newAccessToken = jwtService.generateAccessToken(user);
+            String newRefreshToken = jwtService.generateRefreshToken(user);
 
-                return ResponseEntity.ok(new AuthResponse(newAccessToken, newRefreshToken));
-            }
+            return ResponseEntity.ok(new AuthResponse(newAccessToken, newRefreshToken));
         }
         return ResponseEntity.status(403).build();
     }
@@ -11,14 +11,10 @@ import org.qualv13.iotbackend.dto.FleetDto;
 import org.qualv13.iotbackend.dto.LampDto;
 import org.qualv13.iotbackend.entity.Fleet;
 import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.entity.User;
 import org.qualv13.iotbackend.repository.FleetRepository;
-import org.qualv13.iotbackend.repository.LampMetricRepository;
-import org.qualv13.iotbackend.repository.LampRepository;
-import org.qualv13.iotbackend.repository.UserRepository;
+import org.qualv13.iotbackend.repository.TelemetryJdbcRepository;
 import org.qualv13.iotbackend.service.FleetService;
-import org.qualv13.iotbackend.service.LampService;
-import org.qualv13.iotbackend.service.MqttService;
+import org.qualv13.iotbackend.service.OwnershipIndex;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -36,13 +32,19 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class FleetController {
 
+    // Flota nie ma zapisanego configu - zwracamy domyślny, zserializowany raz
+    private static final byte[] DEFAULT_FLEET_CONFIG = IotProtos.LampConfig.newBuilder()
+            .setVersion(1)
+            .setInternalLampConfig(
+                    IotProtos.InternalLampConfig.newBuilder().setReportingIntervalSeconds(60).build()
+            )
+            .build()
+            .toByteArray();
+
     private final FleetService fleetService;
-    private final MqttService mqttService;
     private final FleetRepository fleetRepository;
-    private final UserRepository userRepository;
-    private final LampRepository lampRepository;
-    private final LampService lampService;
-    private final LampMetricRepository lampMetricRepository;
+    private final TelemetryJdbcRepository telemetryJdbcRepository;
+    private final OwnershipIndex ownershipIndex;
 
     @Operation(summary = "Pobierz moje floty", description = "Zwraca listę grup (flot) utworzonych przez użytkownika.")
     @GetMapping
@@ -67,45 +69,34 @@ public class FleetController {
     @Transactional
     public ResponseEntity<Void> deleteFleet(@PathVariable Long fleetId, Authentication auth) {
         log.info("DELETE /fleets/{}", fleetId);
-        User user = userRepository.findByUsername(auth.getName()).orElseThrow();
+        ownershipIndex.checkFleetAccess(auth.getName(), fleetId);
         Fleet fleet = fleetRepository.findById(fleetId).orElseThrow();
 
-        if (!fleet.getOwner().getId().equals(user.getId())) {
-            return ResponseEntity.status(403).build();
-        }
-
-        // Odepnij lampy
-        if (fleet.getLamps() != null) {
-            fleet.getLamps().forEach(lamp -> {
-                lamp.setFleet(null);
-                lampRepository.save(lamp);
-            });
-        }
-
-        fleetRepository.delete(fleet);
+        fleetService.deleteFleet(fleet);
         return ResponseEntity.ok().build();
     }
 
     @Operation(summary = "Zwraca wszystkie id lamp we flocie")
     @GetMapping("/{fleetId}/lamps")
-    public ResponseEntity<List<LampDto>> getLampsInFleet(@PathVariable Long fleetId) {
+    public ResponseEntity<List<LampDto>> getLampsInFleet(@PathVariable Long fleetId, Authentication auth) {
         log.info("GET /fleets/{}/lamps", fleetId);
+        ownershipIndex.checkFleetAccess(auth.getName(), fleetId);
         return ResponseEntity.ok(fleetService.getLampsInFleet(fleetId));
     }
 
     @Operation(summary = "Dodaj lampę do floty", description = "Przypisuje lampę do podanej grupy. Lampa musi należeć do tego samego użytkownika.")
     @PostMapping("/{fleetId}/lamps/{lampId}")
-    public ResponseEntity<Void> addLampToFleet(@PathVariable Long fleetId, @PathVariable String lampId) {
+    public ResponseEntity<Void> addLampToFleet(@PathVariable Long fleetId, @PathVariable String lampId, Authentication auth) {
         log.info("POST /fleets/{}/lamps/{}", fleetId, lampId);
-        fleetService.addLampToFleet(fleetId, lampId);
+        fleetService.addLampToFleet(fleetId, lampId, auth.getName());
         return ResponseEntity.ok().build();
     }
 
     @Operation(summary = "Usuń lampę z floty", description = "Odpina lampę od grupy (ustawia fleet_id = null).")
     @DeleteMapping("/{fleetId}/lamps/{lampId}")
-    public ResponseEntity<Void> removeLampFromFleet(@PathVariable Long fleetId, @PathVariable String lampId) {
+    public ResponseEntity<Void> removeLampFromFleet(@PathVariable Long fleetId, @PathVariable String lampId, Authentication auth) {
         log.info("DELETE /fleets/{}/lamps/{}", fleetId, lampId);
-        fleetService.removeLampFromFleet(fleetId, lampId);
+        fleetService.removeLampFromFleet(fleetId, lampId, auth.getName());
         return ResponseEntity.ok().build();
     }
 
@@ -115,22 +106,12 @@ public class FleetController {
                     content = @Content(mediaType = "application/x-protobuf", schema = @Schema(type = "string", format = "binary"))
             ))
     @PutMapping(value = "/{fleetId}/config", consumes = "application/x-protobuf")
-    @Transactional
     public ResponseEntity<Void> setFleetConfig(@PathVariable Long fleetId,
-                                               @RequestBody IotProtos.LampConfig config) {
+                                               @RequestBody IotProtos.LampConfig config,
+                                               Authentication auth) {
         log.info("PUT /fleets/{}/config", fleetId);
-
-        Fleet fleet = fleetRepository.findById(fleetId)
-                .orElseThrow(() -> new RuntimeException("Fleet not found"));
-
-        for (Lamp lamp : fleet.getLamps()) {
-            if (config.hasInternalLampConfig()) {
-                int interval = config.getInternalLampConfig().getReportingIntervalSeconds();
-                if (interval > 0) lamp.setReportInterval(interval);
-                mqttService.sendConfigToLamp(lamp.getId(), config);
-            }
-        }
-
+        int lamps = fleetService.sendFleetConfig(fleetId, config, auth.getName());
+        log.info("Config floty {} wysłany ({} lamp)", fleetId, lamps);
         return ResponseEntity.ok().build();
     }
 
@@ -144,24 +125,11 @@ public class FleetController {
     })
     @PostMapping(value = "/{fleetId}/command", consumes = "application/x-protobuf")
     public ResponseEntity<Void> sendFleetCommand(@PathVariable Long fleetId,
-                                                 @RequestBody IotProtos.LampCommand command) {
+                                                 @RequestBody IotProtos.LampCommand command,
+                                                 Authentication auth) {
         log.info("POST /fleets/{}/command", fleetId);
-
-        Fleet fleet = fleetRepository.findById(fleetId)
-                .orElseThrow(() -> new RuntimeException("Fleet not found"));
-
-        Boolean newState = null;
-        if (command.hasSetDirectSettingsCommand()) {
-            newState = true;
-        }
-
-        if (newState != null || true) {
-            for (Lamp lamp : fleet.getLamps()) {
-                mqttService.sendCommandToLamp(lamp.getId(), command);
-                lampService.updateLampStateFromCommand(lamp.getId(), command);
-            }
-        }
-
+        int lamps = fleetService.sendFleetCommand(fleetId, command, auth.getName());
+        log.info("Komenda floty {} wysłana ({} lamp)", fleetId, lamps);
         return ResponseEntity.ok().build();
     }
 
@@ -169,14 +137,9 @@ public class FleetController {
     @Operation(summary = "Pobierz config floty (Protobuf)")
     @ApiResponse(responseCode = "200", content = @Content(mediaType = "application/x-protobuf", schema = @Schema(type = "string", format = "binary")))
     @GetMapping(value = "/{fleetId}/config", produces = "application/x-protobuf")
-    public IotProtos.LampConfig getFleetConfig(@PathVariable Long fleetId) {
+    public byte[] getFleetConfig(@PathVariable Long fleetId) {
         log.info("GET /fleets/{}/config", fleetId);
-        return IotProtos.LampConfig.newBuilder()
-                .setVersion(1)
-                .setInternalLampConfig(
-                        IotProtos.InternalLampConfig.newBuilder().setReportingIntervalSeconds(60).build()
-                )
-                .build();
+        return DEFAULT_FLEET_CONFIG;
     }
 
     @Operation(summary = "Pobierz status floty (Protobuf)")
@@ -189,8 +152,9 @@ public class FleetController {
 
     @Operation(summary = "Pobierz najnowsze temperatury ze wszystkich lamp")
     @GetMapping("/{fleetId}/metrics")
-    public ResponseEntity<List<Double>> getFleetMetrics(@PathVariable Long fleetId) {
+    public ResponseEntity<List<Double>> getFleetMetrics(@PathVariable Long fleetId, Authentication auth) {
         log.info("GET /fleets/" + fleetId + "/metrics");
+        ownershipIndex.checkFleetAccess(auth.getName(), fleetId);
         Fleet fleet = fleetRepository.findById(fleetId)
                 .orElseThrow(() -> new RuntimeException("Fleet not found"));
 
@@ -202,7 +166,7 @@ public class FleetController {
             return ResponseEntity.ok(List.of());
         }
 
-        List<Double> out = lampMetricRepository.findLatestTemperaturesForLampIds(lampIds);
+        List<Double> out = telemetryJdbcRepository.findLatestTemperatures(lampIds);
 
 
         return ResponseEntity.ok(out);
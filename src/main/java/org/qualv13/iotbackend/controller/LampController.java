@@ -1,38 +1,36 @@
 package org.qualv13.iotbackend.controller;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.iot.backend.proto.IotProtos;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
-import jakarta.transaction.Transactional;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.config.LampModeConfig;
 import org.qualv13.iotbackend.dto.DetailedLampDto;
 import org.qualv13.iotbackend.dto.MetricPoint;
 import org.qualv13.iotbackend.dto.SmartConfigDto;
 import org.qualv13.iotbackend.dto.UpdateLampNameRequest;
-import org.qualv13.iotbackend.dto.json.PresetEntryJson;
 import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.entity.LampMetric;
-import org.qualv13.iotbackend.repository.LampMetricRepository;
 import org.qualv13.iotbackend.repository.LampRepository;
+import org.qualv13.iotbackend.service.CommandAckTracker;
+import org.qualv13.iotbackend.service.CommandCoalescer;
 import org.qualv13.iotbackend.service.LampService;
+import org.qualv13.iotbackend.service.LampStateCache;
+import org.qualv13.iotbackend.service.LastSeenRegistry;
 import org.qualv13.iotbackend.service.MqttService;
+import org.qualv13.iotbackend.service.RecentMetricsBuffer;
+import org.qualv13.iotbackend.service.RollupService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import org.qualv13.iotbackend.dto.PresetDto;
-import org.qualv13.iotbackend.dto.json.*;
 
-import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
 
 @Slf4j
 @RestController
@@ -42,9 +40,13 @@ public class LampController {
 
     private final MqttService mqttService;
     private final LampService lampService;
-    private final LampMetricRepository metricRepository;
+    private final CommandCoalescer commandCoalescer;
+    private final CommandAckTracker commandAckTracker;
     private final LampRepository lampRepository;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final LampStateCache lampStateCache;
+    private final RollupService rollupService;
+    private final RecentMetricsBuffer recentMetricsBuffer;
+    private final LastSeenRegistry lastSeenRegistry;
 
     // --- STATUS (GET) ---
     @Operation(summary = "Pobierz status (Protobuf)", description = "Zwraca telemetrię urządzenia.")
@@ -81,9 +83,9 @@ public class LampController {
             content = @Content(mediaType = "application/x-protobuf", schema = @Schema(type = "string", format = "binary"))
     )
     @GetMapping(value = "/{lampId}/config", produces = "application/x-protobuf")
-    public IotProtos.LampConfig getConfig(@PathVariable String lampId) {
+    public byte[] getConfig(@PathVariable String lampId) {
         log.info("GET lamps/{}/config", lampId);
-        return lampService.getLampConfig(lampId);
+        return lampService.getLampConfig(lampId).bytes();
     }
 
     @Operation(summary = "Zapisz konfigurację (Protobuf)",
@@ -94,8 +96,8 @@ public class LampController {
     public ResponseEntity<Void> setConfig(@PathVariable String lampId,
                                           @RequestBody IotProtos.LampConfig config) {
         log.info("PUT /lamps/" + lampId + "/config");
+        // Wysyłka do lampy (pełna albo delta) po zapisie, w serwisie
         lampService.updateLampConfig(lampId, config);
-        mqttService.sendConfigToLamp(lampId, config);
         return ResponseEntity.ok().build();
     }
 
@@ -114,39 +116,28 @@ public class LampController {
     public ResponseEntity<Void> sendCommand(@PathVariable String lampId,
                                             @RequestBody IotProtos.LampCommand command) {
         log.info("POST /lamps/{}/command", lampId);
-        lampService.updateLampStateFromCommand(lampId, command);
-        mqttService.sendCommandToLamp(lampId, command);
+        lampService.checkLampAccess(lampId);
+        // Komendy z suwaków łączone w krótkim oknie - zapis stanu i publikacja tylko ostatniej
+        commandCoalescer.submit(lampId, command);
         return ResponseEntity.ok().build();
     }
 
     // --- POBIERANIE PRESETÓW ---
     @GetMapping("/{lampId}/presets")
     public ResponseEntity<List<PresetDto>> getPresets(@PathVariable String lampId) {
-        Lamp lamp = lampRepository.findById(lampId).orElseThrow();
-        String json = lamp.getModesConfigJson();
-
         List<PresetDto> result = new ArrayList<>();
 
-        if (json != null && !json.isEmpty()) {
-            try {
-                List<ModeConfigJson> modes = objectMapper.readValue(json, new TypeReference<>() {});
-
-                ModeConfigJson presetMode = modes.stream()
-                        .filter(m -> m.getModeId() == 3)
-                        .findFirst()
-                        .orElse(null);
-
-                if (presetMode != null && presetMode.getPresets() != null && presetMode.getPresets().getEntries() != null) {
-                    List<PresetEntryJson> entries = presetMode.getPresets().getEntries();
+        // Tryby z cache skompilowanych configów - bez parsowania JSON przy każdym odczycie
+        lampService.getLampConfig(lampId).modes().stream()
+                .filter(m -> m.getModeId() == 3)
+                .findFirst()
+                .map(LampModeConfig::getPresets)
+                .map(LampModeConfig.PresetConfig::getEntries)
+                .ifPresent(entries -> {
                     for (int i = 0; i < entries.size(); i++) {
-                        PresetEntryJson entry = entries.get(i);
-                        result.add(mapEntryToDto(i, entry));
+                        result.add(mapEntryToDto(i, entries.get(i)));
                     }
-                }
-            } catch (Exception e) {
-                log.error("Błąd parsowania JSON presetów", e);
-            }
-        }
+                });
 
         if (result.isEmpty()) {
             return ResponseEntity.ok(generateDefaultPresets());
@@ -166,59 +157,22 @@ public class LampController {
 
     // --- ZAPISYWANIE PRESETÓW ---
     @PostMapping("/{lampId}/presets")
-    @Transactional
     public ResponseEntity<Void> savePresets(@PathVariable String lampId, @RequestBody List<PresetDto> dtos) {
-        Lamp lamp = lampRepository.findById(lampId).orElseThrow();
-        String json = lamp.getModesConfigJson();
-
-        try {
-            List<ModeConfigJson> modes;
-            if (json == null || json.isEmpty()) {
-                modes = new ArrayList<>();
-            } else {
-                modes = objectMapper.readValue(json, new TypeReference<>() {});
-            }
+        // Konwersja DTO (frontend) -> wpis trybu PRESET (baza)
+        List<LampModeConfig.PresetEntry> newEntries = new ArrayList<>();
+        dtos.sort(Comparator.comparingInt(PresetDto::getSlotIndex));
 
-            ModeConfigJson presetMode = modes.stream()
-                    .filter(m -> m.getModeId() == 3)
-                    .findFirst()
-                    .orElseGet(() -> {
-                        ModeConfigJson newMode = new ModeConfigJson();
-                        newMode.setModeId(3);
-                        newMode.setName("Mode 3");
-                        newMode.setType("PRESET");
-                        newMode.setPresets(new PresetContainer());
-                        modes.add(newMode);
-                        return newMode;
-                    });
-
-            if (presetMode.getPresets() == null) presetMode.setPresets(new PresetContainer());
-
-            // 2. Konwersja DTO (frontend) -> JSON Entry (baza)
-            List<PresetEntryJson> newEntries = new ArrayList<>();
-            dtos.sort(Comparator.comparingInt(PresetDto::getSlotIndex));
-
-            for (PresetDto dto : dtos) {
-                newEntries.add(mapDtoToEntry(dto));
-            }
-
-            presetMode.getPresets().setEntries(newEntries);
-
-            // 3. Zapisz z powrotem do bazy jako String
-            lamp.setModesConfigJson(objectMapper.writeValueAsString(modes));
-            lampRepository.save(lamp);
-
-        } catch (Exception e) {
-            log.error("Błąd zapisu presetów", e);
-            return ResponseEntity.status(500).build();
+        for (PresetDto dto : dtos) {
+            newEntries.add(mapDtoToEntry(dto));
         }
 
+        lampService.savePresets(lampId, newEntries);
         return ResponseEntity.ok().build();
     }
 
     // --- POMOCNICZE MAPERY ---
 
-    private PresetDto mapEntryToDto(int index, PresetEntryJson entry) {
+    private PresetDto mapEntryToDto(int index, LampModeConfig.PresetEntry entry) {
         Map<String, Object> data = new HashMap<>();
         String type = entry.getType().toLowerCase(); // "DIRECT" -> "direct"
 
@@ -242,8 +196,8 @@ public class LampController {
         return new PresetDto(index, name, type, data);
     }
 
-    private PresetEntryJson mapDtoToEntry(PresetDto dto) {
-        PresetEntryJson entry = new PresetEntryJson();
+    private LampModeConfig.PresetEntry mapDtoToEntry(PresetDto dto) {
+        LampModeConfig.PresetEntry entry = new LampModeConfig.PresetEntry();
         String type = dto.getType().toUpperCase(); // "direct" -> "DIRECT"
         entry.setType(type);
 
@@ -277,6 +231,7 @@ public class LampController {
     @PostMapping("/{lampId}/presets/{index}")
     public ResponseEntity<Void> activatePreset(@PathVariable String lampId, @PathVariable int index) {
         log.info("POST /lamps/{}/presets/{}", lampId, index);
+        lampService.checkLampAccess(lampId);
         mqttService.setPreset(lampId, index);
         return ResponseEntity.ok().build();
     }
@@ -286,6 +241,7 @@ public class LampController {
     @PostMapping("/{lampId}/reboot")
     public ResponseEntity<Void> rebootLamp(@PathVariable String lampId) {
         log.info("POST /lamps/{}/reboot", lampId);
+        lampService.checkLampAccess(lampId);
 
         IotProtos.RebootCommand reboot = IotProtos.RebootCommand.newBuilder().build();
 
@@ -304,6 +260,7 @@ public class LampController {
     @PostMapping("/{lampId}/blink")
     public ResponseEntity<Void> blinkLamp(@PathVariable String lampId, @RequestParam(defaultValue = "5") int duration) {
         log.info("POST /lamps/{}/blink?duration={}", lampId, duration);
+        lampService.checkLampAccess(lampId);
 
         IotProtos.BlinkLedCommand blink = IotProtos.BlinkLedCommand.newBuilder()
                 .setDuration(duration)
@@ -330,6 +287,7 @@ public class LampController {
     @PostMapping("/{lampId}/wifi")
     public ResponseEntity<Void> setWifi(@PathVariable String lampId, @RequestBody WifiConfigRequest request) {
         log.info("POST /lamps/{}/wifi -> SSID: {}", lampId, request.getSsid());
+        lampService.checkLampAccess(lampId);
 
         IotProtos.SetWifiParamsCommand wifi = IotProtos.SetWifiParamsCommand.newBuilder()
                 .setSsid(request.getSsid())
@@ -356,47 +314,66 @@ public class LampController {
     @PostMapping("/{lampId}/alerts/ack")
     public ResponseEntity<Void> acknowledgeAlerts(@PathVariable String lampId, @RequestBody AckAlertsRequest request) {
         log.info("POST /lamps/{}/alerts/ack -> {}", lampId, request.getAlertIds());
+        lampService.checkLampAccess(lampId);
         mqttService.acknowledgeAlerts(lampId, request.getAlertIds());
         return ResponseEntity.ok().build();
     }
 
+    // --- STATUS KOMEND ---
+    @Operation(summary = "Status dostarczenia komend", description = "Oczekujące i ostatnio zakończone komendy lampy (ACKED / FAILED / TIMED_OUT), od najnowszej.")
+    @GetMapping("/{lampId}/commands")
+    public ResponseEntity<List<CommandAckTracker.CommandStatus>> getCommandStatuses(@PathVariable String lampId) {
+        lampService.checkLampAccess(lampId);
+        return ResponseEntity.ok(commandAckTracker.statusFor(lampId));
+    }
+
+    @Operation(summary = "Status dostarczenia komendy", description = "Status pojedynczej komendy po correlation_id.")
+    @GetMapping("/{lampId}/commands/{correlationId}")
+    public ResponseEntity<CommandAckTracker.CommandStatus> getCommandStatus(@PathVariable String lampId,
+                                                                            @PathVariable long correlationId) {
+        lampService.checkLampAccess(lampId);
+        return commandAckTracker.status(lampId, correlationId)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
     // --- METRICS (GET) ---
     @Operation(summary = "Pobierz historię temperatur (JSON)", description = "Zwraca listę wartości jako JSON.")
     @GetMapping("/{lampId}/metrics")
     public ResponseEntity<List<Double>> getMetrics(@PathVariable String lampId) {
         log.info("GET /lamps/" + lampId + "/metrics");
-        List<Double> values = metricRepository.findTop100ByLampIdOrderByTimestampDesc(lampId)
-                .stream()
-                .map(metric -> {
-                    String tempStr = metric.getTemperatures();
-
-                    if (tempStr == null || tempStr.isBlank()) {
-                        return 0.0;
-                    }
-
-                    try {
-                        String val = tempStr.split(",")[0].trim();
-                        return Double.parseDouble(val);
-                    } catch (NumberFormatException e) {
-                        return 0.0;
-                    }
-                })
-                .toList();
+        lampService.checkLampAccess(lampId);
+        // Z bufora ostatnich pomiarów, od najnowszego
+        RecentMetricsBuffer.Samples samples = recentMetricsBuffer.latest(lampId, 100);
+        List<Double> values = new ArrayList<>(samples.size());
+        for (int i = samples.size() - 1; i >= 0; i--) {
+            Integer temp = samples.temperature(i);
+            values.add(temp != null ? temp.doubleValue() : 0.0);
+        }
 
         return ResponseEntity.ok(values);
     }
 
     @GetMapping("/{lampId}/history")
-    public ResponseEntity<List<MetricPoint>> getLampHistory(@PathVariable String lampId) {
-        List<LampMetric> metrics = metricRepository.findTop50ByLampIdOrderByTimestampDesc(lampId);
+    public ResponseEntity<List<MetricPoint>> getLampHistory(@PathVariable String lampId,
+                                                            @RequestParam(required = false) String range) {
+        lampService.checkLampAccess(lampId);
+        if (range != null) {
+            // Średnie natężenie światła z rollupów w rozdzielczości dobranej do zakresu
+            List<MetricPoint> history = rollupService.lampSeries(List.of(lampId), RollupService.parseRange(range)).stream()
+                    .map(p -> new MetricPoint(
+                            p.bucketStart().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                            p.lightAvg() != null ? (int) Math.round(p.lightAvg()) : 0))
+                    .toList();
+            return ResponseEntity.ok(history);
+        }
 
-        List<MetricPoint> history = metrics.stream()
-                .map(m -> new MetricPoint(
-                        m.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
-                        m.getAmbientLight() != null ? m.getAmbientLight() : 0
-                ))
-                .sorted(Comparator.comparingLong(MetricPoint::getIdx))
-                .collect(Collectors.toList());
+        // Ostatnie 50 pomiarów z bufora (już posortowane od najstarszego)
+        RecentMetricsBuffer.Samples samples = recentMetricsBuffer.latest(lampId, 50);
+        List<MetricPoint> history = new ArrayList<>(samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            history.add(new MetricPoint(samples.timestamps()[i], samples.light()[i]));
+        }
 
         return ResponseEntity.ok(history);
     }
@@ -412,19 +389,8 @@ public class LampController {
     @PutMapping("/{lampId}/smart-config")
     public ResponseEntity<Void> updateSmartConfig(@PathVariable String lampId,
                                                   @RequestBody SmartConfigDto request) {
-        Lamp lamp = lampRepository.findById(lampId).orElseThrow();
-
-        if (request.getCircadian() != null) {
-            lamp.setCircadianEnabled(request.getCircadian());
-            log.info("Lampa {}: Circadian = {}", lampId, request.getCircadian());
-        }
-
-        if (request.getAdaptive() != null) {
-            lamp.setAdaptiveBrightnessEnabled(request.getAdaptive());
-            log.info("Lampa {}: Adaptive = {}", lampId, request.getAdaptive());
-        }
-
-        lampRepository.save(lamp);
+        lampService.checkLampAccess(lampId);
+        lampService.updateSmartConfig(lampId, request.getCircadian(), request.getAdaptive());
         return ResponseEntity.ok().build();
     }
 
@@ -433,16 +399,14 @@ public class LampController {
     @GetMapping("/{lampId}/details")
     public ResponseEntity<DetailedLampDto> getLampDetails(@PathVariable String lampId) {
         log.info("GET /lamps/{}/details", lampId);
-        Lamp lamp = lampRepository.findById(lampId)
-                .orElseThrow(() -> new RuntimeException("Lamp not found"));
+        lampService.checkLampAccess(lampId);
+        Lamp lamp = lampStateCache.overlay(lampRepository.findById(lampId)
+                .orElseThrow(() -> new RuntimeException("Lamp not found")));
 
-        LocalDateTime threshold = LocalDateTime.now().minusSeconds(120);
+        LastSeenRegistry.LastSeen lastSeen = lastSeenRegistry.get(lampId);
 
-        Optional<LampMetric> lastMetric = metricRepository.findFirstByLampIdOrderByTimestampDesc(lampId);
-
-        boolean isCalculatedOnline = lastMetric
-                .map(m -> m.getTimestamp().isAfter(threshold))
-                .orElse(false);
+        // Stan online z cache - ten sam, który wyznacza wykrywanie offline (interwał raportów lampy)
+        boolean isCalculatedOnline = lamp.isOnline();
 
         Double currentTemp = null;
         Long uptime = null;
@@ -450,28 +414,14 @@ public class LampController {
         Integer ambLight = 0;
         Integer ambNoise = 0;
 
-        if (lastMetric.isPresent()) {
-            LampMetric metric = lastMetric.get();
-            try {
-                String tempStr = metric.getTemperatures();
-                if (tempStr != null && !tempStr.isEmpty()) {
-                    String val = tempStr.split(",")[0].trim();
-                    if(!val.isEmpty()) {
-                        currentTemp = Double.parseDouble(val);
-                    }
-                }
-            } catch (Exception e) {
-                log.warn("Error parsing temperature for lamp {}", lampId);
-            }
-            uptime = metric.getUptimeSeconds() != null
-                    ? metric.getUptimeSeconds().longValue()
-                    : 0L;
-
-            if(metric.getTimestamp() != null) {
-                lastUpdate = metric.getTimestamp().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        if (lastSeen != null) {
+            if (lastSeen.primaryTemperature() != null) {
+                currentTemp = lastSeen.primaryTemperature().doubleValue();
             }
-            if (metric.getAmbientLight() != null) ambLight = metric.getAmbientLight();
-            if (metric.getAmbientNoise() != null) ambNoise = metric.getAmbientNoise();
+            uptime = (long) lastSeen.uptimeSeconds();
+            lastUpdate = lastSeen.reportedAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+            ambLight = lastSeen.ambientLight();
+            ambNoise = lastSeen.ambientNoise();
         }
 
         boolean effectiveIsOn = isCalculatedOnline && lamp.isOn();
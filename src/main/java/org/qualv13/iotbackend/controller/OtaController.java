@@ -6,6 +6,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.qualv13.iotbackend.dto.OtaCheckResponse;
 import org.qualv13.iotbackend.entity.FirmwareRelease;
 import org.qualv13.iotbackend.service.OtaService;
+import org.qualv13.iotbackend.service.OwnershipIndex;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -22,6 +23,7 @@ import java.util.List;
 public class OtaController {
 
     private final OtaService otaService;
+    private final OwnershipIndex ownershipIndex;
 
     // --- ADMIN: Upload nowego firmware ---
     @Operation(summary = "Admin: Upload Firmware (.bin)")
@@ -73,15 +75,16 @@ public class OtaController {
     // --- USER: Sprawdź czy jest update ---
     @Operation(summary = "Sprawdź dostępność aktualizacji dla lampy")
     @GetMapping("/lamps/{lampId}/check")
-    public ResponseEntity<OtaCheckResponse> checkUpdate(@PathVariable String lampId) {
+    public ResponseEntity<OtaCheckResponse> checkUpdate(@PathVariable String lampId, Authentication auth) {
+        ownershipIndex.checkLampAccess(auth.getName(), lampId);
         return ResponseEntity.ok(otaService.checkForUpdate(lampId));
     }
 
     // --- USER: WYKONAJ aktualizację ---
     @Operation(summary = "Zleć aktualizację lampy do najnowszej wersji")
     @PostMapping("/lamps/{lampId}/trigger")
-    public ResponseEntity<Void> triggerUpdate(@PathVariable String lampId) {
-        // Tutaj można dodać weryfikację właściciela (getLampWithAuthCheck w serwisie)
+    public ResponseEntity<Void> triggerUpdate(@PathVariable String lampId, Authentication auth) {
+        ownershipIndex.checkLampAccess(auth.getName(), lampId);
         otaService.triggerUpdate(lampId);
         return ResponseEntity.ok().build();
     }
@@ -1,24 +1,23 @@
 package org.qualv13.iotbackend.controller;
 
 import lombok.extern.slf4j.Slf4j;
-import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.repository.LampRepository;
 import lombok.RequiredArgsConstructor;
+import org.qualv13.iotbackend.security.DeviceCredentialCache;
+import org.qualv13.iotbackend.security.DeviceTopicAcl;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.util.HexFormat;
-
 @Slf4j
 @RestController
 @RequestMapping("/api/mqtt/auth")
 @RequiredArgsConstructor
 public class RabbitAuthController {
 
-    private final LampRepository lampRepository;
+    private static final ResponseEntity<String> ALLOW = ResponseEntity.ok("allow");
+    private static final ResponseEntity<String> DENY = ResponseEntity.status(403).body("deny");
+
+    private final DeviceCredentialCache deviceCredentialCache;
 
     @Value("${mqtt.username}")
     private String serverUsername;
@@ -32,31 +31,26 @@ public class RabbitAuthController {
         if (serverUsername != null && serverUsername.equals(username)) {
             if (serverPassword != null && serverPassword.equals(password)) {
                 log.info("AUTH SUCCESS: Backend service authenticated.");
-                return ResponseEntity.ok("allow");
+                return ALLOW;
             } else {
                 log.warn("AUTH FAILED: Backend password mismatch.");
-                return ResponseEntity.status(403).body("deny");
+                return DENY;
             }
         }
 
-        return lampRepository.findById(username)
-                .map(lamp -> {
-                    String incomingTokenHash = calculateSha256(password);
-
-                    if (lamp.getDeviceTokenHash() != null && lamp.getDeviceTokenHash().equals(incomingTokenHash)) {
-                        return ResponseEntity.ok("allow");
-                    }
-                    log.warn("AUTH RABBIT FAILED: For user {}.", username);
-                    return ResponseEntity.status(403).body("deny");
-                })
-                .orElse(ResponseEntity.status(403).body("deny"));
+        // Hash tokena z cache - przy fali połączeń po restarcie brokera baza nie dostaje zapytania na każdą lampę
+        if (deviceCredentialCache.verify(username, password)) {
+            return ALLOW;
+        }
+        log.warn("AUTH RABBIT FAILED: For user {}.", username);
+        return DENY;
     }
 
     // Autoryzacja VHost
     @PostMapping("/vhost")
     public ResponseEntity<String> checkVhost(@RequestParam("username") String username,
                                              @RequestParam("vhost") String vhost) {
-        return ResponseEntity.ok("allow");
+        return ALLOW;
     }
 
     // Autoryzacja Zasobów
@@ -66,14 +60,14 @@ public class RabbitAuthController {
                                                 @RequestParam("name") String name,
                                                 @RequestParam("permission") String permission) {
 
-        log.info("RabbitMQ Auth Resource: User={}, Res={}, Name={}, Perm={}", username, resource, name, permission);
-
-        if (username.equals(serverUsername)) return ResponseEntity.ok("allow");
+        if (username.equals(serverUsername)) return ALLOW;
+        if (DeviceTopicAcl.canAccessResource(username, resource, name)) return ALLOW;
 
-        return ResponseEntity.ok("allow");
+        log.warn("RabbitMQ Auth Resource DENIED: User={}, Res={}, Name={}, Perm={}", username, resource, name, permission);
+        return DENY;
     }
 
-    // Autoryzacja Tematów
+    // Autoryzacja Tematów - wołana przy każdej publikacji, odpowiedź z pamięci
     @PostMapping("/topic")
     public ResponseEntity<String> checkTopic(
             @RequestParam("username") String username,
@@ -83,19 +77,18 @@ public class RabbitAuthController {
             @RequestParam("permission") String permission,
             @RequestParam("routing_key") String routingKey
     ) {
-        System.out.println("Checking topic auth for user: " + username + " on topic: " + routingKey);
-        log.info("Checking topic auth for: User={}, topic={}, Name={}, Perm={}", username, routingKey, name, permission);
-
-        return ResponseEntity.ok("allow");
-    }
-
-    private String calculateSha256(String text) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] encodedhash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
-            return HexFormat.of().formatHex(encodedhash);
-        } catch (Exception e) {
-            throw new RuntimeException("Błąd hashowania tokena", e);
+        if (username.equals(serverUsername)) return ALLOW;
+
+        boolean allowed;
+        if ("write".equals(permission)) {
+            allowed = DeviceTopicAcl.canPublish(username, routingKey);
+        } else {
+            DeviceCredentialCache.Credential credential = deviceCredentialCache.get(username);
+            allowed = credential != null && DeviceTopicAcl.canSubscribe(username, credential.fleetId(), routingKey);
         }
+        if (allowed) return ALLOW;
+
+        log.warn("RabbitMQ Auth Topic DENIED: User={}, topic={}, Perm={}", username, routingKey, permission);
+        return DENY;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,58 @@
+package org.qualv13.iotbackend.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.dto.ScheduledCommandDto;
+import org.qualv13.iotbackend.service.ScheduledCommandService;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@Slf4j
+@RestController
+@RequestMapping("/schedules")
+@RequiredArgsConstructor
+public class ScheduleController {
+
+    private final ScheduledCommandService scheduledCommandService;
+
+    @Operation(summary = "Pobierz moje harmonogramy", description = "Zwraca komendy odroczone i cykliczne zalogowanego użytkownika wraz z najbliższym terminem.")
+    @GetMapping
+    public ResponseEntity<List<ScheduledCommandDto>> getMySchedules(Authentication auth) {
+        log.info("GET /schedules");
+        return ResponseEntity.ok(scheduledCommandService.getMySchedules(auth.getName()));
+    }
+
+    @Operation(summary = "Zaplanuj komendę",
+            description = "Komenda (LampCommand w Base64) dla lampy (targetType=LAMP) albo floty (FLEET). " +
+                    "Cyklicznie: cronExpression (6 pól, np. \"0 0 7 * * MON-FRI\"); jednorazowo: runAt. " +
+                    "Czas liczony w strefie harmonogramu, domyślnie w strefie użytkownika.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Harmonogram zapisany"),
+            @ApiResponse(responseCode = "400", description = "Błędny cron, strefa, komenda albo termin z przeszłości"),
+            @ApiResponse(responseCode = "403", description = "Cudza lampa lub flota")
+    })
+    @PostMapping
+    public ResponseEntity<ScheduledCommandDto> createSchedule(@RequestBody ScheduledCommandDto dto, Authentication auth) {
+        log.info("POST /schedules");
+        try {
+            return ResponseEntity.ok(scheduledCommandService.create(dto, auth.getName()));
+        } catch (IllegalArgumentException e) {
+            log.warn("Odrzucono harmonogram: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @Operation(summary = "Usuń harmonogram")
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> deleteSchedule(@PathVariable Long id, Authentication auth) {
+        log.info("DELETE /schedules/{}", id);
+        scheduledCommandService.delete(id, auth.getName());
+        return ResponseEntity.ok().build();
+    }
+}
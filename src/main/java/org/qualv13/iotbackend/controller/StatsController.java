@@ -4,14 +4,23 @@ import lombok.extern.slf4j.Slf4j;
 import org.qualv13.iotbackend.dto.DetailedStatsDto;
 import org.qualv13.iotbackend.dto.LampHistoryDto;
 import org.qualv13.iotbackend.dto.StatsDto;
+import org.qualv13.iotbackend.scheduler.CommandScheduler;
+import org.qualv13.iotbackend.security.AuthUserCache;
+import org.qualv13.iotbackend.security.DeviceCredentialCache;
+import org.qualv13.iotbackend.service.CommandAckTracker;
+import org.qualv13.iotbackend.service.CommandCoalescer;
+import org.qualv13.iotbackend.service.ConfigSyncTracker;
+import org.qualv13.iotbackend.service.IngestExecutor;
+import org.qualv13.iotbackend.service.LampConfigCache;
+import org.qualv13.iotbackend.service.OutboundPublisher;
+import org.qualv13.iotbackend.service.RateLimiter;
+import org.qualv13.iotbackend.service.RecentMetricsBuffer;
+import org.qualv13.iotbackend.service.RollupService;
 import org.qualv13.iotbackend.service.StatsService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
 import java.util.Map;
 
@@ -22,6 +31,18 @@ import java.util.Map;
 public class StatsController {
 
     private final StatsService statsService;
+    private final IngestExecutor ingestExecutor;
+    private final RollupService rollupService;
+    private final RecentMetricsBuffer recentMetricsBuffer;
+    private final OutboundPublisher outboundPublisher;
+    private final CommandCoalescer commandCoalescer;
+    private final CommandAckTracker commandAckTracker;
+    private final CommandScheduler commandScheduler;
+    private final RateLimiter rateLimiter;
+    private final DeviceCredentialCache deviceCredentialCache;
+    private final AuthUserCache authUserCache;
+    private final LampConfigCache lampConfigCache;
+    private final ConfigSyncTracker configSyncTracker;
 
     @GetMapping("/global")
     public ResponseEntity<DetailedStatsDto> getGlobalStats(Authentication auth) {
@@ -52,8 +73,86 @@ public class StatsController {
     }
 
     // Historia pojedynczej lampy
+    // range (np. 6h, 7d, 90d) - dane z rollupów; bez range ostatnie 100 surowych pomiarów
     @GetMapping("/lamps/{lampId}/history")
-    public ResponseEntity<LampHistoryDto> getLampHistory(@PathVariable String lampId) {
-        return ResponseEntity.ok(statsService.getSingleLampHistory(lampId));
+    public ResponseEntity<LampHistoryDto> getLampHistory(@PathVariable String lampId,
+                                                         @RequestParam(required = false) String range) {
+        return ResponseEntity.ok(statsService.getSingleLampHistory(lampId, range));
     }
-}
\ No newline at end of file
+
+    // Zajętość bufora ostatnich pomiarów (tylko admin)
+    @GetMapping("/recent-metrics")
+    public ResponseEntity<Map<String, Object>> getRecentMetricsStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(recentMetricsBuffer.stats());
+    }
+
+    // Przeliczenie rollupów z surowych metryk (tylko admin)
+    @PostMapping("/rollups/backfill")
+    public ResponseEntity<Void> backfillRollups(@RequestParam(defaultValue = "30") int days, Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        log.info("POST /stats/rollups/backfill days={}", days);
+        if (!rollupService.startBackfill(days)) return ResponseEntity.status(409).build();
+        return ResponseEntity.accepted().build();
+    }
+
+    // Stan shardów ingestu (tylko admin)
+    @GetMapping("/ingest")
+    public ResponseEntity<Map<String, Object>> getIngestStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(Map.of(
+                "shards", ingestExecutor.shardCount(),
+                "queueDepths", ingestExecutor.queueDepths(),
+                "processed", ingestExecutor.processedCounts()
+        ));
+    }
+
+    // Kolejka wysyłki do lamp: zajętość, okno in-flight, opóźnienia i błędy (tylko admin)
+    @GetMapping("/outbound")
+    public ResponseEntity<Map<String, Object>> getOutboundStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(outboundPublisher.stats());
+    }
+
+    // Komendy: łączenie z suwaków, potwierdzenia od lamp i harmonogramy (tylko admin)
+    @GetMapping("/commands")
+    public ResponseEntity<Map<String, Object>> getCommandStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(Map.of(
+                "coalescing", commandCoalescer.stats(),
+                "acks", commandAckTracker.stats(),
+                "scheduled", commandScheduler.stats()
+        ));
+    }
+
+    // Limity komend: przepuszczone i odrzucone (429) wywołania (tylko admin)
+    @GetMapping("/rate-limit")
+    public ResponseEntity<Map<String, Object>> getRateLimitStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(rateLimiter.stats());
+    }
+
+    // Cache uwierzytelniania: użytkownicy filtra JWT i lampy w brokerze (tylko admin)
+    @GetMapping("/auth")
+    public ResponseEntity<Map<String, Object>> getAuthStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(Map.of(
+                "users", authUserCache.stats(),
+                "devices", deviceCredentialCache.stats()
+        ));
+    }
+
+    // Skompilowane configi lamp: trafienia i przebudowy (tylko admin)
+    @GetMapping("/config-cache")
+    public ResponseEntity<Map<String, Object>> getConfigCacheStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(lampConfigCache.stats());
+    }
+
+    // Wysyłka configu do lamp: pełne i delty, zaoszczędzone bajty, ponowienia przy niezgodnej wersji (tylko admin)
+    @GetMapping("/config-sync")
+    public ResponseEntity<Map<String, Object>> getConfigSyncStats(Authentication auth) {
+        if (!"admin".equals(auth.getName())) return ResponseEntity.status(403).build();
+        return ResponseEntity.ok(configSyncTracker.stats());
+    }
+}
@@ -6,19 +6,28 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import lombok.extern.slf4j.Slf4j;
 import org.qualv13.iotbackend.dto.*;
 import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.entity.LampMetric;
 import org.qualv13.iotbackend.entity.User;
-import org.qualv13.iotbackend.repository.LampMetricRepository;
 import org.qualv13.iotbackend.repository.LampRepository;
 import org.qualv13.iotbackend.repository.UserRepository;
+import org.qualv13.iotbackend.scheduler.CircadianScheduler;
+import org.qualv13.iotbackend.security.AuthUserCache;
+import org.qualv13.iotbackend.security.DeviceCredentialCache;
+import org.qualv13.iotbackend.service.ConfigSyncTracker;
 import org.qualv13.iotbackend.service.LampService;
+import org.qualv13.iotbackend.service.ActiveAlertRegistry;
+import org.qualv13.iotbackend.service.LampStateCache;
+import org.qualv13.iotbackend.service.LampConfigCache;
+import org.qualv13.iotbackend.service.LastSeenRegistry;
+import org.qualv13.iotbackend.service.OwnershipIndex;
+import org.qualv13.iotbackend.service.RecentMetricsBuffer;
+import org.qualv13.iotbackend.service.ScheduledCommandService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.security.core.Authentication;
 
-import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -34,7 +43,17 @@ public class UserController {
     private final PasswordEncoder passwordEncoder;
     private final LampService lampService;
     private final LampRepository lampRepository;
-    private final LampMetricRepository metricRepository;
+    private final LampStateCache lampStateCache;
+    private final ActiveAlertRegistry activeAlertRegistry;
+    private final RecentMetricsBuffer recentMetricsBuffer;
+    private final LastSeenRegistry lastSeenRegistry;
+    private final CircadianScheduler circadianScheduler;
+    private final ScheduledCommandService scheduledCommandService;
+    private final DeviceCredentialCache deviceCredentialCache;
+    private final AuthUserCache authUserCache;
+    private final OwnershipIndex ownershipIndex;
+    private final LampConfigCache lampConfigCache;
+    private final ConfigSyncTracker configSyncTracker;
 
     public record MessageResponse(String message) {}
 
@@ -78,7 +97,7 @@ public class UserController {
     }
 
     // Username change (PUT /users/me)
-    @Operation(summary = "Zmiana nazwy użytkownika", description = "Pozwala zalogowanemu użytkownikowi zmienić swój login.")
+    @Operation(summary = "Zmiana nazwy użytkownika / strefy czasowej", description = "Pozwala zalogowanemu użytkownikowi zmienić swój login i strefę czasową (IANA, np. Europe/Warsaw) używaną przez rytm dobowy lamp.")
     @PutMapping("/me")
     public ResponseEntity<Void> updateUser(@RequestBody UpdateUserDto dto, Authentication auth) {
         log.info("PUT /users/me");
@@ -86,7 +105,23 @@ public class UserController {
         if (dto.getUsername() != null && !dto.getUsername().isEmpty()) {
             user.setUsername(dto.getUsername());
         }
+        boolean timezoneChanged = false;
+        if (dto.getTimezone() != null && !dto.getTimezone().isEmpty()) {
+            if (!ZoneId.getAvailableZoneIds().contains(dto.getTimezone())) {
+                return ResponseEntity.badRequest().build();
+            }
+            timezoneChanged = !dto.getTimezone().equals(user.getTimezone());
+            user.setTimezone(dto.getTimezone());
+        }
         userRepository.save(user);
+        authUserCache.invalidate(auth.getName());
+
+        if (timezoneChanged && user.getLamps() != null) {
+            user.getLamps().forEach(lamp -> circadianScheduler.refresh(lamp.getId(), user.getTimezone()));
+        }
+        if (timezoneChanged) {
+            scheduledCommandService.ownerTimezoneChanged(user);
+        }
         return ResponseEntity.ok().build();
     }
 
@@ -106,7 +141,9 @@ public class UserController {
         }
 
         user.setPassword(passwordEncoder.encode(request.getNewPassword()));
+        user.setTokenVersion(user.currentTokenVersion() + 1); // wszystkie wydane tokeny tracą ważność
         userRepository.save(user);
+        authUserCache.invalidate(user.getUsername());
         return ResponseEntity.ok(new MessageResponse("Password changed"));
     }
 
@@ -122,10 +159,14 @@ public class UserController {
             user.getLamps().forEach(lamp -> {
                 lamp.setOwner(null);
                 lampRepository.save(lamp);
+                circadianScheduler.refresh(lamp.getId(), null);
+                ownershipIndex.lampOwnerChanged(lamp.getId(), null);
             });
         }
 
+        scheduledCommandService.deleteAllForUser(user);
         userRepository.delete(user);
+        authUserCache.invalidate(user.getUsername());
         return ResponseEntity.ok().build();
     }
 
@@ -136,7 +177,6 @@ public class UserController {
         // log.info("GET /users/me/lamps");
         try {
             String username = authentication.getName();
-            LocalDateTime threshold = LocalDateTime.now().minusSeconds(120);
             List<Lamp> lampsToProcess;
 
             if ("admin".equals(username)) {
@@ -150,20 +190,12 @@ public class UserController {
             if (lampsToProcess == null || lampsToProcess.isEmpty()) {
                 return ResponseEntity.ok(Collections.emptyList());
             }
+            lampStateCache.overlayAll(lampsToProcess);
 
             List<LampDto> result = new ArrayList<>();
 
             for (Lamp lamp : lampsToProcess) {
                 try {
-                    boolean isOnline = false;
-
-                    if (lamp.getId() != null) {
-                        Optional<LampMetric> lastMetric = metricRepository.findFirstByLampIdOrderByTimestampDesc(lamp.getId());
-                        if (lastMetric.isPresent() && lastMetric.get().getTimestamp() != null) {
-                            isOnline = lastMetric.get().getTimestamp().isAfter(threshold);
-                        }
-                    }
-
                     Long fleetId = (lamp.getFleet() != null) ? lamp.getFleet().getId() : null;
 
                     result.add(new LampDto(
@@ -212,12 +244,23 @@ public class UserController {
 
         if(auth.getName().equals("admin")) {
             lampRepository.delete(lamp);
+            lampStateCache.evict(lampId);
+            activeAlertRegistry.evict(lampId);
+            recentMetricsBuffer.evict(lampId);
+            lastSeenRegistry.evict(lampId);
+            circadianScheduler.remove(lampId);
+            deviceCredentialCache.invalidate(lampId);
+            ownershipIndex.lampRemoved(lampId);
+            lampConfigCache.invalidate(lampId);
+            configSyncTracker.forget(lampId);
             return ResponseEntity.ok().build();
         }
 
         if (lamp.getOwner() != null && lamp.getOwner().getId().equals(user.getId())) {
             lamp.setOwner(null);
             lampRepository.save(lamp);
+            circadianScheduler.refresh(lampId, null);
+            ownershipIndex.lampOwnerChanged(lampId, null);
             return ResponseEntity.ok().build();
         }
         return ResponseEntity.status(403).build();
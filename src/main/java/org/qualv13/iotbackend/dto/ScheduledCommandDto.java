@@ -0,0 +1,21 @@
+package org.qualv13.iotbackend.dto;
+
+import lombok.Data;
+import org.qualv13.iotbackend.entity.ScheduledCommand;
+
+import java.time.LocalDateTime;
+
+@Data
+public class ScheduledCommandDto {
+    private Long id;
+    private ScheduledCommand.TargetType targetType;
+    private String targetId;
+    private byte[] command; // LampCommand (Protobuf), w JSON jako Base64
+    private String cronExpression; // np. "0 0 7 * * MON-FRI"
+    private LocalDateTime runAt;
+    private String timezone; // domyślnie strefa użytkownika
+    private ScheduledCommand.MisfirePolicy misfirePolicy;
+    private boolean enabled;
+    private LocalDateTime nextRunAt;
+    private LocalDateTime lastRunAt;
+}
@@ -4,4 +4,5 @@ import lombok.Data;
 @Data
 public class UpdateUserDto {
     private String username;
+    private String timezone;
 }
\ No newline at end of file
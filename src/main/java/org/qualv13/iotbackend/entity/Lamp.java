@@ -4,7 +4,11 @@ import jakarta.persistence.*;
 import lombok.Data;
 
 @Entity
-@Table(name = "lamps")
+@Table(name = "lamps", indexes = {
+        // Start silnika circadian wybiera tylko lampy z włączoną funkcją
+        @Index(name = "idx_lamps_circadian", columnList = "is_circadian_enabled"),
+        @Index(name = "idx_lamps_fleet", columnList = "fleet_id")
+})
 @Data
 public class Lamp {
     @Id
@@ -24,45 +28,55 @@ public class Lamp {
     @JoinColumn(name = "fleet_id")
     private Fleet fleet;
 
+    // Kolumny ze stanem lampy (updatable = false) zapisuje wyłącznie LampStateCache (write-behind).
+    // JPA ustawia je tylko przy INSERT nowej lampy.
+
     //private Integer readingFrequency;
+    @Column(updatable = false)
     private String firmwareVersion;
 
+    @Column(updatable = false)
     private Integer brightness = 50;
+    @Column(updatable = false)
     private String color = "#ffffff";
+    @Column(updatable = false)
     private Integer reportInterval = 60;
 
+    @Column(updatable = false)
     private Integer red = 0;
+    @Column(updatable = false)
     private Integer green = 0;
+    @Column(updatable = false)
     private Integer blue = 0;
 
-    @Column(name = "cold_white")
+    @Column(name = "cold_white", updatable = false)
     private Integer coldWhite = 0;
 
-    @Column(name = "neutral_white")
+    @Column(name = "neutral_white", updatable = false)
     private Integer neutralWhite = 0;
 
-    @Column(name = "warm_white")
+    @Column(name = "warm_white", updatable = false)
     private Integer warmWhite = 0;
 
     // --- SENSORY (Ostatni znany odczyt) ---
-    @Column(name = "last_ambient_light")
+    @Column(name = "last_ambient_light", updatable = false)
     private Integer lastAmbientLight;
 
-    @Column(name = "last_ambient_noise")
+    @Column(name = "last_ambient_noise", updatable = false)
     private Integer lastAmbientNoise;
 
     // --- TRYB PHOTO WHITE ---
-    @Column(name = "photo_white_intensity")
+    @Column(name = "photo_white_intensity", updatable = false)
     private Integer photoWhiteIntensity;
-    @Column(name = "photo_white_temp")
+    @Column(name = "photo_white_temp", updatable = false)
     private Integer photoWhiteTemp;
 
     // --- TRYB PHOTO COLOR ---
-    @Column(name = "photo_color_intensity")
+    @Column(name = "photo_color_intensity", updatable = false)
     private Integer photoColorIntensity;
-    @Column(name = "photo_color_hue")
+    @Column(name = "photo_color_hue", updatable = false)
     private Integer photoColorHue;
-    @Column(name = "photo_color_saturation")
+    @Column(name = "photo_color_saturation", updatable = false)
     private Integer photoColorSaturation;
 
     // --- TRYB DISCO ---
@@ -74,21 +88,31 @@ public class Lamp {
     private Integer discoIntensity;
 
     // --- SMART FEATURES FLAGS ---
-    @Column(name = "is_circadian_enabled")
+    @Column(name = "is_circadian_enabled", updatable = false)
     private boolean isCircadianEnabled = false;
 
-    @Column(name = "is_adaptive_brightness_enabled")
+    @Column(name = "is_adaptive_brightness_enabled", updatable = false)
     private boolean isAdaptiveBrightnessEnabled = false;
 
     // Status
-    @Column(name = "is_on")
+    @Column(name = "is_on", updatable = false)
     private boolean isOn = false;
 
-    @Column(name = "is_online")
+    @Column(name = "is_online", updatable = false)
     private boolean isOnline = true;
 
     @Column(columnDefinition = "TEXT")
     private String modesConfigJson;
 
+    // Wersja konfiguracji (LampConfig.version) - podbijana przy każdej zmianie trybów i interwału
+    @Column(name = "config_version")
+    private Integer configVersion = 0;
+
+    @Column(updatable = false)
     private Integer activeModeId;
+
+    public int nextConfigVersion() {
+        configVersion = (configVersion != null ? configVersion : 0) + 1;
+        return configVersion;
+    }
 }
@@ -36,4 +36,7 @@ public class LampAlert {
 
     @Column(name = "alert_id_from_device")
     private Integer alertIdFromDevice;
+
+    @Column(name = "ended_at")
+    private LocalDateTime endedAt; // Kiedy alert zniknął z raportów (null = nadal aktywny)
 }
\ No newline at end of file
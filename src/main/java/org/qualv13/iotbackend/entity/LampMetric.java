@@ -3,9 +3,14 @@ package org.qualv13.iotbackend.entity;
 import jakarta.persistence.*;
 import lombok.*;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Objects;
 
 @Entity
-@Table(name = "lamp_metrics")
+// Na PostgreSQL tabela jest partycjonowana po timestamp (MetricsPartitionManager)
+@Table(name = "lamp_metrics", indexes = {
+        @Index(name = "idx_lamp_metrics_lamp_ts", columnList = "lamp_id, timestamp")
+})
 @Getter @Setter @NoArgsConstructor @AllArgsConstructor @Builder
 public class LampMetric {
 
@@ -21,8 +26,16 @@ public class LampMetric {
 
     private Integer uptimeSeconds;
 
+    // Stary format CSV - wypełniony tylko w wierszach sprzed migracji (TemperatureMigration)
     private String temperatures;
 
+    @Column(name = "temperature_readings")
+    private Integer[] temperatureReadings;
+
+    // Odczyt pierwszego czujnika - po nim liczymy statystyki i średnie
+    @Column(name = "primary_temperature")
+    private Integer primaryTemperature;
+
     @Column(name = "ambient_light")
     private Integer ambientLight;
 
@@ -31,4 +44,27 @@ public class LampMetric {
 
     @Column(name = "is_abnormal")
     private Boolean isAbnormal = false;
+
+    /** Temperatura głównego czujnika - z kolumny typowanej albo (wiersz jeszcze niezmigrowany) z CSV. */
+    public Integer resolvePrimaryTemperature() {
+        if (primaryTemperature != null) return primaryTemperature;
+        Integer[] legacy = parseLegacyTemperatures(temperatures);
+        return legacy.length > 0 ? legacy[0] : null;
+    }
+
+    public Integer[] resolveTemperatureReadings() {
+        return temperatureReadings != null ? temperatureReadings : parseLegacyTemperatures(temperatures);
+    }
+
+    private static Integer[] parseLegacyTemperatures(String csv) {
+        if (csv == null || csv.isBlank()) return new Integer[0];
+        return Arrays.stream(csv.split(","))
+                .map(String::trim)
+                .filter(v -> !v.isEmpty())
+                .map(v -> {
+                    try { return (int) Double.parseDouble(v); } catch (NumberFormatException e) { return null; }
+                })
+                .filter(Objects::nonNull)
+                .toArray(Integer[]::new);
+    }
 }
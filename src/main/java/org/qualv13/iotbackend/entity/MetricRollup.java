@@ -0,0 +1,73 @@
+package org.qualv13.iotbackend.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Agregaty telemetrii (min/max/suma/liczba) w kubełkach czasowych per lampa i per flota.
+ * Zapisywane upsertem przez MetricRollupRepository - encja służy głównie do definicji schematu.
+ * Klucz naturalny zamiast IDENTITY, żeby ON CONFLICT nie zużywał sekwencji.
+ * Indeks klucza głównego (resolution, scope, scope_id, bucket_start) obsługuje też zapytania o serie.
+ */
+@Entity
+@Table(name = "metric_rollups")
+@Getter @Setter @NoArgsConstructor
+public class MetricRollup {
+
+    @EmbeddedId
+    private Key key;
+
+    @Column(name = "sample_count")
+    private long sampleCount;
+
+    // Temperatura liczona tylko z raportów planowych (bez is_abnormal) i > -20
+    @Column(name = "temp_count")
+    private long tempCount;
+    @Column(name = "temp_sum")
+    private long tempSum;
+    @Column(name = "temp_min")
+    private Integer tempMin;
+    @Column(name = "temp_max")
+    private Integer tempMax;
+
+    @Column(name = "light_sum")
+    private long lightSum;
+    @Column(name = "light_min")
+    private Integer lightMin;
+    @Column(name = "light_max")
+    private Integer lightMax;
+
+    @Column(name = "noise_sum")
+    private long noiseSum;
+    @Column(name = "noise_min")
+    private Integer noiseMin;
+    @Column(name = "noise_max")
+    private Integer noiseMax;
+
+    @Embeddable
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Column(length = 8)
+        private String resolution; // MINUTE / HOUR / DAY
+
+        @Column(length = 8)
+        private String scope; // LAMP / FLEET
+
+        @Column(name = "scope_id")
+        private String scopeId; // ID lampy albo floty
+
+        @Column(name = "bucket_start")
+        private LocalDateTime bucketStart;
+    }
+}
@@ -0,0 +1,72 @@
+package org.qualv13.iotbackend.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Komenda zaplanowana na konkretny moment ({@code runAt}) albo cyklicznie ({@code cronExpression}).
+ * Silnik ({@link org.qualv13.iotbackend.scheduler.CommandScheduler}) trzyma terminy w pamięci -
+ * tabela jest źródłem prawdy przy starcie i po każdym wykonaniu.
+ */
+@Entity
+@Table(name = "scheduled_commands", indexes = {
+        @Index(name = "idx_scheduled_commands_owner", columnList = "user_id")
+})
+@Data
+@NoArgsConstructor
+public class ScheduledCommand {
+
+    public enum TargetType { LAMP, FLEET }
+
+    public enum MisfirePolicy {
+        FIRE_ONCE, // po restarcie wykonaj raz zaległe uruchomienie (jeśli mieści się w oknie misfire)
+        SKIP       // pomiń zaległe, czekaj na następny termin
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne
+    @JoinColumn(name = "user_id")
+    private User owner;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "target_type", nullable = false)
+    private TargetType targetType;
+
+    @Column(name = "target_id", nullable = false)
+    private String targetId;
+
+    // LampCommand (Protobuf) w postaci binarnej
+    @Column(name = "command_payload", nullable = false)
+    private byte[] commandPayload;
+
+    // Spring cron (6 pól), np. "0 0 7 * * MON-FRI"; null = jednorazowo o runAt
+    @Column(name = "cron_expression")
+    private String cronExpression;
+
+    @Column(name = "run_at")
+    private LocalDateTime runAt;
+
+    private String timezone;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "misfire_policy")
+    private MisfirePolicy misfirePolicy = MisfirePolicy.FIRE_ONCE;
+
+    @Column(name = "next_run_at")
+    private LocalDateTime nextRunAt;
+
+    @Column(name = "last_run_at")
+    private LocalDateTime lastRunAt;
+
+    @Column(name = "is_enabled")
+    private boolean enabled = true;
+
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+}
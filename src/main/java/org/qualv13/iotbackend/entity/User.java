@@ -25,10 +25,21 @@ public class User implements UserDetails {
     private String username;
     private String password;
 
+    // Strefa czasowa (IANA, np. "Europe/Warsaw") dla rytmu dobowego lamp; null = domyślna serwera
+    private String timezone;
+
+    // Wersja tokenów JWT - podbijana przy zmianie hasła, starsze tokeny przestają działać
+    @Column(name = "token_version")
+    private Integer tokenVersion = 0;
+
     @OneToMany(mappedBy = "owner")
     private List<Lamp> lamps;
 
 
+    public int currentTokenVersion() {
+        return tokenVersion != null ? tokenVersion : 0;
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
         return Collections.emptyList();
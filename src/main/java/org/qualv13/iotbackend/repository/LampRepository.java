@@ -2,5 +2,28 @@ package org.qualv13.iotbackend.repository;
 
 import org.qualv13.iotbackend.entity.Lamp;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
-public interface LampRepository extends JpaRepository<Lamp, String> { }
\ No newline at end of file
+import java.util.List;
+
+public interface LampRepository extends JpaRepository<Lamp, String> {
+
+    // Same ID - bez ładowania encji całej floty
+    @Query("SELECT l.id FROM Lamp l WHERE l.fleet.id = :fleetId")
+    List<String> findIdsByFleetId(@Param("fleetId") Long fleetId);
+
+    // Pary [id lampy, id floty] - do przypomnienia lampom przynależności po starcie
+    @Query("SELECT l.id, l.fleet.id FROM Lamp l WHERE l.fleet IS NOT NULL")
+    List<Object[]> findFleetMemberships();
+
+    @Modifying
+    @Query("UPDATE Lamp l SET l.fleet = null WHERE l.fleet.id = :fleetId")
+    int detachFromFleet(@Param("fleetId") Long fleetId);
+
+    // Config floty zmienia interwał lamp - każda dostaje nową wersję configu
+    @Modifying
+    @Query("UPDATE Lamp l SET l.configVersion = COALESCE(l.configVersion, 0) + 1 WHERE l.fleet.id = :fleetId")
+    int bumpConfigVersionForFleet(@Param("fleetId") Long fleetId);
+}
@@ -0,0 +1,234 @@
+package org.qualv13.iotbackend.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.qualv13.iotbackend.service.TemperatureMigration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Zapis i odczyt tabeli metric_rollups (JDBC, upserty ON CONFLICT - PostgreSQL).
+ */
+@Repository
+@RequiredArgsConstructor
+public class MetricRollupRepository {
+
+    private static final int JDBC_BATCH_SIZE = 500;
+
+    private static final String COLUMNS = """
+            resolution, scope, scope_id, bucket_start, sample_count,
+            temp_count, temp_sum, temp_min, temp_max,
+            light_sum, light_min, light_max,
+            noise_sum, noise_min, noise_max
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    /** Przyrost jednego kubełka - sumowany do istniejącego wiersza. */
+    public static final class Bucket {
+        final String resolution;
+        final String scope;
+        final String scopeId;
+        final LocalDateTime bucketStart;
+        long sampleCount;
+        long tempCount;
+        long tempSum;
+        Integer tempMin;
+        Integer tempMax;
+        long lightSum;
+        Integer lightMin;
+        Integer lightMax;
+        long noiseSum;
+        Integer noiseMin;
+        Integer noiseMax;
+
+        public Bucket(String resolution, String scope, String scopeId, LocalDateTime bucketStart) {
+            this.resolution = resolution;
+            this.scope = scope;
+            this.scopeId = scopeId;
+            this.bucketStart = bucketStart;
+        }
+
+        /** @param temperature null, gdy próbka nie liczy się do temperatury */
+        public void add(Integer temperature, int light, int noise) {
+            sampleCount++;
+            if (temperature != null) {
+                tempCount++;
+                tempSum += temperature;
+                tempMin = tempMin == null ? temperature : Math.min(tempMin, temperature);
+                tempMax = tempMax == null ? temperature : Math.max(tempMax, temperature);
+            }
+            lightSum += light;
+            lightMin = lightMin == null ? light : Math.min(lightMin, light);
+            lightMax = lightMax == null ? light : Math.max(lightMax, light);
+            noiseSum += noise;
+            noiseMin = noiseMin == null ? noise : Math.min(noiseMin, noise);
+            noiseMax = noiseMax == null ? noise : Math.max(noiseMax, noise);
+        }
+
+        /** Dolicza przyrosty innego kubełka o tym samym kluczu. */
+        public void merge(Bucket other) {
+            sampleCount += other.sampleCount;
+            tempCount += other.tempCount;
+            tempSum += other.tempSum;
+            tempMin = min(tempMin, other.tempMin);
+            tempMax = max(tempMax, other.tempMax);
+            lightSum += other.lightSum;
+            lightMin = min(lightMin, other.lightMin);
+            lightMax = max(lightMax, other.lightMax);
+            noiseSum += other.noiseSum;
+            noiseMin = min(noiseMin, other.noiseMin);
+            noiseMax = max(noiseMax, other.noiseMax);
+        }
+
+        private static Integer min(Integer a, Integer b) {
+            return a == null ? b : b == null ? a : Integer.valueOf(Math.min(a, b));
+        }
+
+        private static Integer max(Integer a, Integer b) {
+            return a == null ? b : b == null ? a : Integer.valueOf(Math.max(a, b));
+        }
+
+        public String sortKey() {
+            return resolution + '|' + scope + '|' + scopeId + '|' + bucketStart;
+        }
+    }
+
+    /** Punkt serii odczytanej z rollupów (zsumowany po wszystkich scope_id z zapytania). */
+    public record SeriesPoint(LocalDateTime bucketStart, long samples,
+                              Double tempAvg, Integer tempMin, Integer tempMax,
+                              Double lightAvg, Integer lightMin, Integer lightMax,
+                              Double noiseAvg, Integer noiseMin, Integer noiseMax) {}
+
+    public void upsertIncrements(List<Bucket> buckets) {
+        if (buckets.isEmpty()) return;
+        jdbcTemplate.batchUpdate("INSERT INTO metric_rollups (" + COLUMNS + """
+                ) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                ON CONFLICT (resolution, scope, scope_id, bucket_start) DO UPDATE SET
+                    sample_count = metric_rollups.sample_count + EXCLUDED.sample_count,
+                    temp_count = metric_rollups.temp_count + EXCLUDED.temp_count,
+                    temp_sum = metric_rollups.temp_sum + EXCLUDED.temp_sum,
+                    temp_min = LEAST(metric_rollups.temp_min, EXCLUDED.temp_min),
+                    temp_max = GREATEST(metric_rollups.temp_max, EXCLUDED.temp_max),
+                    light_sum = metric_rollups.light_sum + EXCLUDED.light_sum,
+                    light_min = LEAST(metric_rollups.light_min, EXCLUDED.light_min),
+                    light_max = GREATEST(metric_rollups.light_max, EXCLUDED.light_max),
+                    noise_sum = metric_rollups.noise_sum + EXCLUDED.noise_sum,
+                    noise_min = LEAST(metric_rollups.noise_min, EXCLUDED.noise_min),
+                    noise_max = GREATEST(metric_rollups.noise_max, EXCLUDED.noise_max)
+                """, buckets, JDBC_BATCH_SIZE, (ps, b) -> {
+            ps.setString(1, b.resolution);
+            ps.setString(2, b.scope);
+            ps.setString(3, b.scopeId);
+            ps.setTimestamp(4, Timestamp.valueOf(b.bucketStart));
+            ps.setLong(5, b.sampleCount);
+            ps.setLong(6, b.tempCount);
+            ps.setLong(7, b.tempSum);
+            ps.setObject(8, b.tempMin, Types.INTEGER);
+            ps.setObject(9, b.tempMax, Types.INTEGER);
+            ps.setLong(10, b.lightSum);
+            ps.setObject(11, b.lightMin, Types.INTEGER);
+            ps.setObject(12, b.lightMax, Types.INTEGER);
+            ps.setLong(13, b.noiseSum);
+            ps.setObject(14, b.noiseMin, Types.INTEGER);
+            ps.setObject(15, b.noiseMax, Types.INTEGER);
+        });
+    }
+
+    /**
+     * Przelicza rollupy jednej rozdzielczości z surowych metryk okna [from, to).
+     * Istniejący kubełek jest nadpisywany tylko, gdy surowe dane mają więcej próbek -
+     * ponowny backfill nie dubluje tego, co już policzył ingest.
+     *
+     * @param truncUnit jednostka date_trunc (minute/hour/day) - stała z kodu, nie z żądania
+     */
+    public int backfill(String resolution, String truncUnit, LocalDateTime from, LocalDateTime to) {
+        String bucket = "date_trunc('" + truncUnit + "', s.timestamp)";
+        String aggregates = """
+                COUNT(*), COUNT(s.temp), COALESCE(SUM(s.temp), 0), MIN(s.temp), MAX(s.temp),
+                COALESCE(SUM(s.ambient_light), 0), MIN(s.ambient_light), MAX(s.ambient_light),
+                COALESCE(SUM(s.ambient_noise), 0), MIN(s.ambient_noise), MAX(s.ambient_noise)
+                """;
+        String sql = """
+                WITH s AS (
+                    SELECT m.lamp_id, m.timestamp,
+                           COALESCE(m.ambient_light, 0) AS ambient_light,
+                           COALESCE(m.ambient_noise, 0) AS ambient_noise,
+                           CASE WHEN COALESCE(m.is_abnormal, false) = false AND t.temp > -20 THEN t.temp END AS temp
+                    FROM lamp_metrics m,
+                         LATERAL (SELECT %s AS temp) t
+                    WHERE m.timestamp >= :from AND m.timestamp < :to
+                )
+                INSERT INTO metric_rollups (""".formatted(TemperatureMigration.primaryTemperature("m.")) + COLUMNS + ")\n"
+                + "SELECT :resolution, 'LAMP', s.lamp_id, " + bucket + ", " + aggregates
+                + " FROM s GROUP BY s.lamp_id, " + bucket + "\n"
+                + "UNION ALL\n"
+                + "SELECT :resolution, 'FLEET', CAST(l.fleet_id AS varchar), " + bucket + ", " + aggregates
+                + " FROM s JOIN lamps l ON l.id = s.lamp_id WHERE l.fleet_id IS NOT NULL GROUP BY l.fleet_id, " + bucket + "\n"
+                + """
+                ON CONFLICT (resolution, scope, scope_id, bucket_start) DO UPDATE SET
+                    sample_count = EXCLUDED.sample_count,
+                    temp_count = EXCLUDED.temp_count, temp_sum = EXCLUDED.temp_sum,
+                    temp_min = EXCLUDED.temp_min, temp_max = EXCLUDED.temp_max,
+                    light_sum = EXCLUDED.light_sum, light_min = EXCLUDED.light_min, light_max = EXCLUDED.light_max,
+                    noise_sum = EXCLUDED.noise_sum, noise_min = EXCLUDED.noise_min, noise_max = EXCLUDED.noise_max
+                WHERE EXCLUDED.sample_count > metric_rollups.sample_count
+                """;
+
+        return namedJdbcTemplate.update(sql, new MapSqlParameterSource()
+                .addValue("resolution", resolution)
+                .addValue("from", Timestamp.valueOf(from))
+                .addValue("to", Timestamp.valueOf(to)));
+    }
+
+    public List<SeriesPoint> series(String resolution, String scope, Collection<String> scopeIds, LocalDateTime from) {
+        if (scopeIds.isEmpty()) return List.of();
+        return namedJdbcTemplate.query("""
+                SELECT bucket_start, SUM(sample_count) AS samples,
+                       CAST(SUM(temp_sum) AS DOUBLE PRECISION) / NULLIF(SUM(temp_count), 0) AS temp_avg,
+                       MIN(temp_min) AS temp_min, MAX(temp_max) AS temp_max,
+                       CAST(SUM(light_sum) AS DOUBLE PRECISION) / NULLIF(SUM(sample_count), 0) AS light_avg,
+                       MIN(light_min) AS light_min, MAX(light_max) AS light_max,
+                       CAST(SUM(noise_sum) AS DOUBLE PRECISION) / NULLIF(SUM(sample_count), 0) AS noise_avg,
+                       MIN(noise_min) AS noise_min, MAX(noise_max) AS noise_max
+                FROM metric_rollups
+                WHERE resolution = :resolution AND scope = :scope
+                  AND scope_id IN (:ids) AND bucket_start >= :from
+                GROUP BY bucket_start
+                ORDER BY bucket_start
+                """, new MapSqlParameterSource()
+                        .addValue("resolution", resolution)
+                        .addValue("scope", scope)
+                        .addValue("ids", scopeIds)
+                        .addValue("from", Timestamp.valueOf(from)),
+                (rs, i) -> new SeriesPoint(
+                        rs.getTimestamp("bucket_start").toLocalDateTime(),
+                        rs.getLong("samples"),
+                        (Double) rs.getObject("temp_avg"),
+                        (Integer) rs.getObject("temp_min"),
+                        (Integer) rs.getObject("temp_max"),
+                        (Double) rs.getObject("light_avg"),
+                        (Integer) rs.getObject("light_min"),
+                        (Integer) rs.getObject("light_max"),
+                        (Double) rs.getObject("noise_avg"),
+                        (Integer) rs.getObject("noise_min"),
+                        (Integer) rs.getObject("noise_max")));
+    }
+
+    public boolean isEmpty() {
+        return jdbcTemplate.queryForList("SELECT 1 FROM metric_rollups LIMIT 1").isEmpty();
+    }
+
+    public int deleteOlderThan(String resolution, LocalDateTime before) {
+        return jdbcTemplate.update("DELETE FROM metric_rollups WHERE resolution = ? AND bucket_start < ?",
+                resolution, Timestamp.valueOf(before));
+    }
+}
@@ -0,0 +1,12 @@
+package org.qualv13.iotbackend.repository;
+
+import org.qualv13.iotbackend.entity.ScheduledCommand;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+
+public interface ScheduledCommandRepository extends JpaRepository<ScheduledCommand, Long> {
+    List<ScheduledCommand> findByEnabledTrue();
+    List<ScheduledCommand> findByOwnerUsername(String username);
+    List<ScheduledCommand> findByTargetTypeAndTargetId(ScheduledCommand.TargetType targetType, String targetId);
+}
@@ -0,0 +1,120 @@
+package org.qualv13.iotbackend.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.qualv13.iotbackend.entity.LampAlert;
+import org.qualv13.iotbackend.entity.LampMetric;
+import org.qualv13.iotbackend.service.TemperatureMigration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Zapisy wsadowe (JDBC batch) dla ścieżki ingestu telemetrii.
+ * Omija Hibernate, żeby jedna paczka raportów = kilka round-tripów do Postgresa.
+ * Tu są też odczyty metryk, których SQL składamy w kodzie (np. temperatura główna starych wierszy).
+ */
+@Repository
+@RequiredArgsConstructor
+public class TelemetryJdbcRepository {
+
+    private static final int JDBC_BATCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    public void insertMetrics(List<LampMetric> metrics) {
+        if (metrics.isEmpty()) return;
+        jdbcTemplate.batchUpdate("""
+                INSERT INTO lamp_metrics (lamp_id, timestamp, device_timestamp, uptime_seconds,
+                                          temperature_readings, primary_temperature,
+                                          ambient_light, ambient_noise, is_abnormal)
+                VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+                """, metrics, JDBC_BATCH_SIZE, (ps, m) -> {
+            ps.setString(1, m.getLampId());
+            ps.setTimestamp(2, Timestamp.valueOf(m.getTimestamp()));
+            ps.setObject(3, m.getDeviceTimestamp(), Types.BIGINT);
+            ps.setObject(4, m.getUptimeSeconds(), Types.INTEGER);
+            ps.setArray(5, ps.getConnection().createArrayOf("integer", m.getTemperatureReadings()));
+            ps.setObject(6, m.getPrimaryTemperature(), Types.INTEGER);
+            ps.setObject(7, m.getAmbientLight(), Types.INTEGER);
+            ps.setObject(8, m.getAmbientNoise(), Types.INTEGER);
+            ps.setBoolean(9, Boolean.TRUE.equals(m.getIsAbnormal()));
+        });
+    }
+
+    /**
+     * Temperatura główna z ostatniego pomiaru każdej z lamp (lampy bez temperatury pomijamy).
+     * Dla każdej lampy jeden krok wstecz po indeksie (lamp_id, timestamp); wiersze sprzed migracji
+     * czytamy z CSV, jak w {@link TemperatureMigration#primaryTemperature}.
+     */
+    public List<Double> findLatestTemperatures(Collection<String> lampIds) {
+        if (lampIds.isEmpty()) return List.of();
+        return namedJdbcTemplate.queryForList("""
+                SELECT CAST(latest.temp AS DOUBLE PRECISION)
+                FROM (
+                    SELECT (SELECT %s
+                            FROM lamp_metrics m
+                            WHERE m.lamp_id = l.id
+                            ORDER BY m.timestamp DESC
+                            LIMIT 1) AS temp
+                    FROM lamps l
+                    WHERE l.id IN (:lampIds)
+                ) latest
+                WHERE latest.temp IS NOT NULL
+                """.formatted(TemperatureMigration.primaryTemperature("m.")),
+                Map.of("lampIds", lampIds), Double.class);
+    }
+
+    /** Zamyka alerty, które zniknęły z raportu - zostają w tabeli jako historia. */
+    public void closeAlerts(String lampId, Collection<Integer> alertIds, LocalDateTime endedAt) {
+        if (alertIds.isEmpty()) return;
+        Timestamp ts = Timestamp.valueOf(endedAt);
+        jdbcTemplate.batchUpdate("""
+                UPDATE lamp_alerts SET is_active = false, ended_at = ?
+                WHERE lamp_id = ? AND alert_id_from_device = ? AND is_active = true
+                """, alertIds, JDBC_BATCH_SIZE, (ps, alertId) -> {
+            ps.setTimestamp(1, ts);
+            ps.setString(2, lampId);
+            ps.setInt(3, alertId);
+        });
+    }
+
+    /** Aktualizuje aktywne alerty, których poziom lub opis się zmienił. */
+    public void updateActiveAlerts(List<LampAlert> alerts) {
+        if (alerts.isEmpty()) return;
+        jdbcTemplate.batchUpdate("""
+                UPDATE lamp_alerts SET alert_code = ?, alert_level = ?, message = ?
+                WHERE lamp_id = ? AND alert_id_from_device = ? AND is_active = true
+                """, alerts, JDBC_BATCH_SIZE, (ps, a) -> {
+            ps.setObject(1, a.getAlertCode(), Types.INTEGER);
+            ps.setObject(2, a.getAlertLevel(), Types.INTEGER);
+            ps.setString(3, a.getMessage());
+            ps.setString(4, a.getLampId());
+            ps.setObject(5, a.getAlertIdFromDevice(), Types.INTEGER);
+        });
+    }
+
+    public void insertAlerts(List<LampAlert> alerts) {
+        if (alerts.isEmpty()) return;
+        jdbcTemplate.batchUpdate("""
+                INSERT INTO lamp_alerts (lamp_id, alert_code, alert_level, message,
+                                         timestamp, is_active, alert_id_from_device)
+                VALUES (?, ?, ?, ?, ?, ?, ?)
+                """, alerts, JDBC_BATCH_SIZE, (ps, a) -> {
+            ps.setString(1, a.getLampId());
+            ps.setObject(2, a.getAlertCode(), Types.INTEGER);
+            ps.setObject(3, a.getAlertLevel(), Types.INTEGER);
+            ps.setString(4, a.getMessage());
+            ps.setTimestamp(5, Timestamp.valueOf(a.getTimestamp()));
+            ps.setBoolean(6, a.isActive());
+            ps.setObject(7, a.getAlertIdFromDevice(), Types.INTEGER);
+        });
+    }
+}
@@ -0,0 +1,266 @@
+package org.qualv13.iotbackend.scheduler;
+
+import com.iot.backend.proto.IotProtos;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.service.LampStateCache;
+import org.qualv13.iotbackend.service.MqttService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.DateTimeException;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rytm dobowy (circadian) wyzwalany granicami przedziałów: 6:00, 9:00, 17:00 i 20:00.
+ * <p>
+ * Cel (ciepła / zimna biel) zmienia się tylko na granicach, więc zamiast co minutę liczyć go dla
+ * każdej lampy, trzymamy indeks lamp z włączonym circadian pogrupowany po strefie czasowej właściciela
+ * i na timing wheelu jeden termin na strefę - najbliższą granicę. Po jej minięciu komendy idą
+ * paczkami tylko do lamp z tej strefy. Lampa świeżo włączona (circadian albo zasilanie) dostaje
+ * bieżący cel od razu.
+ */
+@Slf4j
+@Component
+public class CircadianScheduler {
+
+    private static final int[] BOUNDARY_HOURS = {6, 9, 17, 20};
+
+    private final LampStateCache lampStateCache;
+    private final MqttService mqttService;
+    private final JdbcTemplate jdbcTemplate;
+    private final HashedTimingWheel<ZoneId> boundaries;
+    private final ExecutorService fanout = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "circadian-fanout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<ZoneId, Set<String>> lampsByZone = new ConcurrentHashMap<>();
+    private final Map<String, ZoneId> zoneByLamp = new ConcurrentHashMap<>();
+
+    @Value("${circadian.default-zone:}")
+    private String defaultZone;
+
+    @Value("${circadian.batch-size:200}")
+    private int batchSize;
+
+    @Value("${circadian.batch-pause-ms:50}")
+    private long batchPauseMillis;
+
+    /** Cel dla przedziału doby: [od godziny, do godziny). */
+    private enum Target {
+        MORNING(100, 150), DAY(0, 255), EVENING(150, 100), NIGHT(255, 0);
+
+        final int warm;
+        final int cold;
+
+        Target(int warm, int cold) {
+            this.warm = warm;
+            this.cold = cold;
+        }
+
+        static Target at(LocalTime time) {
+            int hour = time.getHour();
+            if (hour >= 6 && hour < 9) return MORNING;
+            if (hour >= 9 && hour < 17) return DAY;
+            if (hour >= 17 && hour < 20) return EVENING;
+            return NIGHT;
+        }
+    }
+
+    public CircadianScheduler(LampStateCache lampStateCache,
+                              MqttService mqttService,
+                              JdbcTemplate jdbcTemplate,
+                              @Value("${circadian.tick-ms:1000}") long tickMillis) {
+        this.lampStateCache = lampStateCache;
+        this.mqttService = mqttService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.boundaries = new HashedTimingWheel<>(tickMillis, 64, System.currentTimeMillis());
+    }
+
+    // Po wczytaniu LampStateCache (wyższy priorytet). Zapytanie idzie po indeksie idx_lamps_circadian.
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        jdbcTemplate.query("""
+                SELECT l.id, u.timezone
+                FROM lamps l
+                LEFT JOIN users u ON u.id = l.user_id
+                WHERE l.is_circadian_enabled = true
+                """, rs -> {
+            refresh(rs.getString("id"), rs.getString("timezone"));
+        });
+        log.info("Circadian: {} lamp w {} strefach czasowych", zoneByLamp.size(), lampsByZone.size());
+        // Po restarcie od razu wyrównujemy lampy do bieżącego przedziału
+        lampsByZone.forEach((zone, lamps) -> submitFanout(zone, List.copyOf(lamps)));
+    }
+
+    /**
+     * Uaktualnia indeks dla lampy: dodaje ją do strefy właściciela, jeśli ma włączony circadian,
+     * albo usuwa. Wołane przy zmianie flagi, właściciela lub strefy czasowej użytkownika.
+     */
+    public void refresh(String lampId, String ownerTimezone) {
+        LampStateCache.LampState state = lampStateCache.get(lampId);
+        if (state == null || !state.isCircadianEnabled()) {
+            remove(lampId);
+            return;
+        }
+        ZoneId zone = resolveZone(ownerTimezone);
+        ZoneId previous = zoneByLamp.put(lampId, zone);
+        if (previous != null && !previous.equals(zone)) {
+            removeFromZone(previous, lampId);
+        }
+        // Dodanie w compute - removeFromZone nie usunie pustego zbioru między jego pobraniem a dodaniem lampy
+        lampsByZone.compute(zone, (z, lamps) -> {
+            if (lamps == null) {
+                lamps = ConcurrentHashMap.newKeySet();
+                boundaries.schedule(z, nextBoundary(z));
+            }
+            lamps.add(lampId);
+            return lamps;
+        });
+    }
+
+    public void remove(String lampId) {
+        ZoneId zone = zoneByLamp.remove(lampId);
+        if (zone != null) removeFromZone(zone, lampId);
+    }
+
+    /** Natychmiast ustawia bieżący cel - po włączeniu circadian. */
+    public void applyNow(String lampId) {
+        ZoneId zone = zoneByLamp.get(lampId);
+        if (zone != null) submitFanout(zone, List.of(lampId));
+    }
+
+    /** Wołane przez ingest po commicie - lampy, które właśnie wróciły online i świecą. */
+    public void lampsPoweredOn(Collection<String> lampIds) {
+        Map<ZoneId, List<String>> byZone = new HashMap<>();
+        for (String lampId : lampIds) {
+            ZoneId zone = zoneByLamp.get(lampId);
+            if (zone != null) byZone.computeIfAbsent(zone, z -> new ArrayList<>()).add(lampId);
+        }
+        byZone.forEach(this::submitFanout);
+    }
+
+    @Scheduled(fixedDelayString = "${circadian.tick-ms:1000}")
+    public void tick() {
+        for (ZoneId zone : boundaries.advance(System.currentTimeMillis())) {
+            Set<String> lamps = lampsByZone.get(zone);
+            if (lamps == null) continue;
+            boundaries.schedule(zone, nextBoundary(zone));
+            log.info("Circadian: granica przedziału w strefie {} -> {} ({} lamp)",
+                    zone, Target.at(LocalTime.now(zone)), lamps.size());
+            submitFanout(zone, List.copyOf(lamps));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fanout.shutdownNow();
+    }
+
+    private void submitFanout(ZoneId zone, List<String> lampIds) {
+        fanout.execute(() -> {
+            try {
+                applyTarget(zone, lampIds);
+            } catch (Exception e) {
+                log.error("Circadian: błąd wysyłki dla strefy {}: {}", zone, e.getMessage(), e);
+            }
+        });
+    }
+
+    /** Wysyła komendy paczkami po {@code batch-size}, z krótką przerwą, żeby nie zalać brokera na granicy. */
+    private void applyTarget(ZoneId zone, List<String> lampIds) throws InterruptedException {
+        Target target = Target.at(LocalTime.now(zone));
+        int sent = 0;
+        for (int from = 0; from < lampIds.size(); from += batchSize) {
+            if (from > 0 && batchPauseMillis > 0) Thread.sleep(batchPauseMillis);
+            for (String lampId : lampIds.subList(from, Math.min(from + batchSize, lampIds.size()))) {
+                if (updateState(lampId, target)) {
+                    sendWhiteCommand(lampId, target.cold, target.warm);
+                    sent++;
+                }
+            }
+        }
+        if (sent > 0) log.info("Circadian: strefa {}, cel {}, wysłano {} komend", zone, target, sent);
+    }
+
+    private boolean updateState(String lampId, Target target) {
+        AtomicBoolean changed = new AtomicBoolean(false);
+        lampStateCache.update(lampId, lamp -> {
+            if (!lamp.isCircadianEnabled() || !lamp.isOnline() || !lamp.isOn()) return; // Tylko podłączone i włączone
+            // Lampa, która nie raportowała jeszcze bieli, ma ją nieustawioną - traktujemy jak 0
+            int warm = lamp.getWarmWhite() != null ? lamp.getWarmWhite() : 0;
+            int cold = lamp.getColdWhite() != null ? lamp.getColdWhite() : 0;
+            if (Math.abs(warm - target.warm) > 10 || Math.abs(cold - target.cold) > 10) {
+                lamp.setWarmWhite(target.warm);
+                lamp.setColdWhite(target.cold);
+                changed.set(true);
+            }
+        });
+        return changed.get();
+    }
+
+    private void removeFromZone(ZoneId zone, String lampId) {
+        lampsByZone.computeIfPresent(zone, (z, lamps) -> {
+            lamps.remove(lampId);
+            if (!lamps.isEmpty()) return lamps;
+            boundaries.cancel(z);
+            return null;
+        });
+    }
+
+    private ZoneId resolveZone(String timezone) {
+        String id = timezone != null && !timezone.isBlank() ? timezone : defaultZone;
+        if (id == null || id.isBlank()) return ZoneId.systemDefault();
+        try {
+            return ZoneId.of(id);
+        } catch (DateTimeException e) {
+            log.warn("Circadian: nieznana strefa czasowa '{}', używam domyślnej", id);
+            return ZoneId.systemDefault();
+        }
+    }
+
+    private static long nextBoundary(ZoneId zone) {
+        ZonedDateTime now = ZonedDateTime.now(zone);
+        for (int hour : BOUNDARY_HOURS) {
+            ZonedDateTime boundary = now.toLocalDate().atTime(hour, 0).atZone(zone);
+            if (boundary.isAfter(now)) return boundary.toInstant().toEpochMilli();
+        }
+        return now.toLocalDate().plusDays(1).atTime(BOUNDARY_HOURS[0], 0).atZone(zone).toInstant().toEpochMilli();
+    }
+
+    private void sendWhiteCommand(String lampId, int cold, int warm) {
+        IotProtos.DirectSettings ds = IotProtos.DirectSettings.newBuilder()
+                .setRed(0)
+                .setGreen(0)
+                .setBlue(0)
+                .setColdWhite(cold)
+                .setWarmWhite(warm)
+                .setNeutralWhite(0)
+                .build();
+
+        IotProtos.SetDirectSettingsCommand cmd = IotProtos.SetDirectSettingsCommand.newBuilder()
+                .setDirectSettings(ds)
+                .build();
+
+        IotProtos.LampCommand lampCmd = IotProtos.LampCommand.newBuilder()
+                .setVersion(1)
+                .setTs(System.currentTimeMillis()/1000)
+                .setSetDirectSettingsCommand(cmd)
+                .build();
+
+        mqttService.sendCommandToLamp(lampId, lampCmd);
+    }
+}
@@ -0,0 +1,391 @@
+package org.qualv13.iotbackend.scheduler;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.iot.backend.proto.IotProtos;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.entity.Fleet;
+import org.qualv13.iotbackend.entity.Lamp;
+import org.qualv13.iotbackend.entity.ScheduledCommand;
+import org.qualv13.iotbackend.entity.ScheduledCommand.MisfirePolicy;
+import org.qualv13.iotbackend.entity.ScheduledCommand.TargetType;
+import org.qualv13.iotbackend.entity.User;
+import org.qualv13.iotbackend.repository.FleetRepository;
+import org.qualv13.iotbackend.repository.LampRepository;
+import org.qualv13.iotbackend.repository.UserRepository;
+import org.qualv13.iotbackend.service.FleetService;
+import org.qualv13.iotbackend.service.LampService;
+import org.qualv13.iotbackend.service.MqttService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.support.CronExpression;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Silnik komend odroczonych i cyklicznych ({@link ScheduledCommand}).
+ * <p>
+ * Przy starcie wczytuje włączone harmonogramy jednym zapytaniem i trzyma ich terminy na timing wheelu -
+ * bez wątku na harmonogram i bez cyklicznego odpytywania bazy. Co tick zdejmuje z koła terminy, które minęły,
+ * i oddaje je paczkami wątkowi wysyłki. Przed wysyłką paczka zapisuje next_run_at / last_run_at jednym
+ * batch UPDATE - po awarii komenda nie zostanie powtórzona (co najwyżej raz).
+ * <p>
+ * Misfire: terminy, które minęły podczas przestoju, wykonujemy raz ({@code FIRE_ONCE}), jeśli spóźnienie
+ * mieści się w {@code misfire-grace-ms}; w pozostałych przypadkach czekamy na następny termin.
+ * <p>
+ * Harmonogram, którego cel trwale zniknął (usunięta lampa lub flota, zmiana właściciela celu,
+ * usunięty właściciel harmonogramu), jest wyłączany (is_enabled = false) i zdejmowany z koła.
+ */
+@Slf4j
+@Component
+public class CommandScheduler {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final LampRepository lampRepository;
+    private final FleetRepository fleetRepository;
+    private final UserRepository userRepository;
+    private final LampService lampService;
+    private final FleetService fleetService;
+    private final MqttService mqttService;
+    private final HashedTimingWheel<Long> wheel;
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "command-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder misfiresFired = new LongAdder();
+    private final LongAdder misfiresSkipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder disabled = new LongAdder();
+
+    @Value("${command-scheduler.default-zone:}")
+    private String defaultZone;
+
+    @Value("${command-scheduler.batch-size:200}")
+    private int batchSize;
+
+    @Value("${command-scheduler.batch-pause-ms:50}")
+    private long batchPauseMillis;
+
+    @Value("${command-scheduler.misfire-grace-ms:900000}")
+    private long misfireGraceMillis;
+
+    /** Niezmienna kopia harmonogramu - wątek wysyłki nie dotyka encji JPA. */
+    private record Entry(long id, long ownerId, TargetType targetType, String targetId,
+                         IotProtos.LampCommand command, CronExpression cron, ZoneId zone,
+                         MisfirePolicy misfirePolicy, Instant nextRun) {
+
+        Entry withNextRun(Instant next) {
+            return new Entry(id, ownerId, targetType, targetId, command, cron, zone, misfirePolicy, next);
+        }
+    }
+
+    /** Termin do wykonania: {@code next} == null oznacza, że harmonogram się skończył (jednorazowy). */
+    private record Firing(Entry entry, Instant firedAt, Instant next) {}
+
+    public CommandScheduler(JdbcTemplate jdbcTemplate,
+                            LampRepository lampRepository,
+                            FleetRepository fleetRepository,
+                            UserRepository userRepository,
+                            @Lazy LampService lampService,
+                            @Lazy FleetService fleetService,
+                            MqttService mqttService,
+                            @Value("${command-scheduler.tick-ms:1000}") long tickMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.lampRepository = lampRepository;
+        this.fleetRepository = fleetRepository;
+        this.userRepository = userRepository;
+        this.lampService = lampService;
+        this.fleetService = fleetService;
+        this.mqttService = mqttService;
+        this.wheel = new HashedTimingWheel<>(tickMillis, 4096, System.currentTimeMillis());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        Instant now = Instant.now();
+        List<Object[]> adjusted = new ArrayList<>();
+        jdbcTemplate.query("""
+                SELECT s.id, s.user_id, s.target_type, s.target_id, s.command_payload, s.cron_expression,
+                       s.run_at, s.timezone, s.misfire_policy, s.next_run_at, u.timezone AS owner_timezone
+                FROM scheduled_commands s
+                LEFT JOIN users u ON u.id = s.user_id
+                WHERE s.is_enabled = true
+                """, rs -> {
+            long id = rs.getLong("id");
+            try {
+                Timestamp runAt = rs.getTimestamp("run_at");
+                Timestamp nextRunAt = rs.getTimestamp("next_run_at");
+                Entry entry = toEntry(id, rs.getLong("user_id"),
+                        TargetType.valueOf(rs.getString("target_type")), rs.getString("target_id"),
+                        rs.getBytes("command_payload"), rs.getString("cron_expression"),
+                        runAt != null ? runAt.toLocalDateTime() : null,
+                        rs.getString("timezone"), rs.getString("owner_timezone"),
+                        rs.getString("misfire_policy"),
+                        nextRunAt != null ? toInstant(nextRunAt.toLocalDateTime()) : null);
+
+                Instant next = resolveMisfire(entry, now);
+                if (!Objects.equals(next, entry.nextRun())) {
+                    adjusted.add(new Object[]{toTimestamp(next), next != null, id});
+                }
+                if (next != null) schedule(entry.withNextRun(next));
+            } catch (Exception e) {
+                log.error("Harmonogram {}: nie udało się wczytać ({}), pomijam", id, e.getMessage());
+            }
+        });
+        if (!adjusted.isEmpty()) {
+            jdbcTemplate.batchUpdate("UPDATE scheduled_commands SET next_run_at = ?, is_enabled = ? WHERE id = ?",
+                    adjusted, new int[]{Types.TIMESTAMP, Types.BOOLEAN, Types.BIGINT});
+        }
+        log.info("Harmonogramy komend: {} aktywnych, {} przesuniętych po przestoju", entries.size(), adjusted.size());
+    }
+
+    /**
+     * Wylicza pierwszy termin dla nowego harmonogramu (w strefie harmonogramu albo właściciela).
+     * @return null, jeśli termin jednorazowy już minął albo cron nie ma kolejnego wystąpienia
+     */
+    public LocalDateTime firstRun(ScheduledCommand command, String ownerTimezone) {
+        ZoneId zone = resolveZone(command.getTimezone(), ownerTimezone);
+        Instant next = command.getCronExpression() != null
+                ? nextCron(CronExpression.parse(command.getCronExpression()), zone, Instant.now())
+                : command.getRunAt().atZone(zone).toInstant();
+        if (next == null || (command.getCronExpression() == null && next.isBefore(Instant.now()))) return null;
+        return LocalDateTime.ofInstant(next, ZoneId.systemDefault());
+    }
+
+    /** Dodaje lub podmienia harmonogram w pamięci. Wołane po commicie zapisu. */
+    public void register(ScheduledCommand command, String ownerTimezone) {
+        if (!command.isEnabled() || command.getNextRunAt() == null) {
+            unregister(command.getId());
+            return;
+        }
+        schedule(toEntry(command.getId(), command.getOwner().getId(), command.getTargetType(), command.getTargetId(),
+                command.getCommandPayload(), command.getCronExpression(), command.getRunAt(),
+                command.getTimezone(), ownerTimezone,
+                command.getMisfirePolicy() != null ? command.getMisfirePolicy().name() : null,
+                toInstant(command.getNextRunAt())));
+    }
+
+    public void unregister(Long id) {
+        entries.remove(id);
+        wheel.cancel(id);
+    }
+
+    @Scheduled(fixedDelayString = "${command-scheduler.tick-ms:1000}")
+    public void tick() {
+        List<Long> due = wheel.advance(System.currentTimeMillis());
+        if (due.isEmpty()) return;
+
+        Instant now = Instant.now();
+        List<Firing> firings = new ArrayList<>(due.size());
+        for (Long id : due) {
+            Entry entry = entries.get(id);
+            if (entry == null) continue;
+            Instant next = entry.cron() != null ? nextCron(entry.cron(), entry.zone(), now) : null;
+            if (next != null) {
+                schedule(entry.withNextRun(next));
+            } else {
+                entries.remove(id, entry);
+            }
+            firings.add(new Firing(entry, now, next));
+        }
+
+        for (int from = 0; from < firings.size(); from += batchSize) {
+            List<Firing> batch = List.copyOf(firings.subList(from, Math.min(from + batchSize, firings.size())));
+            dispatcher.execute(() -> {
+                try {
+                    dispatch(batch);
+                    if (batchPauseMillis > 0) Thread.sleep(batchPauseMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("Harmonogramy: błąd wysyłki paczki ({} komend): {}", batch.size(), e.getMessage(), e);
+                }
+            });
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("scheduled", entries.size());
+        stats.put("fired", fired.sum());
+        stats.put("misfiresFired", misfiresFired.sum());
+        stats.put("misfiresSkipped", misfiresSkipped.sum());
+        stats.put("failed", failed.sum());
+        stats.put("disabled", disabled.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+    }
+
+    private void dispatch(List<Firing> batch) {
+        // Najpierw zapis terminów - po restarcie w trakcie wysyłki paczka nie pójdzie drugi raz
+        jdbcTemplate.batchUpdate(
+                "UPDATE scheduled_commands SET last_run_at = ?, next_run_at = ?, is_enabled = ? WHERE id = ?",
+                batch.stream()
+                        .map(f -> new Object[]{toTimestamp(f.firedAt()), toTimestamp(f.next()), f.next() != null, f.entry().id()})
+                        .toList(),
+                new int[]{Types.TIMESTAMP, Types.TIMESTAMP, Types.BOOLEAN, Types.BIGINT});
+
+        // Właściciele lamp i flot jednym zapytaniem - cel mógł w międzyczasie zniknąć albo zmienić właściciela
+        Set<String> lampIds = batch.stream()
+                .filter(f -> f.entry().targetType() == TargetType.LAMP)
+                .map(f -> f.entry().targetId())
+                .collect(Collectors.toSet());
+        Map<String, Lamp> lamps = lampIds.isEmpty() ? Map.of()
+                : lampRepository.findAllById(lampIds).stream().collect(Collectors.toMap(Lamp::getId, Function.identity()));
+        Set<Long> fleetIds = batch.stream()
+                .filter(f -> f.entry().targetType() == TargetType.FLEET)
+                .map(f -> Long.parseLong(f.entry().targetId()))
+                .collect(Collectors.toSet());
+        Map<Long, Fleet> fleets = fleetIds.isEmpty() ? Map.of()
+                : fleetRepository.findAllById(fleetIds).stream().collect(Collectors.toMap(Fleet::getId, Function.identity()));
+        Map<Long, Optional<String>> usernames = new HashMap<>();
+        List<Long> gone = new ArrayList<>();
+
+        long ts = System.currentTimeMillis() / 1000;
+        for (Firing firing : batch) {
+            Entry entry = firing.entry();
+            IotProtos.LampCommand command = entry.command().toBuilder().setTs(ts).build();
+            try {
+                String username = usernameOf(entry.ownerId(), usernames);
+                if (!targetAvailable(entry, username, lamps, fleets)) {
+                    log.warn("Harmonogram {}: {} {} nie istnieje albo nie należy już do właściciela - wyłączam",
+                            entry.id(), entry.targetType(), entry.targetId());
+                    gone.add(entry.id());
+                    continue;
+                }
+                if (entry.targetType() == TargetType.LAMP) {
+                    lampService.applyCommandState(entry.targetId(), command);
+                    mqttService.sendCommandToLamp(entry.targetId(), command);
+                } else {
+                    fleetService.sendFleetCommand(Long.parseLong(entry.targetId()), command, username);
+                }
+                fired.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.warn("Harmonogram {}: nie udało się wysłać komendy do {} {}: {}",
+                        entry.id(), entry.targetType(), entry.targetId(), e.getMessage());
+            }
+        }
+        disable(gone);
+        log.info("Harmonogramy: wykonano paczkę {} komend", batch.size());
+    }
+
+    /** Cel istnieje i nadal należy do właściciela harmonogramu (admin może sterować cudzymi, jak przy tworzeniu). */
+    private static boolean targetAvailable(Entry entry, String username, Map<String, Lamp> lamps, Map<Long, Fleet> fleets) {
+        if (username == null) return false;
+        User owner;
+        if (entry.targetType() == TargetType.LAMP) {
+            Lamp lamp = lamps.get(entry.targetId());
+            if (lamp == null) return false;
+            owner = lamp.getOwner();
+        } else {
+            Fleet fleet = fleets.get(Long.parseLong(entry.targetId()));
+            if (fleet == null) return false;
+            // Flota bez właściciela jest dostępna dla wszystkich (jak w OwnershipIndex)
+            if (fleet.getOwner() == null) return true;
+            owner = fleet.getOwner();
+        }
+        return "admin".equals(username) || owner != null && owner.getId() == entry.ownerId();
+    }
+
+    private void disable(List<Long> ids) {
+        if (ids.isEmpty()) return;
+        jdbcTemplate.batchUpdate("UPDATE scheduled_commands SET is_enabled = false, next_run_at = NULL WHERE id = ?",
+                ids.stream().map(id -> new Object[]{id}).toList(), new int[]{Types.BIGINT});
+        ids.forEach(this::unregister);
+        disabled.add(ids.size());
+    }
+
+    private String usernameOf(long ownerId, Map<Long, Optional<String>> cache) {
+        return cache.computeIfAbsent(ownerId, id -> userRepository.findById(id).map(u -> u.getUsername())).orElse(null);
+    }
+
+    /** Termin po przestoju: zaległy wykonujemy od razu (w oknie grace) albo przechodzimy do następnego. */
+    private Instant resolveMisfire(Entry entry, Instant now) {
+        Instant next = entry.nextRun();
+        if (next == null) {
+            return entry.cron() != null ? nextCron(entry.cron(), entry.zone(), now) : null;
+        }
+        if (!next.isBefore(now)) return next;
+
+        boolean withinGrace = Duration.between(next, now).toMillis() <= misfireGraceMillis;
+        if (entry.misfirePolicy() == MisfirePolicy.FIRE_ONCE && withinGrace) {
+            log.info("Harmonogram {}: zaległy termin {} - wykonuję raz", entry.id(), next);
+            misfiresFired.increment();
+            return now;
+        }
+        log.info("Harmonogram {}: pominięto zaległy termin {}", entry.id(), next);
+        misfiresSkipped.increment();
+        return entry.cron() != null ? nextCron(entry.cron(), entry.zone(), now) : null;
+    }
+
+    private void schedule(Entry entry) {
+        entries.put(entry.id(), entry);
+        wheel.schedule(entry.id(), entry.nextRun().toEpochMilli());
+    }
+
+    private Entry toEntry(long id, long ownerId, TargetType targetType, String targetId, byte[] payload,
+                          String cron, LocalDateTime runAt, String timezone, String ownerTimezone,
+                          String misfirePolicy, Instant nextRun) {
+        IotProtos.LampCommand command;
+        try {
+            command = IotProtos.LampCommand.parseFrom(payload);
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException("Nieprawidłowa komenda w harmonogramie " + id, e);
+        }
+        return new Entry(id, ownerId, targetType, targetId, command,
+                cron != null ? CronExpression.parse(cron) : null,
+                resolveZone(timezone, ownerTimezone),
+                misfirePolicy != null ? MisfirePolicy.valueOf(misfirePolicy) : MisfirePolicy.FIRE_ONCE,
+                nextRun);
+    }
+
+    private static Instant nextCron(CronExpression cron, ZoneId zone, Instant after) {
+        ZonedDateTime next = cron.next(after.atZone(zone));
+        return next != null ? next.toInstant() : null;
+    }
+
+    private ZoneId resolveZone(String timezone, String ownerTimezone) {
+        for (String id : new String[]{timezone, ownerTimezone, defaultZone}) {
+            if (id == null || id.isBlank()) continue;
+            try {
+                return ZoneId.of(id);
+            } catch (DateTimeException e) {
+                log.warn("Harmonogramy: nieznana strefa czasowa '{}'", id);
+            }
+        }
+        return ZoneId.systemDefault();
+    }
+
+    // Kolumny LocalDateTime trzymają czas serwera (jak reszta encji)
+    private static Instant toInstant(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant();
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return instant != null ? Timestamp.valueOf(LocalDateTime.ofInstant(instant, ZoneId.systemDefault())) : null;
+    }
+}
@@ -1,53 +1,120 @@
 package org.qualv13.iotbackend.scheduler;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.entity.LampMetric;
-import org.qualv13.iotbackend.repository.LampMetricRepository;
-import org.qualv13.iotbackend.repository.LampRepository;
+import org.qualv13.iotbackend.service.LampStateCache;
+import org.qualv13.iotbackend.service.LastSeenRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+
 import java.time.LocalDateTime;
-import java.util.Optional;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
+/**
+ * Wykrywanie lamp offline na timing wheelu.
+ * Każdy raport przeplanowuje termin lampy (ostatni raport + {@code missed-reports} × jej reportInterval + zapas),
+ * więc co tick sprawdzamy tylko lampy, którym termin właśnie minął - zamiast przeglądać całą flotę.
+ * Każde przejście w stan online poza raportem (komenda, zmiana floty, nowa lampa) też dostaje termin -
+ * jeśli lampa nie zaraportuje w tym oknie, wraca do OFFLINE.
+ */
 @Component
-@RequiredArgsConstructor
 @Slf4j
 public class DeviceStatusScheduler {
 
-    private final LampRepository lampRepository;
-    private final LampMetricRepository metricRepository;
-
-    // Sprawdzaj co 20 sekund
-    @Scheduled(fixedRate = 20000)
-    public void checkOfflineLamps() {
-        LocalDateTime threshold = LocalDateTime.now().minusSeconds(120); // 2 minuty timeout
-
-        // Pobieramy lampy, które są "Online" i sprawdzamy czy nie umarły
-        lampRepository.findAll().stream()
-                .filter(Lamp::isOnline)
-                .forEach(lamp -> {
-                    Optional<LampMetric> last = metricRepository.findFirstByLampIdOrderByTimestampDesc(lamp.getId());
-                    if (last.isEmpty() || last.get().getTimestamp().isBefore(threshold)) {
-                        lamp.setOnline(false);
-                        lamp.setOn(false);
-                        lampRepository.save(lamp);
-                        log.warn("Lampa {} przeszła w stan OFFLINE (timeout)", lamp.getId());
-                    }else if (last.get().getTimestamp().isAfter(threshold)) {
-                        lamp.setOnline(true);
-                        if(lamp.getBrightness() > 0) {
-                            lamp.setOn(true);
-                            log.info("Lampa {} świeci", lamp.getId());
-                        }
-                        lampRepository.save(lamp);
-                    }
-                    if(!lamp.isOnline()) {
-                        lamp.setOn(false);
-                        lampRepository.save(lamp);
-                    }
-                });
+    private final LampStateCache lampStateCache;
+    private final LastSeenRegistry lastSeenRegistry;
+    private final HashedTimingWheel<String> deadlines;
+
+    @Value("${offline-detection.missed-reports:2}")
+    private int missedReports;
+
+    @Value("${offline-detection.grace-seconds:10}")
+    private int graceSeconds;
+
+    public DeviceStatusScheduler(LampStateCache lampStateCache,
+                                 LastSeenRegistry lastSeenRegistry,
+                                 @Value("${offline-detection.tick-ms:1000}") long tickMillis) {
+        this.lampStateCache = lampStateCache;
+        this.lastSeenRegistry = lastSeenRegistry;
+        this.deadlines = new HashedTimingWheel<>(tickMillis, 512, System.currentTimeMillis());
+        lampStateCache.onWentOnline(this::wentOnline);
+    }
+
+    // Po odbudowie LampStateCache i LastSeenRegistry (mają wyższy priorytet)
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        int scheduled = 0;
+        for (LampStateCache.LampState lamp : lampStateCache.all()) {
+            if (!lamp.isOnline()) continue;
+            LastSeenRegistry.LastSeen last = lastSeenRegistry.get(lamp.getId());
+            // Lampa "online" bez żadnego raportu - termin od razu, zgaśnie w pierwszym ticku
+            deadlines.schedule(lamp.getId(), last != null
+                    ? deadlineFor(lamp.getId(), last.reportedAt())
+                    : System.currentTimeMillis());
+            scheduled++;
+        }
+        log.info("Offline detection: zaplanowano {} lamp online", scheduled);
+    }
 
+    /** Wołane przez ingest po commicie paczki - przesuwa terminy lamp, które właśnie raportowały. */
+    public void reportsReceived(Collection<String> lampIds) {
+        for (String lampId : lampIds) {
+            LastSeenRegistry.LastSeen last = lastSeenRegistry.get(lampId);
+            if (last != null) {
+                deadlines.schedule(lampId, deadlineFor(lampId, last.reportedAt()));
+            }
+        }
+    }
+
+    /** Lampa przeszła w stan online - pełne okno na raport liczone od teraz. */
+    private void wentOnline(String lampId) {
+        deadlines.schedule(lampId, deadlineFor(lampId, LocalDateTime.now()));
+    }
+
+    @Scheduled(fixedDelayString = "${offline-detection.tick-ms:1000}")
+    public void tick() {
+        long now = System.currentTimeMillis();
+        List<String> expired = deadlines.advance(now);
+        if (expired.isEmpty()) return;
+
+        List<String> wentOffline = new ArrayList<>();
+        for (String lampId : expired) {
+            // Raport mógł przyjść między wpisem do rejestru a przeplanowaniem - sprawdzamy jeszcze raz
+            LastSeenRegistry.LastSeen last = lastSeenRegistry.get(lampId);
+            if (last != null) {
+                long deadline = deadlineFor(lampId, last.reportedAt());
+                if (deadline > now) {
+                    deadlines.schedule(lampId, deadline);
+                    continue;
+                }
+            }
+
+            lampStateCache.update(lampId, state -> {
+                if (state.isOnline()) {
+                    state.setOnline(false);
+                    state.setOn(false);
+                    wentOffline.add(state.getId());
+                }
+            });
+        }
+
+        if (!wentOffline.isEmpty()) {
+            // Wszystkie przejścia z tego ticku mają ten sam zestaw kolumn -> jeden batch UPDATE
+            lampStateCache.flush();
+            log.warn("Lampy przeszły w stan OFFLINE (timeout): {}", wentOffline);
+        }
+    }
 
+    private long deadlineFor(String lampId, LocalDateTime reportedAt) {
+        LampStateCache.LampState state = lampStateCache.get(lampId);
+        int interval = state != null && state.getReportInterval() != null && state.getReportInterval() > 0
+                ? state.getReportInterval() : 60;
+        long timeoutMillis = ((long) interval * missedReports + graceSeconds) * 1000L;
+        return reportedAt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() + timeoutMillis;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+package org.qualv13.iotbackend.scheduler;
+
+import java.util.*;
+
+/**
+ * Prosty hashed timing wheel: terminy kluczy rozłożone w kubełkach po {@code tickMillis}.
+ * Zaplanowanie / przeplanowanie klucza to O(1), a {@link #advance(long)} przegląda tylko
+ * kubełki, przez które przeszedł czas - koszt nie rośnie z liczbą zaplanowanych kluczy.
+ * Jeden termin na klucz: ponowne {@link #schedule} zastępuje poprzedni.
+ * Metody są synchronizowane - wołają je ingest i wątek schedulera.
+ */
+public class HashedTimingWheel<K> {
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<Set<Entry<K>>> buckets;
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+    private long currentTick;
+
+    private static final class Entry<K> {
+        final K key;
+        final long deadlineTick;
+        final int bucket;
+
+        Entry(K key, long deadlineTick, int bucket) {
+            this.key = key;
+            this.deadlineTick = deadlineTick;
+            this.bucket = bucket;
+        }
+    }
+
+    /** @param wheelSize zaokrąglany w górę do potęgi dwójki */
+    public HashedTimingWheel(long tickMillis, int wheelSize, long nowMillis) {
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) buckets.add(new LinkedHashSet<>());
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    public synchronized void schedule(K key, long deadlineMillis) {
+        cancel(key);
+        // Termin w przeszłości trafia do najbliższego kubełka
+        long deadlineTick = Math.max(currentTick, (deadlineMillis + tickMillis - 1) / tickMillis);
+        Entry<K> entry = new Entry<>(key, deadlineTick, (int) (deadlineTick & mask));
+        buckets.get(entry.bucket).add(entry);
+        entries.put(key, entry);
+    }
+
+    public synchronized boolean cancel(K key) {
+        Entry<K> old = entries.remove(key);
+        if (old == null) return false;
+        buckets.get(old.bucket).remove(old);
+        return true;
+    }
+
+    public synchronized boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Przesuwa wskazówkę do {@code nowMillis} i zwraca klucze, których termin minął. */
+    public synchronized List<K> advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        List<K> expired = new ArrayList<>();
+        // Po dłuższej przerwie wystarczy jeden pełny obrót koła
+        long from = Math.max(currentTick, targetTick - mask);
+        for (long tick = from; tick <= targetTick; tick++) {
+            Iterator<Entry<K>> it = buckets.get((int) (tick & mask)).iterator();
+            while (it.hasNext()) {
+                Entry<K> entry = it.next();
+                if (entry.deadlineTick <= targetTick) {
+                    it.remove();
+                    entries.remove(entry.key);
+                    expired.add(entry.key);
+                }
+            }
+        }
+        currentTick = targetTick + 1;
+        return expired;
+    }
+}
@@ -0,0 +1,237 @@
+package org.qualv13.iotbackend.scheduler;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAdjusters;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Partycjonowanie lamp_metrics po czasie (PostgreSQL).
+ * <p>
+ * Przy pierwszym starcie zamienia zwykłą tabelę na partycjonowaną (RANGE po timestamp):
+ * stare dane zostają jako partycja lamp_metrics_legacy (MINVALUE .. koniec bieżącego okresu).
+ * Potem co godzinę tworzy partycje na {@code premake} okresów do przodu i usuwa w całości
+ * te, które są starsze niż {@code retention-days} - bez DELETE wiersz po wierszu.
+ * Wiersze, które trafiły do lamp_metrics_default (np. z zegarem lampy w przyszłości), przy tworzeniu
+ * partycji na ich zakres są do niej przenoszone - inaczej Postgres odmówiłby jej utworzenia.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MetricsPartitionManager {
+
+    private static final String TABLE = "lamp_metrics";
+    private static final String DEFAULT_PARTITION = TABLE + "_default";
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter BOUND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Pattern UPPER_BOUND = Pattern.compile("TO \\('([^']+)'\\)");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${metrics.partitioning.interval:weekly}")
+    private String interval;
+
+    @Value("${metrics.partitioning.premake:4}")
+    private int premake;
+
+    @Value("${metrics.partitioning.retention-days:90}")
+    private int retentionDays;
+
+    private volatile boolean enabled;
+
+    private record Partition(String name, LocalDateTime upperBound) {}
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void init() {
+        String database = jdbcTemplate.execute((ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName());
+        if (!"PostgreSQL".equals(database)) {
+            log.info("Partycjonowanie {} pominięte (baza: {})", TABLE, database);
+            return;
+        }
+        if (!isPartitioned()) {
+            convertToPartitioned();
+        }
+        enabled = true;
+        maintain();
+    }
+
+    @Scheduled(fixedDelayString = "${metrics.partitioning.check-interval-ms:3600000}", initialDelayString = "${metrics.partitioning.check-interval-ms:3600000}")
+    public void maintain() {
+        if (!enabled) return;
+        try {
+            createFuturePartitions();
+        } catch (Exception e) {
+            log.error("Błąd tworzenia partycji {}: {}", TABLE, e.getMessage(), e);
+        }
+        try {
+            dropExpiredPartitions();
+        } catch (Exception e) {
+            log.error("Błąd usuwania partycji {}: {}", TABLE, e.getMessage(), e);
+        }
+    }
+
+    private boolean isPartitioned() {
+        String kind = jdbcTemplate.queryForObject(
+                "SELECT CAST(relkind AS varchar) FROM pg_class WHERE oid = to_regclass(?)", String.class, TABLE);
+        return "p".equals(kind);
+    }
+
+    /**
+     * Jednorazowa konwersja w jednej transakcji. Inserty ingestu czekają na blokadę tabeli
+     * przez czas walidacji starych danych (SET NOT NULL + ATTACH skanują tabelę raz).
+     */
+    private void convertToPartitioned() {
+        LocalDateTime cutoff = nextPeriodStart(LocalDateTime.now());
+        log.info("Konwersja {} na tabelę partycjonowaną (stare dane do {})", TABLE, cutoff);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.execute("LOCK TABLE lamp_metrics IN ACCESS EXCLUSIVE MODE");
+            jdbcTemplate.execute("ALTER TABLE lamp_metrics RENAME TO lamp_metrics_legacy");
+            Integer legacyPk = jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM pg_constraint WHERE conname = 'lamp_metrics_pkey'", Integer.class);
+            if (legacyPk != null && legacyPk > 0) {
+                jdbcTemplate.execute("ALTER TABLE lamp_metrics_legacy RENAME CONSTRAINT lamp_metrics_pkey TO lamp_metrics_legacy_pkey");
+            }
+            jdbcTemplate.execute("ALTER INDEX IF EXISTS idx_lamp_metrics_lamp_ts RENAME TO idx_lamp_metrics_legacy_lamp_ts");
+            jdbcTemplate.execute("ALTER TABLE lamp_metrics_legacy ALTER COLUMN id DROP IDENTITY IF EXISTS");
+            jdbcTemplate.execute("DELETE FROM lamp_metrics_legacy WHERE timestamp IS NULL");
+            jdbcTemplate.execute("ALTER TABLE lamp_metrics_legacy ALTER COLUMN timestamp SET NOT NULL");
+
+            // Sekwencja zamiast IDENTITY - partycje dziedziczą domyślną wartość z rodzica
+            jdbcTemplate.execute("CREATE SEQUENCE IF NOT EXISTS lamp_metrics_part_id_seq");
+            jdbcTemplate.queryForObject(
+                    "SELECT setval('lamp_metrics_part_id_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM lamp_metrics_legacy), false)",
+                    Long.class);
+
+            jdbcTemplate.execute("CREATE TABLE lamp_metrics (LIKE lamp_metrics_legacy INCLUDING DEFAULTS) PARTITION BY RANGE (timestamp)");
+            jdbcTemplate.execute("ALTER TABLE lamp_metrics ALTER COLUMN id SET DEFAULT nextval('lamp_metrics_part_id_seq')");
+            jdbcTemplate.execute("ALTER TABLE lamp_metrics ADD CONSTRAINT lamp_metrics_pkey PRIMARY KEY (id, timestamp)");
+            jdbcTemplate.execute("ALTER SEQUENCE lamp_metrics_part_id_seq OWNED BY lamp_metrics.id");
+
+            jdbcTemplate.execute("ALTER TABLE lamp_metrics ATTACH PARTITION lamp_metrics_legacy FOR VALUES FROM (MINVALUE) TO ('"
+                    + cutoff.format(BOUND_FORMAT) + "')");
+            jdbcTemplate.execute("CREATE TABLE lamp_metrics_default PARTITION OF lamp_metrics DEFAULT");
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_lamp_metrics_lamp_ts ON lamp_metrics (lamp_id, timestamp)");
+        });
+
+        log.info("Tabela {} jest partycjonowana", TABLE);
+    }
+
+    private void createFuturePartitions() {
+        LocalDateTime coveredUntil = listPartitions().stream()
+                .map(Partition::upperBound)
+                .max(LocalDateTime::compareTo)
+                .orElse(LocalDateTime.MIN);
+
+        LocalDateTime from = periodStart(LocalDateTime.now());
+        if (coveredUntil.isAfter(from)) from = coveredUntil;
+
+        LocalDateTime horizon = periodStart(LocalDateTime.now());
+        for (int i = 0; i <= premake; i++) horizon = nextPeriodStart(horizon);
+
+        while (from.isBefore(horizon)) {
+            LocalDateTime to = nextPeriodStart(from);
+            String name = TABLE + "_p" + from.format(NAME_FORMAT);
+            String bounds = "FOR VALUES FROM ('" + from.format(BOUND_FORMAT) + "') TO ('" + to.format(BOUND_FORMAT) + "')";
+            try {
+                if (defaultHasRows(from, to)) {
+                    moveFromDefault(name, bounds, from, to);
+                } else {
+                    jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + name + " PARTITION OF " + TABLE + " " + bounds);
+                    log.info("Utworzono partycję {} [{} - {})", name, from, to);
+                }
+            } catch (Exception e) {
+                // Bez tej partycji kolejne okresy też trafiałyby do DEFAULT - przerywamy, maintain() zgłosi błąd
+                throw new IllegalStateException("Nie udało się utworzyć partycji " + name + ": " + e.getMessage(), e);
+            }
+            from = to;
+        }
+    }
+
+    private boolean defaultHasRows(LocalDateTime from, LocalDateTime to) {
+        if (jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, DEFAULT_PARTITION) != Boolean.TRUE) {
+            return false;
+        }
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM " + DEFAULT_PARTITION + " WHERE timestamp >= ? AND timestamp < ?)",
+                Boolean.class, Timestamp.valueOf(from), Timestamp.valueOf(to)));
+    }
+
+    /**
+     * Tworzy partycję jako osobną tabelę, przenosi do niej wiersze zakresu z DEFAULT i dołącza ją
+     * do tabeli nadrzędnej - w jednej transakcji. Blokada DEFAULT wstrzymuje na ten czas inserty,
+     * które by do niej trafiły (nowy wiersz z zakresu zablokowałby ATTACH).
+     */
+    private void moveFromDefault(String name, String bounds, LocalDateTime from, LocalDateTime to) {
+        Timestamp fromTs = Timestamp.valueOf(from);
+        Timestamp toTs = Timestamp.valueOf(to);
+        int moved = transactionTemplate.execute(status -> {
+            jdbcTemplate.execute("LOCK TABLE " + DEFAULT_PARTITION + " IN ACCESS EXCLUSIVE MODE");
+            jdbcTemplate.execute("CREATE TABLE " + name + " (LIKE " + TABLE + " INCLUDING DEFAULTS)");
+            int rows = jdbcTemplate.update("INSERT INTO " + name + " SELECT * FROM " + DEFAULT_PARTITION
+                    + " WHERE timestamp >= ? AND timestamp < ?", fromTs, toTs);
+            jdbcTemplate.update("DELETE FROM " + DEFAULT_PARTITION + " WHERE timestamp >= ? AND timestamp < ?", fromTs, toTs);
+            jdbcTemplate.execute("ALTER TABLE " + TABLE + " ATTACH PARTITION " + name + " " + bounds);
+            return rows;
+        });
+        log.warn("Utworzono partycję {} [{} - {}) i przeniesiono do niej {} wierszy z {}",
+                name, from, to, moved, DEFAULT_PARTITION);
+    }
+
+    private void dropExpiredPartitions() {
+        if (retentionDays <= 0) return;
+        LocalDateTime expiry = LocalDateTime.now().minusDays(retentionDays);
+
+        for (Partition partition : listPartitions()) {
+            if (!partition.upperBound().isAfter(expiry)) {
+                jdbcTemplate.execute("DROP TABLE IF EXISTS " + partition.name());
+                log.info("Usunięto partycję {} (dane do {}, retencja {} dni)", partition.name(), partition.upperBound(), retentionDays);
+            }
+        }
+    }
+
+    /** Partycje z górną granicą (bez partycji DEFAULT). */
+    private List<Partition> listPartitions() {
+        return jdbcTemplate.query("""
+                SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) AS bound
+                FROM pg_inherits i
+                JOIN pg_class c ON c.oid = i.inhrelid
+                WHERE i.inhparent = CAST(? AS regclass)
+                """, (rs, n) -> {
+                    Matcher m = UPPER_BOUND.matcher(rs.getString("bound"));
+                    if (!m.find()) return null;
+                    return new Partition(rs.getString("relname"), Timestamp.valueOf(m.group(1)).toLocalDateTime());
+                }, TABLE).stream()
+                .filter(Objects::nonNull)
+                .toList();
+    }
+
+    private LocalDateTime periodStart(LocalDateTime time) {
+        LocalDate day = time.toLocalDate();
+        if ("daily".equalsIgnoreCase(interval)) return day.atStartOfDay();
+        return day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).atStartOfDay();
+    }
+
+    private LocalDateTime nextPeriodStart(LocalDateTime time) {
+        LocalDateTime start = periodStart(time);
+        return "daily".equalsIgnoreCase(interval) ? start.plusDays(1) : start.plusWeeks(1);
+    }
+}
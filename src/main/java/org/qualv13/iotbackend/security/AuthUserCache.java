@@ -0,0 +1,72 @@
+package org.qualv13.iotbackend.security;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Użytkownicy dla filtra JWT: id i wersja tokenów, bez encji i bez zapytania na każde żądanie.
+ * Wpis unieważniamy przy zmianie hasła, loginu i usunięciu konta; TTL ({@code jwt.user-cache.ttl-ms})
+ * ogranicza skutki zmian zrobionych poza aplikacją.
+ */
+@Slf4j
+@Component
+public class AuthUserCache {
+
+    public record CachedUser(long id, int tokenVersion, long expiresAt) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final long ttlMillis;
+    private final int maxSize;
+    private final Map<String, CachedUser> users = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public AuthUserCache(JdbcTemplate jdbcTemplate,
+                         @Value("${jwt.user-cache.ttl-ms:300000}") long ttlMillis,
+                         @Value("${jwt.user-cache.size:10000}") int maxSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /** @return użytkownik albo null, jeśli konto nie istnieje */
+    public CachedUser get(String username) {
+        long now = System.currentTimeMillis();
+        CachedUser cached = users.get(username);
+        if (cached != null && cached.expiresAt() > now) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        List<CachedUser> rows = jdbcTemplate.query(
+                "SELECT id, token_version FROM users WHERE username = ?",
+                (rs, n) -> new CachedUser(rs.getLong("id"), rs.getInt("token_version"), now + ttlMillis),
+                username);
+        if (rows.isEmpty()) {
+            users.remove(username);
+            return null;
+        }
+        CachedUser loaded = rows.get(0);
+        if (users.size() >= maxSize) {
+            users.values().removeIf(u -> u.expiresAt() <= now);
+        }
+        if (users.size() < maxSize) users.put(username, loaded);
+        return loaded;
+    }
+
+    public void invalidate(String username) {
+        users.remove(username);
+    }
+
+    public Map<String, Object> stats() {
+        return Map.of("size", users.size(), "hits", hits.sum(), "misses", misses.sum());
+    }
+}
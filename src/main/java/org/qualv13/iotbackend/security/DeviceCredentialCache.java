@@ -0,0 +1,116 @@
+package org.qualv13.iotbackend.security;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dane uwierzytelniające lamp dla HTTP auth backendu RabbitMQ: hash tokena i bieżąca flota.
+ * <p>
+ * Po restarcie brokera wszystkie lampy łączą się naraz - wpis z TTL ({@code mqtt.auth.cache-ttl-ms})
+ * sprawia, że baza widzi najwyżej jedno zapytanie na lampę w oknie TTL, a /topic odpowiada z pamięci.
+ * Rozmiar ograniczony przez {@code mqtt.auth.cache-size}. Wpis unieważniamy przy rotacji tokena
+ * i zmianie floty.
+ */
+@Slf4j
+@Component
+public class DeviceCredentialCache {
+
+    /** Lampa z bazy: hash tokena (hex SHA-256) i id floty (null = bez floty). */
+    public record Credential(String tokenHash, Long fleetId, long expiresAt) {}
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final JdbcTemplate jdbcTemplate;
+    private final long ttlMillis;
+    private final int maxSize;
+    private final Map<String, Credential> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DeviceCredentialCache(JdbcTemplate jdbcTemplate,
+                                 @Value("${mqtt.auth.cache-ttl-ms:600000}") long ttlMillis,
+                                 @Value("${mqtt.auth.cache-size:100000}") int maxSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /** Sprawdza token lampy; porównanie w stałym czasie. */
+    public boolean verify(String lampId, String rawToken) {
+        Credential credential = get(lampId);
+        if (credential == null || credential.tokenHash() == null || rawToken == null) return false;
+        byte[] expected = credential.tokenHash().getBytes(StandardCharsets.US_ASCII);
+        byte[] actual = HexFormat.of().formatHex(SHA256.get().digest(rawToken.getBytes(StandardCharsets.UTF_8)))
+                .getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /** @return dane lampy albo null, jeśli lampa nie istnieje */
+    public Credential get(String lampId) {
+        long now = System.currentTimeMillis();
+        Credential cached = entries.get(lampId);
+        if (cached != null && cached.expiresAt() > now) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        List<Credential> rows = jdbcTemplate.query(
+                "SELECT device_token_hash, fleet_id FROM lamps WHERE id = ?",
+                (rs, n) -> new Credential(rs.getString("device_token_hash"),
+                        rs.getObject("fleet_id") != null ? rs.getLong("fleet_id") : null,
+                        now + ttlMillis),
+                lampId);
+        if (rows.isEmpty()) {
+            entries.remove(lampId);
+            return null;
+        }
+        Credential loaded = rows.get(0);
+        if (entries.size() >= maxSize) purge(now);
+        if (entries.size() < maxSize) entries.put(lampId, loaded);
+        return loaded;
+    }
+
+    /** Nowy token, zmiana floty albo usunięcie lampy. */
+    public void invalidate(String lampId) {
+        entries.remove(lampId);
+    }
+
+    /** Rozwiązanie floty - wszystkie jej lampy tracą dostęp do fleets.{id}.*. */
+    public void invalidateFleet(Long fleetId) {
+        entries.values().removeIf(c -> fleetId.equals(c.fleetId()));
+    }
+
+    public Map<String, Object> stats() {
+        return Map.of("size", entries.size(), "hits", hits.sum(), "misses", misses.sum());
+    }
+
+    // Najpierw przeterminowane; jeśli to nie wystarczy - dowolne wpisy do 90% limitu
+    private void purge(long now) {
+        entries.values().removeIf(c -> c.expiresAt() <= now);
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxSize * 9 / 10 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        log.debug("Cache uwierzytelniania lamp: po czyszczeniu {} wpisów", entries.size());
+    }
+}
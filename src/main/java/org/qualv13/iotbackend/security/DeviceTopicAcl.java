@@ -0,0 +1,73 @@
+package org.qualv13.iotbackend.security;
+
+/**
+ * Reguły dostępu lamp do tematów brokera (routing key amq.topic, MQTT "/" = AMQP ".").
+ * <ul>
+ *   <li>zapis: tylko {@code lamps.{id}.<typ>} (status, ack) - lampa nie podszyje się pod inną,</li>
+ *   <li>odczyt: {@code lamps.{id}.<typ>} oraz {@code fleets.{fleetId}.<typ>} bieżącej floty lampy,</li>
+ *   <li>zasoby: tylko amq.topic i własne kolejki subskrypcji {@code mqtt-subscription-{id}qos0/1}.</li>
+ * </ul>
+ * Dopasowanie na regionMatches - bez wyrażeń regularnych i bez alokacji na każde zapytanie brokera.
+ */
+public final class DeviceTopicAcl {
+
+    private static final String LAMPS = "lamps.";
+    private static final String FLEETS = "fleets.";
+    private static final String MQTT_SUBSCRIPTION_QUEUE = "mqtt-subscription-";
+    private static final String TOPIC_EXCHANGE = "amq.topic";
+
+    private DeviceTopicAcl() {
+    }
+
+    public static boolean canPublish(String lampId, String routingKey) {
+        return matchesOwn(LAMPS, lampId, routingKey);
+    }
+
+    public static boolean canSubscribe(String lampId, Long fleetId, String routingKey) {
+        if (matchesOwn(LAMPS, lampId, routingKey)) return true;
+        return fleetId != null && matchesFleet(fleetId, routingKey);
+    }
+
+    /** Lampa (klient MQTT) używa tylko amq.topic i własnych kolejek subskrypcji. */
+    public static boolean canAccessResource(String lampId, String resource, String name) {
+        if ("exchange".equals(resource)) return TOPIC_EXCHANGE.equals(name);
+        if ("queue".equals(resource)) return isOwnSubscriptionQueue(lampId, name);
+        return false;
+    }
+
+    // Plugin MQTT nazywa kolejki mqtt-subscription-{clientId}qos{0|1}; clientId lampy = jej login.
+    // Pełne dopasowanie - sam prefiks przepuściłby lampę "a1" do kolejek lampy "a10"
+    private static boolean isOwnSubscriptionQueue(String lampId, String name) {
+        int qos = MQTT_SUBSCRIPTION_QUEUE.length() + lampId.length();
+        return name.length() == qos + 4
+                && name.startsWith(MQTT_SUBSCRIPTION_QUEUE)
+                && name.regionMatches(MQTT_SUBSCRIPTION_QUEUE.length(), lampId, 0, lampId.length())
+                && name.startsWith("qos", qos)
+                && (name.charAt(qos + 3) == '0' || name.charAt(qos + 3) == '1');
+    }
+
+    // prefix + id + "." + jeden segment (bez kolejnych kropek; "#" i "*" to też jeden segment)
+    private static boolean matchesOwn(String prefix, String id, String key) {
+        int idStart = prefix.length();
+        int dot = idStart + id.length();
+        return key.length() > dot + 1
+                && key.startsWith(prefix)
+                && key.regionMatches(idStart, id, 0, id.length())
+                && key.charAt(dot) == '.'
+                && key.indexOf('.', dot + 1) < 0;
+    }
+
+    private static boolean matchesFleet(long fleetId, String key) {
+        if (!key.startsWith(FLEETS)) return false;
+        int pos = FLEETS.length();
+        long parsed = 0;
+        int digits = 0;
+        while (pos < key.length() && Character.isDigit(key.charAt(pos))) {
+            parsed = parsed * 10 + (key.charAt(pos++) - '0');
+            if (++digits > 18) return false;
+        }
+        return digits > 0 && parsed == fleetId
+                && pos < key.length() - 1 && key.charAt(pos) == '.'
+                && key.indexOf('.', pos + 1) < 0;
+    }
+}
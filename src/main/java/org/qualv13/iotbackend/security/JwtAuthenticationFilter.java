@@ -1,27 +1,38 @@
 package org.qualv13.iotbackend.security;
 
+import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.lang.NonNull;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
-
+import java.util.Collections;
+
+/**
+ * Uwierzytelnianie bezstanowe: token weryfikowany raz (podpis + termin), principal budowany z claimów.
+ * Istnienie konta i wersję tokenów (unieważnienie po zmianie hasła) sprawdza {@link AuthUserCache} -
+ * bez zapytania do bazy przy każdym żądaniu.
+ */
+@Slf4j
 @Component
 @RequiredArgsConstructor
 public class JwtAuthenticationFilter extends OncePerRequestFilter {
 
     private final JwtService jwtService;
-    private final UserDetailsService userDetailsService;
+    private final AuthUserCache authUserCache;
+
+    @Value("${jwt.debug:false}")
+    private boolean debug;
 
     @Override
     protected void doFilterInternal(
@@ -30,61 +41,51 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
             @NonNull FilterChain filterChain
     ) throws ServletException, IOException {
 
-        // DEBUG: Requests
         final String authHeader = request.getHeader("Authorization");
-        System.out.println("--- JWT FILTER DEBUG ---");
-        System.out.println("Request URL: " + request.getRequestURI());
-
         if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            System.out.println("Brak nagłówka Authorization lub brak 'Bearer '");
+            if (debug) log.info("JWT: brak nagłówka Authorization lub brak 'Bearer ' ({})", request.getRequestURI());
             filterChain.doFilter(request, response);
             return;
         }
 
         final String jwt = authHeader.substring(7);
-        // Show part of token
-        if (jwt.length() > 10) {
-            System.out.println("Token found: " + jwt.substring(0, 10) + "...");
-        } else {
-            System.out.println("Token found: " + jwt + " (short token)");
-        }
-
         try {
-            final String userEmail = jwtService.extractUsername(jwt);
-            System.out.println("User from token: " + userEmail);
-
-            if (userEmail != null && SecurityContextHolder.getContext().getAuthentication() == null) {
-                UserDetails userDetails = this.userDetailsService.loadUserByUsername(userEmail);
-
-                if (jwtService.isTokenValid(jwt, userDetails)) {
-                    System.out.println("Token jest poprawny! Ustawiam SecurityContext.");
-
-                    UsernamePasswordAuthenticationToken authToken = new UsernamePasswordAuthenticationToken(
-                            userDetails,
-                            null,
-                            userDetails.getAuthorities()
-                    );
-                    authToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
-                    SecurityContextHolder.getContext().setAuthentication(authToken);
-                } else {
-                    System.out.println("Token NIE JEST poprawny według jwtService.isTokenValid()");
+            Claims claims = jwtService.parseClaims(jwt);
+            String username = claims.getSubject();
+            if (debug) log.info("JWT: {} -> użytkownik {}", request.getRequestURI(), username);
+
+            if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
+                AuthUserCache.CachedUser user = authUserCache.get(username);
+                if (user == null || user.tokenVersion() != JwtService.tokenVersion(claims)) {
+                    if (debug) log.info("JWT: konto {} nie istnieje albo token unieważniony", username);
+                    unauthorized(response);
+                    return;
                 }
+
+                UsernamePasswordAuthenticationToken authToken = new UsernamePasswordAuthenticationToken(
+                        username,
+                        null,
+                        Collections.emptyList()
+                );
+                authToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
+                SecurityContextHolder.getContext().setAuthentication(authToken);
             }
         } catch (Exception e) {
             SecurityContextHolder.clearContext();
-
-            System.out.println("BŁĄD WERYFIKACJI TOKENA (Zwracam 403): " + e.getMessage());
-
-            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-            response.setContentType("application/json");
-            response.getWriter().write("{\"error\":\"unauthorized\",\"message\":\"Invalid or expired access token\"}");
+            if (debug) log.info("JWT: błąd weryfikacji tokena: {}", e.getMessage());
+            unauthorized(response);
             return;
         }
 
-        System.out.println("--- END FILTER DEBUG ---");
         filterChain.doFilter(request, response);
     }
 
+    private static void unauthorized(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        response.setContentType("application/json");
+        response.getWriter().write("{\"error\":\"unauthorized\",\"message\":\"Invalid or expired access token\"}");
+    }
+
     @Override
     protected boolean shouldNotFilter(@NonNull HttpServletRequest request) {
         String path = request.getServletPath();
@@ -94,4 +95,4 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
                 path.startsWith("/auth/") ||
                 path.startsWith("/api/mqtt/auth");
     }
-}
\ No newline at end of file
+}
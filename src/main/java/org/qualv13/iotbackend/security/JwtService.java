@@ -1,9 +1,12 @@
 package org.qualv13.iotbackend.security;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
+import org.qualv13.iotbackend.entity.User;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
@@ -14,6 +17,9 @@ import java.util.function.Function;
 
 @Service
 public class JwtService {
+    /** Claim z wersją tokenów użytkownika - zmiana hasła podbija wersję i unieważnia stare tokeny. */
+    public static final String TOKEN_VERSION_CLAIM = "tv";
+
     @Value("${jwt.secret}")
     private String secret;
 
@@ -21,6 +27,18 @@ public class JwtService {
     private static final long ACCESS_Validity = 15 * 60 * 1000;
     private static final long REFRESH_Validity = 90L * 24 * 60 * 60 * 1000;
 
+    // Klucz HMAC i parser budowane raz - parser jest thread-safe
+    private Key signingKey;
+    private JwtParser parser;
+
+    @PostConstruct
+    void init() {
+        signingKey = Keys.hmacShaKeyFor(io.jsonwebtoken.io.Decoders.BASE64.decode(secret));
+        parser = Jwts.parserBuilder().setSigningKey(signingKey)
+                .setAllowedClockSkewSeconds(60)
+                .build();
+    }
+
     public String generateAccessToken(UserDetails user) {
         return buildToken(user, ACCESS_Validity);
     }
@@ -30,16 +48,28 @@ public class JwtService {
     }
 
     private String buildToken(UserDetails user, long expiration) {
-        return Jwts.builder()
+        var builder = Jwts.builder()
                 .setSubject(user.getUsername())
                 .setIssuedAt(new Date())
-                .setExpiration(new Date(System.currentTimeMillis() + expiration))
-                .signWith(getSigningKey(), SignatureAlgorithm.HS256)
-                .compact();
+                .setExpiration(new Date(System.currentTimeMillis() + expiration));
+        if (user instanceof User u) {
+            builder.claim(TOKEN_VERSION_CLAIM, u.currentTokenVersion());
+        }
+        return builder.signWith(signingKey, SignatureAlgorithm.HS256).compact();
     }
 
-    private Key getSigningKey() {
-        return Keys.hmacShaKeyFor(io.jsonwebtoken.io.Decoders.BASE64.decode(secret));
+    /**
+     * Jedno sprawdzenie podpisu i terminu ważności (parser odrzuca wygasły token).
+     * @throws io.jsonwebtoken.JwtException gdy token jest nieprawidłowy lub wygasł
+     */
+    public Claims parseClaims(String token) {
+        return parser.parseClaimsJws(token).getBody();
+    }
+
+    /** Wersja z tokena; tokeny sprzed wprowadzenia wersji traktujemy jak wersję 0. */
+    public static int tokenVersion(Claims claims) {
+        Integer version = claims.get(TOKEN_VERSION_CLAIM, Integer.class);
+        return version != null ? version : 0;
     }
 
     public String extractUsername(String token) {
@@ -47,19 +77,11 @@ public class JwtService {
     }
 
     public <T> T extractClaim(String token, Function<Claims, T> claimsResolver) {
-        final Claims claims = Jwts.parserBuilder().setSigningKey(getSigningKey())
-                .setAllowedClockSkewSeconds(60)
-                .build()
-                .parseClaimsJws(token).getBody();
-        return claimsResolver.apply(claims);
+        return claimsResolver.apply(parseClaims(token));
     }
 
     public boolean isTokenValid(String token, UserDetails userDetails) {
-        final String username = extractUsername(token);
-        return (username.equals(userDetails.getUsername())) && !isTokenExpired(token);
-    }
-
-    private boolean isTokenExpired(String token) {
-        return extractClaim(token, Claims::getExpiration).before(new Date());
+        Claims claims = parseClaims(token);
+        return claims.getSubject().equals(userDetails.getUsername()) && !claims.getExpiration().before(new Date());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,131 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aktywne alerty każdej lampy trzymane w pamięci (klucz: alertIdFromDevice).
+ * Pozwala porównać listę alertów z raportu z bieżącym stanem bez zapytania do bazy -
+ * w typowym przypadku (brak zmian) ingest w ogóle nie dotyka tabeli lamp_alerts.
+ * Mapy per lampa są niemutowalne i podmieniane w całości po commicie.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ActiveAlertRegistry {
+
+    private static final String SELECT_ACTIVE = """
+            SELECT lamp_id, alert_id_from_device, alert_code, alert_level, message
+            FROM lamp_alerts
+            WHERE is_active = true AND alert_id_from_device IS NOT NULL
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, Map<Integer, ActiveAlert>> activeByLamp = new ConcurrentHashMap<>();
+
+    public record ActiveAlert(Integer code, Integer level, String message) {
+        static ActiveAlert of(IotProtos.Alert alert) {
+            return new ActiveAlert(alert.getCauseValue(), alert.getLevelValue(), alert.getMessage());
+        }
+    }
+
+    /** Różnica między aktywnymi alertami lampy a listą z raportu. */
+    public record AlertDiff(String lampId,
+                            List<IotProtos.Alert> opened,
+                            List<IotProtos.Alert> changed,
+                            List<Integer> cleared,
+                            Map<Integer, ActiveAlert> resulting) {
+        public boolean isEmpty() {
+            return opened.isEmpty() && changed.isEmpty() && cleared.isEmpty();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void preload() {
+        Map<String, Map<Integer, ActiveAlert>> loaded = new HashMap<>();
+        jdbcTemplate.query(SELECT_ACTIVE, rs -> {
+            loaded.computeIfAbsent(rs.getString("lamp_id"), k -> new HashMap<>())
+                    .put(rs.getInt("alert_id_from_device"), new ActiveAlert(
+                            (Integer) rs.getObject("alert_code"),
+                            (Integer) rs.getObject("alert_level"),
+                            rs.getString("message")));
+        });
+        jdbcTemplate.queryForList("SELECT id FROM lamps", String.class)
+                .forEach(lampId -> activeByLamp.putIfAbsent(lampId, Map.copyOf(loaded.getOrDefault(lampId, Map.of()))));
+        log.info("ActiveAlertRegistry: załadowano aktywne alerty {} lamp", loaded.size());
+    }
+
+    /** Aktywne alerty lampy (doładowuje z bazy przy pierwszym dostępie). */
+    public Map<Integer, ActiveAlert> activeFor(String lampId) {
+        return activeByLamp.computeIfAbsent(lampId, this::loadLamp);
+    }
+
+    /**
+     * @param partial true, gdy raport nie zmieścił wszystkich alertów (has_more_alerts) - brak alertu
+     *                w raporcie nic wtedy nie znaczy, więc żadnego nie zamykamy
+     */
+    public AlertDiff diff(String lampId, List<IotProtos.Alert> reported, boolean partial) {
+        Map<Integer, ActiveAlert> current = activeFor(lampId);
+
+        Map<Integer, IotProtos.Alert> reportedById = new LinkedHashMap<>();
+        for (IotProtos.Alert alert : reported) {
+            reportedById.put(alert.getId(), alert); // przy duplikatach ID wygrywa ostatni
+        }
+
+        List<IotProtos.Alert> opened = new ArrayList<>();
+        List<IotProtos.Alert> changed = new ArrayList<>();
+        Map<Integer, ActiveAlert> resulting = new HashMap<>();
+        reportedById.forEach((id, alert) -> {
+            ActiveAlert incoming = ActiveAlert.of(alert);
+            ActiveAlert existing = current.get(id);
+            if (existing == null) {
+                opened.add(alert);
+            } else if (!existing.equals(incoming)) {
+                changed.add(alert);
+            }
+            resulting.put(id, incoming);
+        });
+
+        List<Integer> cleared = new ArrayList<>();
+        current.forEach((id, alert) -> {
+            if (reportedById.containsKey(id)) return;
+            if (partial) {
+                resulting.put(id, alert);
+            } else {
+                cleared.add(id);
+            }
+        });
+
+        return new AlertDiff(lampId, opened, changed, cleared, Map.copyOf(resulting));
+    }
+
+    /** Wywoływane po commicie zapisu różnicy. */
+    public void apply(AlertDiff diff) {
+        activeByLamp.put(diff.lampId(), diff.resulting());
+    }
+
+    /** Wymusza ponowne wczytanie alertów lampy z bazy (np. po usunięciu jej historii). */
+    public void evict(String lampId) {
+        activeByLamp.remove(lampId);
+    }
+
+    private Map<Integer, ActiveAlert> loadLamp(String lampId) {
+        Map<Integer, ActiveAlert> loaded = new HashMap<>();
+        jdbcTemplate.query(SELECT_ACTIVE + " AND lamp_id = ?", rs -> {
+            loaded.put(rs.getInt("alert_id_from_device"), new ActiveAlert(
+                    (Integer) rs.getObject("alert_code"),
+                    (Integer) rs.getObject("alert_level"),
+                    rs.getString("message")));
+        }, lampId);
+        return Map.copyOf(loaded);
+    }
+}
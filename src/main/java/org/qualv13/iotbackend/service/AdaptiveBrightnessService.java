@@ -0,0 +1,116 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.scheduler.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptacyjna jasność liczona przy ingeście, gdy zmienia się natężenie światła z raportu.
+ * <p>
+ * Lux dzielimy na pasma (&lt;100, 100-400, 400-800, &gt;800). Zmiana pasma wymaga przekroczenia
+ * granicy o {@code hysteresis-lux} (histereza), a kolejna korekta jasności jednej lampy
+ * może nastąpić najwcześniej po {@code min-interval-ms} - lampa nie "mruga" na granicy pasm.
+ * Zmiana pasma wstrzymana przez ten odstęp nie przepada: lampa trafia na koło czasowe
+ * i po upływie odstępu jest oceniana ponownie dla ostatniego odczytu lux.
+ */
+@Slf4j
+@Service
+public class AdaptiveBrightnessService {
+
+    private static final int[] BAND_BRIGHTNESS = {100, 70, 40, 10};
+
+    private final int hysteresisLux;
+    private final long minIntervalMillis;
+    private final LampStateCache lampStateCache;
+    private final Map<String, LampBand> bands = new ConcurrentHashMap<>();
+    // Lampy z odłożoną zmianą pasma - termin to koniec minimalnego odstępu od poprzedniej korekty
+    private final HashedTimingWheel<String> pending;
+
+    private record LampBand(int band, long changedAtMillis) {}
+
+    public AdaptiveBrightnessService(LampStateCache lampStateCache,
+                                     @Value("${adaptive-brightness.hysteresis-lux:50}") int hysteresisLux,
+                                     @Value("${adaptive-brightness.min-interval-ms:30000}") long minIntervalMillis,
+                                     @Value("${adaptive-brightness.tick-ms:1000}") long tickMillis) {
+        this.lampStateCache = lampStateCache;
+        this.hysteresisLux = hysteresisLux;
+        this.minIntervalMillis = minIntervalMillis;
+        this.pending = new HashedTimingWheel<>(tickMillis, 256, System.currentTimeMillis());
+    }
+
+    /**
+     * Koryguje jasność lampy dla nowego odczytu lux. Wołane pod blokadą stanu lampy
+     * ({@link LampStateCache#update}), tylko dla lamp z włączoną adaptacyjną jasnością.
+     */
+    public void evaluate(LampStateCache.LampState lamp, int lux) {
+        if (!lamp.isAdaptiveBrightnessEnabled() || !lamp.isOnline() || !lamp.isOn()) return;
+
+        long now = System.currentTimeMillis();
+        LampBand current = bands.get(lamp.getId());
+        int band = current == null ? bandOf(lux) : bandWithHysteresis(lux, current.band());
+
+        if (current != null && band == current.band()) {
+            // Odczyt wrócił do bieżącego pasma - odłożona zmiana jest już nieaktualna
+            pending.cancel(lamp.getId());
+            return;
+        }
+        if (current != null && now - current.changedAtMillis() < minIntervalMillis) {
+            pending.schedule(lamp.getId(), current.changedAtMillis() + minIntervalMillis);
+            return;
+        }
+        pending.cancel(lamp.getId());
+
+        bands.put(lamp.getId(), new LampBand(band, now));
+
+        int targetBrightness = BAND_BRIGHTNESS[band];
+        int currentBrightness = lamp.getBrightness() != null ? lamp.getBrightness() : 0;
+        if (Math.abs(targetBrightness - currentBrightness) > 5) {
+            log.info("Smart: Dostosowanie jasności lampy {} (Lux: {} -> Brightness: {})",
+                    lamp.getId(), lux, targetBrightness);
+            lamp.setBrightness(targetBrightness);
+        }
+    }
+
+    /** Zapomina pasmo lampy - następny odczyt zostanie oceniony od nowa (np. po włączeniu funkcji). */
+    public void reset(String lampId) {
+        bands.remove(lampId);
+        pending.cancel(lampId);
+    }
+
+    /** Ponownie ocenia lampy, którym minął odstęp od poprzedniej korekty, dla ich ostatniego odczytu lux. */
+    @Scheduled(fixedDelayString = "${adaptive-brightness.tick-ms:1000}")
+    public void applyPending() {
+        List<String> due = pending.advance(System.currentTimeMillis());
+        for (String lampId : due) {
+            lampStateCache.update(lampId, lamp -> {
+                if (lamp.getLastAmbientLight() != null) evaluate(lamp, lamp.getLastAmbientLight());
+            });
+        }
+    }
+
+    private int bandWithHysteresis(int lux, int currentBand) {
+        int raw = bandOf(lux);
+        if (raw > currentBand) {
+            int shifted = bandOf(lux - hysteresisLux);
+            return Math.max(shifted, currentBand);
+        }
+        if (raw < currentBand) {
+            int shifted = bandOf(lux + hysteresisLux);
+            return Math.min(shifted, currentBand);
+        }
+        return raw;
+    }
+
+    private static int bandOf(int lux) {
+        if (lux > 800) return 3;
+        if (lux > 400) return 2;
+        if (lux >= 100) return 1;
+        return 0;
+    }
+}
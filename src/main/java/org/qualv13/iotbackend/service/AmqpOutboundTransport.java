@@ -0,0 +1,75 @@
+package org.qualv13.iotbackend.service;
+
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Consumer;
+
+/**
+ * Publikacja komend prosto do {@code amq.topic} po AMQP, z pominięciem klienta MQTT.
+ * Plugin MQTT RabbitMQ mapuje temat {@code lamps/{id}/command} na routing key {@code lamps.{id}.command},
+ * więc lampy subskrybujące przez MQTT dostają te same wiadomości.
+ * <p>
+ * Kanały bierze z puli CachingConnectionFactory (osobne połączenie wydawcy), a potwierdzenia
+ * (publisher confirms, tryb CORRELATED) przychodzą asynchronicznie - broker potwierdza wiele
+ * publikacji naraz (multiple), więc wątek wysyłający nie czeka na round-trip po każdej wiadomości.
+ * Włączane przez {@code mqtt.outbound.transport: amqp}.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "mqtt.outbound.transport", havingValue = "amqp")
+public class AmqpOutboundTransport implements OutboundTransport {
+
+    private static final String EXCHANGE = "amq.topic";
+
+    private final RabbitTemplate rabbitTemplate;
+
+    public AmqpOutboundTransport(ConnectionFactory connectionFactory) {
+        this.rabbitTemplate = new RabbitTemplate(connectionFactory);
+        // Publikacja na osobnym połączeniu - blokada wydawcy przez brokera nie zatrzyma konsumentów ingestu
+        this.rabbitTemplate.setUsePublisherConnection(true);
+    }
+
+    @Override
+    public String name() {
+        return "amqp";
+    }
+
+    @Override
+    public boolean isReady() {
+        try {
+            return Boolean.TRUE.equals(rabbitTemplate.execute(Channel::isOpen));
+        } catch (AmqpException e) {
+            log.debug("Outbound AMQP: brak połączenia: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, int qos, Runnable onDelivered, Consumer<Throwable> onFailed) {
+        MessageProperties properties = new MessageProperties();
+        properties.setDeliveryMode(qos > 0 ? MessageDeliveryMode.PERSISTENT : MessageDeliveryMode.NON_PERSISTENT);
+
+        CorrelationData correlation = new CorrelationData();
+        correlation.getFuture().whenComplete((confirm, error) -> {
+            if (error != null) onFailed.accept(error);
+            else if (confirm.isAck()) onDelivered.run();
+            else onFailed.accept(new AmqpException("Broker odrzucił wiadomość (nack): " + confirm.getReason()));
+        });
+
+        try {
+            rabbitTemplate.send(EXCHANGE, topic.replace('/', '.'), new Message(payload, properties), correlation);
+        } catch (AmqpException e) {
+            onFailed.accept(e);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.scheduler.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Śledzenie potwierdzeń komend.
+ * <p>
+ * Każda komenda do lampy dostaje {@code correlation_id} i trafia do mapy oczekujących (pamięć O(oczekujących)).
+ * Potwierdzenie przychodzi jako {@code CommandAck} albo w {@code StatusReport.acked_command_ids} -
+ * to tylko {@code remove} z mapy, bez blokad. Terminy leżą na timing wheelu; sweep co tick bierze tylko
+ * przeterminowane: wysyła ponownie z wykładniczym odstępem, a po {@code max-attempts} kończy jako TIMED_OUT.
+ * <p>
+ * Ponawiamy tylko idempotentne komendy ustawiające stan ({@link #RETRYABLE}) - reboot, mrugnięcie, WiFi czy OTA
+ * wykonane dwa razy to nie to samo, więc bez potwierdzenia kończą jako TIMED_OUT. Nowsza komenda sterująca
+ * tym samym stanem lampy (wyjście światła: kolor / tryb / preset, albo flota) zastępuje oczekującą (SUPERSEDED),
+ * żeby ponowienie nie nadpisało nowszego stanu starszym. Potwierdzenia alertów niczego nie zastępują.
+ * Lampy, które jeszcze nigdy niczego nie potwierdziły (firmware bez potwierdzeń), nie dostają ponowień -
+ * ich komendy kończą jako DELIVERED_UNKNOWN. Lampa musi odrzucać duplikaty po {@code correlation_id}.
+ * Zakończone komendy zostają w ograniczonej historii dla endpointu statusu.
+ */
+@Slf4j
+@Component
+public class CommandAckTracker {
+
+    public enum Status { PENDING, ACKED, FAILED, TIMED_OUT, SUPERSEDED, DELIVERED_UNKNOWN }
+
+    /** Komendy ustawiające stan - ponowne wykonanie daje ten sam efekt. */
+    private static final Set<IotProtos.LampCommand.CommandCase> RETRYABLE = EnumSet.of(
+            IotProtos.LampCommand.CommandCase.SET_DIRECT_SETTINGS_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_PHOTO_WHITE_SETTINGS_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_PHOTO_COLOR_SETTINGS_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_MODE_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_PRESET_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_FLEET_COMMAND,
+            IotProtos.LampCommand.CommandCase.ACKNOWLEDGE_ALERT);
+
+    public record CommandStatus(long correlationId, String lampId, String command, Status status,
+                                int attempts, LocalDateTime sentAt, LocalDateTime completedAt, String error) {}
+
+    private static final class PendingCommand {
+        final long correlationId;
+        final String lampId;
+        final String kind;
+        final String supersedeKey; // null = komenda niczego nie zastępuje
+        final boolean retryable;
+        final byte[] payload;
+        final long sentAtMillis;
+        volatile int attempts = 1;
+
+        PendingCommand(long correlationId, String lampId, IotProtos.LampCommand.CommandCase kind,
+                       byte[] payload, long sentAtMillis) {
+            this.correlationId = correlationId;
+            this.lampId = lampId;
+            this.kind = kind.name();
+            String group = supersedeGroup(kind);
+            this.supersedeKey = group != null ? lampId + '/' + group : null;
+            this.retryable = RETRYABLE.contains(kind);
+            this.payload = payload;
+            this.sentAtMillis = sentAtMillis;
+        }
+    }
+
+    private final OutboundPublisher outboundPublisher;
+    private final HashedTimingWheel<Long> deadlines;
+    // Start od czasu uruchomienia - ID nie powtórzą się po restarcie
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis() << 12);
+    private final Map<Long, PendingCommand> pending = new ConcurrentHashMap<>();
+    // Najnowsza oczekująca komenda danego rodzaju per lampa (klucz: lampa/rodzaj)
+    private final Map<String, Long> latestByKind = new ConcurrentHashMap<>();
+    // Lampy, które potwierdziły choć jedną komendę od startu - tylko one dostają ponowienia
+    private final Set<String> ackingLamps = ConcurrentHashMap.newKeySet();
+    private final Map<Long, CommandStatus> history;
+
+    @Value("${commands.ack.timeout-ms:5000}")
+    private long ackTimeoutMillis;
+
+    @Value("${commands.ack.max-attempts:4}")
+    private int maxAttempts;
+
+    @Value("${commands.ack.max-backoff-ms:60000}")
+    private long maxBackoffMillis;
+
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+    private final LongAdder deliveredUnknown = new LongAdder();
+
+    public CommandAckTracker(OutboundPublisher outboundPublisher,
+                             @Value("${commands.ack.tick-ms:500}") long tickMillis,
+                             @Value("${commands.ack.history-size:10000}") int historySize) {
+        this.outboundPublisher = outboundPublisher;
+        this.deadlines = new HashedTimingWheel<>(tickMillis, 1024, System.currentTimeMillis());
+        this.history = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CommandStatus> eldest) {
+                return size() > historySize;
+            }
+        });
+    }
+
+    /** Nadaje komendzie correlation_id i zaczyna czekać na potwierdzenie. Zwraca komendę do wysłania. */
+    public IotProtos.LampCommand track(String lampId, IotProtos.LampCommand command) {
+        long id = nextId.incrementAndGet();
+        IotProtos.LampCommand tagged = command.toBuilder().setCorrelationId(id).build();
+        long now = System.currentTimeMillis();
+        PendingCommand entry = new PendingCommand(id, lampId, command.getCommandCase(), tagged.toByteArray(), now);
+        pending.put(id, entry);
+
+        if (entry.supersedeKey != null) {
+            Long previousId = latestByKind.put(entry.supersedeKey, id);
+            PendingCommand previous = previousId != null ? pending.get(previousId) : null;
+            if (previous != null && pending.remove(previousId, previous)) {
+                superseded.increment();
+                complete(previous, Status.SUPERSEDED, "Zastąpiona komendą " + id);
+            }
+        }
+
+        deadlines.schedule(id, now + ackTimeoutMillis);
+        return tagged;
+    }
+
+    /** Komenda nie trafiła do kolejki wysyłki - nie ma na co czekać. */
+    public void discard(long correlationId) {
+        PendingCommand command = pending.remove(correlationId);
+        if (command != null && command.supersedeKey != null) latestByKind.remove(command.supersedeKey, correlationId);
+    }
+
+    public void acknowledged(String lampId, long correlationId, boolean success, String error) {
+        ackingLamps.add(lampId);
+        PendingCommand command = pending.get(correlationId);
+        // Termin na wheelu zostaje - sweep zobaczy brak wpisu i go pominie
+        if (command == null || !command.lampId.equals(lampId) || !pending.remove(correlationId, command)) return;
+
+        if (success) {
+            acked.increment();
+            complete(command, Status.ACKED, null);
+        } else {
+            failed.increment();
+            complete(command, Status.FAILED, error);
+            log.warn("Lampa {} odrzuciła komendę {} ({}): {}", lampId, correlationId, command.kind, error);
+        }
+    }
+
+    /** Potwierdzenia zbiorcze z raportu statusu. */
+    public void acknowledged(String lampId, DecodedStatus report) {
+        for (int i = 0; i < report.getAckedCommandCount(); i++) {
+            acknowledged(lampId, report.getAckedCommandId(i), true, null);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${commands.ack.tick-ms:500}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Long id : deadlines.advance(now)) {
+            PendingCommand command = pending.get(id);
+            if (command == null) continue;
+
+            if (!ackingLamps.contains(command.lampId)) {
+                // Firmware bez potwierdzeń - komenda wysłana, ale nie wiemy, czy wykonana; nie ponawiamy
+                if (pending.remove(id, command)) {
+                    deliveredUnknown.increment();
+                    complete(command, Status.DELIVERED_UNKNOWN, null);
+                }
+                continue;
+            }
+
+            if (!command.retryable || command.attempts >= maxAttempts) {
+                if (pending.remove(id, command)) {
+                    timedOut.increment();
+                    complete(command, Status.TIMED_OUT, "Brak potwierdzenia po " + command.attempts + " próbach");
+                    log.warn("Komenda {} ({}) do lampy {} bez potwierdzenia po {} próbach",
+                            id, command.kind, command.lampId, command.attempts);
+                }
+                continue;
+            }
+
+            command.attempts++;
+            retries.increment();
+            try {
+                outboundPublisher.submit("lamps/" + command.lampId + "/command", command.payload, 1);
+            } catch (RuntimeException e) {
+                log.warn("Ponowienie komendy {} do lampy {} nieudane: {}", id, command.lampId, e.getMessage());
+            }
+            deadlines.schedule(id, now + backoff(command.attempts));
+        }
+    }
+
+    public Optional<CommandStatus> status(String lampId, long correlationId) {
+        PendingCommand command = pending.get(correlationId);
+        if (command != null) {
+            return command.lampId.equals(lampId) ? Optional.of(toStatus(command, Status.PENDING, null, null)) : Optional.empty();
+        }
+        return Optional.ofNullable(history.get(correlationId)).filter(s -> s.lampId().equals(lampId));
+    }
+
+    /** Oczekujące i ostatnio zakończone komendy lampy, od najnowszej. */
+    public List<CommandStatus> statusFor(String lampId) {
+        List<CommandStatus> result = new ArrayList<>();
+        for (PendingCommand command : pending.values()) {
+            if (command.lampId.equals(lampId)) result.add(toStatus(command, Status.PENDING, null, null));
+        }
+        synchronized (history) {
+            for (CommandStatus status : history.values()) {
+                if (status.lampId().equals(lampId)) result.add(status);
+            }
+        }
+        result.sort(Comparator.comparingLong(CommandStatus::correlationId).reversed());
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", pending.size());
+        stats.put("acked", acked.sum());
+        stats.put("failed", failed.sum());
+        stats.put("timedOut", timedOut.sum());
+        stats.put("retries", retries.sum());
+        stats.put("superseded", superseded.sum());
+        stats.put("deliveredUnknown", deliveredUnknown.sum());
+        stats.put("ackingLamps", ackingLamps.size());
+        return stats;
+    }
+
+    // Timeout × 2^(próba-1), z limitem i ±10% rozrzutu, żeby ponowienia wielu lamp się nie zbiegały
+    private long backoff(int attempt) {
+        long base = Math.min(maxBackoffMillis, ackTimeoutMillis << Math.min(attempt - 1, 20));
+        long jitter = base / 10;
+        return base + (jitter > 0 ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0);
+    }
+
+    /**
+     * Grupa komend nadpisujących ten sam stan lampy albo null. Ustawienia światła, tryb i preset decydują
+     * o tym, co lampa świeci - ostatnia wygrywa, więc to jedna grupa. Potwierdzenie alertu dotyczy
+     * konkretnych alert_ids, a komendy jednorazowe nie są ponawiane - one niczego nie zastępują.
+     */
+    private static String supersedeGroup(IotProtos.LampCommand.CommandCase kind) {
+        return switch (kind) {
+            case SET_DIRECT_SETTINGS_COMMAND, SET_PHOTO_WHITE_SETTINGS_COMMAND, SET_PHOTO_COLOR_SETTINGS_COMMAND,
+                 SET_MODE_COMMAND, SET_PRESET_COMMAND -> "OUTPUT";
+            case SET_FLEET_COMMAND -> "FLEET";
+            default -> null;
+        };
+    }
+
+    private void complete(PendingCommand command, Status status, String error) {
+        if (command.supersedeKey != null) latestByKind.remove(command.supersedeKey, command.correlationId);
+        history.put(command.correlationId, toStatus(command, status, LocalDateTime.now(), error));
+    }
+
+    private CommandStatus toStatus(PendingCommand command, Status status, LocalDateTime completedAt, String error) {
+        return new CommandStatus(command.correlationId, command.lampId, command.kind, status, command.attempts,
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(command.sentAtMillis), ZoneId.systemDefault()),
+                completedAt, error);
+    }
+}
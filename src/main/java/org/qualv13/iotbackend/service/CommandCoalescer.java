@@ -0,0 +1,143 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Łączenie komend z suwaków (kolor, jasność) w oknie {@code commands.coalesce-window-ms} na lampę.
+ * <p>
+ * Pierwsza komenda ustawiająca stan otwiera okno; kolejne tego samego rodzaju zastępują oczekującą,
+ * więc po zamknięciu okna zapisujemy i wysyłamy tylko ostatni stan. Komenda innego rodzaju najpierw
+ * wypycha oczekującą (kolejność się nie zmienia). Reboot, blink, OTA itp. nie są idempotentne -
+ * idą od razu. Uprawnienia sprawdza wywołujący, zanim komenda tu trafi.
+ * <p>
+ * Stan lampy zapisujemy dopiero po przyjęciu komendy do kolejki wysyłki. Wątek timera nie czeka
+ * na miejsce w pełnej kolejce (zatrzymałby okna pozostałych lamp) - taka komenda przepada
+ * i jest liczona w {@code failed}.
+ */
+@Slf4j
+@Component
+public class CommandCoalescer {
+
+    // Komendy, w których późniejsza w całości zastępuje wcześniejszą
+    private static final Set<IotProtos.LampCommand.CommandCase> COALESCIBLE = EnumSet.of(
+            IotProtos.LampCommand.CommandCase.SET_DIRECT_SETTINGS_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_PHOTO_WHITE_SETTINGS_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_PHOTO_COLOR_SETTINGS_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_MODE_COMMAND,
+            IotProtos.LampCommand.CommandCase.SET_PRESET_COMMAND
+    );
+
+    private final LampService lampService;
+    private final MqttService mqttService;
+    private final long windowMillis;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "command-coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private static final class Pending {
+        final IotProtos.LampCommand.CommandCase kind;
+        volatile IotProtos.LampCommand command;
+
+        Pending(IotProtos.LampCommand command) {
+            this.kind = command.getCommandCase();
+            this.command = command;
+        }
+    }
+
+    public CommandCoalescer(LampService lampService,
+                            MqttService mqttService,
+                            @Value("${commands.coalesce-window-ms:75}") long windowMillis) {
+        this.lampService = lampService;
+        this.mqttService = mqttService;
+        this.windowMillis = windowMillis;
+    }
+
+    public void submit(String lampId, IotProtos.LampCommand command) {
+        received.increment();
+        if (windowMillis <= 0 || !COALESCIBLE.contains(command.getCommandCase())) {
+            flushNow(lampId);
+            dispatch(lampId, command, true);
+            return;
+        }
+
+        Pending[] displaced = new Pending[1];
+        Pending[] opened = new Pending[1];
+        pending.compute(lampId, (id, current) -> {
+            if (current != null && current.kind == command.getCommandCase()) {
+                current.command = command;
+                superseded.increment();
+                return current;
+            }
+            displaced[0] = current;
+            opened[0] = new Pending(command);
+            return opened[0];
+        });
+
+        // Inny rodzaj niż oczekujący - oczekujący idzie pierwszy (jego timer już go nie zastanie)
+        if (displaced[0] != null) dispatch(lampId, displaced[0].command, true);
+        if (opened[0] != null) {
+            Pending window = opened[0];
+            timer.schedule(() -> flush(lampId, window), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("windowMs", windowMillis);
+        stats.put("pending", pending.size());
+        stats.put("received", received.sum());
+        stats.put("superseded", superseded.sum());
+        stats.put("sent", sent.sum());
+        stats.put("failed", failed.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+        pending.keySet().forEach(this::flushNow);
+    }
+
+    private void flush(String lampId, Pending window) {
+        try {
+            if (pending.remove(lampId, window)) dispatch(lampId, window.command, false);
+        } catch (Exception e) {
+            log.error("Coalescer: błąd wysyłki komendy do lampy {}: {}", lampId, e.getMessage(), e);
+        }
+    }
+
+    private void flushNow(String lampId) {
+        Pending due = pending.remove(lampId);
+        if (due != null) dispatch(lampId, due.command, true);
+    }
+
+    private void dispatch(String lampId, IotProtos.LampCommand command, boolean mayBlock) {
+        try {
+            mqttService.sendCommandToLamp(lampId, command, mayBlock);
+        } catch (RuntimeException e) {
+            failed.increment();
+            throw e;
+        }
+        lampService.applyCommandState(lampId, command);
+        sent.increment();
+    }
+}
@@ -0,0 +1,174 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wersje konfiguracji na lampach i wysyłka configu jako delta.
+ * <p>
+ * Lampa raportuje w {@code StatusReport.config_version} wersję, którą ma wgraną. Gdy to wersja ostatnio
+ * przez nas wysłana, zapamiętujemy ten config jako potwierdzony - kolejna zmiana idzie jako delta
+ * ({@code base_version} = potwierdzona wersja) z samymi zmienionymi {@code ModeCombinedSetting}.
+ * Pełny config wysyłamy, gdy lampa jest na innej wersji niż nasza baza (albo jej nie raportuje),
+ * a także raz, gdy po {@code config-sync.resend-after-ms} lampa nadal nie ma wysłanej wersji.
+ */
+@Slf4j
+@Component
+public class ConfigSyncTracker {
+
+    /** Stan lampy: raportowana wersja, potwierdzony config (baza delty) i ostatnio wysłany. */
+    private record DeviceConfig(int reportedVersion, IotProtos.LampConfig acked,
+                                IotProtos.LampConfig sent, long sentAt, boolean resent) {}
+
+    private final MqttService mqttService;
+    private final boolean deltaEnabled;
+    private final long resendAfterMillis;
+    private final Map<String, DeviceConfig> devices = new ConcurrentHashMap<>();
+
+    private final LongAdder fullPushes = new LongAdder();
+    private final LongAdder deltaPushes = new LongAdder();
+    private final LongAdder mismatchResends = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public ConfigSyncTracker(MqttService mqttService,
+                             @Value("${config-sync.delta-enabled:true}") boolean deltaEnabled,
+                             @Value("${config-sync.resend-after-ms:120000}") long resendAfterMillis) {
+        this.mqttService = mqttService;
+        this.deltaEnabled = deltaEnabled;
+        this.resendAfterMillis = resendAfterMillis;
+    }
+
+    /**
+     * Wysyła config lampie - deltę, jeśli lampa potwierdziła wersję bazową, inaczej pełny.
+     *
+     * @param target    config z ustawioną nową wersją, bez {@code ts}
+     * @param fullBytes gotowe bajty {@code target} (np. z {@link LampConfigCache}) albo null
+     */
+    public void push(String lampId, IotProtos.LampConfig target, byte[] fullBytes) {
+        long now = System.currentTimeMillis();
+        DeviceConfig state = devices.get(lampId);
+        byte[] full = fullBytes != null ? fullBytes : target.toByteArray();
+
+        IotProtos.LampConfig delta = null;
+        if (deltaEnabled && state != null && state.acked() != null
+                && state.reportedVersion() == state.acked().getVersion()
+                && state.acked().getVersion() != target.getVersion()) {
+            delta = delta(state.acked(), target);
+        }
+
+        byte[] payload;
+        if (delta != null && delta.getSerializedSize() < full.length) {
+            payload = delta.toByteArray();
+            deltaPushes.increment();
+            bytesSaved.add(full.length - payload.length);
+            log.debug("Config lampy {}: delta v{} -> v{} ({} z {} trybów, {} B zamiast {} B)", lampId,
+                    delta.getBaseVersion(), target.getVersion(), delta.getModeSettingsCount(),
+                    target.getModeSettingsCount(), payload.length, full.length);
+        } else {
+            payload = full;
+            fullPushes.increment();
+        }
+
+        devices.compute(lampId, (id, s) -> new DeviceConfig(s != null ? s.reportedVersion() : 0,
+                s != null ? s.acked() : null, target, now, false));
+        send(lampId, payload, now);
+    }
+
+    /** Wersja configu z raportu statusu (0 = lampa jej nie raportuje - pomijamy). */
+    public void reported(String lampId, int version) {
+        long now = System.currentTimeMillis();
+        IotProtos.LampConfig[] resend = new IotProtos.LampConfig[1];
+
+        devices.computeIfPresent(lampId, (id, s) -> {
+            IotProtos.LampConfig sent = s.sent();
+            if (sent != null && sent.getVersion() == version) {
+                return new DeviceConfig(version, sent, sent, s.sentAt(), s.resent());
+            }
+            if (sent != null && !s.resent() && now - s.sentAt() >= resendAfterMillis) {
+                // Delta odrzucona albo config zgubiony - jedna pełna wysyłka, bez zapętlania
+                resend[0] = sent;
+                return new DeviceConfig(version, s.acked(), sent, now, true);
+            }
+            return new DeviceConfig(version, s.acked(), sent, s.sentAt(), s.resent());
+        });
+
+        if (resend[0] != null) {
+            mismatchResends.increment();
+            fullPushes.increment();
+            log.warn("Lampa {} raportuje config v{}, wysłano v{} - ponawiam pełny config",
+                    lampId, version, resend[0].getVersion());
+            send(lampId, resend[0].toByteArray(), now);
+        }
+    }
+
+    /** Lampa dostała config spoza śledzenia (flota) albo zmieniła właściciela - następny push będzie pełny. */
+    public void forget(String lampId) {
+        devices.remove(lampId);
+    }
+
+    public void forgetAll(Collection<String> lampIds) {
+        lampIds.forEach(devices::remove);
+    }
+
+    private void send(String lampId, byte[] payload, long now) {
+        byte[] stamped = stamp(payload, now / 1000);
+        bytesSent.add(stamped.length);
+        mqttService.sendConfigToLamp(lampId, stamped);
+    }
+
+    // Doklejone pole ts - Protobuf przy parsowaniu scala sklejone wiadomości
+    private static byte[] stamp(byte[] config, long ts) {
+        byte[] tsField = IotProtos.LampConfig.newBuilder().setTs(ts).build().toByteArray();
+        byte[] out = Arrays.copyOf(config, config.length + tsField.length);
+        System.arraycopy(tsField, 0, out, config.length, tsField.length);
+        return out;
+    }
+
+    /** Delta base -> target albo null, gdy nie da się jej wyrazić (usunięty lub zdublowany tryb). */
+    static IotProtos.LampConfig delta(IotProtos.LampConfig base, IotProtos.LampConfig target) {
+        Map<Integer, IotProtos.ModeCombinedSetting> baseModes = new HashMap<>();
+        for (IotProtos.ModeCombinedSetting mode : base.getModeSettingsList()) {
+            if (baseModes.put(mode.getModeId(), mode) != null) return null;
+        }
+
+        IotProtos.LampConfig.Builder delta = IotProtos.LampConfig.newBuilder()
+                .setVersion(target.getVersion())
+                .setBaseVersion(base.getVersion());
+        Set<Integer> targetIds = new HashSet<>();
+        for (IotProtos.ModeCombinedSetting mode : target.getModeSettingsList()) {
+            if (!targetIds.add(mode.getModeId())) return null;
+            if (!mode.equals(baseModes.get(mode.getModeId()))) delta.addModeSettings(mode);
+        }
+        // Tryb z bazy zniknął w nowej wersji - delta nie umie usuwać
+        if (!targetIds.containsAll(baseModes.keySet())) return null;
+        if (target.hasInternalLampConfig() && !target.getInternalLampConfig().equals(base.getInternalLampConfig())) {
+            delta.setInternalLampConfig(target.getInternalLampConfig());
+        }
+        return delta.build();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("deltaEnabled", deltaEnabled);
+        stats.put("trackedLamps", devices.size());
+        stats.put("fullPushes", fullPushes.sum());
+        stats.put("deltaPushes", deltaPushes.sum());
+        stats.put("mismatchResends", mismatchResends.sum());
+        stats.put("bytesSent", bytesSent.sum());
+        stats.put("bytesSaved", bytesSaved.sum());
+        return stats;
+    }
+}
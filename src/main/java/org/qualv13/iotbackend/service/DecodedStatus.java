@@ -0,0 +1,142 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Płaski odpowiednik {@link IotProtos.StatusReport} dla ścieżki ingestu.
+ * Pola skalarne są prymitywami, temperatury w tablicy int[] - bez grafu obiektów wiadomości.
+ * Obiekt można używać wielokrotnie ({@link #reset()}), wypełnia go {@link StatusReportDecoder}.
+ */
+public final class DecodedStatus {
+
+    int version;
+    long ts;
+    int uptimeSeconds;
+    int[] temperatures = new int[8];
+    int temperatureCount;
+    int ambientLight;
+    int ambientNoise;
+    boolean hasLedSettings;
+    int red;
+    int green;
+    int blue;
+    int coldWhite;
+    int neutralWhite;
+    int warmWhite;
+    boolean abnormal;
+    boolean hasMoreAlerts;
+    List<IotProtos.Alert> activeAlerts = Collections.emptyList();
+    String firmwareVersion = "";
+    long[] ackedCommandIds = new long[4];
+    int ackedCommandCount;
+    int configVersion;
+
+    public void reset() {
+        version = 0;
+        ts = 0;
+        uptimeSeconds = 0;
+        temperatureCount = 0;
+        ambientLight = 0;
+        ambientNoise = 0;
+        hasLedSettings = false;
+        red = green = blue = coldWhite = neutralWhite = warmWhite = 0;
+        abnormal = false;
+        hasMoreAlerts = false;
+        activeAlerts = Collections.emptyList();
+        firmwareVersion = "";
+        ackedCommandCount = 0;
+        configVersion = 0;
+    }
+
+    void addTemperature(int value) {
+        if (temperatureCount == temperatures.length) {
+            int[] grown = new int[temperatures.length * 2];
+            System.arraycopy(temperatures, 0, grown, 0, temperatureCount);
+            temperatures = grown;
+        }
+        temperatures[temperatureCount++] = value;
+    }
+
+    void addAckedCommand(long correlationId) {
+        if (ackedCommandCount == ackedCommandIds.length) {
+            long[] grown = new long[ackedCommandIds.length * 2];
+            System.arraycopy(ackedCommandIds, 0, grown, 0, ackedCommandCount);
+            ackedCommandIds = grown;
+        }
+        ackedCommandIds[ackedCommandCount++] = correlationId;
+    }
+
+    void addAlert(IotProtos.Alert alert) {
+        if (activeAlerts.isEmpty()) activeAlerts = new ArrayList<>(2);
+        activeAlerts.add(alert);
+    }
+
+    /** Przepisuje wiadomość z generowanego parsera (ścieżka awaryjna). */
+    void copyFrom(IotProtos.StatusReport report) {
+        reset();
+        version = report.getVersion();
+        ts = report.getTs();
+        uptimeSeconds = report.getUptimeSeconds();
+        for (int i = 0; i < report.getTemperatureReadingsCount(); i++) {
+            addTemperature(report.getTemperatureReadings(i));
+        }
+        ambientLight = report.getAmbientLight();
+        ambientNoise = report.getAmbientNoise();
+        if (report.hasLedSettings()) {
+            IotProtos.DirectSettings led = report.getLedSettings();
+            hasLedSettings = true;
+            red = led.getRed();
+            green = led.getGreen();
+            blue = led.getBlue();
+            coldWhite = led.getColdWhite();
+            neutralWhite = led.getNeutralWhite();
+            warmWhite = led.getWarmWhite();
+        }
+        abnormal = report.getIsAbnormal();
+        hasMoreAlerts = report.getHasMoreAlerts();
+        if (report.getActiveAlertsCount() > 0) activeAlerts = new ArrayList<>(report.getActiveAlertsList());
+        firmwareVersion = report.getFirmwareVersion();
+        for (int i = 0; i < report.getAckedCommandIdsCount(); i++) {
+            addAckedCommand(report.getAckedCommandIds(i));
+        }
+        configVersion = report.getConfigVersion();
+    }
+
+    /** Odczyty temperatur jako tablica dla kolumny lamp_metrics.temperature_readings. */
+    public Integer[] temperatureReadings() {
+        Integer[] readings = new Integer[temperatureCount];
+        for (int i = 0; i < temperatureCount; i++) readings[i] = temperatures[i];
+        return readings;
+    }
+
+    /** Odczyt pierwszego czujnika albo null, gdy raport nie ma temperatur. */
+    public Integer primaryTemperature() {
+        return temperatureCount > 0 ? temperatures[0] : null;
+    }
+
+    public int getVersion() { return version; }
+    public long getTs() { return ts; }
+    public int getUptimeSeconds() { return uptimeSeconds; }
+    public int getTemperatureCount() { return temperatureCount; }
+    public int getTemperature(int index) { return temperatures[index]; }
+    public int getAmbientLight() { return ambientLight; }
+    public int getAmbientNoise() { return ambientNoise; }
+    public boolean hasLedSettings() { return hasLedSettings; }
+    public int getRed() { return red; }
+    public int getGreen() { return green; }
+    public int getBlue() { return blue; }
+    public int getColdWhite() { return coldWhite; }
+    public int getNeutralWhite() { return neutralWhite; }
+    public int getWarmWhite() { return warmWhite; }
+    public boolean isAbnormal() { return abnormal; }
+    public boolean hasMoreAlerts() { return hasMoreAlerts; }
+    public List<IotProtos.Alert> getActiveAlerts() { return activeAlerts; }
+    public String getFirmwareVersion() { return firmwareVersion; }
+    public int getAckedCommandCount() { return ackedCommandCount; }
+    public long getAckedCommandId(int index) { return ackedCommandIds[index]; }
+    public int getConfigVersion() { return configVersion; }
+}
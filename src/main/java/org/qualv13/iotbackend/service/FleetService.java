@@ -1,5 +1,8 @@
 package org.qualv13.iotbackend.service;
 
+import com.iot.backend.proto.IotProtos;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
 import org.qualv13.iotbackend.dto.LampDto;
 import org.qualv13.iotbackend.entity.Fleet;
 import org.qualv13.iotbackend.entity.Lamp;
@@ -8,50 +11,178 @@ import org.qualv13.iotbackend.repository.FleetRepository;
 import org.qualv13.iotbackend.repository.LampRepository;
 import lombok.RequiredArgsConstructor;
 import org.qualv13.iotbackend.repository.UserRepository;
+import org.qualv13.iotbackend.security.DeviceCredentialCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.List;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class FleetService {
     private final FleetRepository fleetRepository;
     private final LampRepository lampRepository;
     private final UserRepository userRepository;
+    private final LampStateCache lampStateCache;
+    private final LampService lampService;
+    private final MqttService mqttService;
+    private final DeviceCredentialCache deviceCredentialCache;
+    private final OwnershipIndex ownershipIndex;
+    private final LampConfigCache lampConfigCache;
+    private final ConfigSyncTracker configSyncTracker;
+    private final ScheduledCommandService scheduledCommandService;
+
+    @Value("${fleets.membership-backfill:true}")
+    private boolean membershipBackfill;
+
+    /**
+     * Komendy i config floty idą tylko na fleets/{id}/#, a lampy przypisane do floty przed wprowadzeniem
+     * tych tematów nigdy nie dostały SetFleetCommand. Po starcie przypominamy przynależność wszystkim
+     * lampom we flotach - komenda jest idempotentna, a lampa offline dostanie ją po powrocie online
+     * ({@link #lampWentOnline}).
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillFleetMembership() {
+        if (!membershipBackfill) return;
+        int sent = 0;
+        for (Object[] row : lampRepository.findFleetMemberships()) {
+            try {
+                mqttService.sendFleetMembership((String) row[0], (Long) row[1]);
+                sent++;
+            } catch (RuntimeException e) {
+                log.warn("Nie udało się wysłać przynależności do floty lampie {}: {}", row[0], e.getMessage());
+            }
+        }
+        log.info("Przypomniano przynależność do floty {} lampom", sent);
+    }
+
+    @PostConstruct
+    public void registerOnlineListener() {
+        lampStateCache.onWentOnline(this::lampWentOnline);
+    }
+
+    /**
+     * Lampa wróciła online (to samo przejście, od którego liczy termin {@code DeviceStatusScheduler}) -
+     * przypominamy jej flotę. SetFleetCommand wysłany, gdy była offline (np. przy dodaniu do floty), mógł przepaść.
+     */
+    private void lampWentOnline(String lampId) {
+        try {
+            DeviceCredentialCache.Credential credential = deviceCredentialCache.get(lampId);
+            if (credential == null || credential.fleetId() == null) return;
+            mqttService.sendFleetMembership(lampId, credential.fleetId());
+        } catch (RuntimeException e) {
+            log.warn("Nie udało się przypomnieć floty lampie {}: {}", lampId, e.getMessage());
+        }
+    }
 
     public List<LampDto> getLampsInFleet(Long fleetId) {
         Fleet fleet = fleetRepository.findById(fleetId)
                 .orElseThrow(() -> new RuntimeException("Fleet not found"));
 
-        return fleet.getLamps().stream()
+        return lampStateCache.overlayAll(fleet.getLamps()).stream()
                 .map(l -> new LampDto(l.getId(), l.isOn(), l.getDeviceName(), l.isOnline(), l.getFleet().getId()))
                 .collect(Collectors.toList());
     }
 
     @Transactional
-    public void addLampToFleet(Long fleetId, String lampId) {
+    public void addLampToFleet(Long fleetId, String lampId, String username) {
+        ownershipIndex.checkFleetAccess(username, fleetId);
+        ownershipIndex.checkLampAccess(username, lampId);
         Fleet fleet = fleetRepository.findById(fleetId)
                 .orElseThrow(() -> new RuntimeException("Fleet not found"));
         Lamp lamp = lampRepository.findById(lampId)
                 .orElseThrow(() -> new RuntimeException("Lamp not found"));
 
+        boolean changed = lamp.getFleet() == null || !Objects.equals(lamp.getFleet().getId(), fleetId);
         lamp.setFleet(fleet);
         lampRepository.save(lamp);
+
+        if (changed) afterCommit(() -> {
+            deviceCredentialCache.invalidate(lampId); // ACL tematów floty
+            mqttService.sendFleetMembership(lampId, fleetId);
+        });
     }
 
     @Transactional
-    public void removeLampFromFleet(Long fleetId, String lampId) {
+    public void removeLampFromFleet(Long fleetId, String lampId, String username) {
+        ownershipIndex.checkFleetAccess(username, fleetId);
         Lamp lamp = lampRepository.findById(lampId)
                 .orElseThrow(() -> new RuntimeException("Lamp not found"));
 
         if (lamp.getFleet() != null && lamp.getFleet().getId().equals(fleetId)) {
             lamp.setFleet(null);
             lampRepository.save(lamp);
+            afterCommit(() -> {
+                deviceCredentialCache.invalidate(lampId);
+                mqttService.sendFleetMembership(lampId, null);
+            });
         }
     }
 
+    /**
+     * Odpina wszystkie lampy jednym UPDATE i usuwa flotę razem z jej harmonogramami komend;
+     * lampy dostają jeden publish na temat floty.
+     */
+    @Transactional
+    public void deleteFleet(Fleet fleet) {
+        Long fleetId = fleet.getId();
+        int detached = lampRepository.detachFromFleet(fleetId);
+        scheduledCommandService.deleteAllForFleet(fleetId);
+        fleetRepository.delete(fleet);
+        log.info("Usunięto flotę {} (odpięto {} lamp)", fleetId, detached);
+
+        afterCommit(() -> {
+            ownershipIndex.fleetRemoved(fleetId);
+            if (detached == 0) return;
+            deviceCredentialCache.invalidateFleet(fleetId);
+            mqttService.sendFleetDisbanded(fleetId);
+        });
+    }
+
+    /**
+     * Komenda dla całej floty: jeden publish na fleets/{id}/command i jeden UPDATE stanu lamp.
+     * @return liczba lamp we flocie
+     */
+    @Transactional
+    public int sendFleetCommand(Long fleetId, IotProtos.LampCommand command, String username) {
+        ownershipIndex.checkFleetAccess(username, fleetId);
+        List<String> lampIds = lampRepository.findIdsByFleetId(fleetId);
+        if (lampIds.isEmpty()) return 0;
+
+        lampService.updateFleetStateFromCommand(fleetId, lampIds, command);
+        afterCommit(() -> mqttService.sendCommandToFleet(fleetId, command));
+        return lampIds.size();
+    }
+
+    /** Konfiguracja dla całej floty: jeden publish na fleets/{id}/config. */
+    @Transactional
+    public int sendFleetConfig(Long fleetId, IotProtos.LampConfig config, String username) {
+        ownershipIndex.checkFleetAccess(username, fleetId);
+        List<String> lampIds = lampRepository.findIdsByFleetId(fleetId);
+        if (lampIds.isEmpty()) return 0;
+
+        if (config.hasInternalLampConfig()) {
+            int interval = config.getInternalLampConfig().getReportingIntervalSeconds();
+            if (interval > 0) lampStateCache.updateFleet(fleetId, lampIds, state -> state.setReportInterval(interval));
+        }
+        // Config floty idzie poza wersjonowaniem lamp - nowa wersja, a następny config lampy pełny
+        lampRepository.bumpConfigVersionForFleet(fleetId);
+        afterCommit(() -> {
+            lampIds.forEach(lampConfigCache::invalidate);
+            configSyncTracker.forgetAll(lampIds);
+        });
+        afterCommit(() -> mqttService.sendConfigToFleet(fleetId, config));
+        return lampIds.size();
+    }
+
     public List<Fleet> getMyFleets(String username) {
         User user = userRepository.findByUsername(username).orElseThrow();
         return fleetRepository.findAll().stream()
@@ -66,5 +197,16 @@ public class FleetService {
         fleet.setName(name);
         fleet.setOwner(user);
         fleetRepository.save(fleet);
+        afterCommit(() -> ownershipIndex.fleetOwnerChanged(fleet.getId(), user.getId()));
+    }
+
+    // Publikacja MQTT dopiero po zapisie - lampy nie dostaną komendy, której stan się wycofał
+    private void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
     }
-}
\ No newline at end of file
+}
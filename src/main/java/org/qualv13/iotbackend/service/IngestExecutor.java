@@ -0,0 +1,195 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import jakarta.annotation.PreDestroy;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Równoległy zapis raportów statusu w modelu "skrzynek" (mailbox).
+ * Każda lampa trafia zawsze do tego samego jednowątkowego sharda (hash ID lampy),
+ * więc raporty jednej lampy są zapisywane po kolei, a różne lampy - równolegle.
+ */
+@Slf4j
+@Component
+public class IngestExecutor {
+
+    /**
+     * Wynik zapisu: raporty zatwierdzone, raporty odrzucone na stałe (do dead-letter) i błąd przejściowy,
+     * po którym reszta raportów (ani zatwierdzona, ani odrzucona) ma być ponowiona.
+     */
+    public record Outcome(List<TelemetryIngestService.StatusEnvelope> committed,
+                          List<TelemetryIngestService.StatusEnvelope> failed,
+                          RuntimeException retryable) {}
+
+    private final TelemetryIngestService telemetryIngestService;
+    private final ExecutorService[] shards;
+    private final AtomicInteger[] pendingReports;
+    private final AtomicLong[] processedReports;
+
+    public IngestExecutor(TelemetryIngestService telemetryIngestService,
+                          @Value("${ingest.shards:0}") int configuredShards) {
+        this.telemetryIngestService = telemetryIngestService;
+        int count = configuredShards > 0 ? configuredShards : Runtime.getRuntime().availableProcessors();
+
+        this.shards = new ExecutorService[count];
+        this.pendingReports = new AtomicInteger[count];
+        this.processedReports = new AtomicLong[count];
+        for (int i = 0; i < count; i++) {
+            int shard = i;
+            shards[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "ingest-shard-" + shard);
+                t.setDaemon(true);
+                return t;
+            });
+            pendingReports[i] = new AtomicInteger();
+            processedReports[i] = new AtomicLong();
+        }
+        log.info("Ingest: uruchomiono {} shardów", count);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(String lampId) {
+        return Math.floorMod(lampId.hashCode(), shards.length);
+    }
+
+    /**
+     * Rozdziela paczkę na shardy i czeka, aż wszystkie ją zapiszą (każdy shard we własnej transakcji).
+     * Shard, którego transakcja się nie powiodła z błędem niezwiązanym z bazą, zapisuje raporty pojedynczo:
+     * na stałe odrzucone są tylko raporty, które padają same, przy zapisie pozostałych. Błąd przejściowy
+     * (połączenie, pula, timeout) albo porażka wszystkich raportów sharda to {@link Outcome#retryable()} -
+     * wołający ponawia wtedy raporty, które nie zostały zatwierdzone.
+     */
+    public Outcome submitAndWait(List<TelemetryIngestService.StatusEnvelope> reports) {
+        if (reports.isEmpty()) return new Outcome(List.of(), List.of(), null);
+
+        Map<Integer, List<TelemetryIngestService.StatusEnvelope>> byShard = new HashMap<>();
+        for (TelemetryIngestService.StatusEnvelope envelope : reports) {
+            byShard.computeIfAbsent(shardOf(envelope.lampId()), k -> new ArrayList<>()).add(envelope);
+        }
+
+        List<Future<Outcome>> futures = new ArrayList<>(byShard.size());
+        byShard.forEach((shard, part) -> {
+            pendingReports[shard].addAndGet(part.size());
+            futures.add(shards[shard].submit(() -> {
+                try {
+                    return persist(shard, part);
+                } finally {
+                    pendingReports[shard].addAndGet(-part.size());
+                }
+            }));
+        });
+
+        List<TelemetryIngestService.StatusEnvelope> committed = new ArrayList<>();
+        List<TelemetryIngestService.StatusEnvelope> failed = new ArrayList<>();
+        RuntimeException retryable = null;
+        for (Future<Outcome> future : futures) {
+            try {
+                Outcome outcome = future.get();
+                committed.addAll(outcome.committed());
+                failed.addAll(outcome.failed());
+                if (retryable == null) retryable = outcome.retryable();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Przerwano oczekiwanie na zapis paczki", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Błąd zapisu paczki w shardzie", e.getCause());
+            }
+        }
+        return new Outcome(committed, failed, retryable);
+    }
+
+    private Outcome persist(int shard, List<TelemetryIngestService.StatusEnvelope> part) {
+        try {
+            telemetryIngestService.persistBatch(part);
+            processedReports[shard].addAndGet(part.size());
+            return new Outcome(part, List.of(), null);
+        } catch (RuntimeException e) {
+            if (isTransient(e) || part.size() == 1) {
+                log.warn("Ingest: zapis shardu {} nieudany ({}), paczka zostanie ponowiona", shard, e.getMessage());
+                return new Outcome(List.of(), List.of(), e);
+            }
+            log.warn("Ingest: paczka shardu {} odrzucona ({}), zapisuję {} raportów pojedynczo",
+                    shard, e.getMessage(), part.size());
+        }
+
+        // Każdy raport we własnej transakcji - rollback dotyczy tylko błędnego raportu
+        List<TelemetryIngestService.StatusEnvelope> committed = new ArrayList<>();
+        List<TelemetryIngestService.StatusEnvelope> failed = new ArrayList<>();
+        RuntimeException lastError = null;
+        for (TelemetryIngestService.StatusEnvelope envelope : part) {
+            try {
+                telemetryIngestService.persistBatch(List.of(envelope));
+                processedReports[shard].incrementAndGet();
+                committed.add(envelope);
+            } catch (RuntimeException e) {
+                if (isTransient(e)) {
+                    // Baza niedostępna w trakcie - niezatwierdzone raporty (także wcześniej odrzucone) do ponowienia
+                    log.warn("Ingest: zapis shardu {} przerwany ({}), reszta zostanie ponowiona", shard, e.getMessage());
+                    return new Outcome(committed, List.of(), e);
+                }
+                log.error("Ingest: nie udało się zapisać raportu lampy {}: {}", envelope.lampId(), e.getMessage());
+                failed.add(envelope);
+                lastError = e;
+            }
+        }
+        if (committed.isEmpty()) {
+            // Żaden raport nie przeszedł - to raczej problem z bazą niż z danymi
+            return new Outcome(List.of(), List.of(),
+                    new IllegalStateException("Żaden raport shardu " + shard + " nie został zapisany", lastError));
+        }
+        return new Outcome(committed, failed, null);
+    }
+
+    /** Błąd bazy, który może minąć sam (połączenie, pula, timeout) - paczkę warto ponowić. */
+    static boolean isTransient(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof TransientDataAccessException || t instanceof RecoverableDataAccessException
+                    || t instanceof DataAccessResourceFailureException || t instanceof CannotCreateTransactionException
+                    || t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t.getCause() == t) break;
+        }
+        return false;
+    }
+
+    /** Liczba raportów oczekujących w każdym shardzie (indeks = numer sharda). */
+    public List<Integer> queueDepths() {
+        List<Integer> depths = new ArrayList<>(shards.length);
+        for (AtomicInteger pending : pendingReports) depths.add(pending.get());
+        return depths;
+    }
+
+    /** Liczba zapisanych raportów w każdym shardzie od startu aplikacji. */
+    public List<Long> processedCounts() {
+        List<Long> counts = new ArrayList<>(shards.length);
+        for (AtomicLong processed : processedReports) counts.add(processed.get());
+        return counts;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService shard : shards) shard.shutdown();
+        for (ExecutorService shard : shards) {
+            if (!shard.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Ingest: shard nie zakończył pracy w 10s");
+                shard.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.qualv13.iotbackend.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iot.backend.proto.IotProtos;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.config.LampModeConfig;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Skompilowana konfiguracja lamp: tryby z kolumny {@code modes_config_json} i gotowe bajty {@code LampConfig}.
+ * <p>
+ * JSON jest parsowany raz - przy pierwszym odczycie lampy - a potem już tylko przy zapisie, który
+ * podmienia wpis na zbudowany z trybów w pamięci. GET /config, odświeżenie configu i presety
+ * korzystają z gotowego wpisu bez Jacksona i bez budowania Protobufa.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class LampConfigCache {
+
+    private static final int DEFAULT_REPORT_INTERVAL = 60;
+    private static final int WAKE_UP_INTERVAL_MINUTES = 10;
+
+    /**
+     * Tryby (tylko do odczytu), wersja i {@code LampConfig} bez {@code ts} - jako wiadomość (do liczenia delty)
+     * i zserializowany. Tablicy {@code bytes} nie wolno modyfikować - jest współdzielona między wątkami.
+     */
+    public record CompiledConfig(List<LampModeConfig> modes, int reportInterval, int version,
+                                 IotProtos.LampConfig config, byte[] bytes) {}
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final LampStateCache lampStateCache;
+
+    private final Map<String, CompiledConfig> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder builds = new LongAdder();
+
+    /** @return konfiguracja lampy albo null, jeśli lampa nie istnieje */
+    public CompiledConfig get(String lampId) {
+        CompiledConfig cached = entries.get(lampId);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        List<CompiledConfig> rows = jdbcTemplate.query("SELECT modes_config_json, config_version FROM lamps WHERE id = ?",
+                (rs, n) -> compile(parseModes(lampId, rs.getString("modes_config_json")),
+                        reportInterval(lampId), rs.getInt("config_version")), lampId);
+        if (rows.isEmpty()) return null;
+
+        CompiledConfig compiled = rows.get(0);
+        // Zapis, który zdążył przed nami, ma pierwszeństwo
+        CompiledConfig existing = entries.putIfAbsent(lampId, compiled);
+        return existing != null ? existing : compiled;
+    }
+
+    /**
+     * Nowe tryby po zapisie (po commicie) - wpis budowany z obiektów w pamięci, bez ponownego parsowania JSON.
+     * Wpis z wyższą wersją (późniejszy zapis, który wygrał wyścig) zostaje.
+     */
+    public CompiledConfig modesChanged(String lampId, List<LampModeConfig> modes, int version) {
+        return entries.compute(lampId, (id, c) -> c != null && c.version() > version
+                ? c : compile(modes, reportInterval(id), version));
+    }
+
+    /** Nowa wersja bez zmiany trybów (np. sam interwał raportowania) - przebudowa z trzymanych trybów. */
+    public void versionChanged(String lampId, int version) {
+        entries.computeIfPresent(lampId, (id, c) -> c.version() > version
+                ? c : compile(c.modes(), reportInterval(id), version));
+    }
+
+    public void invalidate(String lampId) {
+        entries.remove(lampId);
+    }
+
+    private int reportInterval(String lampId) {
+        LampStateCache.LampState state = lampStateCache.get(lampId);
+        return state != null && state.getReportInterval() != null ? state.getReportInterval() : DEFAULT_REPORT_INTERVAL;
+    }
+
+    private List<LampModeConfig> parseModes(String lampId, String json) {
+        if (json == null || json.isEmpty()) return List.of();
+        try {
+            return objectMapper.readValue(json, new TypeReference<List<LampModeConfig>>() {});
+        } catch (Exception e) {
+            log.error("Błąd deserializacji JSON configu lampy {}: {}", lampId, e.getMessage());
+            return List.of();
+        }
+    }
+
+    // Java Object -> Proto
+    private CompiledConfig compile(List<LampModeConfig> modes, int reportInterval, int version) {
+        builds.increment();
+        IotProtos.LampConfig.Builder configBuilder = IotProtos.LampConfig.newBuilder()
+                .setVersion(version);
+
+        configBuilder.setInternalLampConfig(IotProtos.InternalLampConfig.newBuilder()
+                .setReportingIntervalSeconds(reportInterval)
+                .setWakeUpIntervalMinutes(WAKE_UP_INTERVAL_MINUTES)
+                .build());
+
+        for (LampModeConfig javaMode : modes) {
+            IotProtos.ModeCombinedSetting.Builder modeBuilder = IotProtos.ModeCombinedSetting.newBuilder()
+                    .setModeId(javaMode.getModeId());
+
+            // --- A. DISCO ---
+            if ("DISCO".equals(javaMode.getType()) && javaMode.getDisco() != null) {
+                try {
+                    modeBuilder.setDiscoModeSettings(
+                            IotProtos.DiscoModeSettings.newBuilder()
+                                    .setSpeed(javaMode.getDisco().getSpeed())
+                                    .setIntensity(javaMode.getDisco().getIntensity())
+                                    .setMode(IotProtos.DiscoModes.valueOf(javaMode.getDisco().getMode()))
+                                    .build()
+                    );
+                } catch (Exception e) {
+                    modeBuilder.setDiscoModeSettings(IotProtos.DiscoModeSettings.newBuilder().setMode(IotProtos.DiscoModes.OFF).build());
+                }
+            }
+            // --- B. HARMONOGRAM (SCHEDULE) ---
+            else if ("SCHEDULE".equals(javaMode.getType()) && javaMode.getSchedule() != null) {
+                IotProtos.DaylightModeSettings.Builder dayBuilder = IotProtos.DaylightModeSettings.newBuilder();
+
+                for (var ent : javaMode.getSchedule().getEntries()) {
+                    IotProtos.ScheduleEntry.Builder entryBuilder = IotProtos.ScheduleEntry.newBuilder();
+
+                    // Trigger
+                    if ("HOUR".equals(ent.getTriggerType())) {
+                        entryBuilder.setHourSetting(IotProtos.HourSetting.newBuilder()
+                                .setStartSecondPastMidnight((ent.getStartHour() != null ? ent.getStartHour() : 0) * 3600)
+                                .setEndSecondPastMidnight((ent.getEndHour() != null ? ent.getEndHour() : 0) * 3600)
+                                .setEndsNextDay(ent.getEndHour() != null && ent.getStartHour() != null && ent.getEndHour() < ent.getStartHour())
+                                .setTransitionDurationSeconds((ent.getTransitionDurationSeconds() != null ? ent.getTransitionDurationSeconds() : 0))
+                                .build());
+                    } else if ("BRIGHTNESS".equals(ent.getTriggerType())) {
+                        entryBuilder.setBrightnessSettings(IotProtos.BrightnessSettings.newBuilder()
+                                .setMinBrightness(ent.getMinBrightness() != null ? ent.getMinBrightness() : 0)
+                                .setMaxBrightness(ent.getMaxBrightness() != null ? ent.getMaxBrightness() : 100)
+                                .setTransitionDurationSeconds(ent.getTransitionDurationSeconds() != null ? ent.getTransitionDurationSeconds() : 0)
+                                .build());
+                    }
+
+                    IotProtos.LampState.Builder stateBuilder = IotProtos.LampState.newBuilder();
+
+                    if ("DIRECT".equals(ent.getActionType())) {
+                        stateBuilder.setDirectSettings(directSettings(ent.getRed(), ent.getGreen(), ent.getBlue(),
+                                ent.getWarmWhite(), ent.getColdWhite(), ent.getNeutralWhite()));
+                    } else if ("PHOTO_WHITE".equals(ent.getActionType())) {
+                        stateBuilder.setPhotoWhiteSetting(photoWhite(ent.getIntensity(), ent.getTemperature()));
+                    } else if ("PHOTO_COLOR".equals(ent.getActionType())) {
+                        stateBuilder.setPhotoColorSetting(photoColor(ent.getIntensity(), ent.getHue(), ent.getSaturation()));
+                    }
+
+                    if (stateBuilder.hasDirectSettings() || stateBuilder.hasPhotoWhiteSetting() || stateBuilder.hasPhotoColorSetting()) {
+                        entryBuilder.setTargetState(stateBuilder.build());
+                        dayBuilder.addScheduleEntries(entryBuilder);
+                    }
+                }
+                modeBuilder.setDaylightModeSettings(dayBuilder);
+            }
+            // --- C. PRESET ---
+            else if ("PRESET".equals(javaMode.getType()) && javaMode.getPresets() != null) {
+                IotProtos.PresetModeSetting.Builder presetBuilder = IotProtos.PresetModeSetting.newBuilder();
+
+                for (var ent : javaMode.getPresets().getEntries()) {
+                    IotProtos.LampState.Builder stateBuilder = IotProtos.LampState.newBuilder();
+
+                    if ("DIRECT".equals(ent.getType())) {
+                        stateBuilder.setDirectSettings(directSettings(ent.getRed(), ent.getGreen(), ent.getBlue(),
+                                ent.getWarmWhite(), ent.getColdWhite(), ent.getNeutralWhite()));
+                    } else if ("WHITE".equals(ent.getType())) {
+                        stateBuilder.setPhotoWhiteSetting(photoWhite(ent.getIntensity(), ent.getTemperature()));
+                    } else if ("COLOR".equals(ent.getType())) {
+                        stateBuilder.setPhotoColorSetting(photoColor(ent.getIntensity(), ent.getHue(), ent.getSaturation()));
+                    }
+
+                    if (stateBuilder.hasDirectSettings() || stateBuilder.hasPhotoWhiteSetting() || stateBuilder.hasPhotoColorSetting()) {
+                        presetBuilder.addPresets(stateBuilder);
+                    }
+                }
+                modeBuilder.setPresetModeSetting(presetBuilder);
+            }
+
+            configBuilder.addModeSettings(modeBuilder);
+        }
+
+        IotProtos.LampConfig config = configBuilder.build();
+        return new CompiledConfig(List.copyOf(modes), reportInterval, version, config, config.toByteArray());
+    }
+
+    private static IotProtos.DirectSettings directSettings(Integer red, Integer green, Integer blue,
+                                                           Integer warmWhite, Integer coldWhite, Integer neutralWhite) {
+        return IotProtos.DirectSettings.newBuilder()
+                .setRed(orZero(red))
+                .setGreen(orZero(green))
+                .setBlue(orZero(blue))
+                .setWarmWhite(orZero(warmWhite))
+                .setColdWhite(orZero(coldWhite))
+                .setNeutralWhite(orZero(neutralWhite))
+                .build();
+    }
+
+    private static IotProtos.PhotoWhiteSetting photoWhite(Integer intensity, Integer temperature) {
+        return IotProtos.PhotoWhiteSetting.newBuilder()
+                .setIntensity(orZero(intensity))
+                .setTemperature(orZero(temperature))
+                .build();
+    }
+
+    private static IotProtos.PhotoColorSetting photoColor(Integer intensity, Integer hue, Integer saturation) {
+        return IotProtos.PhotoColorSetting.newBuilder()
+                .setIntensity(orZero(intensity))
+                .setHue(orZero(hue))
+                .setSaturation(orZero(saturation))
+                .build();
+    }
+
+    private static int orZero(Integer value) {
+        return value != null ? value : 0;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("lamps", entries.size());
+        stats.put("hits", hits.sum());
+        stats.put("builds", builds.sum());
+        return stats;
+    }
+}
@@ -1,6 +1,6 @@
 package org.qualv13.iotbackend.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.iot.backend.proto.IotProtos;
 import lombok.extern.slf4j.Slf4j;
@@ -12,11 +12,15 @@ import org.qualv13.iotbackend.repository.LampAlertRepository;
 import org.qualv13.iotbackend.repository.LampMetricRepository;
 import org.qualv13.iotbackend.repository.LampRepository;
 import org.qualv13.iotbackend.repository.UserRepository;
+import org.qualv13.iotbackend.scheduler.CircadianScheduler;
+import org.qualv13.iotbackend.security.DeviceCredentialCache;
 import lombok.RequiredArgsConstructor;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.context.annotation.Lazy;
 
 import java.nio.charset.StandardCharsets;
@@ -33,6 +37,16 @@ public class LampService {
     private final LampMetricRepository metricRepository;
     private final ObjectMapper objectMapper;
     private final LampAlertRepository alertRepository;
+    private final LampStateCache lampStateCache;
+    private final ActiveAlertRegistry activeAlertRegistry;
+    private final RecentMetricsBuffer recentMetricsBuffer;
+    private final LastSeenRegistry lastSeenRegistry;
+    private final AdaptiveBrightnessService adaptiveBrightnessService;
+    private final CircadianScheduler circadianScheduler;
+    private final DeviceCredentialCache deviceCredentialCache;
+    private final OwnershipIndex ownershipIndex;
+    private final LampConfigCache lampConfigCache;
+    private final ConfigSyncTracker configSyncTracker;
 
     @Lazy
     private final MqttService mqttService;
@@ -49,27 +63,27 @@ public class LampService {
         if (lamp.getOwner() != null && !lamp.getOwner().getUsername().equals(username)) {
             log.info("Zmiana właściciela lampy {}. Czyszczenie danych historycznych.", lampId);
             lamp.setModesConfigJson(null);
-            lamp.setActiveModeId(null);
-
-            lamp.setRed(0); lamp.setGreen(0); lamp.setBlue(0);
-            lamp.setBrightness(50); lamp.setColor("#ffffff");
-            lamp.setReportInterval(60);
-
-            lamp.setColdWhite(0); lamp.setWarmWhite(0); lamp.setNeutralWhite(0);
-
-            lamp.setLastAmbientLight(null); lamp.setLastAmbientNoise(null);
+            lamp.nextConfigVersion();
 
-            lamp.setPhotoColorHue(0); lamp.setPhotoColorSaturation(0); lamp.setPhotoColorIntensity(0);
-
-            lamp.setPhotoWhiteTemp(0); lamp.setPhotoWhiteIntensity(0);
-
-            lamp.setModesConfigJson(null);
-
-            lamp.setActiveModeId(null);
+            // Kolumny stanu resetujemy przez cache (JPA ich nie aktualizuje)
+            lampStateCache.update(lampId, LampStateCache.LampState::resetToDefaults);
 
             metricRepository.deleteByLampId(lampId);
+            recentMetricsBuffer.evict(lampId);
+            lastSeenRegistry.evict(lampId);
 
             alertRepository.deleteByLampId(lampId);
+            activeAlertRegistry.evict(lampId);
+        }
+
+        if (lamp.getFleet() != null) {
+            // Lampa wypada z floty poprzedniego przypisania - niech odepnie subskrypcje floty
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    mqttService.sendFleetMembership(lampId, null);
+                }
+            });
         }
 
         lamp.setId(lampId);
@@ -82,15 +96,42 @@ public class LampService {
         lamp.setDeviceTokenHash(calculateSha256(rawToken));
 
         lampRepository.save(lamp);
+        // Stary token przestaje działać od razu, a nie po wygaśnięciu wpisu w cache brokera
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                deviceCredentialCache.invalidate(lampId);
+                ownershipIndex.lampOwnerChanged(lampId, user.getId());
+                lampConfigCache.invalidate(lampId);
+                configSyncTracker.forget(lampId);
+            }
+        });
+        // Nowy właściciel może mieć inną strefę czasową
+        circadianScheduler.refresh(lampId, user.getTimezone());
         return rawToken;
     }
 
     // --- Obsługa komend (zmiana stanu/trybu) ---
-    @Transactional
-    public void updateLampStateFromCommand(String lampId, IotProtos.LampCommand command) {
-        Lamp lamp = getLampWithAuthCheck(lampId);
+    /** Sprawdza uprawnienia do lampy z indeksu własności, bez ładowania encji - na wątku żądania (kontekst security). */
+    public void checkLampAccess(String lampId) {
+        ownershipIndex.checkLampAccess(currentUsername(), lampId);
+    }
+
+    /** Nanosi komendę na stan lampy bez sprawdzania uprawnień - wołać po {@link #checkLampAccess}. */
+    public void applyCommandState(String lampId, IotProtos.LampCommand command) {
+        lampStateCache.update(lampId, lamp -> applyCommandToState(lamp, command));
+    }
+
+    /**
+     * Stan po komendzie floty dla wszystkich jej lamp naraz (jeden UPDATE po fleet_id).
+     * Uprawnienia do floty sprawdza wywołujący.
+     */
+    public int updateFleetStateFromCommand(Long fleetId, List<String> lampIds, IotProtos.LampCommand command) {
+        return lampStateCache.updateFleet(fleetId, lampIds, lamp -> applyCommandToState(lamp, command));
+    }
 
-        boolean stateChanged = false;
+    private void applyCommandToState(LampStateCache.LampState lamp, IotProtos.LampCommand command) {
+        String lampId = lamp.getId();
 
         // Ręczne ustawienie koloru
         if (command.hasSetDirectSettingsCommand()) {
@@ -108,14 +149,12 @@ public class LampService {
             lamp.setColdWhite(ds.getColdWhite());
 
             lamp.setActiveModeId(null);
-            stateChanged = true;
         }
         // Ustawienie konkretnego trybu
         else if (command.hasSetModeCommand()) {
             lamp.setOn(true);
             lamp.setOnline(true);
             lamp.setActiveModeId(command.getSetModeCommand().getModeId());
-            stateChanged = true;
         }
         // Blink LED, Reboot, OTA
         else if(command.hasSetPhotoWhiteSettingsCommand()){
@@ -125,7 +164,6 @@ public class LampService {
             IotProtos.PhotoWhiteSetting pws = command.getSetPhotoWhiteSettingsCommand().getPhotoWhiteSetting();
             lamp.setPhotoWhiteIntensity(pws.getIntensity());
             lamp.setPhotoWhiteTemp(pws.getTemperature());
-            stateChanged = true;
         }
         else if (command.hasSetPhotoColorSettingsCommand()){
             lamp.setOn(true);
@@ -135,18 +173,40 @@ public class LampService {
             lamp.setPhotoColorIntensity(pcs.getIntensity());
             lamp.setPhotoColorSaturation(pcs.getSaturation());
             lamp.setPhotoColorHue(pcs.getHue());
-            stateChanged = true;
         }
         else if (command.hasSetWifiParamsCommand()) {
             log.info("Lampa {} aktualizuje WiFi SSID: {}", lampId, command.getSetWifiParamsCommand().getSsid());
         }
+    }
 
-        if (stateChanged) {
-            lampRepository.save(lamp);
-
-            //mqttService.sendCommandToLamp(lampId, command);
+    public void updateSmartConfig(String lampId, Boolean circadian, Boolean adaptive) {
+        boolean found = lampStateCache.update(lampId, lamp -> {
+            if (circadian != null) {
+                lamp.setCircadianEnabled(circadian);
+                log.info("Lampa {}: Circadian = {}", lampId, circadian);
+            }
+            if (adaptive != null) {
+                lamp.setAdaptiveBrightnessEnabled(adaptive);
+                log.info("Lampa {}: Adaptive = {}", lampId, adaptive);
+                // Po włączeniu od razu dopasowujemy jasność do ostatniego odczytu, nie czekamy na zmianę lux
+                adaptiveBrightnessService.reset(lampId);
+                if (adaptive && lamp.getLastAmbientLight() != null) {
+                    adaptiveBrightnessService.evaluate(lamp, lamp.getLastAmbientLight());
+                }
+            }
+        });
+        if (!found) {
+            throw new RuntimeException("Lampa nie istnieje: " + lampId);
+        }
+        if (circadian != null) {
+            String timezone = lampRepository.findById(lampId)
+                    .map(Lamp::getOwner)
+                    .map(User::getTimezone)
+                    .orElse(null);
+            circadianScheduler.refresh(lampId, timezone);
+            // Bieżący cel od razu, bez czekania na najbliższą granicę przedziału
+            if (circadian) circadianScheduler.applyNow(lampId);
         }
-        //lampRepository.save(lamp);
     }
 
     @Transactional
@@ -164,213 +224,118 @@ public class LampService {
     @Transactional
     public void updateLampConfig(String lampId, IotProtos.LampConfig protoConfig) {
         Lamp lamp = getLampWithAuthCheck(lampId);
+        int version = lamp.nextConfigVersion();
 
         if (protoConfig.hasInternalLampConfig()) {
             int interval = protoConfig.getInternalLampConfig().getReportingIntervalSeconds();
-            if (interval > 0) lamp.setReportInterval(interval);
+            if (interval > 0) lampStateCache.update(lampId, state -> state.setReportInterval(interval));
         }
 
         // Mapowanie PROTO -> JSON (Zapis do bazy)
-        if (protoConfig.getModeSettingsCount() > 0) {
-            List<LampModeConfig> modesList = new ArrayList<>();
-
-            for (IotProtos.ModeCombinedSetting protoMode : protoConfig.getModeSettingsList()) {
-                LampModeConfig javaMode = new LampModeConfig();
-                javaMode.setModeId(protoMode.getModeId());
-                javaMode.setName("Mode " + protoMode.getModeId());
-
-                // A. DISCO
-                if (protoMode.hasDiscoModeSettings()) {
-                    javaMode.setType("DISCO");
-                    var pDisco = protoMode.getDiscoModeSettings();
-                    javaMode.setDisco(new LampModeConfig.DiscoConfig(
-                            pDisco.getMode().name(),
-                            pDisco.getSpeed(),
-                            pDisco.getIntensity()
-                    ));
-                }
-                // B. HARMONOGRAM (Daylight)
-                else if (protoMode.hasDaylightModeSettings()) {
-                    javaMode.setType("SCHEDULE");
-                    var pDaylight = protoMode.getDaylightModeSettings();
-                    List<LampModeConfig.ScheduleEntry> entries = new ArrayList<>();
-
-                    for (var entry : pDaylight.getScheduleEntriesList()) {
-                        LampModeConfig.ScheduleEntry javaEntry = new LampModeConfig.ScheduleEntry();
-
-                        // Trigger
-                        if (entry.hasHourSetting()) {
-                            javaEntry.setTriggerType("HOUR");
-                            javaEntry.setStartHour(entry.getHourSetting().getStartSecondPastMidnight());
-                            javaEntry.setEndHour(entry.getHourSetting().getEndSecondPastMidnight());
-                            javaEntry.setTransitionDurationSeconds(entry.getHourSetting().getTransitionDurationSeconds());
-                        } else if (entry.hasBrightnessSettings()) {
-                            javaEntry.setTriggerType("BRIGHTNESS");
-                            javaEntry.setMinBrightness(entry.getBrightnessSettings().getMinBrightness());
-                            javaEntry.setMaxBrightness(entry.getBrightnessSettings().getMaxBrightness());
-                            int seconds = entry.getBrightnessSettings().getTransitionDurationSeconds();
-                            javaEntry.setTransitionDurationSeconds(seconds);
-                        }
+        List<LampModeConfig> modesList = protoConfig.getModeSettingsCount() > 0 ? toModeConfigs(protoConfig) : null;
+        boolean modesSaved = modesList != null && writeModesJson(lamp, modesList);
+        lampRepository.save(lamp);
 
-                        // Action
-                        if (entry.hasTargetState()) {
-                            IotProtos.LampState state = entry.getTargetState();
-
-                            if (state.hasDirectSettings()) {
-                                javaEntry.setActionType("DIRECT");
-                                var ds = state.getDirectSettings();
-                                javaEntry.setRed(ds.getRed());
-                                javaEntry.setGreen(ds.getGreen());
-                                javaEntry.setBlue(ds.getBlue());
-                                javaEntry.setWarmWhite(ds.getWarmWhite());
-                                javaEntry.setColdWhite(ds.getColdWhite());
-                                javaEntry.setNeutralWhite(ds.getNeutralWhite());
-                            } else if (state.hasPhotoWhiteSetting()) {
-                                javaEntry.setActionType("PHOTO_WHITE");
-                                javaEntry.setIntensity(state.getPhotoWhiteSetting().getIntensity());
-                                javaEntry.setTemperature(state.getPhotoWhiteSetting().getTemperature());
-                            } else if (state.hasPhotoColorSetting()) {
-                                javaEntry.setActionType("PHOTO_COLOR");
-                                javaEntry.setIntensity(state.getPhotoColorSetting().getIntensity());
-                                javaEntry.setHue(state.getPhotoColorSetting().getHue());
-                                javaEntry.setSaturation(state.getPhotoColorSetting().getSaturation());
-                            }
-                        }
+        // Lampa dostaje config z żądania pod nową wersją - jako deltę, jeśli potwierdziła poprzednią
+        IotProtos.LampConfig target = protoConfig.toBuilder()
+                .setVersion(version)
+                .clearTs()
+                .clearBaseVersion()
+                .build();
+
+        // Skompilowany config budujemy z obiektów w pamięci - JSON z bazy nie jest czytany ponownie
+        afterCommit(() -> {
+            if (modesSaved) lampConfigCache.modesChanged(lampId, modesList, version);
+            else lampConfigCache.versionChanged(lampId, version);
+            configSyncTracker.push(lampId, target, null);
+        });
+    }
 
-                        entries.add(javaEntry);
-                    }
-                    javaMode.setSchedule(new LampModeConfig.ScheduleConfig(entries));
-                }
-                // C. PRESET
-                else if (protoMode.hasPresetModeSetting()) {
-                    javaMode.setType("PRESET");
-                    var pPreset = protoMode.getPresetModeSetting();
-                    List<LampModeConfig.PresetEntry> entries = new ArrayList<>();
-
-                    for (var entry : pPreset.getPresetsList()) {
-                        LampModeConfig.PresetEntry javaEntry = new LampModeConfig.PresetEntry();
-                        if (entry.hasDirectSettings()) {
-                            javaEntry.setType("DIRECT");
-                            var ds = entry.getDirectSettings();
-                            javaEntry.setRed(ds.getRed());
-                            javaEntry.setGreen(ds.getGreen());
-                            javaEntry.setBlue(ds.getBlue());
-                            javaEntry.setWarmWhite(ds.getWarmWhite());
-                            javaEntry.setColdWhite(ds.getColdWhite());
-                            javaEntry.setNeutralWhite(ds.getNeutralWhite());
-                        } else if (entry.hasPhotoWhiteSetting()) {
-                            javaEntry.setType("WHITE");
-                            javaEntry.setIntensity(entry.getPhotoWhiteSetting().getIntensity());
-                            javaEntry.setTemperature(entry.getPhotoWhiteSetting().getTemperature());
-                        } else if (entry.hasPhotoColorSetting()) {
-                            javaEntry.setType("COLOR");
-                            javaEntry.setIntensity(entry.getPhotoColorSetting().getIntensity());
-                            javaEntry.setHue(entry.getPhotoColorSetting().getHue());
-                            javaEntry.setSaturation(entry.getPhotoColorSetting().getSaturation());
-                        }
-                        entries.add(javaEntry);
-                    }
-                    javaMode.setPresets(new LampModeConfig.PresetConfig(entries));
-                }
+    /** Zapisuje presety (tryb 3) - pozostałe tryby bez zmian, brak trybu 3 = nowy tryb PRESET. */
+    @Transactional
+    public void savePresets(String lampId, List<LampModeConfig.PresetEntry> entries) {
+        Lamp lamp = getLampWithAuthCheck(lampId);
+        LampModeConfig.PresetConfig presets = new LampModeConfig.PresetConfig(entries);
 
-                modesList.add(javaMode);
-            }
+        // Wpisy z cache są współdzielone - podmieniamy tryb na nowy obiekt zamiast go modyfikować
+        List<LampModeConfig> modesList = new ArrayList<>(lampConfigCache.get(lampId).modes());
+        int presetIndex = -1;
+        for (int i = 0; i < modesList.size(); i++) {
+            if (modesList.get(i).getModeId() == 3) presetIndex = i;
+        }
+        if (presetIndex >= 0) {
+            LampModeConfig old = modesList.get(presetIndex);
+            modesList.set(presetIndex, new LampModeConfig(old.getModeId(), old.getName(), old.getType(),
+                    old.getDisco(), old.getSchedule(), presets));
+        } else {
+            modesList.add(new LampModeConfig(3, "Mode 3", "PRESET", null, null, presets));
+        }
 
-            try {
-                String json = objectMapper.writeValueAsString(modesList);
-                lamp.setModesConfigJson(json);
-            } catch (Exception e) {
-                System.err.println("Błąd serializacji JSON: " + e.getMessage());
-            }
+        if (!writeModesJson(lamp, modesList)) {
+            // Wywołujący nie może dostać sukcesu, gdy presety nie zostały zapisane
+            throw new RuntimeException("Nie udało się zapisać presetów lampy " + lampId);
         }
-        saveConfigJsonToDb(lamp, protoConfig);
+        int version = lamp.nextConfigVersion();
         lampRepository.save(lamp);
-        //sendConfigToMqtt(lampId, protoConfig);
-        //mqttService.sendConfigToLamp(lampId, protoConfig);
+        afterCommit(() -> lampConfigCache.modesChanged(lampId, modesList, version));
+    }
+
+    private boolean writeModesJson(Lamp lamp, List<LampModeConfig> modesList) {
+        try {
+            lamp.setModesConfigJson(objectMapper.writeValueAsString(modesList));
+            return true;
+        } catch (JsonProcessingException e) {
+            log.error("Błąd serializacji JSON configu lampy {}: {}", lamp.getId(), e.getMessage());
+            return false;
+        }
     }
 
 
-    private void saveConfigJsonToDb(Lamp lamp, IotProtos.LampConfig protoConfig) {
-        if (protoConfig.getModeSettingsCount() > 0) {
-            List<LampModeConfig> modesList = new ArrayList<>();
-
-            for (IotProtos.ModeCombinedSetting protoMode : protoConfig.getModeSettingsList()) {
-                LampModeConfig javaMode = new LampModeConfig();
-                javaMode.setModeId(protoMode.getModeId());
-                javaMode.setName("Mode " + protoMode.getModeId());
-
-                // --- A. DISCO ---
-                if (protoMode.hasDiscoModeSettings()) {
-                    javaMode.setType("DISCO");
-                    var pDisco = protoMode.getDiscoModeSettings();
-                    javaMode.setDisco(new LampModeConfig.DiscoConfig(
-                            pDisco.getMode().name(),
-                            pDisco.getSpeed(),
-                            pDisco.getIntensity()
-                    ));
-                }
-                // --- B. HARMONOGRAM (SCHEDULE / DAYLIGHT) ---
-                else if (protoMode.hasDaylightModeSettings()) {
-                    javaMode.setType("SCHEDULE");
-                    var pDaylight = protoMode.getDaylightModeSettings();
-                    List<LampModeConfig.ScheduleEntry> entries = new ArrayList<>();
-
-                    for (var entry : pDaylight.getScheduleEntriesList()) {
-                        LampModeConfig.ScheduleEntry javaEntry = new LampModeConfig.ScheduleEntry();
-
-                        if (entry.hasHourSetting()) {
-                            javaEntry.setTriggerType("HOUR");
-                            javaEntry.setStartHour(entry.getHourSetting().getStartSecondPastMidnight());
-                            javaEntry.setEndHour(entry.getHourSetting().getEndSecondPastMidnight());
-                            javaEntry.setTransitionDurationSeconds(entry.getHourSetting().getTransitionDurationSeconds());
-                        } else if (entry.hasBrightnessSettings()) {
-                            javaEntry.setTriggerType("BRIGHTNESS");
-                            javaEntry.setMinBrightness(entry.getBrightnessSettings().getMinBrightness());
-                            javaEntry.setMaxBrightness(entry.getBrightnessSettings().getMaxBrightness());
-                            javaEntry.setTransitionDurationSeconds(entry.getBrightnessSettings().getTransitionDurationSeconds());
-                        }
+    private List<LampModeConfig> toModeConfigs(IotProtos.LampConfig protoConfig) {
+        List<LampModeConfig> modesList = new ArrayList<>();
 
-                        // 2. Mapowanie Stanu Docelowego (Target State)
-                        if (entry.hasTargetState()) {
-                            IotProtos.LampState state = entry.getTargetState();
-
-                            if (state.hasDirectSettings()) {
-                                javaEntry.setActionType("DIRECT");
-                                var ds = state.getDirectSettings();
-                                javaEntry.setRed(ds.getRed());
-                                javaEntry.setGreen(ds.getGreen());
-                                javaEntry.setBlue(ds.getBlue());
-                                javaEntry.setWarmWhite(ds.getWarmWhite());
-                                javaEntry.setColdWhite(ds.getColdWhite());
-                                javaEntry.setNeutralWhite(ds.getNeutralWhite());
-                            } else if (state.hasPhotoWhiteSetting()) {
-                                javaEntry.setActionType("PHOTO_WHITE");
-                                var pw = state.getPhotoWhiteSetting();
-                                javaEntry.setIntensity(pw.getIntensity());
-                                javaEntry.setTemperature(pw.getTemperature());
-                            } else if (state.hasPhotoColorSetting()) {
-                                javaEntry.setActionType("PHOTO_COLOR");
-                                var pc = state.getPhotoColorSetting();
-                                javaEntry.setIntensity(pc.getIntensity());
-                                javaEntry.setHue(pc.getHue());
-                                javaEntry.setSaturation(pc.getSaturation());
-                            }
-                        }
-                        entries.add(javaEntry);
+        for (IotProtos.ModeCombinedSetting protoMode : protoConfig.getModeSettingsList()) {
+            LampModeConfig javaMode = new LampModeConfig();
+            javaMode.setModeId(protoMode.getModeId());
+            javaMode.setName("Mode " + protoMode.getModeId());
+
+            // --- A. DISCO ---
+            if (protoMode.hasDiscoModeSettings()) {
+                javaMode.setType("DISCO");
+                var pDisco = protoMode.getDiscoModeSettings();
+                javaMode.setDisco(new LampModeConfig.DiscoConfig(
+                        pDisco.getMode().name(),
+                        pDisco.getSpeed(),
+                        pDisco.getIntensity()
+                ));
+            }
+            // --- B. HARMONOGRAM (SCHEDULE / DAYLIGHT) ---
+            else if (protoMode.hasDaylightModeSettings()) {
+                javaMode.setType("SCHEDULE");
+                var pDaylight = protoMode.getDaylightModeSettings();
+                List<LampModeConfig.ScheduleEntry> entries = new ArrayList<>();
+
+                for (var entry : pDaylight.getScheduleEntriesList()) {
+                    LampModeConfig.ScheduleEntry javaEntry = new LampModeConfig.ScheduleEntry();
+
+                    if (entry.hasHourSetting()) {
+                        javaEntry.setTriggerType("HOUR");
+                        javaEntry.setStartHour(entry.getHourSetting().getStartSecondPastMidnight());
+                        javaEntry.setEndHour(entry.getHourSetting().getEndSecondPastMidnight());
+                        javaEntry.setTransitionDurationSeconds(entry.getHourSetting().getTransitionDurationSeconds());
+                    } else if (entry.hasBrightnessSettings()) {
+                        javaEntry.setTriggerType("BRIGHTNESS");
+                        javaEntry.setMinBrightness(entry.getBrightnessSettings().getMinBrightness());
+                        javaEntry.setMaxBrightness(entry.getBrightnessSettings().getMaxBrightness());
+                        javaEntry.setTransitionDurationSeconds(entry.getBrightnessSettings().getTransitionDurationSeconds());
                     }
-                    javaMode.setSchedule(new LampModeConfig.ScheduleConfig(entries));
-                }
-                // --- C. PRESET ---
-                else if (protoMode.hasPresetModeSetting()) {
-                    javaMode.setType("PRESET");
-                    var pPreset = protoMode.getPresetModeSetting();
-                    List<LampModeConfig.PresetEntry> entries = new ArrayList<>();
 
-                    for (IotProtos.LampState state : pPreset.getPresetsList()) {
-                        LampModeConfig.PresetEntry javaEntry = new LampModeConfig.PresetEntry();
+                    // 2. Mapowanie Stanu Docelowego (Target State)
+                    if (entry.hasTargetState()) {
+                        IotProtos.LampState state = entry.getTargetState();
 
                         if (state.hasDirectSettings()) {
-                            javaEntry.setType("DIRECT");
+                            javaEntry.setActionType("DIRECT");
                             var ds = state.getDirectSettings();
                             javaEntry.setRed(ds.getRed());
                             javaEntry.setGreen(ds.getGreen());
@@ -379,317 +344,77 @@ public class LampService {
                             javaEntry.setColdWhite(ds.getColdWhite());
                             javaEntry.setNeutralWhite(ds.getNeutralWhite());
                         } else if (state.hasPhotoWhiteSetting()) {
-                            javaEntry.setType("WHITE");
+                            javaEntry.setActionType("PHOTO_WHITE");
                             var pw = state.getPhotoWhiteSetting();
                             javaEntry.setIntensity(pw.getIntensity());
                             javaEntry.setTemperature(pw.getTemperature());
                         } else if (state.hasPhotoColorSetting()) {
-                            javaEntry.setType("COLOR");
+                            javaEntry.setActionType("PHOTO_COLOR");
                             var pc = state.getPhotoColorSetting();
                             javaEntry.setIntensity(pc.getIntensity());
                             javaEntry.setHue(pc.getHue());
                             javaEntry.setSaturation(pc.getSaturation());
                         }
-                        entries.add(javaEntry);
                     }
-                    javaMode.setPresets(new LampModeConfig.PresetConfig(entries));
+                    entries.add(javaEntry);
                 }
-
-                modesList.add(javaMode);
+                javaMode.setSchedule(new LampModeConfig.ScheduleConfig(entries));
             }
-
-            try {
-                String json = objectMapper.writeValueAsString(modesList);
-                lamp.setModesConfigJson(json);
-            } catch (Exception e) {
-                System.err.println("Błąd serializacji JSON configu: " + e.getMessage());
-                e.printStackTrace();
+            // --- C. PRESET ---
+            else if (protoMode.hasPresetModeSetting()) {
+                javaMode.setType("PRESET");
+                var pPreset = protoMode.getPresetModeSetting();
+                List<LampModeConfig.PresetEntry> entries = new ArrayList<>();
+
+                for (IotProtos.LampState state : pPreset.getPresetsList()) {
+                    LampModeConfig.PresetEntry javaEntry = new LampModeConfig.PresetEntry();
+
+                    if (state.hasDirectSettings()) {
+                        javaEntry.setType("DIRECT");
+                        var ds = state.getDirectSettings();
+                        javaEntry.setRed(ds.getRed());
+                        javaEntry.setGreen(ds.getGreen());
+                        javaEntry.setBlue(ds.getBlue());
+                        javaEntry.setWarmWhite(ds.getWarmWhite());
+                        javaEntry.setColdWhite(ds.getColdWhite());
+                        javaEntry.setNeutralWhite(ds.getNeutralWhite());
+                    } else if (state.hasPhotoWhiteSetting()) {
+                        javaEntry.setType("WHITE");
+                        var pw = state.getPhotoWhiteSetting();
+                        javaEntry.setIntensity(pw.getIntensity());
+                        javaEntry.setTemperature(pw.getTemperature());
+                    } else if (state.hasPhotoColorSetting()) {
+                        javaEntry.setType("COLOR");
+                        var pc = state.getPhotoColorSetting();
+                        javaEntry.setIntensity(pc.getIntensity());
+                        javaEntry.setHue(pc.getHue());
+                        javaEntry.setSaturation(pc.getSaturation());
+                    }
+                    entries.add(javaEntry);
+                }
+                javaMode.setPresets(new LampModeConfig.PresetConfig(entries));
             }
+
+            modesList.add(javaMode);
         }
+
+        return modesList;
     }
 
 
-    @Transactional
     public void refreshLampConfig(String lampId) {
-        IotProtos.LampConfig config = generateProtoFromDb(lampId);
+        checkLampAccess(lampId);
+        LampConfigCache.CompiledConfig config = lampConfigCache.get(lampId);
 
-        mqttService.sendConfigToLamp(lampId, config);
+        configSyncTracker.push(lampId, config.config(), config.bytes());
 
         log.info("Wymuszono odświeżenie konfiguracji dla lampy {}", lampId);
     }
 
-    // DB JSON -> Java Object -> Proto
-    private IotProtos.LampConfig generateProtoFromDb(String lampId) {
-        Lamp lamp = getLampWithAuthCheck(lampId);
-
-        IotProtos.LampConfig.Builder configBuilder = IotProtos.LampConfig.newBuilder()
-                .setVersion(1)
-                .setTs(System.currentTimeMillis() / 1000);
-
-        configBuilder.setInternalLampConfig(IotProtos.InternalLampConfig.newBuilder()
-                .setReportingIntervalSeconds(lamp.getReportInterval() != null ? lamp.getReportInterval() : 60)
-                .setWakeUpIntervalMinutes(10)
-                .build());
-
-        if (lamp.getModesConfigJson() != null && !lamp.getModesConfigJson().isEmpty()) {
-            try {
-                List<LampModeConfig> modesList = objectMapper.readValue(
-                        lamp.getModesConfigJson(),
-                        new TypeReference<List<LampModeConfig>>(){});
-
-                for (LampModeConfig javaMode : modesList) {
-                    IotProtos.ModeCombinedSetting.Builder modeBuilder = IotProtos.ModeCombinedSetting.newBuilder()
-                            .setModeId(javaMode.getModeId());
-
-                    // --- A. DISCO ---
-                    if ("DISCO".equals(javaMode.getType()) && javaMode.getDisco() != null) {
-                        try {
-                            modeBuilder.setDiscoModeSettings(
-                                    IotProtos.DiscoModeSettings.newBuilder()
-                                            .setSpeed(javaMode.getDisco().getSpeed())
-                                            .setIntensity(javaMode.getDisco().getIntensity())
-                                            .setMode(IotProtos.DiscoModes.valueOf(javaMode.getDisco().getMode()))
-                                            .build()
-                            );
-                        } catch (Exception e) {
-                            modeBuilder.setDiscoModeSettings(IotProtos.DiscoModeSettings.newBuilder().setMode(IotProtos.DiscoModes.OFF).build());
-                        }
-                    }
-                    // --- B. HARMONOGRAM (SCHEDULE) ---
-                    else if ("SCHEDULE".equals(javaMode.getType()) && javaMode.getSchedule() != null) {
-                        IotProtos.DaylightModeSettings.Builder dayBuilder = IotProtos.DaylightModeSettings.newBuilder();
-
-                        for (var ent : javaMode.getSchedule().getEntries()) {
-                            IotProtos.ScheduleEntry.Builder entryBuilder = IotProtos.ScheduleEntry.newBuilder();
-
-                            // Trigger
-                            if ("HOUR".equals(ent.getTriggerType())) {
-                                entryBuilder.setHourSetting(IotProtos.HourSetting.newBuilder()
-                                        .setStartSecondPastMidnight((ent.getStartHour() != null ? ent.getStartHour() : 0) * 3600)
-                                        .setEndSecondPastMidnight((ent.getEndHour() != null ? ent.getEndHour() : 0) * 3600)
-                                        .setEndsNextDay(ent.getEndHour() != null && ent.getStartHour() != null && ent.getEndHour() < ent.getStartHour())
-                                        .setTransitionDurationSeconds((ent.getTransitionDurationSeconds() != null ? ent.getTransitionDurationSeconds() : 0))
-                                        .build());
-                            } else if ("BRIGHTNESS".equals(ent.getTriggerType())) {
-                                entryBuilder.setBrightnessSettings(IotProtos.BrightnessSettings.newBuilder()
-                                        .setMinBrightness(ent.getMinBrightness() != null ? ent.getMinBrightness() : 0)
-                                        .setMaxBrightness(ent.getMaxBrightness() != null ? ent.getMaxBrightness() : 100)
-                                        .setTransitionDurationSeconds(ent.getTransitionDurationSeconds() != null ? ent.getTransitionDurationSeconds() : 0)
-                                        .build());
-                            }
-
-                            IotProtos.LampState.Builder stateBuilder = IotProtos.LampState.newBuilder();
-
-                            if ("DIRECT".equals(ent.getActionType())) {
-                                stateBuilder.setDirectSettings(IotProtos.DirectSettings.newBuilder()
-                                        .setRed(ent.getRed() != null ? ent.getRed() : 0)
-                                        .setGreen(ent.getGreen() != null ? ent.getGreen() : 0)
-                                        .setBlue(ent.getBlue() != null ? ent.getBlue() : 0)
-                                        .setWarmWhite(ent.getWarmWhite() != null ? ent.getWarmWhite() : 0)
-                                        .setColdWhite(ent.getColdWhite() != null ? ent.getColdWhite() : 0)
-                                        .setNeutralWhite(ent.getNeutralWhite() != null ? ent.getNeutralWhite() : 0)
-                                        .build());
-                            } else if ("PHOTO_WHITE".equals(ent.getActionType())) {
-                                stateBuilder.setPhotoWhiteSetting(IotProtos.PhotoWhiteSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setTemperature(ent.getTemperature() != null ? ent.getTemperature() : 0)
-                                        .build());
-                            } else if ("PHOTO_COLOR".equals(ent.getActionType())) {
-                                stateBuilder.setPhotoColorSetting(IotProtos.PhotoColorSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setHue(ent.getHue() != null ? ent.getHue() : 0)
-                                        .setSaturation(ent.getSaturation() != null ? ent.getSaturation() : 0)
-                                        .build());
-                            }
-
-                            if (stateBuilder.hasDirectSettings() || stateBuilder.hasPhotoWhiteSetting() || stateBuilder.hasPhotoColorSetting()) {
-                                entryBuilder.setTargetState(stateBuilder.build());
-                                dayBuilder.addScheduleEntries(entryBuilder);
-                            }
-                        }
-                        modeBuilder.setDaylightModeSettings(dayBuilder);
-                    }
-                    // --- C. PRESET ---
-                    else if ("PRESET".equals(javaMode.getType()) && javaMode.getPresets() != null) {
-                        IotProtos.PresetModeSetting.Builder presetBuilder = IotProtos.PresetModeSetting.newBuilder();
-
-                        for (var ent : javaMode.getPresets().getEntries()) {
-                            IotProtos.LampState.Builder stateBuilder = IotProtos.LampState.newBuilder();
-
-                            if ("DIRECT".equals(ent.getType())) {
-                                stateBuilder.setDirectSettings(IotProtos.DirectSettings.newBuilder()
-                                        .setRed(ent.getRed() != null ? ent.getRed() : 0)
-                                        .setGreen(ent.getGreen() != null ? ent.getGreen() : 0)
-                                        .setBlue(ent.getBlue() != null ? ent.getBlue() : 0)
-                                        .setWarmWhite(ent.getWarmWhite() != null ? ent.getWarmWhite() : 0)
-                                        .setColdWhite(ent.getColdWhite() != null ? ent.getColdWhite() : 0)
-                                        .setNeutralWhite(ent.getNeutralWhite() != null ? ent.getNeutralWhite() : 0)
-                                        .build());
-                            } else if ("WHITE".equals(ent.getType())) {
-                                stateBuilder.setPhotoWhiteSetting(IotProtos.PhotoWhiteSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setTemperature(ent.getTemperature() != null ? ent.getTemperature() : 0)
-                                        .build());
-                            } else if ("COLOR".equals(ent.getType())) {
-                                stateBuilder.setPhotoColorSetting(IotProtos.PhotoColorSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setHue(ent.getHue() != null ? ent.getHue() : 0)
-                                        .setSaturation(ent.getSaturation() != null ? ent.getSaturation() : 0)
-                                        .build());
-                            }
-
-                            if (stateBuilder.hasDirectSettings() || stateBuilder.hasPhotoWhiteSetting() || stateBuilder.hasPhotoColorSetting()) {
-                                presetBuilder.addPresets(stateBuilder);
-                            }
-                        }
-                        modeBuilder.setPresetModeSetting(presetBuilder);
-                    }
-
-                    configBuilder.addModeSettings(modeBuilder);
-                }
-            } catch (Exception e) {
-                System.err.println("Błąd deserializacji JSON configu przy odczycie: " + e.getMessage());
-                e.printStackTrace();
-            }
-        }
-
-        return configBuilder.build();
-    }
-
-    public IotProtos.LampConfig getLampConfig(String lampId) {
-        Lamp lamp = getLampWithAuthCheck(lampId);
-
-        IotProtos.LampConfig.Builder configBuilder = IotProtos.LampConfig.newBuilder()
-                .setVersion(1);
-
-        // Internal
-        configBuilder.setInternalLampConfig(IotProtos.InternalLampConfig.newBuilder()
-                .setReportingIntervalSeconds(lamp.getReportInterval() != null ? lamp.getReportInterval() : 60)
-                .build());
-
-        // Modes z JSON -> Proto
-        if (lamp.getModesConfigJson() != null && !lamp.getModesConfigJson().isEmpty()) {
-            try {
-                List<LampModeConfig> modesList = objectMapper.readValue(
-                        lamp.getModesConfigJson(),
-                        new TypeReference<List<LampModeConfig>>(){});
-
-                for (LampModeConfig javaMode : modesList) {
-                    IotProtos.ModeCombinedSetting.Builder modeBuilder = IotProtos.ModeCombinedSetting.newBuilder()
-                            .setModeId(javaMode.getModeId());
-
-                    // DISCO
-                    if ("DISCO".equals(javaMode.getType()) && javaMode.getDisco() != null) {
-                        try {
-                            modeBuilder.setDiscoModeSettings(
-                                    IotProtos.DiscoModeSettings.newBuilder()
-                                            .setSpeed(javaMode.getDisco().getSpeed())
-                                            .setIntensity(javaMode.getDisco().getIntensity())
-                                            .setMode(IotProtos.DiscoModes.valueOf(javaMode.getDisco().getMode()))
-                                            .build()
-                            );
-                        } catch (IllegalArgumentException e) {
-                            modeBuilder.setDiscoModeSettings(IotProtos.DiscoModeSettings.newBuilder().setMode(IotProtos.DiscoModes.OFF).build());
-                        }
-                    }
-                    // SCHEDULE
-                    else if ("SCHEDULE".equals(javaMode.getType()) && javaMode.getSchedule() != null) {
-                        IotProtos.DaylightModeSettings.Builder dayBuilder = IotProtos.DaylightModeSettings.newBuilder();
-
-                        for (var ent : javaMode.getSchedule().getEntries()) {
-                            IotProtos.ScheduleEntry.Builder entryBuilder = IotProtos.ScheduleEntry.newBuilder();
-
-                            // Trigger
-                            if ("HOUR".equals(ent.getTriggerType())) {
-                                entryBuilder.setHourSetting(IotProtos.HourSetting.newBuilder()
-                                        .setStartSecondPastMidnight((ent.getStartHour() != null ? ent.getStartHour() : 0) * 3600)
-                                        .setEndSecondPastMidnight((ent.getEndHour() != null ? ent.getEndHour() : 0) * 3600)
-                                        .setTransitionDurationSeconds((ent.getTransitionDurationSeconds() != null ? ent.getTransitionDurationSeconds() : 0))
-                                        .build());
-                            } else if ("BRIGHTNESS".equals(ent.getTriggerType())) {
-                                entryBuilder.setBrightnessSettings(IotProtos.BrightnessSettings.newBuilder()
-                                        .setMinBrightness(ent.getMinBrightness() != null ? ent.getMinBrightness() : 0)
-                                        .setMaxBrightness(ent.getMaxBrightness() != null ? ent.getMaxBrightness() : 100)
-                                                .setTransitionDurationSeconds((ent.getTransitionDurationSeconds() != null ? ent.getTransitionDurationSeconds() : 0))
-                                        .build());
-                            }
-
-                            IotProtos.LampState.Builder stateBuilder = IotProtos.LampState.newBuilder();
-
-                            // Action
-                            if ("DIRECT".equals(ent.getActionType())) {
-                                stateBuilder.setDirectSettings(IotProtos.DirectSettings.newBuilder()
-                                        .setRed(ent.getRed() != null ? ent.getRed() : 0)
-                                        .setGreen(ent.getGreen() != null ? ent.getGreen() : 0)
-                                        .setBlue(ent.getBlue() != null ? ent.getBlue() : 0)
-                                        .setWarmWhite(ent.getWarmWhite() != null ? ent.getWarmWhite() : 0)
-                                        .setColdWhite(ent.getColdWhite() != null ? ent.getColdWhite() : 0)
-                                        .setNeutralWhite(ent.getNeutralWhite() != null ? ent.getNeutralWhite() : 0)
-                                        .build());
-                            } else if ("PHOTO_WHITE".equals(ent.getActionType())) {
-                                stateBuilder.setPhotoWhiteSetting(IotProtos.PhotoWhiteSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setTemperature(ent.getTemperature() != null ? ent.getTemperature() : 0)
-                                        .build());
-                            } else if ("PHOTO_COLOR".equals(ent.getActionType())) {
-                                stateBuilder.setPhotoColorSetting(IotProtos.PhotoColorSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setHue(ent.getHue() != null ? ent.getHue() : 0)
-                                        .setSaturation(ent.getSaturation() != null ? ent.getSaturation() : 0)
-                                        .build());
-                            }
-
-                            if (stateBuilder.hasDirectSettings() || stateBuilder.hasPhotoWhiteSetting() || stateBuilder.hasPhotoColorSetting()) {
-                                entryBuilder.setTargetState(stateBuilder.build());
-                                dayBuilder.addScheduleEntries(entryBuilder);
-                            }
-                        }
-                        modeBuilder.setDaylightModeSettings(dayBuilder);
-                    }
-                    // PRESET
-                    else if ("PRESET".equals(javaMode.getType()) && javaMode.getPresets() != null) {
-                        IotProtos.PresetModeSetting.Builder presetBuilder = IotProtos.PresetModeSetting.newBuilder();
-
-                        for (var ent : javaMode.getPresets().getEntries()) {
-                            IotProtos.LampState.Builder stateBuilder = IotProtos.LampState.newBuilder();
-
-                            if ("DIRECT".equals(ent.getType())) {
-                                stateBuilder.setDirectSettings(IotProtos.DirectSettings.newBuilder()
-                                        .setRed(ent.getRed() != null ? ent.getRed() : 0)
-                                        .setGreen(ent.getGreen() != null ? ent.getGreen() : 0)
-                                        .setBlue(ent.getBlue() != null ? ent.getBlue() : 0)
-                                        .setWarmWhite(ent.getWarmWhite() != null ? ent.getWarmWhite() : 0)
-                                        .setColdWhite(ent.getColdWhite() != null ? ent.getColdWhite() : 0)
-                                        .setNeutralWhite(ent.getNeutralWhite() != null ? ent.getNeutralWhite() : 0)
-                                        .build());
-                            } else if ("WHITE".equals(ent.getType())) {
-                                stateBuilder.setPhotoWhiteSetting(IotProtos.PhotoWhiteSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setTemperature(ent.getTemperature() != null ? ent.getTemperature() : 0)
-                                        .build());
-                            } else if ("COLOR".equals(ent.getType())) {
-                                stateBuilder.setPhotoColorSetting(IotProtos.PhotoColorSetting.newBuilder()
-                                        .setIntensity(ent.getIntensity() != null ? ent.getIntensity() : 0)
-                                        .setHue(ent.getHue() != null ? ent.getHue() : 0)
-                                        .setSaturation(ent.getSaturation() != null ? ent.getSaturation() : 0)
-                                        .build());
-                            }
-
-                            if (stateBuilder.hasDirectSettings() || stateBuilder.hasPhotoWhiteSetting() || stateBuilder.hasPhotoColorSetting()) {
-                                presetBuilder.addPresets(stateBuilder);
-                            }
-                        }
-                        modeBuilder.setPresetModeSetting(presetBuilder);
-                    }
-
-                    configBuilder.addModeSettings(modeBuilder);
-                }
-            } catch (Exception e) {
-                System.err.println("Błąd deserializacji JSON configu: " + e.getMessage());
-            }
-        }
-
-        return configBuilder.build();
+    /** Gotowy config z cache - bajty {@code LampConfig} bez ponownego budowania Protobufa. */
+    public LampConfigCache.CompiledConfig getLampConfig(String lampId) {
+        checkLampAccess(lampId);
+        return lampConfigCache.get(lampId);
     }
 
     // --- Status Report (Dane Telemetryczne) ---
@@ -711,15 +436,8 @@ public class LampService {
                             .setAmbientNoise(metric.getAmbientNoise() != null ? metric.getAmbientNoise() : 0)
                             .setFirmwareVersion(lamp.getFirmwareVersion() != null ? lamp.getFirmwareVersion() : "0");
 
-                    if (metric.getTemperatures() != null && !metric.getTemperatures().isEmpty()) {
-                        Arrays.stream(metric.getTemperatures().split(","))
-                                .map(String::trim)
-                                .filter(s -> !s.isEmpty())
-                                .map(s -> {
-                                    try { return (int) Double.parseDouble(s); } catch (NumberFormatException e) { return null; }
-                                })
-                                .filter(Objects::nonNull)
-                                .forEach(reportBuilder::addTemperatureReadings);
+                    for (Integer temperature : metric.resolveTemperatureReadings()) {
+                        reportBuilder.addTemperatureReadings(temperature);
                     }
 
                     IotProtos.DirectSettings.Builder directSettingsBuilder = IotProtos.DirectSettings.newBuilder();
@@ -770,23 +488,25 @@ public class LampService {
                 .orElse(IotProtos.StatusReport.newBuilder().setVersion(1).build());
     }
 
+    private void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    // Uprawnienia z indeksu - encję ładujemy dopiero, gdy dostęp jest dozwolony
     private Lamp getLampWithAuthCheck(String lampId) {
+        checkLampAccess(lampId);
         Lamp lamp = lampRepository.findById(lampId)
                 .orElseThrow(() -> new RuntimeException("Lampa nie istnieje: " + lampId));
+        return lampStateCache.overlay(lamp);
+    }
 
-        String currentUsername = SecurityContextHolder.getContext().getAuthentication().getName();
-
-        boolean isAdmin = "admin".equalsIgnoreCase(currentUsername);
-
-        log.info("AuthCheck: User='{}', IsAdmin={}, Owner='{}'",
-                currentUsername, isAdmin, lamp.getOwner() != null ? lamp.getOwner().getUsername() : "BRAK");
-
-        if (lamp.getOwner() != null && !lamp.getOwner().getUsername().equals(currentUsername) && !isAdmin) {
-            log.warn("⛔ Odmowa dostępu dla '{}' do lampy '{}'", currentUsername, lampId);
-            throw new org.springframework.security.access.AccessDeniedException("Nie masz uprawnień do sterowania tą lampą!");
-        }
-
-        return lamp;
+    private static String currentUsername() {
+        return SecurityContextHolder.getContext().getAuthentication().getName();
     }
 
     private String calculateSha256(String text) {
@@ -0,0 +1,505 @@
+package org.qualv13.iotbackend.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.entity.Lamp;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Pamięć podręczna stanu lamp (write-behind).
+ * <p>
+ * Kolumny stanu (online, kolory, sensory, flagi smart...) są własnością tej klasy:
+ * w encji {@link Lamp} mają {@code updatable = false}, więc JPA ich nie nadpisuje.
+ * Zmiany trafiają do pamięci, a flusher co {@code lamp-cache.flush-interval-ms}
+ * zapisuje tylko zmienione kolumny, grupując lampy z tym samym zestawem zmian w jeden batch UPDATE.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class LampStateCache {
+
+    private static final String SELECT_COLUMNS = """
+            SELECT id, is_online, is_on, brightness, color, report_interval,
+                   red, green, blue, cold_white, neutral_white, warm_white,
+                   last_ambient_light, last_ambient_noise, firmware_version, active_mode_id,
+                   photo_white_intensity, photo_white_temp,
+                   photo_color_intensity, photo_color_hue, photo_color_saturation,
+                   is_circadian_enabled, is_adaptive_brightness_enabled
+            FROM lamps
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, LampState> states = new ConcurrentHashMap<>();
+    private final Set<String> dirtyLamps = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, String> updateSqlByMask = new ConcurrentHashMap<>();
+    // Flush i zbiorcze UPDATE floty nie mogą się przeplatać (starszy snapshot nadpisałby nowszą wartość)
+    private final Object flushLock = new Object();
+    // Powiadamiani o przejściu lampy w stan online (poza blokadą wpisu) - np. termin wykrywania offline
+    private final List<Consumer<String>> onlineListeners = new CopyOnWriteArrayList<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void preload() {
+        List<LampState> loaded = jdbcTemplate.query(SELECT_COLUMNS, (rs, i) -> LampState.fromRow(rs));
+        loaded.forEach(state -> states.putIfAbsent(state.id, state));
+        log.info("LampStateCache: załadowano stan {} lamp", loaded.size());
+    }
+
+    /**
+     * Rejestruje słuchacza przejść offline -> online: przez {@link #update}, {@link #updateFleet}
+     * i doładowanie nowej lampy, która w bazie jest już online (np. świeżo dodany wiersz).
+     */
+    public void onWentOnline(Consumer<String> listener) {
+        onlineListeners.add(listener);
+    }
+
+    /** Zwraca stan lampy (doładowuje z bazy przy pierwszym dostępie) albo null, gdy lampa nie istnieje. */
+    public LampState get(String lampId) {
+        LampState state = states.get(lampId);
+        if (state != null) return state;
+
+        List<LampState> rows = jdbcTemplate.query(SELECT_COLUMNS + " WHERE id = ?",
+                (rs, i) -> LampState.fromRow(rs), lampId);
+        if (rows.isEmpty()) return null;
+        LampState existing = states.putIfAbsent(lampId, rows.get(0));
+        if (existing != null) return existing;
+        if (rows.get(0).online) wentOnline(lampId);
+        return rows.get(0);
+    }
+
+    public boolean exists(String lampId) {
+        return get(lampId) != null;
+    }
+
+    /**
+     * Modyfikuje stan lampy pod blokadą jej wpisu. Zmienione kolumny zostaną zapisane przez flusher.
+     * @return false, gdy lampa nie istnieje
+     */
+    public boolean update(String lampId, Consumer<LampState> mutation) {
+        LampState state = get(lampId);
+        if (state == null) return false;
+        boolean wentOnline;
+        synchronized (state) {
+            boolean wasOnline = state.online;
+            mutation.accept(state);
+            if (state.dirtyMask != 0) {
+                dirtyLamps.add(lampId);
+            }
+            wentOnline = !wasOnline && state.online;
+        }
+        if (wentOnline) wentOnline(lampId);
+        return true;
+    }
+
+    /**
+     * Ta sama zmiana dla wszystkich lamp floty: stan w pamięci pod blokadą każdej lampy,
+     * a w bazie jedno {@code UPDATE lamps SET ... WHERE fleet_id = ?} zamiast zapisu lampa po lampie.
+     * Zmiana musi ustawiać stałe wartości (np. z komendy), bo do UPDATE bierzemy je z dowolnej zmienionej lampy.
+     * @return liczba zaktualizowanych wierszy
+     */
+    public int updateFleet(long fleetId, Collection<String> lampIds, Consumer<LampState> mutation) {
+        List<String> wentOnline = new ArrayList<>();
+        try {
+            return updateFleet(fleetId, lampIds, mutation, wentOnline);
+        } finally {
+            wentOnline.forEach(this::wentOnline);
+        }
+    }
+
+    private int updateFleet(long fleetId, Collection<String> lampIds, Consumer<LampState> mutation,
+                            List<String> wentOnline) {
+        synchronized (flushLock) {
+            int fleetMask = 0;
+            for (String lampId : lampIds) {
+                LampState state = get(lampId);
+                if (state == null) continue;
+                synchronized (state) {
+                    boolean wasOnline = state.online;
+                    int before = state.dirtyMask;
+                    state.dirtyMask = 0;
+                    mutation.accept(state);
+                    int changed = state.dirtyMask;
+                    fleetMask |= changed;
+                    // Kolumny ze zmiany zapisze UPDATE floty, flusherowi zostają tylko wcześniejsze
+                    state.dirtyMask = before & ~changed;
+                    if (state.dirtyMask == 0) dirtyLamps.remove(lampId);
+                    if (!wasOnline && state.online) wentOnline.add(lampId);
+                }
+            }
+            if (fleetMask == 0) return 0;
+
+            // Po zmianie wszystkie lampy mają te same wartości tych kolumn - bierzemy je z pierwszej
+            LampState first = firstState(lampIds);
+            Object[] args;
+            synchronized (first) {
+                args = first.snapshot(fleetMask);
+            }
+            args[args.length - 1] = fleetId;
+            int[] types = new int[args.length];
+            int idx = 0;
+            for (Column column : Column.VALUES) {
+                if ((fleetMask & column.bit) != 0) types[idx++] = column.sqlType;
+            }
+            types[idx] = Types.BIGINT;
+            try {
+                return jdbcTemplate.update(updateSql(fleetMask).replace("WHERE id = ?", "WHERE fleet_id = ?"), args, types);
+            } catch (RuntimeException e) {
+                // Stan w pamięci już jest nowy - zapisze go flusher lampa po lampie
+                for (String lampId : lampIds) remarkDirty(lampId, fleetMask);
+                throw e;
+            }
+        }
+    }
+
+    private void wentOnline(String lampId) {
+        for (Consumer<String> listener : onlineListeners) {
+            try {
+                listener.accept(lampId);
+            } catch (RuntimeException e) {
+                log.warn("Błąd obsługi przejścia lampy {} w stan online: {}", lampId, e.getMessage());
+            }
+        }
+    }
+
+    private LampState firstState(Collection<String> lampIds) {
+        for (String lampId : lampIds) {
+            LampState state = get(lampId);
+            if (state != null) return state;
+        }
+        throw new IllegalStateException("Brak lamp we flocie");
+    }
+
+    /** Nadpisuje kolumny stanu w encji aktualnymi wartościami z pamięci. */
+    public Lamp overlay(Lamp lamp) {
+        if (lamp == null || lamp.getId() == null) return lamp;
+        LampState state = get(lamp.getId());
+        if (state != null) {
+            synchronized (state) {
+                state.copyTo(lamp);
+            }
+        }
+        return lamp;
+    }
+
+    public List<Lamp> overlayAll(List<Lamp> lamps) {
+        if (lamps != null) lamps.forEach(this::overlay);
+        return lamps;
+    }
+
+    public void evict(String lampId) {
+        states.remove(lampId);
+        dirtyLamps.remove(lampId);
+    }
+
+    public Collection<LampState> all() {
+        return Collections.unmodifiableCollection(states.values());
+    }
+
+    @Scheduled(fixedDelayString = "${lamp-cache.flush-interval-ms:2000}")
+    public void flush() {
+        if (dirtyLamps.isEmpty()) return;
+        synchronized (flushLock) {
+            flushDirty();
+        }
+    }
+
+    private void flushDirty() {
+
+        // maska zmienionych kolumn -> wiersze (wartości kolumn + id na końcu)
+        Map<Integer, List<Object[]>> batches = new HashMap<>();
+        for (Iterator<String> it = dirtyLamps.iterator(); it.hasNext(); ) {
+            String lampId = it.next();
+            it.remove();
+            LampState state = states.get(lampId);
+            if (state == null) continue;
+            synchronized (state) {
+                int mask = state.dirtyMask;
+                if (mask == 0) continue;
+                batches.computeIfAbsent(mask, m -> new ArrayList<>()).add(state.snapshot(mask));
+                state.dirtyMask = 0;
+            }
+        }
+
+        batches.forEach((mask, rows) -> {
+            try {
+                jdbcTemplate.batchUpdate(updateSql(mask), rows, rows.size(), (ps, row) -> {
+                    int idx = 1;
+                    for (Column column : Column.VALUES) {
+                        if ((mask & column.bit) == 0) continue;
+                        Object value = row[idx - 1];
+                        if (value == null) ps.setNull(idx, column.sqlType);
+                        else ps.setObject(idx, value, column.sqlType);
+                        idx++;
+                    }
+                    ps.setString(idx, (String) row[row.length - 1]);
+                });
+            } catch (Exception e) {
+                log.error("LampStateCache: błąd zapisu {} lamp, ponowię w kolejnym cyklu: {}", rows.size(), e.getMessage());
+                rows.forEach(row -> remarkDirty((String) row[row.length - 1], mask));
+            }
+        });
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flush();
+    }
+
+    private void remarkDirty(String lampId, int mask) {
+        LampState state = states.get(lampId);
+        if (state == null) return;
+        synchronized (state) {
+            state.dirtyMask |= mask;
+        }
+        dirtyLamps.add(lampId);
+    }
+
+    private String updateSql(int mask) {
+        return updateSqlByMask.computeIfAbsent(mask, m -> {
+            StringJoiner set = new StringJoiner(", ", "UPDATE lamps SET ", " WHERE id = ?");
+            for (Column column : Column.VALUES) {
+                if ((m & column.bit) != 0) set.add(column.name + " = ?");
+            }
+            return set.toString();
+        });
+    }
+
+    // --- Kolumny należące do cache ---
+
+    enum Column {
+        ONLINE("is_online", Types.BOOLEAN),
+        ON("is_on", Types.BOOLEAN),
+        BRIGHTNESS("brightness", Types.INTEGER),
+        COLOR("color", Types.VARCHAR),
+        REPORT_INTERVAL("report_interval", Types.INTEGER),
+        RED("red", Types.INTEGER),
+        GREEN("green", Types.INTEGER),
+        BLUE("blue", Types.INTEGER),
+        COLD_WHITE("cold_white", Types.INTEGER),
+        NEUTRAL_WHITE("neutral_white", Types.INTEGER),
+        WARM_WHITE("warm_white", Types.INTEGER),
+        AMBIENT_LIGHT("last_ambient_light", Types.INTEGER),
+        AMBIENT_NOISE("last_ambient_noise", Types.INTEGER),
+        FIRMWARE_VERSION("firmware_version", Types.VARCHAR),
+        ACTIVE_MODE_ID("active_mode_id", Types.INTEGER),
+        PHOTO_WHITE_INTENSITY("photo_white_intensity", Types.INTEGER),
+        PHOTO_WHITE_TEMP("photo_white_temp", Types.INTEGER),
+        PHOTO_COLOR_INTENSITY("photo_color_intensity", Types.INTEGER),
+        PHOTO_COLOR_HUE("photo_color_hue", Types.INTEGER),
+        PHOTO_COLOR_SATURATION("photo_color_saturation", Types.INTEGER),
+        CIRCADIAN_ENABLED("is_circadian_enabled", Types.BOOLEAN),
+        ADAPTIVE_BRIGHTNESS_ENABLED("is_adaptive_brightness_enabled", Types.BOOLEAN);
+
+        static final Column[] VALUES = values();
+
+        final String name;
+        final int sqlType;
+        final int bit = 1 << ordinal();
+
+        Column(String name, int sqlType) {
+            this.name = name;
+            this.sqlType = sqlType;
+        }
+    }
+
+    /**
+     * Stan jednej lampy. Settery oznaczają kolumnę jako zmienioną tylko wtedy, gdy wartość faktycznie się zmieniła.
+     * Dostęp wyłącznie przez {@link #update} / {@link #overlay} (blokada na obiekcie).
+     */
+    public static final class LampState {
+        private final String id;
+        private int dirtyMask;
+
+        private boolean online;
+        private boolean on;
+        private Integer brightness;
+        private String color;
+        private Integer reportInterval;
+        private Integer red;
+        private Integer green;
+        private Integer blue;
+        private Integer coldWhite;
+        private Integer neutralWhite;
+        private Integer warmWhite;
+        private Integer lastAmbientLight;
+        private Integer lastAmbientNoise;
+        private String firmwareVersion;
+        private Integer activeModeId;
+        private Integer photoWhiteIntensity;
+        private Integer photoWhiteTemp;
+        private Integer photoColorIntensity;
+        private Integer photoColorHue;
+        private Integer photoColorSaturation;
+        private boolean circadianEnabled;
+        private boolean adaptiveBrightnessEnabled;
+
+        private LampState(String id) {
+            this.id = id;
+        }
+
+        static LampState fromRow(ResultSet rs) throws SQLException {
+            LampState s = new LampState(rs.getString("id"));
+            s.online = rs.getBoolean("is_online");
+            s.on = rs.getBoolean("is_on");
+            s.brightness = rs.getObject("brightness", Integer.class);
+            s.color = rs.getString("color");
+            s.reportInterval = rs.getObject("report_interval", Integer.class);
+            s.red = rs.getObject("red", Integer.class);
+            s.green = rs.getObject("green", Integer.class);
+            s.blue = rs.getObject("blue", Integer.class);
+            s.coldWhite = rs.getObject("cold_white", Integer.class);
+            s.neutralWhite = rs.getObject("neutral_white", Integer.class);
+            s.warmWhite = rs.getObject("warm_white", Integer.class);
+            s.lastAmbientLight = rs.getObject("last_ambient_light", Integer.class);
+            s.lastAmbientNoise = rs.getObject("last_ambient_noise", Integer.class);
+            s.firmwareVersion = rs.getString("firmware_version");
+            s.activeModeId = rs.getObject("active_mode_id", Integer.class);
+            s.photoWhiteIntensity = rs.getObject("photo_white_intensity", Integer.class);
+            s.photoWhiteTemp = rs.getObject("photo_white_temp", Integer.class);
+            s.photoColorIntensity = rs.getObject("photo_color_intensity", Integer.class);
+            s.photoColorHue = rs.getObject("photo_color_hue", Integer.class);
+            s.photoColorSaturation = rs.getObject("photo_color_saturation", Integer.class);
+            s.circadianEnabled = rs.getBoolean("is_circadian_enabled");
+            s.adaptiveBrightnessEnabled = rs.getBoolean("is_adaptive_brightness_enabled");
+            return s;
+        }
+
+        void copyTo(Lamp lamp) {
+            lamp.setOnline(online);
+            lamp.setOn(on);
+            lamp.setBrightness(brightness);
+            lamp.setColor(color);
+            lamp.setReportInterval(reportInterval);
+            lamp.setRed(red);
+            lamp.setGreen(green);
+            lamp.setBlue(blue);
+            lamp.setColdWhite(coldWhite);
+            lamp.setNeutralWhite(neutralWhite);
+            lamp.setWarmWhite(warmWhite);
+            lamp.setLastAmbientLight(lastAmbientLight);
+            lamp.setLastAmbientNoise(lastAmbientNoise);
+            lamp.setFirmwareVersion(firmwareVersion);
+            lamp.setActiveModeId(activeModeId);
+            lamp.setPhotoWhiteIntensity(photoWhiteIntensity);
+            lamp.setPhotoWhiteTemp(photoWhiteTemp);
+            lamp.setPhotoColorIntensity(photoColorIntensity);
+            lamp.setPhotoColorHue(photoColorHue);
+            lamp.setPhotoColorSaturation(photoColorSaturation);
+            lamp.setCircadianEnabled(circadianEnabled);
+            lamp.setAdaptiveBrightnessEnabled(adaptiveBrightnessEnabled);
+        }
+
+        /** Wartości kolumn z maski (w kolejności {@link Column}) + id lampy jako ostatni element. */
+        Object[] snapshot(int mask) {
+            Object[] row = new Object[Integer.bitCount(mask) + 1];
+            int idx = 0;
+            for (Column column : Column.VALUES) {
+                if ((mask & column.bit) != 0) row[idx++] = valueOf(column);
+            }
+            row[idx] = id;
+            return row;
+        }
+
+        private Object valueOf(Column column) {
+            return switch (column) {
+                case ONLINE -> online;
+                case ON -> on;
+                case BRIGHTNESS -> brightness;
+                case COLOR -> color;
+                case REPORT_INTERVAL -> reportInterval;
+                case RED -> red;
+                case GREEN -> green;
+                case BLUE -> blue;
+                case COLD_WHITE -> coldWhite;
+                case NEUTRAL_WHITE -> neutralWhite;
+                case WARM_WHITE -> warmWhite;
+                case AMBIENT_LIGHT -> lastAmbientLight;
+                case AMBIENT_NOISE -> lastAmbientNoise;
+                case FIRMWARE_VERSION -> firmwareVersion;
+                case ACTIVE_MODE_ID -> activeModeId;
+                case PHOTO_WHITE_INTENSITY -> photoWhiteIntensity;
+                case PHOTO_WHITE_TEMP -> photoWhiteTemp;
+                case PHOTO_COLOR_INTENSITY -> photoColorIntensity;
+                case PHOTO_COLOR_HUE -> photoColorHue;
+                case PHOTO_COLOR_SATURATION -> photoColorSaturation;
+                case CIRCADIAN_ENABLED -> circadianEnabled;
+                case ADAPTIVE_BRIGHTNESS_ENABLED -> adaptiveBrightnessEnabled;
+            };
+        }
+
+        private void mark(Column column) {
+            dirtyMask |= column.bit;
+        }
+
+        /** Wartości domyślne po zmianie właściciela lampy (jak nowa encja {@link Lamp}). */
+        public void resetToDefaults() {
+            setBrightness(50);
+            setColor("#ffffff");
+            setReportInterval(60);
+            setRed(0); setGreen(0); setBlue(0);
+            setColdWhite(0); setWarmWhite(0); setNeutralWhite(0);
+            setLastAmbientLight(null); setLastAmbientNoise(null);
+            setPhotoColorHue(0); setPhotoColorSaturation(0); setPhotoColorIntensity(0);
+            setPhotoWhiteTemp(0); setPhotoWhiteIntensity(0);
+            setActiveModeId(null);
+        }
+
+        public String getId() { return id; }
+        public boolean isOnline() { return online; }
+        public boolean isOn() { return on; }
+        public Integer getBrightness() { return brightness; }
+        public String getColor() { return color; }
+        public Integer getReportInterval() { return reportInterval; }
+        public Integer getRed() { return red; }
+        public Integer getGreen() { return green; }
+        public Integer getBlue() { return blue; }
+        public Integer getColdWhite() { return coldWhite; }
+        public Integer getNeutralWhite() { return neutralWhite; }
+        public Integer getWarmWhite() { return warmWhite; }
+        public Integer getLastAmbientLight() { return lastAmbientLight; }
+        public Integer getLastAmbientNoise() { return lastAmbientNoise; }
+        public String getFirmwareVersion() { return firmwareVersion; }
+        public Integer getActiveModeId() { return activeModeId; }
+        public boolean isCircadianEnabled() { return circadianEnabled; }
+        public boolean isAdaptiveBrightnessEnabled() { return adaptiveBrightnessEnabled; }
+
+        public void setOnline(boolean v) { if (online != v) { online = v; mark(Column.ONLINE); } }
+        public void setOn(boolean v) { if (on != v) { on = v; mark(Column.ON); } }
+        public void setBrightness(Integer v) { if (!Objects.equals(brightness, v)) { brightness = v; mark(Column.BRIGHTNESS); } }
+        public void setColor(String v) { if (!Objects.equals(color, v)) { color = v; mark(Column.COLOR); } }
+        public void setReportInterval(Integer v) { if (!Objects.equals(reportInterval, v)) { reportInterval = v; mark(Column.REPORT_INTERVAL); } }
+        public void setRed(Integer v) { if (!Objects.equals(red, v)) { red = v; mark(Column.RED); } }
+        public void setGreen(Integer v) { if (!Objects.equals(green, v)) { green = v; mark(Column.GREEN); } }
+        public void setBlue(Integer v) { if (!Objects.equals(blue, v)) { blue = v; mark(Column.BLUE); } }
+        public void setColdWhite(Integer v) { if (!Objects.equals(coldWhite, v)) { coldWhite = v; mark(Column.COLD_WHITE); } }
+        public void setNeutralWhite(Integer v) { if (!Objects.equals(neutralWhite, v)) { neutralWhite = v; mark(Column.NEUTRAL_WHITE); } }
+        public void setWarmWhite(Integer v) { if (!Objects.equals(warmWhite, v)) { warmWhite = v; mark(Column.WARM_WHITE); } }
+        public void setLastAmbientLight(Integer v) { if (!Objects.equals(lastAmbientLight, v)) { lastAmbientLight = v; mark(Column.AMBIENT_LIGHT); } }
+        public void setLastAmbientNoise(Integer v) { if (!Objects.equals(lastAmbientNoise, v)) { lastAmbientNoise = v; mark(Column.AMBIENT_NOISE); } }
+        public void setFirmwareVersion(String v) { if (!Objects.equals(firmwareVersion, v)) { firmwareVersion = v; mark(Column.FIRMWARE_VERSION); } }
+        public void setActiveModeId(Integer v) { if (!Objects.equals(activeModeId, v)) { activeModeId = v; mark(Column.ACTIVE_MODE_ID); } }
+        public void setPhotoWhiteIntensity(Integer v) { if (!Objects.equals(photoWhiteIntensity, v)) { photoWhiteIntensity = v; mark(Column.PHOTO_WHITE_INTENSITY); } }
+        public void setPhotoWhiteTemp(Integer v) { if (!Objects.equals(photoWhiteTemp, v)) { photoWhiteTemp = v; mark(Column.PHOTO_WHITE_TEMP); } }
+        public void setPhotoColorIntensity(Integer v) { if (!Objects.equals(photoColorIntensity, v)) { photoColorIntensity = v; mark(Column.PHOTO_COLOR_INTENSITY); } }
+        public void setPhotoColorHue(Integer v) { if (!Objects.equals(photoColorHue, v)) { photoColorHue = v; mark(Column.PHOTO_COLOR_HUE); } }
+        public void setPhotoColorSaturation(Integer v) { if (!Objects.equals(photoColorSaturation, v)) { photoColorSaturation = v; mark(Column.PHOTO_COLOR_SATURATION); } }
+        public void setCircadianEnabled(boolean v) { if (circadianEnabled != v) { circadianEnabled = v; mark(Column.CIRCADIAN_ENABLED); } }
+        public void setAdaptiveBrightnessEnabled(boolean v) { if (adaptiveBrightnessEnabled != v) { adaptiveBrightnessEnabled = v; mark(Column.ADAPTIVE_BRIGHTNESS_ENABLED); } }
+    }
+}
@@ -0,0 +1,81 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.entity.LampMetric;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ostatni raport każdej lampy (czas + migawka metryk) w pamięci.
+ * Zastępuje zapytania findFirstByLampIdOrderByTimestampDesc przy sprawdzaniu, czy lampa żyje.
+ * Odbudowywany przy starcie jednym zapytaniem grupującym, potem aktualizowany przez ingest.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class LastSeenRegistry {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, LastSeen> lastSeen = new ConcurrentHashMap<>();
+
+    public record LastSeen(LocalDateTime reportedAt, Integer primaryTemperature,
+                           int uptimeSeconds, int ambientLight, int ambientNoise) {}
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public void rebuild() {
+        List<Map.Entry<String, LastSeen>> rows = jdbcTemplate.query("""
+                SELECT m.lamp_id, m.timestamp, m.uptime_seconds, m.ambient_light, m.ambient_noise,
+                       %s AS temp
+                FROM lamp_metrics m
+                JOIN (SELECT lamp_id, MAX(timestamp) AS last_ts
+                      FROM lamp_metrics
+                      GROUP BY lamp_id) last ON last.lamp_id = m.lamp_id AND last.last_ts = m.timestamp
+                """.formatted(TemperatureMigration.primaryTemperature("m.")), (rs, i) -> Map.entry(rs.getString("lamp_id"), new LastSeen(
+                rs.getTimestamp("timestamp").toLocalDateTime(),
+                (Integer) rs.getObject("temp"),
+                rs.getInt("uptime_seconds"),
+                rs.getInt("ambient_light"),
+                rs.getInt("ambient_noise"))));
+
+        rows.forEach(row -> record(row.getKey(), row.getValue()));
+        log.info("LastSeenRegistry: odbudowano ostatnie raporty {} lamp", lastSeen.size());
+    }
+
+    public LastSeen get(String lampId) {
+        return lastSeen.get(lampId);
+    }
+
+    /** Wołane po commicie paczki ingestu. */
+    public void recordAll(List<LampMetric> metrics) {
+        for (LampMetric metric : metrics) {
+            record(metric.getLampId(), new LastSeen(
+                    metric.getTimestamp(),
+                    metric.getPrimaryTemperature(),
+                    metric.getUptimeSeconds() != null ? metric.getUptimeSeconds() : 0,
+                    metric.getAmbientLight() != null ? metric.getAmbientLight() : 0,
+                    metric.getAmbientNoise() != null ? metric.getAmbientNoise() : 0));
+        }
+    }
+
+    public void evict(String lampId) {
+        lastSeen.remove(lampId);
+    }
+
+    // Zostawiamy nowszy wpis - odbudowa przy starcie może się przeplatać z ingestem
+    private void record(String lampId, LastSeen seen) {
+        lastSeen.merge(lampId, seen, (old, incoming) ->
+                incoming.reportedAt().isBefore(old.reportedAt()) ? old : incoming);
+    }
+}
@@ -3,8 +3,6 @@ package org.qualv13.iotbackend.service;
 import com.iot.backend.proto.IotProtos;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.integration.mqtt.outbound.MqttPahoMessageHandler;
-import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -14,13 +12,12 @@ import java.util.List;
 @RequiredArgsConstructor
 public class MqttService {
 
-    private final MqttPahoMessageHandler mqttOutbound;
+    private final OutboundPublisher outboundPublisher;
+    private final CommandAckTracker commandAckTracker;
 
+    // Tylko kolejkuje - publikacja i potwierdzenie brokera idą w tle (OutboundPublisher)
     private void sendBytes(String topic, byte[] payload) {
-        mqttOutbound.handleMessage(MessageBuilder.withPayload(payload)
-                .setHeader("mqtt_topic", topic)
-                .setHeader("mqtt_qos", 1)
-                .build());
+        outboundPublisher.submit(topic, payload, 1);
     }
 
     // ==========================================
@@ -35,12 +32,31 @@ public class MqttService {
         sendBytes("lamps/" + lampId + "/config", config.toByteArray());
     }
 
+    /** Jak wyżej, dla gotowych bajtów {@code LampConfig} - pełnego albo delty (z {@link ConfigSyncTracker}). */
+    public void sendConfigToLamp(String lampId, byte[] config) {
+        sendBytes("lamps/" + lampId + "/config", config);
+    }
+
     /**
      * Wysyła komendę (np. zmiana koloru, reboot) do pojedynczej lampy.
      * Temat: lamps/{lampId}/command
+     * Komenda dostaje correlation_id - komendy stanu bez potwierdzenia są ponawiane (CommandAckTracker).
      */
     public void sendCommandToLamp(String lampId, IotProtos.LampCommand command) {
-        sendBytes("lamps/" + lampId + "/command", command.toByteArray());
+        sendCommandToLamp(lampId, command, true);
+    }
+
+    /**
+     * @param mayBlock false - przy pełnej kolejce wysyłki od razu 503 zamiast czekania na miejsce
+     */
+    public void sendCommandToLamp(String lampId, IotProtos.LampCommand command, boolean mayBlock) {
+        IotProtos.LampCommand tracked = commandAckTracker.track(lampId, command);
+        try {
+            outboundPublisher.submit("lamps/" + lampId + "/command", tracked.toByteArray(), 1, mayBlock);
+        } catch (RuntimeException e) {
+            commandAckTracker.discard(tracked.getCorrelationId());
+            throw e;
+        }
     }
 
     public void sendRegistrationToken(String lampId, String token) {
@@ -88,23 +104,48 @@ public class MqttService {
         log.info("MqttService: Potwierdzono alerty {} dla lampy {}", alertIds, lampId);
     }
 
-//    // ==========================================
-//    //                  FLOTY
-//    // ==========================================
-//
-//    /**
-//     * Wysyła konfigurację do całej floty.
-//     * Lampy muszą subskrybować temat: fleets/{fleetId}/config
-//     */
-//    public void sendConfigToFleet(Long fleetId, IotProtos.LampConfig config) {
-//        sendBytes("fleets/" + fleetId + "/config", config.toByteArray());
-//    }
-//
-//    /**
-//     * Wysyła komendę do całej floty.
-//     * Lampy muszą subskrybować temat: fleets/{fleetId}/command
-//     */
-//    public void sendCommandToFleet(Long fleetId, IotProtos.LampCommand command) {
-//        sendBytes("fleets/" + fleetId + "/command", command.toByteArray());
-//    }
-}
\ No newline at end of file
+    // ==========================================
+    //                  FLOTY
+    // ==========================================
+
+    /**
+     * Wysyła konfigurację do całej floty jednym publishem.
+     * Lampy subskrybują temat: fleets/{fleetId}/config
+     */
+    public void sendConfigToFleet(Long fleetId, IotProtos.LampConfig config) {
+        sendBytes("fleets/" + fleetId + "/config", config.toByteArray());
+    }
+
+    /**
+     * Wysyła komendę do całej floty jednym publishem.
+     * Lampy subskrybują temat: fleets/{fleetId}/command
+     */
+    public void sendCommandToFleet(Long fleetId, IotProtos.LampCommand command) {
+        sendBytes("fleets/" + fleetId + "/command", command.toByteArray());
+    }
+
+    /**
+     * Informuje lampę o przynależności do floty - lampa przepina subskrypcje na fleets/{fleetId}/#.
+     * fleetId = null: lampa nie należy do żadnej floty.
+     */
+    public void sendFleetMembership(String lampId, Long fleetId) {
+        sendCommandToLamp(lampId, fleetMembershipCommand(fleetId));
+        log.info("MqttService: Lampa {} -> flota {}", lampId, fleetId);
+    }
+
+    /** Rozwiązanie floty: jeden publish na temat floty - wszyscy członkowie odpinają subskrypcje. */
+    public void sendFleetDisbanded(Long fleetId) {
+        sendCommandToFleet(fleetId, fleetMembershipCommand(null));
+        log.info("MqttService: Flota {} rozwiązana", fleetId);
+    }
+
+    private IotProtos.LampCommand fleetMembershipCommand(Long fleetId) {
+        return IotProtos.LampCommand.newBuilder()
+                .setVersion(1)
+                .setTs(System.currentTimeMillis() / 1000)
+                .setSetFleetCommand(IotProtos.SetFleetCommand.newBuilder()
+                        .setFleetId(fleetId != null ? fleetId : 0)
+                        .build())
+                .build();
+    }
+}
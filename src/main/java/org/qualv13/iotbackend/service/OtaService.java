@@ -31,6 +31,7 @@ public class OtaService {
     private final FirmwareRepository firmwareRepository;
     private final LampRepository lampRepository;
     private final MqttService mqttService;
+    private final LampStateCache lampStateCache;
 
     @Value("${cloudflare.r2.bucket}")
     private String bucket;
@@ -102,7 +103,7 @@ public class OtaService {
 
     // --- USER: Sprawdzenie dostępności ---
     public OtaCheckResponse checkForUpdate(String lampId) {
-        Lamp lamp = lampRepository.findById(lampId).orElseThrow();
+        Lamp lamp = lampStateCache.overlay(lampRepository.findById(lampId).orElseThrow());
         String currentVer = lamp.getFirmwareVersion();
 
         Optional<FirmwareRelease> latestOpt = firmwareRepository.findTopByIsPublishedTrueOrderByCreatedAtDesc();
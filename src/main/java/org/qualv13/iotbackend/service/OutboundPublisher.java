@@ -0,0 +1,209 @@
+package org.qualv13.iotbackend.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Asynchroniczna wysyłka do brokera.
+ * <p>
+ * {@link #submit} tylko wkłada wiadomość do ograniczonej kolejki - wątek REST nie czeka na brokera.
+ * Jeden wątek wysyłający zdejmuje paczki po {@code batch-size} i publikuje je, dopóki pozwala okno
+ * {@code max-inflight} niepotwierdzonych wiadomości. Potwierdzenia z transportu zwalniają okno
+ * i zasilają metryki opóźnień / błędów. Przy pełnej kolejce decyduje {@code overflow-policy}.
+ */
+@Slf4j
+@Component
+public class OutboundPublisher {
+
+    public enum OverflowPolicy { BLOCK, DROP_OLDEST, REJECT }
+
+    private record OutboundMessage(String topic, byte[] payload, int qos, long enqueuedNanos) {}
+
+    private final OutboundTransport transport;
+    private final BlockingQueue<OutboundMessage> queue;
+    private final Semaphore inFlight;
+    private final int window;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    @Value("${mqtt.outbound.batch-size:100}")
+    private int batchSize;
+
+    @Value("${mqtt.outbound.block-timeout-ms:1000}")
+    private long blockTimeoutMillis;
+
+    @Value("${mqtt.outbound.reconnect-wait-ms:1000}")
+    private long reconnectWaitMillis;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalLatencyMicros = new LongAdder();
+    private final LongAdder totalQueueWaitMicros = new LongAdder();
+    private final AtomicLong maxLatencyMicros = new AtomicLong();
+
+    public OutboundPublisher(OutboundTransport transport,
+                             @Value("${mqtt.outbound.queue-capacity:10000}") int queueCapacity,
+                             @Value("${mqtt.outbound.max-inflight:100}") int maxInFlight,
+                             @Value("${mqtt.outbound.overflow-policy:block}") String overflowPolicy) {
+        this.transport = transport;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.window = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase().replace('-', '_'));
+
+        this.sender = new Thread(this::sendLoop, "outbound-" + transport.name());
+        this.sender.setDaemon(true);
+        log.info("Outbound: transport {}, kolejka {}, okno {}, przepełnienie {}",
+                transport.name(), queueCapacity, maxInFlight, this.overflowPolicy);
+    }
+
+    @PostConstruct
+    public void start() {
+        sender.start();
+    }
+
+    /**
+     * Wkłada wiadomość do kolejki wysyłki.
+     * @throws ResponseStatusException 503, gdy kolejka jest pełna (REJECT, albo BLOCK po przekroczeniu czasu)
+     */
+    public void submit(String topic, byte[] payload, int qos) {
+        submit(topic, payload, qos, true);
+    }
+
+    /**
+     * Jak {@link #submit(String, byte[], int)}, ale przy {@code mayBlock = false} polityka BLOCK
+     * nie czeka na miejsce w kolejce - dla wątków, których nie wolno wstrzymać (np. timery).
+     */
+    public void submit(String topic, byte[] payload, int qos, boolean mayBlock) {
+        OutboundMessage message = new OutboundMessage(topic, payload, qos, System.nanoTime());
+        boolean accepted = switch (overflowPolicy) {
+            case REJECT -> queue.offer(message);
+            case BLOCK -> mayBlock ? offerBlocking(message) : queue.offer(message);
+            case DROP_OLDEST -> {
+                while (!queue.offer(message)) {
+                    OutboundMessage oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped.increment();
+                        log.warn("Outbound: kolejka pełna, porzucono najstarszą wiadomość na {}", oldest.topic());
+                    }
+                }
+                yield true;
+            }
+        };
+        if (!accepted) {
+            rejected.increment();
+            log.warn("Outbound: kolejka pełna ({}), odrzucono wiadomość na {}", queue.size(), topic);
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Kolejka wysyłki do lamp jest pełna");
+        }
+        enqueued.increment();
+    }
+
+    public Map<String, Object> stats() {
+        long deliveredCount = delivered.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("transport", transport.name());
+        stats.put("overflowPolicy", overflowPolicy);
+        stats.put("queued", queue.size());
+        stats.put("queueCapacity", queue.size() + queue.remainingCapacity());
+        stats.put("inFlight", window - inFlight.availablePermits());
+        stats.put("maxInFlight", window);
+        stats.put("enqueued", enqueued.sum());
+        stats.put("delivered", deliveredCount);
+        stats.put("failed", failed.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("avgQueueWaitMs", deliveredCount == 0 ? 0 : totalQueueWaitMicros.sum() / 1000.0 / deliveredCount);
+        stats.put("avgLatencyMs", deliveredCount == 0 ? 0 : totalLatencyMicros.sum() / 1000.0 / deliveredCount);
+        stats.put("maxLatencyMs", maxLatencyMicros.get() / 1000.0);
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        // Dajemy wątkowi chwilę na wysłanie tego, co zostało w kolejce
+        sender.join(5000);
+        if (!queue.isEmpty()) log.warn("Outbound: zamknięcie z {} niewysłanymi wiadomościami", queue.size());
+    }
+
+    private boolean offerBlocking(OutboundMessage message) {
+        try {
+            return queue.offer(message, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void sendLoop() {
+        List<OutboundMessage> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                OutboundMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+
+                while (!transport.isReady()) {
+                    if (!running) return;
+                    Thread.sleep(reconnectWaitMillis);
+                }
+                for (OutboundMessage message : batch) {
+                    inFlight.acquire();
+                    publish(message);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("Outbound: błąd pętli wysyłki: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void publish(OutboundMessage message) {
+        long publishedNanos = System.nanoTime();
+        try {
+            transport.publish(message.topic(), message.payload(), message.qos(),
+                    () -> {
+                        inFlight.release();
+                        long latencyMicros = (System.nanoTime() - publishedNanos) / 1000;
+                        delivered.increment();
+                        totalLatencyMicros.add(latencyMicros);
+                        totalQueueWaitMicros.add((publishedNanos - message.enqueuedNanos()) / 1000);
+                        maxLatencyMicros.accumulateAndGet(latencyMicros, Math::max);
+                    },
+                    error -> onFailed(message, error));
+        } catch (RuntimeException e) {
+            onFailed(message, e);
+        }
+    }
+
+    private void onFailed(OutboundMessage message, Throwable error) {
+        inFlight.release();
+        failed.increment();
+        log.warn("Outbound: nie dostarczono wiadomości na {}: {}", message.topic(), error.getMessage());
+    }
+}
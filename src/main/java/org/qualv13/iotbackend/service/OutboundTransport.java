@@ -0,0 +1,17 @@
+package org.qualv13.iotbackend.service;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport wiadomości do lamp (broker). Używany wyłącznie przez {@link OutboundPublisher}.
+ * {@link #publish} nie może blokować - wynik zgłasza dokładnie jednym z callbacków.
+ */
+public interface OutboundTransport {
+
+    String name();
+
+    /** Czy można publikować; przy braku połączenia może podjąć próbę (re)connectu. */
+    boolean isReady();
+
+    void publish(String topic, byte[] payload, int qos, Runnable onDelivered, Consumer<Throwable> onFailed);
+}
@@ -0,0 +1,101 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.security.AuthUserCache;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indeks własności: lampa -> id właściciela i flota -> id właściciela.
+ * <p>
+ * Odpowiada na pytanie "czy użytkownik może sterować lampą / flotą" w O(1), bez ładowania encji
+ * {@code Lamp} i {@code User} przez Hibernate. Wczytywany przy starcie, potem aktualizowany
+ * po commicie przy przypisaniu, odpięciu, usunięciu lampy oraz utworzeniu i usunięciu floty.
+ * Lampa bez właściciela jest dostępna dla każdego zalogowanego (jak dotychczas).
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class OwnershipIndex {
+
+    // Identyfikatory z IDENTITY zaczynają się od 1 - 0 oznacza lampę bez właściciela
+    private static final long UNOWNED = 0L;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AuthUserCache authUserCache;
+
+    private final Map<String, Long> lampOwners = new ConcurrentHashMap<>();
+    private final Map<Long, Long> fleetOwners = new ConcurrentHashMap<>();
+
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        jdbcTemplate.query("SELECT id, user_id FROM lamps", rs -> {
+            lampOwners.put(rs.getString("id"), rs.getLong("user_id")); // NULL -> 0
+        });
+        jdbcTemplate.query("SELECT id, user_id FROM fleets", rs -> {
+            fleetOwners.put(rs.getLong("id"), rs.getLong("user_id"));
+        });
+        log.info("Indeks własności: {} lamp, {} flot", lampOwners.size(), fleetOwners.size());
+    }
+
+    /**
+     * @throws RuntimeException gdy lampa nie istnieje
+     * @throws AccessDeniedException gdy lampa należy do innego użytkownika
+     */
+    public void checkLampAccess(String username, String lampId) {
+        Long owner = lampOwners.get(lampId);
+        if (owner == null) throw new RuntimeException("Lampa nie istnieje: " + lampId);
+        if (owner == UNOWNED || isAdmin(username) || owner == userId(username)) return;
+        log.warn("⛔ Odmowa dostępu dla '{}' do lampy '{}'", username, lampId);
+        throw new AccessDeniedException("Nie masz uprawnień do sterowania tą lampą!");
+    }
+
+    /**
+     * @throws RuntimeException gdy flota nie istnieje
+     * @throws AccessDeniedException gdy flota należy do innego użytkownika
+     */
+    public void checkFleetAccess(String username, Long fleetId) {
+        Long owner = fleetOwners.get(fleetId);
+        if (owner == null) throw new RuntimeException("Fleet not found");
+        if (owner == UNOWNED || isAdmin(username) || owner == userId(username)) return;
+        log.warn("⛔ Odmowa dostępu dla '{}' do floty {}", username, fleetId);
+        throw new AccessDeniedException("Nie masz uprawnień do sterowania tą flotą!");
+    }
+
+    /** @param ownerId null = lampa odpięta od użytkownika */
+    public void lampOwnerChanged(String lampId, Long ownerId) {
+        lampOwners.put(lampId, ownerId != null ? ownerId : UNOWNED);
+    }
+
+    public void lampRemoved(String lampId) {
+        lampOwners.remove(lampId);
+    }
+
+    public void fleetOwnerChanged(Long fleetId, Long ownerId) {
+        fleetOwners.put(fleetId, ownerId != null ? ownerId : UNOWNED);
+    }
+
+    public void fleetRemoved(Long fleetId) {
+        fleetOwners.remove(fleetId);
+    }
+
+    private static boolean isAdmin(String username) {
+        return "admin".equalsIgnoreCase(username);
+    }
+
+    // -1 dla nieistniejącego konta - nie pasuje do żadnego właściciela
+    private long userId(String username) {
+        AuthUserCache.CachedUser user = username != null ? authUserCache.get(username) : null;
+        return user != null ? user.id() : -1L;
+    }
+}
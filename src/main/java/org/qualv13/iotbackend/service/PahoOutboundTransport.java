@@ -0,0 +1,116 @@
+package org.qualv13.iotbackend.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Publikacja przez asynchronicznych klientów Paho (round-robin). Potwierdzenie QoS 1 (PUBACK)
+ * przychodzi w callbacku tokena - wątek wysyłający nie czeka na brokera.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "mqtt.outbound.transport", havingValue = "mqtt", matchIfMissing = true)
+public class PahoOutboundTransport implements OutboundTransport {
+
+    private final MqttPahoClientFactory clientFactory;
+    private final IMqttAsyncClient[] clients;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Value("${mqtt.outbound.connect-timeout-ms:5000}")
+    private long connectTimeoutMillis;
+
+    public PahoOutboundTransport(MqttPahoClientFactory clientFactory,
+                                 @Value("${mqtt.broker-url:tcp://srv38.mikr.us:40131}") String brokerUrl,
+                                 @Value("${mqtt.client-id:iot_backend_sender}") String clientId,
+                                 @Value("${mqtt.outbound.clients:1}") int clientCount) throws MqttException {
+        this.clientFactory = clientFactory;
+        this.clients = new IMqttAsyncClient[Math.max(1, clientCount)];
+        String prefix = clientId + "-" + UUID.randomUUID();
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = clientFactory.getAsyncClientInstance(brokerUrl, prefix + "-" + i);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "mqtt";
+    }
+
+    /**
+     * Łączy klientów, którzy jeszcze nie mają połączenia (dalsze reconnecty robi Paho - automaticReconnect).
+     * Wystarczy jeden połączony klient.
+     */
+    @Override
+    public boolean isReady() {
+        boolean ready = false;
+        for (IMqttAsyncClient client : clients) {
+            if (client.isConnected()) {
+                ready = true;
+                continue;
+            }
+            try {
+                client.connect(clientFactory.getConnectionOptions()).waitForCompletion(connectTimeoutMillis);
+                log.info("Outbound MQTT: połączono klienta {}", client.getClientId());
+                ready = true;
+            } catch (MqttException e) {
+                // REASON_CODE_CLIENT_CONNECTED / CONNECT_IN_PROGRESS - reconnect Paho już trwa
+                log.debug("Outbound MQTT: klient {} bez połączenia: {}", client.getClientId(), e.getMessage());
+            }
+        }
+        return ready;
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, int qos, Runnable onDelivered, Consumer<Throwable> onFailed) {
+        IMqttAsyncClient client = pickClient();
+        try {
+            client.publish(topic, payload, qos, false, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    onDelivered.run();
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable exception) {
+                    onFailed.accept(exception);
+                }
+            });
+        } catch (MqttException e) {
+            onFailed.accept(e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        for (IMqttAsyncClient client : clients) {
+            try {
+                if (client.isConnected()) client.disconnect().waitForCompletion(connectTimeoutMillis);
+                client.close();
+            } catch (MqttException e) {
+                log.warn("Outbound MQTT: błąd zamykania klienta {}: {}", client.getClientId(), e.getMessage());
+            }
+        }
+    }
+
+    private IMqttAsyncClient pickClient() {
+        // Najpierw kolejny w kolejce, ale z pominięciem rozłączonych
+        int start = Math.floorMod(next.getAndIncrement(), clients.length);
+        for (int i = 0; i < clients.length; i++) {
+            IMqttAsyncClient client = clients[(start + i) % clients.length];
+            if (client.isConnected()) return client;
+        }
+        return clients[start];
+    }
+}
@@ -3,143 +3,97 @@ package org.qualv13.iotbackend.service;
 import com.iot.backend.proto.IotProtos;
 import lombok.extern.slf4j.Slf4j;
 import org.qualv13.iotbackend.config.RabbitConfig;
-import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.entity.LampAlert;
-import org.qualv13.iotbackend.entity.LampMetric;
-import org.qualv13.iotbackend.repository.LampAlertRepository;
-import org.qualv13.iotbackend.repository.LampMetricRepository;
 import lombok.RequiredArgsConstructor;
-import org.qualv13.iotbackend.repository.LampRepository;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.support.AmqpHeaders;
-import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.amqp.rabbit.retry.MessageBatchRecoverer;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class RabbitMqListener {
 
-    private final LampMetricRepository metricRepository;
-    private final LampRepository lampRepository;
-    private final LampAlertRepository alertRepository;
-
-    @RabbitListener(queues = RabbitConfig.QUEUE_NAME)
-    public void receiveMessage(byte[] payload,
-                               @Header(AmqpHeaders.RECEIVED_ROUTING_KEY) String topic) {
-        log.info("Odebrano wiadomość z RabbitMQ! Temat: {}, Rozmiar: {} bajtów", topic, payload.length);
-        try {
-            // Topic format: lamps/{lampId}/{messageType}
-            String[] parts = topic.split("\\.");
-            //log.info("Coś przyszło");
-            if (parts.length < 2) {
-                log.warn("Ignoruję temat {} - za krótki format", topic);
-                return;
+    private final IngestExecutor ingestExecutor;
+    private final CommandAckTracker commandAckTracker;
+    private final MessageBatchRecoverer ingestDeadLetterRecoverer;
+
+    /**
+     * Odbiera paczkę wiadomości (rozmiar i czas oczekiwania: ingest.batch-size / ingest.batch-linger-ms).
+     * Zapis rozdzielamy na shardy per lampa ({@link IngestExecutor}) i czekamy na wszystkie.
+     * Raporty odrzucone na stałe odkładamy do dead-letter. Błąd przejściowy wyrzucamy dalej - kontener ponowi
+     * paczkę (ingest.max-attempts, z odstępem), a wiadomości już zapisane są oznaczone
+     * {@link RabbitConfig#HANDLED_HEADER} i przy ponowieniu (te same obiekty Message) są pomijane.
+     */
+    @RabbitListener(queues = RabbitConfig.QUEUE_NAME, containerFactory = "batchListenerContainerFactory")
+    public void receiveBatch(List<Message> messages) {
+        LocalDateTime receivedAt = LocalDateTime.now();
+        List<TelemetryIngestService.StatusEnvelope> reports = new ArrayList<>(messages.size());
+        Map<TelemetryIngestService.StatusEnvelope, Message> sources = new IdentityHashMap<>();
+
+        for (Message message : messages) {
+            if (isHandled(message)) continue;
+            String topic = message.getMessageProperties().getReceivedRoutingKey();
+            TelemetryIngestService.StatusEnvelope envelope = decode(message.getBody(), topic, receivedAt);
+            if (envelope != null) {
+                reports.add(envelope);
+                sources.put(envelope, message);
+            } else {
+                markHandled(message);
             }
-            String lampId = parts[1];
-            String msgType = parts[2];
-
-            lampRepository.findById(lampId).ifPresent(lamp -> {
-                if (!lamp.isOnline()) {
-                    lamp.setOnline(true);
-                    lampRepository.save(lamp);
-                    log.info("Lampa {} jest teraz ONLINE", lampId);
-                }
-            });
-
-            if (!lampRepository.existsById(lampId)) {
-                log.warn("Otrzymano dane od nieznanej lampy: {}. Ignoruję.", lampId);
-                return;
-            }
-
-            if ("status".equals(msgType)) {
-                Lamp lampEntity = lampRepository.findById(lampId).orElse(null);
-                if (lampEntity == null) { return; }
-
-                if (!lampEntity.isOnline()) {
-                    lampEntity.setOnline(true);
-                }
-
-                IotProtos.StatusReport report = IotProtos.StatusReport.parseFrom(payload);
-
-                lampEntity.setLastAmbientLight(report.getAmbientLight());
-                lampEntity.setLastAmbientNoise(report.getAmbientNoise());
-                lampEntity.setOnline(true);
-
-                if(report.hasLedSettings()){
-                    lampEntity.setRed(report.getLedSettings().getRed());
-                    lampEntity.setGreen(report.getLedSettings().getGreen());
-                    lampEntity.setBlue(report.getLedSettings().getBlue());
-                    lampEntity.setColdWhite(report.getLedSettings().getColdWhite());
-                    lampEntity.setNeutralWhite(report.getLedSettings().getNeutralWhite());
-                    lampEntity.setWarmWhite(report.getLedSettings().getWarmWhite());
-                }
-
-                lampEntity.setFirmwareVersion(report.getFirmwareVersion());
-
-
-                lampRepository.save(lampEntity);
-
-                LampMetric metric = new LampMetric();
-                metric.setLampId(lampId);
-                metric.setTimestamp(LocalDateTime.now());
-                metric.setDeviceTimestamp(report.getTs());
-                metric.setUptimeSeconds(report.getUptimeSeconds());
-                metric.setAmbientLight(report.getAmbientLight());
-                metric.setAmbientNoise(report.getAmbientNoise());
-
-                String tempStr = report.getTemperatureReadingsList().stream()
-                        .map(String::valueOf)
-                        .collect(Collectors.joining(","));
-                metric.setTemperatures(tempStr);
-
-                metric.setIsAbnormal(report.getIsAbnormal());
-
-                if (report.getIsAbnormal()) {
-                    log.warn("Otrzymano ABNORMAL REPORT od lampy {}", lampId);
-                }
+        }
 
-                metricRepository.save(metric);
+        IngestExecutor.Outcome outcome = ingestExecutor.submitAndWait(reports);
+        outcome.committed().forEach(e -> markHandled(sources.get(e)));
+        if (!outcome.failed().isEmpty()) {
+            List<Message> failed = outcome.failed().stream().map(sources::get).toList();
+            failed.forEach(RabbitMqListener::markHandled);
+            ingestDeadLetterRecoverer.recover(failed, new IllegalStateException("Nie udało się zapisać raportu statusu"));
+        }
+        if (outcome.retryable() != null) throw outcome.retryable();
+    }
 
-                List<LampAlert> currentAlerts = alertRepository.findByLampIdAndIsActiveTrue(lampId);
-                if (!currentAlerts.isEmpty()) {
-                    alertRepository.deleteAll(currentAlerts);
-                }
+    private static boolean isHandled(Message message) {
+        return Boolean.TRUE.equals(message.getMessageProperties().getHeader(RabbitConfig.HANDLED_HEADER));
+    }
 
-                if (report.getActiveAlertsCount() > 0) {
-                    for (IotProtos.Alert protoAlert : report.getActiveAlertsList()) {
-                        LampAlert alert = new LampAlert();
-                        alert.setLampId(lampId);
-                        alert.setAlertCode(protoAlert.getCauseValue());
-                        alert.setAlertLevel(protoAlert.getLevelValue());
-                        alert.setMessage(protoAlert.getMessage());
-                        alert.setAlertIdFromDevice(protoAlert.getId());
-                        alert.setTimestamp(LocalDateTime.now());
-                        alert.setActive(true);
+    private static void markHandled(Message message) {
+        message.getMessageProperties().setHeader(RabbitConfig.HANDLED_HEADER, true);
+    }
 
-                        alertRepository.save(alert);
-                        log.warn("⚠️ ALARM z lampy {}: {} (Level {})", lampId, protoAlert.getMessage(), protoAlert.getLevel());
-                    }
-                }
+    private TelemetryIngestService.StatusEnvelope decode(byte[] payload, String topic, LocalDateTime receivedAt) {
+        log.debug("Odebrano wiadomość z RabbitMQ! Temat: {}, Rozmiar: {} bajtów", topic, payload.length);
+        try {
+            // Routing key format: lamps.{lampId}.{messageType}
+            String lampId = StatusReportDecoder.lampIdOf(topic);
+            if (lampId == null) {
+                log.warn("Ignoruję temat {} - za krótki format", topic);
+                return null;
+            }
 
-                //System.out.println("Zapisano status dla lampy: " + lampId + ", Uptime: " + report.getUptimeSeconds());
-                log.info("Zapisano status dla lampy: {}, Uptime: {}", lampId, report.getUptimeSeconds());
-            } else if ("command".equals(msgType)) {
+            if (StatusReportDecoder.isMessageType(topic, "status")) {
+                DecodedStatus status = new DecodedStatus();
+                StatusReportDecoder.decode(payload, status);
+                return new TelemetryIngestService.StatusEnvelope(lampId, status, receivedAt);
+            } else if (StatusReportDecoder.isMessageType(topic, "ack")) {
+                // Potwierdzenia nie idą do bazy - tylko zdejmujemy komendę z oczekujących
+                IotProtos.CommandAck ack = IotProtos.CommandAck.parseFrom(payload);
+                commandAckTracker.acknowledged(lampId, ack.getCorrelationId(), ack.getSuccess(), ack.getError());
+            } else if (StatusReportDecoder.isMessageType(topic, "command")) {
                 IotProtos.LampCommand command = IotProtos.LampCommand.parseFrom(payload);
-
                 log.info("Odebrano command: {}", command);
-            } else{
-                log.warn("Wiadomość przyszła, ale nie ma \"status\" :(  {}", msgType);
+            } else {
+                log.warn("Wiadomość przyszła, ale nie ma \"status\" :(  {}", topic);
             }
-
         } catch (Exception e) {
-            //System.err.println("Błąd dekodowania Proto: " + e.getMessage());
-            //e.printStackTrace();
             log.error("Błąd dekodowania Proto dla tematu {}: {}", topic, e.getMessage(), e);
         }
+        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limity komend: token bucket na urządzenie (lampa / flota) i na użytkownika.
+ * <p>
+ * Kubełek to jeden {@link AtomicLong} z "teoretycznym czasem przybycia" (GCRA) - odpowiednik token bucketa
+ * o pojemności {@code burst} i uzupełnianiu {@code per-second}, pobieranie żetonu to jeden CAS, bez blokad.
+ * Kubełek, którego czas minął, jest pełny - sprzątanie usuwa go bez utraty stanu.
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    public enum Scope { TARGET, USER }
+
+    /** Wynik próby: przy odmowie {@code retryAfterMillis} mówi, kiedy będzie wolny żeton. */
+    public record Decision(boolean allowed, Scope rejectedBy, long retryAfterMillis) {
+        static final Decision ALLOWED = new Decision(true, null, 0);
+    }
+
+    private final Limit targetLimit;
+    private final Limit userLimit;
+    private final Map<String, AtomicLong> targetBuckets = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> userBuckets = new ConcurrentHashMap<>();
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejectedByTarget = new LongAdder();
+    private final LongAdder rejectedByUser = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    @Value("${rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /** Odstęp między żetonami i tolerancja serii (burst - 1 odstępów), w nanosekundach. */
+    private record Limit(long intervalNanos, long toleranceNanos) {
+        static Limit of(double perSecond, int burst) {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+            return new Limit(interval, interval * (Math.max(1, burst) - 1));
+        }
+    }
+
+    public RateLimiter(@Value("${rate-limit.target.per-second:5}") double targetPerSecond,
+                       @Value("${rate-limit.target.burst:10}") int targetBurst,
+                       @Value("${rate-limit.user.per-second:20}") double userPerSecond,
+                       @Value("${rate-limit.user.burst:50}") int userBurst) {
+        this.targetLimit = Limit.of(targetPerSecond, targetBurst);
+        this.userLimit = Limit.of(userPerSecond, userBurst);
+    }
+
+    /**
+     * Pobiera żeton z kubełka celu (np. "lamp:abc", "fleet:7"), a potem użytkownika.
+     * Gdy limit użytkownika odmówi, żeton celu wraca do kubełka.
+     */
+    public Decision tryAcquire(String targetKey, String username) {
+        if (!enabled) return Decision.ALLOWED;
+        long now = System.nanoTime();
+
+        AtomicLong target = targetKey != null ? targetBuckets.computeIfAbsent(targetKey, k -> new AtomicLong(now)) : null;
+        long wait = target != null ? acquire(target, targetLimit, now) : 0;
+        if (wait > 0) {
+            rejectedByTarget.increment();
+            return new Decision(false, Scope.TARGET, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+
+        if (username != null) {
+            wait = acquire(userBuckets.computeIfAbsent(username, k -> new AtomicLong(now)), userLimit, now);
+            if (wait > 0) {
+                if (target != null) target.addAndGet(-targetLimit.intervalNanos());
+                rejectedByUser.increment();
+                return new Decision(false, Scope.USER, TimeUnit.NANOSECONDS.toMillis(wait));
+            }
+        }
+        allowed.increment();
+        return Decision.ALLOWED;
+    }
+
+    /** @return 0 przy sukcesie, inaczej czas oczekiwania na żeton w nanosekundach */
+    private static long acquire(AtomicLong bucket, Limit limit, long now) {
+        while (true) {
+            long tat = bucket.get();
+            long next = Math.max(tat, now) + limit.intervalNanos();
+            long wait = next - now - limit.intervalNanos() - limit.toleranceNanos();
+            if (wait > 0) return wait;
+            if (bucket.compareAndSet(tat, next)) return 0;
+        }
+    }
+
+    // Pełne (bezczynne) kubełki nic nie wnoszą - usuwamy je, żeby mapa nie rosła z liczbą lamp i użytkowników
+    @Scheduled(fixedDelayString = "${rate-limit.eviction-interval-ms:60000}")
+    public void evictIdle() {
+        long now = System.nanoTime();
+        int before = targetBuckets.size() + userBuckets.size();
+        targetBuckets.entrySet().removeIf(e -> e.getValue().get() - now <= 0);
+        userBuckets.entrySet().removeIf(e -> e.getValue().get() - now <= 0);
+        int removed = before - targetBuckets.size() - userBuckets.size();
+        if (removed > 0) {
+            evicted.add(removed);
+            log.debug("Rate limit: usunięto {} bezczynnych kubełków", removed);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("allowed", allowed.sum());
+        stats.put("rejectedByTarget", rejectedByTarget.sum());
+        stats.put("rejectedByUser", rejectedByUser.sum());
+        stats.put("targetBuckets", targetBuckets.size());
+        stats.put("userBuckets", userBuckets.size());
+        stats.put("evicted", evicted.sum());
+        return stats;
+    }
+}
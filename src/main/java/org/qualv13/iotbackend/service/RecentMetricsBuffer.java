@@ -0,0 +1,258 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.entity.LampMetric;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ostatnie pomiary każdej lampy w pamięci (bufor cykliczny na tablicach prymitywów).
+ * <p>
+ * Bufor lampy jest rozgrzewany z bazy przy pierwszym odczycie, potem dopisuje go ingest
+ * (po commicie paczki). Bufor jest rejestrowany przed zapytaniem - próbki dopisane w trakcie rozgrzewania
+ * nie giną, tylko są scalane z wynikiem zapytania po czasie. Liczba lamp w pamięci jest ograniczona
+ * ({@code recent-metrics.max-lamps}), najdawniej czytane wypadają (LRU) - zużycie pamięci ma stały sufit.
+ * Kolejność LRU aktualizują tylko odczyty, więc dopisywanie z ingestu nie bierze żadnej globalnej blokady.
+ */
+@Slf4j
+@Component
+public class RecentMetricsBuffer {
+
+    // timestamp (long) + temperatura, światło, hałas, uptime (int)
+    private static final int BYTES_PER_SAMPLE = 8 + 4 * 4;
+    private static final int BYTES_PER_LAMP_OVERHEAD = 5 * 16 + 64;
+    private static final int NO_TEMPERATURE = Integer.MIN_VALUE;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int capacity;
+    private final int maxLamps;
+    private final Map<String, LampRing> rings = new ConcurrentHashMap<>();
+    // Kolejność dostępu (access-order) - tylko do wyboru lampy do usunięcia
+    private final Map<String, Boolean> accessOrder = new LinkedHashMap<>(256, 0.75f, true);
+
+    public RecentMetricsBuffer(JdbcTemplate jdbcTemplate,
+                               @Value("${recent-metrics.capacity:100}") int capacity,
+                               @Value("${recent-metrics.max-lamps:10000}") int maxLamps) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.capacity = capacity;
+        this.maxLamps = maxLamps;
+    }
+
+    /** Kopia ostatnich próbek lampy, od najstarszej do najnowszej. */
+    public record Samples(long[] timestamps, int[] temperatures, int[] light, int[] noise, int[] uptime) {
+        public int size() {
+            return timestamps.length;
+        }
+
+        /** Temperatura próbki albo null, gdy raport jej nie miał. */
+        public Integer temperature(int i) {
+            return temperatures[i] == NO_TEMPERATURE ? null : temperatures[i];
+        }
+
+        public LocalDateTime time(int i) {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamps[i]), ZoneId.systemDefault());
+        }
+    }
+
+    /** Ostatnie {@code limit} próbek (rozgrzewa bufor z bazy przy pierwszym dostępie). */
+    public Samples latest(String lampId, int limit) {
+        LampRing ring = rings.get(lampId);
+        if (ring == null) {
+            ring = warm(lampId);
+        } else {
+            ring.awaitWarm();
+        }
+        touch(lampId);
+        return ring.snapshot(Math.min(limit, capacity));
+    }
+
+    /** Dopisuje zapisane metryki do buforów już obecnych w pamięci (pozostałe rozgrzeją się przy odczycie). */
+    public void append(List<LampMetric> metrics) {
+        for (LampMetric metric : metrics) {
+            LampRing ring = rings.get(metric.getLampId());
+            if (ring != null) {
+                ring.add(toMillis(metric.getTimestamp()),
+                        metric.getPrimaryTemperature() != null ? metric.getPrimaryTemperature() : NO_TEMPERATURE,
+                        metric.getAmbientLight() != null ? metric.getAmbientLight() : 0,
+                        metric.getAmbientNoise() != null ? metric.getAmbientNoise() : 0,
+                        metric.getUptimeSeconds() != null ? metric.getUptimeSeconds() : 0);
+            }
+        }
+    }
+
+    public void evict(String lampId) {
+        rings.remove(lampId);
+        synchronized (accessOrder) {
+            accessOrder.remove(lampId);
+        }
+    }
+
+    /** Zajętość bufora - do podglądu przez admina. */
+    public Map<String, Object> stats() {
+        int lamps = rings.size();
+        long bytesPerLamp = (long) capacity * BYTES_PER_SAMPLE + BYTES_PER_LAMP_OVERHEAD;
+        return Map.of(
+                "lamps", lamps,
+                "maxLamps", maxLamps,
+                "capacityPerLamp", capacity,
+                "estimatedBytes", lamps * bytesPerLamp,
+                "maxBytes", maxLamps * bytesPerLamp
+        );
+    }
+
+    /** Oznacza odczyt lampy i usuwa najdawniej czytaną, gdy lamp jest więcej niż {@code maxLamps}. */
+    private void touch(String lampId) {
+        String eldest = null;
+        synchronized (accessOrder) {
+            accessOrder.put(lampId, Boolean.TRUE);
+            if (accessOrder.size() > maxLamps) {
+                Iterator<String> it = accessOrder.keySet().iterator();
+                eldest = it.next();
+                it.remove();
+            }
+        }
+        if (eldest != null) rings.remove(eldest);
+    }
+
+    /**
+     * Rejestruje pusty bufor (ingest dopisuje do niego od razu), dopiero potem czyta bazę i scala obie części.
+     * Równoległy odczyt tej samej lampy czeka na koniec rozgrzewania zamiast pytać bazę drugi raz.
+     */
+    private LampRing warm(String lampId) {
+        LampRing ring = new LampRing(capacity, true);
+        LampRing existing = rings.putIfAbsent(lampId, ring);
+        if (existing != null) {
+            existing.awaitWarm();
+            return existing;
+        }
+        try {
+            ring.completeWarm(load(lampId));
+        } catch (RuntimeException e) {
+            rings.remove(lampId, ring);
+            ring.completeWarm(null);
+            throw e;
+        }
+        return ring;
+    }
+
+    private LampRing load(String lampId) {
+        LampRing loaded = new LampRing(capacity, false);
+        List<Object[]> rows = jdbcTemplate.query("""
+                SELECT timestamp, %s AS temp,
+                       ambient_light, ambient_noise, uptime_seconds
+                FROM lamp_metrics
+                WHERE lamp_id = ?
+                ORDER BY timestamp DESC
+                LIMIT ?
+                """.formatted(TemperatureMigration.primaryTemperature("")), (rs, i) -> new Object[]{
+                rs.getTimestamp("timestamp"), rs.getObject("temp"),
+                rs.getObject("ambient_light"), rs.getObject("ambient_noise"), rs.getObject("uptime_seconds")
+        }, lampId, capacity);
+
+        // Zapytanie zwraca od najnowszej - do bufora dopisujemy od najstarszej
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            Object[] row = rows.get(i);
+            loaded.add(((Timestamp) row[0]).getTime(),
+                    row[1] != null ? ((Number) row[1]).intValue() : NO_TEMPERATURE,
+                    row[2] != null ? ((Number) row[2]).intValue() : 0,
+                    row[3] != null ? ((Number) row[3]).intValue() : 0,
+                    row[4] != null ? ((Number) row[4]).intValue() : 0);
+        }
+        return loaded;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static final class LampRing {
+        private final long[] timestamps;
+        private final int[] temperatures;
+        private final int[] light;
+        private final int[] noise;
+        private final int[] uptime;
+        private int next;
+        private int size;
+        private boolean warming;
+
+        LampRing(int capacity, boolean warming) {
+            timestamps = new long[capacity];
+            temperatures = new int[capacity];
+            light = new int[capacity];
+            noise = new int[capacity];
+            uptime = new int[capacity];
+            this.warming = warming;
+        }
+
+        synchronized void awaitWarm() {
+            try {
+                while (warming) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Scala próbki z bazy z dopisanymi w trakcie rozgrzewania (po czasie, bez duplikatów - raport zapisany
+         * przed zapytaniem może być w obu) i zostawia najnowsze {@code capacity}.
+         */
+        synchronized void completeWarm(LampRing loaded) {
+            if (loaded != null) {
+                Samples db = loaded.snapshot(loaded.size);
+                Samples appended = snapshot(size);
+                next = 0;
+                size = 0;
+                int i = 0, j = 0;
+                long last = Long.MIN_VALUE;
+                while (i < db.size() || j < appended.size()) {
+                    boolean fromDb = j >= appended.size()
+                            || i < db.size() && db.timestamps()[i] <= appended.timestamps()[j];
+                    Samples source = fromDb ? db : appended;
+                    int k = fromDb ? i++ : j++;
+                    if (source.timestamps()[k] == last) continue;
+                    last = source.timestamps()[k];
+                    add(last, source.temperatures()[k], source.light()[k], source.noise()[k], source.uptime()[k]);
+                }
+            }
+            warming = false;
+            notifyAll();
+        }
+
+        synchronized void add(long timestamp, int temperature, int lightValue, int noiseValue, int uptimeValue) {
+            timestamps[next] = timestamp;
+            temperatures[next] = temperature;
+            light[next] = lightValue;
+            noise[next] = noiseValue;
+            uptime[next] = uptimeValue;
+            next = (next + 1) % timestamps.length;
+            if (size < timestamps.length) size++;
+        }
+
+        synchronized Samples snapshot(int limit) {
+            int count = Math.min(limit, size);
+            long[] ts = new long[count];
+            int[] temp = new int[count];
+            int[] lt = new int[count];
+            int[] ns = new int[count];
+            int[] up = new int[count];
+            int start = Math.floorMod(next - count, timestamps.length);
+            for (int i = 0; i < count; i++) {
+                int idx = (start + i) % timestamps.length;
+                ts[i] = timestamps[idx];
+                temp[i] = temperatures[idx];
+                lt[i] = light[idx];
+                ns[i] = noise[idx];
+                up[i] = uptime[idx];
+            }
+            return new Samples(ts, temp, lt, ns, up);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.qualv13.iotbackend.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.entity.LampMetric;
+import org.qualv13.iotbackend.repository.MetricRollupRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rollupy telemetrii (min/max/avg/count temperatury, światła i hałasu)
+ * w rozdzielczościach 1 min / 1 h / 1 dzień, per lampa i per flota.
+ * <p>
+ * Ingest dopisuje przyrosty lamp w tej samej transakcji co surowe metryki. Przyrosty flot
+ * (wspólne wiersze dla wielu shardów) po commicie trafiają do bufora w pamięci i są zapisywane
+ * zbiorczo co {@code rollups.fleet-flush-ms} - shardy nie czekają na siebie na blokadach wierszy floty.
+ * Dane historyczne przelicza równoległy backfill (po dniu na zadanie).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RollupService {
+
+    public static final String SCOPE_LAMP = "LAMP";
+    public static final String SCOPE_FLEET = "FLEET";
+
+    public enum Resolution {
+        MINUTE("minute", ChronoUnit.MINUTES),
+        HOUR("hour", ChronoUnit.HOURS),
+        DAY("day", ChronoUnit.DAYS);
+
+        final String truncUnit;
+        final ChronoUnit unit;
+
+        Resolution(String truncUnit, ChronoUnit unit) {
+            this.truncUnit = truncUnit;
+            this.unit = unit;
+        }
+
+        public LocalDateTime bucketOf(LocalDateTime time) {
+            return time.truncatedTo(unit);
+        }
+
+        /** Najdokładniejsza rozdzielczość, która dla danego zakresu da rozsądną liczbę punktów. */
+        public static Resolution forRange(Duration range) {
+            if (range.compareTo(Duration.ofHours(6)) <= 0) return MINUTE;
+            if (range.compareTo(Duration.ofDays(14)) <= 0) return HOUR;
+            return DAY;
+        }
+    }
+
+    private final MetricRollupRepository rollupRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final AtomicBoolean backfillRunning = new AtomicBoolean(false);
+    // Zatwierdzone, jeszcze niezapisane przyrosty flot (klucz jak w sortKey); dostęp pod blokadą mapy
+    private final Map<String, MetricRollupRepository.Bucket> pendingFleetBuckets = new HashMap<>();
+
+    @Value("${rollups.backfill-threads:4}")
+    private int backfillThreads;
+
+    @Value("${rollups.backfill-days-on-startup:30}")
+    private int backfillDaysOnStartup;
+
+    @Value("${rollups.minute-retention-days:7}")
+    private int minuteRetentionDays;
+
+    /**
+     * Dopisuje przyrosty lamp z paczki metryk. Wołane w transakcji zapisu paczki;
+     * przyrosty flot trafiają do bufora dopiero po jej commicie (zapisze je {@link #flushFleetIncrements}).
+     */
+    public void recordIngested(List<LampMetric> metrics) {
+        if (metrics.isEmpty()) return;
+
+        Map<String, Long> fleetByLamp = fleetsOf(metrics.stream().map(LampMetric::getLampId).distinct().toList());
+        Map<String, MetricRollupRepository.Bucket> buckets = new HashMap<>();
+        Map<String, MetricRollupRepository.Bucket> fleetBuckets = new HashMap<>();
+
+        for (LampMetric metric : metrics) {
+            Integer temperature = countedTemperature(metric);
+            int light = metric.getAmbientLight() != null ? metric.getAmbientLight() : 0;
+            int noise = metric.getAmbientNoise() != null ? metric.getAmbientNoise() : 0;
+            Long fleetId = fleetByLamp.get(metric.getLampId());
+
+            for (Resolution resolution : Resolution.values()) {
+                LocalDateTime bucketStart = resolution.bucketOf(metric.getTimestamp());
+                bucket(buckets, resolution, SCOPE_LAMP, metric.getLampId(), bucketStart).add(temperature, light, noise);
+                if (fleetId != null) {
+                    bucket(fleetBuckets, resolution, SCOPE_FLEET, fleetId.toString(), bucketStart).add(temperature, light, noise);
+                }
+            }
+        }
+
+        // Stała kolejność wierszy - krótsze oczekiwanie na blokady przy ponownym zapisie tych samych kubełków
+        List<MetricRollupRepository.Bucket> sorted = new ArrayList<>(buckets.values());
+        sorted.sort(Comparator.comparing(MetricRollupRepository.Bucket::sortKey));
+        rollupRepository.upsertIncrements(sorted);
+
+        if (fleetBuckets.isEmpty()) return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                mergePending(fleetBuckets.values());
+            }
+        });
+    }
+
+    /** Zapisuje zbuforowane przyrosty flot w jednej transakcji; przy błędzie wracają do bufora. */
+    @Scheduled(fixedDelayString = "${rollups.fleet-flush-ms:1000}")
+    public void flushFleetIncrements() {
+        List<MetricRollupRepository.Bucket> batch;
+        synchronized (pendingFleetBuckets) {
+            if (pendingFleetBuckets.isEmpty()) return;
+            batch = new ArrayList<>(pendingFleetBuckets.values());
+            pendingFleetBuckets.clear();
+        }
+        batch.sort(Comparator.comparing(MetricRollupRepository.Bucket::sortKey));
+        try {
+            transactionTemplate.executeWithoutResult(status -> rollupRepository.upsertIncrements(batch));
+        } catch (RuntimeException e) {
+            log.error("Rollupy: błąd zapisu przyrostów flot ({} kubełków), ponowię: {}", batch.size(), e.getMessage());
+            mergePending(batch);
+        }
+    }
+
+    // Ostatni zapis przy zamykaniu aplikacji - bez niego przyrosty z ostatniej sekundy by przepadły
+    @PreDestroy
+    public void flushOnShutdown() {
+        flushFleetIncrements();
+    }
+
+    private void mergePending(Collection<MetricRollupRepository.Bucket> increments) {
+        synchronized (pendingFleetBuckets) {
+            for (MetricRollupRepository.Bucket increment : increments) {
+                MetricRollupRepository.Bucket pending = pendingFleetBuckets.putIfAbsent(increment.sortKey(), increment);
+                if (pending != null) pending.merge(increment);
+            }
+        }
+    }
+
+    public List<MetricRollupRepository.SeriesPoint> lampSeries(Collection<String> lampIds, Duration range) {
+        return series(SCOPE_LAMP, lampIds, range);
+    }
+
+    public List<MetricRollupRepository.SeriesPoint> fleetSeries(Long fleetId, Duration range) {
+        return series(SCOPE_FLEET, List.of(fleetId.toString()), range);
+    }
+
+    private List<MetricRollupRepository.SeriesPoint> series(String scope, Collection<String> ids, Duration range) {
+        Resolution resolution = Resolution.forRange(range);
+        // Bieżący kubełek i pełne poprzednie - 24h w godzinach to 24 punkty, bez etykiety sprzed doby
+        LocalDateTime from = resolution.bucketOf(LocalDateTime.now().minus(range)).plus(1, resolution.unit);
+        return rollupRepository.series(resolution.name(), scope, ids, from);
+    }
+
+    /**
+     * Zakres w formacie 30m / 6h / 7d.
+     * @throws ResponseStatusException 400, gdy format jest niepoprawny albo zakres nie jest dodatni
+     */
+    public static Duration parseRange(String range) {
+        if (range == null || range.length() < 2) throw invalidRange(range);
+        long amount;
+        try {
+            amount = Long.parseLong(range.substring(0, range.length() - 1));
+        } catch (NumberFormatException e) {
+            throw invalidRange(range);
+        }
+        if (amount <= 0) throw invalidRange(range);
+        try {
+            return switch (range.charAt(range.length() - 1)) {
+                case 'm' -> Duration.ofMinutes(amount);
+                case 'h' -> Duration.ofHours(amount);
+                case 'd' -> Duration.ofDays(amount);
+                default -> throw invalidRange(range);
+            };
+        } catch (ArithmeticException e) {
+            throw invalidRange(range);
+        }
+    }
+
+    private static ResponseStatusException invalidRange(String range) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, "Niepoprawny zakres: " + range);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillOnStartup() {
+        String database = jdbcTemplate.execute((ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName());
+        if (!"PostgreSQL".equals(database)) return;
+        // Dawny indeks dublował indeks klucza głównego - ddl-auto: update sam go nie usunie
+        jdbcTemplate.execute("DROP INDEX IF EXISTS idx_metric_rollups_scope_bucket");
+        if (backfillDaysOnStartup <= 0 || !rollupRepository.isEmpty()) return;
+        startBackfill(backfillDaysOnStartup);
+    }
+
+    /**
+     * Uruchamia w tle przeliczenie rollupów za ostatnie {@code days} dni (każdy dzień osobnym zadaniem).
+     * @return false, gdy backfill już trwa
+     */
+    public boolean startBackfill(int days) {
+        if (!backfillRunning.compareAndSet(false, true)) return false;
+
+        Thread worker = new Thread(() -> {
+            try {
+                backfill(days);
+            } finally {
+                backfillRunning.set(false);
+            }
+        }, "rollup-backfill");
+        worker.setDaemon(true);
+        worker.start();
+        return true;
+    }
+
+    private void backfill(int days) {
+        log.info("Rollupy: backfill {} dni ({} wątków)", days, backfillThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(backfillThreads);
+        try {
+            LocalDate today = LocalDate.now();
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = days; i >= 0; i--) {
+                LocalDate day = today.minusDays(i);
+                futures.add(pool.submit(() -> backfillDay(day)));
+            }
+            long rows = 0;
+            for (Future<Integer> future : futures) {
+                rows += future.get();
+            }
+            log.info("Rollupy: backfill zakończony, zapisano {} kubełków", rows);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Rollupy: błąd backfillu: {}", e.getMessage(), e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private int backfillDay(LocalDate day) {
+        LocalDateTime from = day.atStartOfDay();
+        LocalDateTime to = from.plusDays(1);
+        int rows = 0;
+        for (Resolution resolution : Resolution.values()) {
+            rows += rollupRepository.backfill(resolution.name(), resolution.truncUnit, from, to);
+        }
+        log.debug("Rollupy: backfill {} -> {} kubełków", day, rows);
+        return rows;
+    }
+
+    // Rollupy minutowe są duże - trzymamy je krótko, godzinowe i dzienne zostają
+    @Scheduled(cron = "0 15 3 * * *")
+    public void pruneMinuteRollups() {
+        if (minuteRetentionDays <= 0) return;
+        int deleted = rollupRepository.deleteOlderThan(Resolution.MINUTE.name(),
+                LocalDateTime.now().minusDays(minuteRetentionDays));
+        log.info("Rollupy: usunięto {} kubełków minutowych", deleted);
+    }
+
+    private static Integer countedTemperature(LampMetric metric) {
+        if (Boolean.TRUE.equals(metric.getIsAbnormal())) return null;
+        Integer temperature = metric.getPrimaryTemperature();
+        return temperature != null && temperature > -20 ? temperature : null;
+    }
+
+    private static MetricRollupRepository.Bucket bucket(Map<String, MetricRollupRepository.Bucket> buckets,
+                                                        Resolution resolution, String scope, String scopeId,
+                                                        LocalDateTime bucketStart) {
+        String key = resolution.name() + '|' + scope + '|' + scopeId + '|' + bucketStart;
+        return buckets.computeIfAbsent(key, k -> new MetricRollupRepository.Bucket(resolution.name(), scope, scopeId, bucketStart));
+    }
+
+    private Map<String, Long> fleetsOf(List<String> lampIds) {
+        Map<String, Long> fleets = new HashMap<>();
+        namedJdbcTemplate.query("SELECT id, fleet_id FROM lamps WHERE id IN (:ids) AND fleet_id IS NOT NULL",
+                Map.of("ids", lampIds),
+                rs -> { fleets.put(rs.getString("id"), rs.getLong("fleet_id")); });
+        return fleets;
+    }
+}
@@ -0,0 +1,190 @@
+package org.qualv13.iotbackend.service;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.iot.backend.proto.IotProtos;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.dto.ScheduledCommandDto;
+import org.qualv13.iotbackend.entity.Fleet;
+import org.qualv13.iotbackend.entity.Lamp;
+import org.qualv13.iotbackend.entity.ScheduledCommand;
+import org.qualv13.iotbackend.entity.User;
+import org.qualv13.iotbackend.repository.FleetRepository;
+import org.qualv13.iotbackend.repository.LampRepository;
+import org.qualv13.iotbackend.repository.ScheduledCommandRepository;
+import org.qualv13.iotbackend.repository.UserRepository;
+import org.qualv13.iotbackend.scheduler.CommandScheduler;
+import org.springframework.scheduling.support.CronExpression;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+/**
+ * Zapis harmonogramów komend z kontrolą uprawnień. Silnik ({@link CommandScheduler})
+ * dowiaduje się o zmianach dopiero po commicie.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ScheduledCommandService {
+
+    private final ScheduledCommandRepository scheduledCommandRepository;
+    private final UserRepository userRepository;
+    private final LampRepository lampRepository;
+    private final FleetRepository fleetRepository;
+    private final CommandScheduler commandScheduler;
+
+    public List<ScheduledCommandDto> getMySchedules(String username) {
+        return scheduledCommandRepository.findByOwnerUsername(username).stream()
+                .map(this::toDto)
+                .toList();
+    }
+
+    /** @throws IllegalArgumentException przy błędnym cronie, strefie, komendzie albo terminie z przeszłości */
+    @Transactional
+    public ScheduledCommandDto create(ScheduledCommandDto dto, String username) {
+        User user = userRepository.findByUsername(username).orElseThrow();
+        validate(dto);
+        checkTargetAccess(dto.getTargetType(), dto.getTargetId(), user);
+
+        ScheduledCommand command = new ScheduledCommand();
+        command.setOwner(user);
+        command.setTargetType(dto.getTargetType());
+        command.setTargetId(dto.getTargetId());
+        command.setCommandPayload(dto.getCommand());
+        command.setCronExpression(dto.getCronExpression() != null && !dto.getCronExpression().isBlank() ? dto.getCronExpression() : null);
+        command.setRunAt(command.getCronExpression() == null ? dto.getRunAt() : null);
+        command.setTimezone(dto.getTimezone() != null && !dto.getTimezone().isBlank() ? dto.getTimezone() : null);
+        if (dto.getMisfirePolicy() != null) command.setMisfirePolicy(dto.getMisfirePolicy());
+        command.setCreatedAt(LocalDateTime.now());
+
+        LocalDateTime firstRun = commandScheduler.firstRun(command, user.getTimezone());
+        if (firstRun == null) throw new IllegalArgumentException("Harmonogram nie ma żadnego przyszłego terminu");
+        command.setNextRunAt(firstRun);
+        scheduledCommandRepository.save(command);
+
+        String ownerTimezone = user.getTimezone();
+        afterCommit(() -> commandScheduler.register(command, ownerTimezone));
+        log.info("Utworzono harmonogram {} ({} {}), pierwszy termin {}", command.getId(),
+                command.getTargetType(), command.getTargetId(), firstRun);
+        return toDto(command);
+    }
+
+    @Transactional
+    public void delete(Long id, String username) {
+        ScheduledCommand command = scheduledCommandRepository.findById(id)
+                .orElseThrow(() -> new RuntimeException("Schedule not found"));
+        if (!"admin".equals(username) && !command.getOwner().getUsername().equals(username)) {
+            throw new AccessDeniedException("Nie masz uprawnień do tego harmonogramu!");
+        }
+        scheduledCommandRepository.delete(command);
+        afterCommit(() -> commandScheduler.unregister(id));
+    }
+
+    /** Przy usuwaniu konta - harmonogramy znikają razem z użytkownikiem. */
+    @Transactional
+    public void deleteAllForUser(User user) {
+        List<ScheduledCommand> commands = scheduledCommandRepository.findByOwnerUsername(user.getUsername());
+        if (commands.isEmpty()) return;
+        scheduledCommandRepository.deleteAll(commands);
+        afterCommit(() -> commands.forEach(c -> commandScheduler.unregister(c.getId())));
+    }
+
+    /** Przy usuwaniu floty - jej harmonogramy nie mają już celu. */
+    @Transactional
+    public void deleteAllForFleet(Long fleetId) {
+        List<ScheduledCommand> commands = scheduledCommandRepository.findByTargetTypeAndTargetId(
+                ScheduledCommand.TargetType.FLEET, fleetId.toString());
+        if (commands.isEmpty()) return;
+        scheduledCommandRepository.deleteAll(commands);
+        afterCommit(() -> commands.forEach(c -> commandScheduler.unregister(c.getId())));
+    }
+
+    /** Zmiana strefy czasowej użytkownika przesuwa harmonogramy bez własnej strefy. */
+    @Transactional
+    public void ownerTimezoneChanged(User user) {
+        for (ScheduledCommand command : scheduledCommandRepository.findByOwnerUsername(user.getUsername())) {
+            if (!command.isEnabled() || command.getTimezone() != null) continue;
+            command.setNextRunAt(commandScheduler.firstRun(command, user.getTimezone()));
+            command.setEnabled(command.getNextRunAt() != null);
+            String ownerTimezone = user.getTimezone();
+            afterCommit(() -> commandScheduler.register(command, ownerTimezone));
+        }
+    }
+
+    private void validate(ScheduledCommandDto dto) {
+        if (dto.getTargetType() == null || dto.getTargetId() == null || dto.getCommand() == null) {
+            throw new IllegalArgumentException("Wymagane: targetType, targetId i command");
+        }
+        try {
+            IotProtos.LampCommand.parseFrom(dto.getCommand());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Nieprawidłowa komenda Protobuf");
+        }
+        boolean hasCron = dto.getCronExpression() != null && !dto.getCronExpression().isBlank();
+        if (hasCron && !CronExpression.isValidExpression(dto.getCronExpression())) {
+            throw new IllegalArgumentException("Nieprawidłowe wyrażenie cron: " + dto.getCronExpression());
+        }
+        if (!hasCron && dto.getRunAt() == null) {
+            throw new IllegalArgumentException("Wymagane: cronExpression albo runAt");
+        }
+        if (dto.getTimezone() != null && !dto.getTimezone().isBlank()
+                && !ZoneId.getAvailableZoneIds().contains(dto.getTimezone())) {
+            throw new IllegalArgumentException("Nieznana strefa czasowa: " + dto.getTimezone());
+        }
+    }
+
+    private void checkTargetAccess(ScheduledCommand.TargetType targetType, String targetId, User user) {
+        boolean isAdmin = "admin".equals(user.getUsername());
+        if (targetType == ScheduledCommand.TargetType.LAMP) {
+            Lamp lamp = lampRepository.findById(targetId)
+                    .orElseThrow(() -> new IllegalArgumentException("Lampa nie istnieje: " + targetId));
+            if (!isAdmin && (lamp.getOwner() == null || !lamp.getOwner().getId().equals(user.getId()))) {
+                throw new AccessDeniedException("Nie masz uprawnień do sterowania tą lampą!");
+            }
+        } else {
+            long fleetId;
+            try {
+                fleetId = Long.parseLong(targetId);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Nieprawidłowe id floty: " + targetId);
+            }
+            Fleet fleet = fleetRepository.findById(fleetId)
+                    .orElseThrow(() -> new IllegalArgumentException("Flota nie istnieje: " + targetId));
+            if (!isAdmin && (fleet.getOwner() == null || !fleet.getOwner().getId().equals(user.getId()))) {
+                throw new AccessDeniedException("Nie masz uprawnień do sterowania tą flotą!");
+            }
+        }
+    }
+
+    private ScheduledCommandDto toDto(ScheduledCommand command) {
+        ScheduledCommandDto dto = new ScheduledCommandDto();
+        dto.setId(command.getId());
+        dto.setTargetType(command.getTargetType());
+        dto.setTargetId(command.getTargetId());
+        dto.setCommand(command.getCommandPayload());
+        dto.setCronExpression(command.getCronExpression());
+        dto.setRunAt(command.getRunAt());
+        dto.setTimezone(command.getTimezone());
+        dto.setMisfirePolicy(command.getMisfirePolicy());
+        dto.setEnabled(command.isEnabled());
+        dto.setNextRunAt(command.getNextRunAt());
+        dto.setLastRunAt(command.getLastRunAt());
+        return dto;
+    }
+
+    private void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -4,15 +4,16 @@ import org.qualv13.iotbackend.dto.DetailedStatsDto;
 import org.qualv13.iotbackend.dto.LampHistoryDto;
 import org.qualv13.iotbackend.entity.Fleet;
 import org.qualv13.iotbackend.entity.Lamp;
-import org.qualv13.iotbackend.entity.LampMetric;
 import org.qualv13.iotbackend.entity.User;
 import org.qualv13.iotbackend.repository.FleetRepository;
-import org.qualv13.iotbackend.repository.LampMetricRepository;
+import org.qualv13.iotbackend.repository.TelemetryJdbcRepository;
+import org.qualv13.iotbackend.repository.MetricRollupRepository;
 import org.qualv13.iotbackend.repository.LampRepository;
 import org.qualv13.iotbackend.repository.UserRepository;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -23,15 +24,18 @@ public class StatsService {
 
     private final LampRepository lampRepository;
     private final UserRepository userRepository;
-    private final LampMetricRepository metricRepository;
+    private final TelemetryJdbcRepository telemetryJdbcRepository;
     private final FleetRepository fleetRepository;
+    private final LampStateCache lampStateCache;
+    private final RollupService rollupService;
+    private final RecentMetricsBuffer recentMetricsBuffer;
 
     // --- Endpointy ---
 
     public DetailedStatsDto getUserStats(String username) {
         User user = userRepository.findByUsername(username)
                 .orElseThrow(() -> new RuntimeException("User not found"));
-        return buildDetailedStats(user.getLamps());
+        return buildDetailedStats(user.getLamps(), null);
     }
 
     public DetailedStatsDto getStatsForUserByAdmin(String targetUsername) {
@@ -39,18 +43,20 @@ public class StatsService {
     }
 
     public DetailedStatsDto getGlobalStats() {
-        return buildDetailedStats(lampRepository.findAll());
+        return buildDetailedStats(lampRepository.findAll(), null);
     }
 
     public DetailedStatsDto getFleetStats(Long fleetId) {
         Fleet fleet = fleetRepository.findById(fleetId)
                 .orElseThrow(() -> new RuntimeException("Fleet not found"));
-        return buildDetailedStats(fleet.getLamps());
+        return buildDetailedStats(fleet.getLamps(), fleetId);
     }
 
     // --- Logika budowania statystyk ---
 
-    private DetailedStatsDto buildDetailedStats(List<Lamp> lamps) {
+    // fleetId != null -> historia z rollupów floty zamiast sumowania po lampach
+    private DetailedStatsDto buildDetailedStats(List<Lamp> lamps, Long fleetId) {
+        lampStateCache.overlayAll(lamps);
         long online = lamps.stream().filter(Lamp::isOn).count();
         List<String> lampIds = lamps.stream().map(Lamp::getId).toList();
 
@@ -69,7 +75,7 @@ public class StatsService {
         double totalWatts = 0.0;
 
         if (!lampIds.isEmpty()) {
-            List<Double> latestTemps = metricRepository.findLatestTemperaturesForLampIds(lampIds);
+            List<Double> latestTemps = telemetryJdbcRepository.findLatestTemperatures(lampIds);
 
             // System.out.println("Latest temps from DB: " + latestTemps);
 
@@ -93,14 +99,16 @@ public class StatsService {
         List<Double> histValues = new ArrayList<>();
 
         if (!lampIds.isEmpty()) {
-            List<Object[]> historyData = metricRepository.getHourlyAverageTemperature(lampIds);
-
-            for (Object[] row : historyData) {
-                if (row[0] != null && row[1] != null) {
-                    histLabels.add(row[0].toString());
-
-                    double val = ((Number) row[1]).doubleValue();
-                    histValues.add(Math.round(val * 10.0) / 10.0);
+            // Średnie godzinowe z ostatnich 24h - z rollupów, bez skanowania surowych metryk
+            List<MetricRollupRepository.SeriesPoint> historyData = fleetId != null
+                    ? rollupService.fleetSeries(fleetId, Duration.ofHours(24))
+                    : rollupService.lampSeries(lampIds, Duration.ofHours(24));
+            DateTimeFormatter hourFormat = DateTimeFormatter.ofPattern("HH:00");
+
+            for (MetricRollupRepository.SeriesPoint point : historyData) {
+                if (point.tempAvg() != null) {
+                    histLabels.add(point.bucketStart().format(hourFormat));
+                    histValues.add(Math.round(point.tempAvg() * 10.0) / 10.0);
                 }
             }
         }
@@ -118,28 +126,51 @@ public class StatsService {
                 .build();
     }
 
-    public LampHistoryDto getSingleLampHistory(String lampId) {
-        List<LampMetric> metrics = metricRepository.findTop100ByLampIdOrderByTimestampDesc(lampId);
+    /**
+     * Historia temperatur lampy z rollupów w rozdzielczości dobranej do zakresu (np. 6h -> minuty, 7d -> godziny).
+     */
+    public LampHistoryDto getSingleLampHistory(String lampId, String range) {
+        if (range == null) return getSingleLampHistory(lampId);
+
+        Duration duration = RollupService.parseRange(range);
+        DateTimeFormatter formatter = switch (RollupService.Resolution.forRange(duration)) {
+            case MINUTE -> DateTimeFormatter.ofPattern("HH:mm");
+            case HOUR -> DateTimeFormatter.ofPattern("dd.MM HH:00");
+            case DAY -> DateTimeFormatter.ofPattern("dd.MM");
+        };
+
+        List<String> labels = new ArrayList<>();
+        List<Double> temps = new ArrayList<>();
+        for (MetricRollupRepository.SeriesPoint point : rollupService.lampSeries(List.of(lampId), duration)) {
+            labels.add(point.bucketStart().format(formatter));
+            temps.add(point.tempAvg() != null ? Math.round(point.tempAvg() * 10.0) / 10.0 : 0.0);
+        }
 
-        Collections.reverse(metrics);
+        RecentMetricsBuffer.Samples last = recentMetricsBuffer.latest(lampId, 1);
+        Long uptime = last.size() == 0 ? 0L : last.uptime()[0];
+
+        return LampHistoryDto.builder()
+                .labels(labels)
+                .temperatures(temps)
+                .currentUptime(uptime)
+                .build();
+    }
+
+    public LampHistoryDto getSingleLampHistory(String lampId) {
+        // Ostatnie 100 pomiarów z bufora w pamięci (od najstarszego)
+        RecentMetricsBuffer.Samples samples = recentMetricsBuffer.latest(lampId, 100);
 
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
 
-        List<String> labels = metrics.stream()
-                .map(m -> m.getTimestamp().format(formatter))
-                .toList();
-
-        List<Double> temps = metrics.stream().map(m -> {
-            try {
-                String tempStr = m.getTemperatures();
-                if (tempStr == null || tempStr.isEmpty()) return 0.0;
-                return Double.parseDouble(tempStr.split(",")[0].trim());
-            } catch (Exception e) {
-                return 0.0;
-            }
-        }).toList();
+        List<String> labels = new ArrayList<>(samples.size());
+        List<Double> temps = new ArrayList<>(samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            labels.add(samples.time(i).format(formatter));
+            Integer temp = samples.temperature(i);
+            temps.add(temp != null ? temp.doubleValue() : 0.0);
+        }
 
-        Long uptime = metrics.isEmpty() ? 0L : metrics.get(metrics.size() - 1).getUptimeSeconds();
+        Long uptime = samples.size() == 0 ? 0L : samples.uptime()[samples.size() - 1];
 
         return LampHistoryDto.builder()
                 .labels(labels)
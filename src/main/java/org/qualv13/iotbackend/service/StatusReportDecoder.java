@@ -0,0 +1,123 @@
+package org.qualv13.iotbackend.service;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import com.iot.backend.proto.IotProtos;
+
+import java.io.IOException;
+
+/**
+ * Dekoder gorącej ścieżki ingestu.
+ * <p>
+ * Czyta {@code StatusReport} przez {@link CodedInputStream} prosto do pól {@link DecodedStatus},
+ * bez budowania wiadomości i list boxowanych Integerów. Gdy trafi na nieznane pole
+ * (nowsza wersja proto) albo nieoczekiwany typ, wraca do generowanego parsera.
+ * Zawiera też parsowanie routing key ({@code lamps.{lampId}.{typ}}) bez regexa.
+ */
+public final class StatusReportDecoder {
+
+    private StatusReportDecoder() {}
+
+    public static void decode(byte[] payload, DecodedStatus into) throws IOException {
+        into.reset();
+        CodedInputStream input = CodedInputStream.newInstance(payload);
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) return;
+            if (!readField(input, tag, into)) {
+                into.copyFrom(IotProtos.StatusReport.parseFrom(payload));
+                return;
+            }
+        }
+    }
+
+    private static boolean readField(CodedInputStream input, int tag, DecodedStatus into) throws IOException {
+        int wireType = WireFormat.getTagWireType(tag);
+        switch (WireFormat.getTagFieldNumber(tag)) {
+            case 1 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.version = input.readUInt32(); }
+            case 2 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.ts = input.readInt64(); }
+            case 3 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.uptimeSeconds = input.readUInt32(); }
+            case 4 -> {
+                if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    while (input.getBytesUntilLimit() > 0) into.addTemperature(input.readUInt32());
+                    input.popLimit(limit);
+                } else if (wireType == WireFormat.WIRETYPE_VARINT) {
+                    into.addTemperature(input.readUInt32());
+                } else {
+                    return false;
+                }
+            }
+            case 5 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.ambientLight = input.readUInt32(); }
+            case 6 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.ambientNoise = input.readUInt32(); }
+            case 7 -> {
+                if (wireType != WireFormat.WIRETYPE_LENGTH_DELIMITED) return false;
+                int limit = input.pushLimit(input.readRawVarint32());
+                into.hasLedSettings = true;
+                boolean ok = readLedSettings(input, into);
+                input.popLimit(limit);
+                if (!ok) return false;
+            }
+            case 8 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.abnormal = input.readBool(); }
+            case 9 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.hasMoreAlerts = input.readBool(); }
+            case 10 -> {
+                // Alerty są rzadkie - tu zostajemy przy generowanym parserze
+                if (wireType != WireFormat.WIRETYPE_LENGTH_DELIMITED) return false;
+                into.addAlert(input.readMessage(IotProtos.Alert.parser(), ExtensionRegistryLite.getEmptyRegistry()));
+            }
+            case 11 -> { if (wireType != WireFormat.WIRETYPE_LENGTH_DELIMITED) return false; into.firmwareVersion = input.readStringRequireUtf8(); }
+            case 12 -> {
+                if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    while (input.getBytesUntilLimit() > 0) into.addAckedCommand(input.readUInt64());
+                    input.popLimit(limit);
+                } else if (wireType == WireFormat.WIRETYPE_VARINT) {
+                    into.addAckedCommand(input.readUInt64());
+                } else {
+                    return false;
+                }
+            }
+            case 13 -> { if (wireType != WireFormat.WIRETYPE_VARINT) return false; into.configVersion = input.readUInt32(); }
+            default -> { return false; }
+        }
+        return true;
+    }
+
+    private static boolean readLedSettings(CodedInputStream input, DecodedStatus into) throws IOException {
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) return true;
+            if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_VARINT) return false;
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 1 -> into.red = input.readUInt32();
+                case 2 -> into.green = input.readUInt32();
+                case 3 -> into.blue = input.readUInt32();
+                case 4 -> into.coldWhite = input.readUInt32();
+                case 5 -> into.neutralWhite = input.readUInt32();
+                case 6 -> into.warmWhite = input.readUInt32();
+                default -> { return false; }
+            }
+        }
+    }
+
+    /** ID lampy z routing key {@code lamps.{lampId}.{typ}} albo null, gdy format się nie zgadza. */
+    public static String lampIdOf(String routingKey) {
+        int first = routingKey.indexOf('.');
+        if (first < 0) return null;
+        int second = routingKey.indexOf('.', first + 1);
+        if (second < 0) return null;
+        return routingKey.substring(first + 1, second);
+    }
+
+    /** Czy trzeci segment routing key to {@code type} - porównanie bez tworzenia Stringów. */
+    public static boolean isMessageType(String routingKey, String type) {
+        int first = routingKey.indexOf('.');
+        if (first < 0) return false;
+        int start = routingKey.indexOf('.', first + 1) + 1;
+        if (start == 0) return false;
+        int end = routingKey.indexOf('.', start);
+        if (end < 0) end = routingKey.length();
+        return end - start == type.length() && routingKey.regionMatches(start, type, 0, type.length());
+    }
+}
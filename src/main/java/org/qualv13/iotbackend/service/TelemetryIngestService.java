@@ -0,0 +1,205 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.qualv13.iotbackend.entity.LampAlert;
+import org.qualv13.iotbackend.entity.LampMetric;
+import org.qualv13.iotbackend.repository.TelemetryJdbcRepository;
+import org.qualv13.iotbackend.scheduler.CircadianScheduler;
+import org.qualv13.iotbackend.scheduler.DeviceStatusScheduler;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TelemetryIngestService {
+
+    private final LampStateCache lampStateCache;
+    private final TelemetryJdbcRepository telemetryJdbcRepository;
+    private final ActiveAlertRegistry activeAlertRegistry;
+    private final RollupService rollupService;
+    private final RecentMetricsBuffer recentMetricsBuffer;
+    private final LastSeenRegistry lastSeenRegistry;
+    private final DeviceStatusScheduler deviceStatusScheduler;
+    private final AdaptiveBrightnessService adaptiveBrightnessService;
+    private final CircadianScheduler circadianScheduler;
+    private final CommandAckTracker commandAckTracker;
+    private final ConfigSyncTracker configSyncTracker;
+
+    /** Zdekodowany raport statusu razem z lampą, od której przyszedł. */
+    public record StatusEnvelope(String lampId, DecodedStatus report, LocalDateTime receivedAt) {}
+
+    /**
+     * Zapisuje całą paczkę raportów w jednej transakcji: metryki, przyrosty rollupów i zmiany aktywnych alertów.
+     * Stan lamp aktualizujemy w {@link LampStateCache} dopiero po commicie (wycofana paczka go nie zmienia)
+     * - do bazy trafi zbiorczo przez flusher.
+     * Kolejność raportów w paczce jest zachowana - przy kilku raportach jednej lampy wygrywa ostatni.
+     */
+    @Transactional
+    public void persistBatch(List<StatusEnvelope> reports) {
+        if (reports.isEmpty()) return;
+
+        List<LampMetric> metrics = new ArrayList<>(reports.size());
+        Map<String, List<IotProtos.Alert>> latestAlerts = new LinkedHashMap<>();
+        Set<String> partialAlerts = new HashSet<>();
+        List<StatusEnvelope> known = new ArrayList<>(reports.size());
+        List<StatusEnvelope> withAcks = new ArrayList<>();
+        Map<String, Integer> configVersions = new HashMap<>();
+
+        for (StatusEnvelope envelope : reports) {
+            String lampId = envelope.lampId();
+            DecodedStatus report = envelope.report();
+            if (lampStateCache.get(lampId) == null) {
+                log.warn("Otrzymano dane od nieznanej lampy: {}. Ignoruję.", lampId);
+                continue;
+            }
+            known.add(envelope);
+            metrics.add(toMetric(envelope));
+            if (report.getAckedCommandCount() > 0) withAcks.add(envelope);
+            if (report.getConfigVersion() > 0) configVersions.put(lampId, report.getConfigVersion());
+            latestAlerts.put(lampId, report.getActiveAlerts());
+            // Ostatni raport lampy decyduje, czy lista alertów jest pełna
+            if (report.hasMoreAlerts()) {
+                partialAlerts.add(lampId);
+            } else {
+                partialAlerts.remove(lampId);
+            }
+
+            if (report.isAbnormal()) {
+                log.warn("Otrzymano ABNORMAL REPORT od lampy {}", lampId);
+            }
+        }
+
+        telemetryJdbcRepository.insertMetrics(metrics);
+        rollupService.recordIngested(metrics);
+        List<ActiveAlertRegistry.AlertDiff> alertDiffs = reconcileAlerts(latestAlerts, partialAlerts);
+
+        // Stan w pamięci (stan lamp, aktywne alerty, bufor ostatnich pomiarów, ostatni raport) zmieniamy dopiero po commicie
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                // Dane są już zatwierdzone - błąd tutaj nie może wrócić do IngestExecutor jako błąd zapisu
+                try {
+                    List<String> poweredOn = new ArrayList<>();
+                    for (StatusEnvelope envelope : known) {
+                        lampStateCache.update(envelope.lampId(),
+                                state -> applyReportToLamp(state, envelope.report(), poweredOn));
+                    }
+                    alertDiffs.forEach(activeAlertRegistry::apply);
+                    recentMetricsBuffer.append(metrics);
+                    lastSeenRegistry.recordAll(metrics);
+                    deviceStatusScheduler.reportsReceived(latestAlerts.keySet());
+                    circadianScheduler.lampsPoweredOn(poweredOn);
+                    withAcks.forEach(e -> commandAckTracker.acknowledged(e.lampId(), e.report()));
+                    configVersions.forEach(configSyncTracker::reported);
+                } catch (RuntimeException e) {
+                    log.error("Błąd aktualizacji stanu po zapisie paczki: {}", e.getMessage(), e);
+                }
+            }
+        });
+
+        log.info("Zapisano paczkę statusów: {} raportów, {} lamp", metrics.size(), latestAlerts.size());
+    }
+
+    private void applyReportToLamp(LampStateCache.LampState lamp, DecodedStatus report, List<String> poweredOn) {
+        if (!lamp.isOnline()) {
+            log.info("Lampa {} jest teraz ONLINE", lamp.getId());
+            // Po powrocie z offline lampa świeci, jeśli ma ustawioną jasność
+            if (lamp.getBrightness() != null && lamp.getBrightness() > 0) {
+                lamp.setOn(true);
+                poweredOn.add(lamp.getId());
+            }
+        }
+        lamp.setOnline(true);
+        Integer previousLux = lamp.getLastAmbientLight();
+        lamp.setLastAmbientLight(report.getAmbientLight());
+        lamp.setLastAmbientNoise(report.getAmbientNoise());
+
+        if (report.hasLedSettings()) {
+            lamp.setRed(report.getRed());
+            lamp.setGreen(report.getGreen());
+            lamp.setBlue(report.getBlue());
+            lamp.setColdWhite(report.getColdWhite());
+            lamp.setNeutralWhite(report.getNeutralWhite());
+            lamp.setWarmWhite(report.getWarmWhite());
+        }
+
+        lamp.setFirmwareVersion(report.getFirmwareVersion());
+
+        // Jasność adaptacyjna tylko przy nowym odczycie światła - bez okresowego skanu wszystkich lamp
+        if (lamp.isAdaptiveBrightnessEnabled() && !Objects.equals(previousLux, report.getAmbientLight())) {
+            adaptiveBrightnessService.evaluate(lamp, report.getAmbientLight());
+        }
+    }
+
+    private LampMetric toMetric(StatusEnvelope envelope) {
+        DecodedStatus report = envelope.report();
+
+        LampMetric metric = new LampMetric();
+        metric.setLampId(envelope.lampId());
+        metric.setTimestamp(envelope.receivedAt());
+        metric.setDeviceTimestamp(report.getTs());
+        metric.setUptimeSeconds(report.getUptimeSeconds());
+        metric.setAmbientLight(report.getAmbientLight());
+        metric.setAmbientNoise(report.getAmbientNoise());
+        metric.setTemperatureReadings(report.temperatureReadings());
+        metric.setPrimaryTemperature(report.primaryTemperature());
+        metric.setIsAbnormal(report.isAbnormal());
+        return metric;
+    }
+
+    /**
+     * Uzgadnia aktywne alerty po alertIdFromDevice: nowe dopisujemy, zmienione aktualizujemy,
+     * a te, które zniknęły z raportu, zamykamy (is_active = false, ended_at). Bez zmian - zero zapytań.
+     * Lampom z {@code partialAlerts} (lista obcięta, has_more_alerts) niczego nie zamykamy.
+     * Zwraca różnice do naniesienia na {@link ActiveAlertRegistry} po commicie transakcji.
+     */
+    private List<ActiveAlertRegistry.AlertDiff> reconcileAlerts(Map<String, List<IotProtos.Alert>> latestAlerts,
+                                                                Set<String> partialAlerts) {
+        LocalDateTime now = LocalDateTime.now();
+        List<LampAlert> toInsert = new ArrayList<>();
+        List<LampAlert> toUpdate = new ArrayList<>();
+        List<ActiveAlertRegistry.AlertDiff> diffs = new ArrayList<>();
+
+        latestAlerts.forEach((lampId, protoAlerts) -> {
+            ActiveAlertRegistry.AlertDiff diff = activeAlertRegistry.diff(lampId, protoAlerts, partialAlerts.contains(lampId));
+            if (diff.isEmpty()) return;
+            diffs.add(diff);
+
+            for (IotProtos.Alert protoAlert : diff.opened()) {
+                toInsert.add(toAlert(lampId, protoAlert, now));
+                log.warn("⚠️ ALARM z lampy {}: {} (Level {})", lampId, protoAlert.getMessage(), protoAlert.getLevel());
+            }
+            for (IotProtos.Alert protoAlert : diff.changed()) {
+                toUpdate.add(toAlert(lampId, protoAlert, now));
+            }
+            if (!diff.cleared().isEmpty()) {
+                telemetryJdbcRepository.closeAlerts(lampId, diff.cleared(), now);
+                log.info("Lampa {}: zamknięto alerty {}", lampId, diff.cleared());
+            }
+        });
+
+        telemetryJdbcRepository.insertAlerts(toInsert);
+        telemetryJdbcRepository.updateActiveAlerts(toUpdate);
+        return diffs;
+    }
+
+    private LampAlert toAlert(String lampId, IotProtos.Alert protoAlert, LocalDateTime now) {
+        LampAlert alert = new LampAlert();
+        alert.setLampId(lampId);
+        alert.setAlertCode(protoAlert.getCauseValue());
+        alert.setAlertLevel(protoAlert.getLevelValue());
+        alert.setMessage(protoAlert.getMessage());
+        alert.setAlertIdFromDevice(protoAlert.getId());
+        alert.setTimestamp(now);
+        alert.setActive(true);
+        return alert;
+    }
+}
@@ -0,0 +1,94 @@
+package org.qualv13.iotbackend.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Migracja w tle starych wierszy lamp_metrics z CSV (temperatures) do kolumn
+ * temperature_readings (integer[]) i primary_temperature.
+ * Idzie paczkami po id z krótką przerwą, więc nie blokuje ingestu ani nie trzyma długich blokad.
+ * Zmigrowany wiersz ma temperatures = NULL - po restarcie migracja rusza od miejsca, gdzie skończyła.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TemperatureMigration {
+
+    private static final String NEXT_CHUNK_END = """
+            SELECT MAX(id) FROM (
+                SELECT id FROM lamp_metrics
+                WHERE id > ? AND temperatures IS NOT NULL
+                ORDER BY id
+                LIMIT ?
+            ) chunk
+            """;
+
+    private static final String MIGRATE_CHUNK = """
+            UPDATE lamp_metrics
+            SET temperature_readings = CAST(CAST(string_to_array(NULLIF(btrim(temperatures), ''), ',') AS numeric[]) AS integer[]),
+                primary_temperature = CAST(CAST(NULLIF(btrim(SPLIT_PART(temperatures, ',', 1)), '') AS numeric) AS integer),
+                temperatures = NULL
+            WHERE id > ? AND id <= ? AND temperatures IS NOT NULL
+            """;
+
+    /**
+     * Wyrażenie SQL z temperaturą główną wiersza lamp_metrics - także dla wierszy jeszcze niezmigrowanych
+     * (pierwsza wartość z CSV, przez numeric, bo stare wiersze mają też wartości dziesiętne, np. '21.5').
+     *
+     * @param alias alias tabeli lamp_metrics z kropką (np. {@code "m."}) albo pusty
+     */
+    public static String primaryTemperature(String alias) {
+        return "COALESCE(" + alias + "primary_temperature, CAST(CAST(NULLIF(btrim(SPLIT_PART("
+                + alias + "temperatures, ',', 1)), '') AS numeric) AS integer))";
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${metrics.temperature-migration.chunk-size:5000}")
+    private int chunkSize;
+
+    @Value("${metrics.temperature-migration.pause-ms:100}")
+    private long pauseMs;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        String database = jdbcTemplate.execute((ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName());
+        if (!"PostgreSQL".equals(database)) {
+            log.info("Migracja temperatur pominięta (baza: {})", database);
+            return;
+        }
+        Thread worker = new Thread(this::migrate, "temperature-migration");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void migrate() {
+        long lastId = 0;
+        long migrated = 0;
+        try {
+            while (true) {
+                Long chunkEnd = jdbcTemplate.queryForObject(NEXT_CHUNK_END, Long.class, lastId, chunkSize);
+                if (chunkEnd == null) break;
+
+                migrated += jdbcTemplate.update(MIGRATE_CHUNK, lastId, chunkEnd);
+                lastId = chunkEnd;
+                log.debug("Migracja temperatur: {} wierszy (do id {})", migrated, lastId);
+
+                Thread.sleep(pauseMs);
+            }
+            if (migrated > 0) {
+                log.info("Migracja temperatur zakończona: {} wierszy", migrated);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Migracja temperatur przerwana na id {}: {}", lastId, e.getMessage(), e);
+        }
+    }
+}
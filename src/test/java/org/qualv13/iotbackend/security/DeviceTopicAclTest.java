@@ -0,0 +1,77 @@
+package org.qualv13.iotbackend.security;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeviceTopicAclTest {
+
+    private static final String LAMP = "lamp_123";
+    private static final Long FLEET = 42L;
+
+    @Test
+    void lampPublishesOnlyToOwnTopics() {
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_123.status")).isTrue();
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_123.ack")).isTrue();
+
+        // Inna lampa, także o wspólnym prefiksie ID
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_124.status")).isFalse();
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_1234.status")).isFalse();
+        assertThat(DeviceTopicAcl.canPublish("lamp_12", "lamps.lamp_123.status")).isFalse();
+    }
+
+    @Test
+    void lampCannotPublishToFleetTopics() {
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "fleets.42.command")).isFalse();
+    }
+
+    @Test
+    void extraOrMissingSegmentsAreDenied() {
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_123.status.extra")).isFalse();
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_123")).isFalse();
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.lamp_123.")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.42.command.extra")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.42")).isFalse();
+    }
+
+    @Test
+    void lampSubscribesToOwnAndCurrentFleetTopics() {
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "lamps.lamp_123.command")).isTrue();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.42.config")).isTrue();
+
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "lamps.lamp_124.command")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.43.config")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.420.config")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, null, "fleets.42.config")).isFalse();
+    }
+
+    @Test
+    void wildcardsStayWithinOwnTopics() {
+        // Wildcard jako ostatni segment własnego tematu - dozwolony
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "lamps.lamp_123.#")).isTrue();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.42.*")).isTrue();
+
+        // Wildcard w miejscu ID albo zamiast całej gałęzi - odmowa
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "lamps.*.status")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "lamps.#")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "fleets.*.command")).isFalse();
+        assertThat(DeviceTopicAcl.canSubscribe(LAMP, FLEET, "#")).isFalse();
+        assertThat(DeviceTopicAcl.canPublish(LAMP, "lamps.*.status")).isFalse();
+    }
+
+    @Test
+    void lampAccessesOnlyTopicExchangeAndOwnSubscriptionQueues() {
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "exchange", "amq.topic")).isTrue();
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "exchange", "amq.direct")).isFalse();
+
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "queue", "mqtt-subscription-lamp_123qos0")).isTrue();
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "queue", "mqtt-subscription-lamp_123qos1")).isTrue();
+
+        // Kolejki innej lampy, również takiej, której ID zaczyna się od ID tej lampy
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "queue", "mqtt-subscription-lamp_124qos1")).isFalse();
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "queue", "mqtt-subscription-lamp_1234qos1")).isFalse();
+        assertThat(DeviceTopicAcl.canAccessResource("lamp_12", "queue", "mqtt-subscription-lamp_123qos1")).isFalse();
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "queue", "lamps_metrics_queue")).isFalse();
+        assertThat(DeviceTopicAcl.canAccessResource(LAMP, "queue", "mqtt-subscription-lamp_123qos2")).isFalse();
+    }
+}
@@ -0,0 +1,90 @@
+package org.qualv13.iotbackend.security;
+
+import io.jsonwebtoken.Claims;
+import jakarta.servlet.FilterChain;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.qualv13.iotbackend.entity.User;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Koszt filtra JWT na żądanie przy trafieniu w {@link AuthUserCache}: sama weryfikacja tokena
+ * ({@code parseClaims}) i pełny przebieg filtra. Alokację per żądanie pokazuje profiler GC.
+ * Kompilowany tylko w profilu {@code jmh} - uruchomienie w pom.xml.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JwtAuthenticationFilterBenchmark {
+
+    private static final String SECRET = "404E635266556A586E3272357538782F413F4428472B4B6250645367566B5970";
+
+    private JwtService jwtService;
+    private JwtAuthenticationFilter filter;
+    private String token;
+    private MockHttpServletRequest request;
+    private final FilterChain chain = (req, res) -> {};
+
+    @Setup
+    public void setUp() {
+        jwtService = new JwtService();
+        ReflectionTestUtils.setField(jwtService, "secret", SECRET);
+        jwtService.init();
+
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("bench");
+        user.setTokenVersion(2);
+        token = jwtService.generateAccessToken(user);
+
+        // Zawsze trafienie w cache - mierzymy filtr, nie bazę
+        AuthUserCache.CachedUser cached = new AuthUserCache.CachedUser(1L, 2, Long.MAX_VALUE);
+        AuthUserCache authUserCache = new AuthUserCache(null, Long.MAX_VALUE, 1) {
+            @Override
+            public CachedUser get(String username) {
+                return cached;
+            }
+        };
+        filter = new JwtAuthenticationFilter(jwtService, authUserCache);
+
+        request = new MockHttpServletRequest("GET", "/lamps");
+        request.setServletPath("/lamps");
+        request.addHeader("Authorization", "Bearer " + token);
+    }
+
+    @Benchmark
+    public Claims parseClaims() {
+        return jwtService.parseClaims(token);
+    }
+
+    @Benchmark
+    public int filter() throws Exception {
+        // OncePerRequestFilter zapamiętuje przebieg w atrybucie żądania
+        request.clearAttributes();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            filter.doFilter(request, response, chain);
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+        return response.getStatus();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JwtAuthenticationFilterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
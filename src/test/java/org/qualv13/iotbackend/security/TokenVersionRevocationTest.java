@@ -0,0 +1,141 @@
+package org.qualv13.iotbackend.security;
+
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.qualv13.iotbackend.controller.AuthController;
+import org.qualv13.iotbackend.dto.AuthResponse;
+import org.qualv13.iotbackend.dto.RefreshTokenRequest;
+import org.qualv13.iotbackend.entity.User;
+import org.qualv13.iotbackend.repository.UserRepository;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/** Podbicie token_version (zmiana hasła) unieważnia wcześniej wydane tokeny dostępu i odświeżania. */
+@ExtendWith(MockitoExtension.class)
+class TokenVersionRevocationTest {
+
+    private static final String SECRET = "404E635266556A586E3272357538782F413F4428472B4B6250645367566B5970";
+
+    @Mock
+    private AuthUserCache authUserCache;
+    @Mock
+    private UserRepository userRepository;
+    @Mock
+    private AuthenticationManager authenticationManager;
+    @Mock
+    private FilterChain filterChain;
+
+    private JwtService jwtService;
+    private JwtAuthenticationFilter filter;
+    private AuthController authController;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        jwtService = new JwtService();
+        ReflectionTestUtils.setField(jwtService, "secret", SECRET);
+        jwtService.init();
+        filter = new JwtAuthenticationFilter(jwtService, authUserCache);
+        authController = new AuthController(authenticationManager, userRepository, jwtService);
+
+        user = new User();
+        user.setId(7L);
+        user.setUsername("jan");
+        user.setTokenVersion(3);
+    }
+
+    @AfterEach
+    void clearContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void accessTokenWithCurrentVersionIsAccepted() throws Exception {
+        // given
+        String token = jwtService.generateAccessToken(user);
+        when(authUserCache.get("jan")).thenReturn(new AuthUserCache.CachedUser(7L, 3, Long.MAX_VALUE));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter.doFilter(bearer(token), response, filterChain);
+
+        // then
+        verify(filterChain).doFilter(any(), any());
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(SecurityContextHolder.getContext().getAuthentication().getName()).isEqualTo("jan");
+    }
+
+    @Test
+    void accessTokenIssuedBeforeVersionBumpIsRejected() throws Exception {
+        // given
+        String token = jwtService.generateAccessToken(user);
+        user.setTokenVersion(4);
+        when(authUserCache.get("jan")).thenReturn(new AuthUserCache.CachedUser(7L, 4, Long.MAX_VALUE));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter.doFilter(bearer(token), response, filterChain);
+
+        // then
+        verifyNoInteractions(filterChain);
+        assertThat(response.getStatus()).isEqualTo(401);
+        assertThat(SecurityContextHolder.getContext().getAuthentication()).isNull();
+    }
+
+    @Test
+    void refreshTokenWithCurrentVersionIssuesNewTokens() {
+        // given
+        String refreshToken = jwtService.generateRefreshToken(user);
+        when(userRepository.findByUsername("jan")).thenReturn(Optional.of(user));
+
+        // when
+        ResponseEntity<AuthResponse> response = authController.refresh(refreshRequest(refreshToken));
+
+        // then
+        assertThat(response.getStatusCode().value()).isEqualTo(200);
+        assertThat(response.getBody()).isNotNull();
+    }
+
+    @Test
+    void refreshTokenIssuedBeforeVersionBumpIsRejected() {
+        // given
+        String refreshToken = jwtService.generateRefreshToken(user);
+        user.setTokenVersion(4);
+        when(userRepository.findByUsername("jan")).thenReturn(Optional.of(user));
+
+        // when
+        ResponseEntity<AuthResponse> response = authController.refresh(refreshRequest(refreshToken));
+
+        // then
+        assertThat(response.getStatusCode().value()).isEqualTo(403);
+        assertThat(response.getBody()).isNull();
+    }
+
+    private static MockHttpServletRequest bearer(String token) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/lamps");
+        request.setServletPath("/lamps");
+        request.addHeader("Authorization", "Bearer " + token);
+        return request;
+    }
+
+    private static RefreshTokenRequest refreshRequest(String token) {
+        RefreshTokenRequest request = new RefreshTokenRequest();
+        request.setRefreshToken(token);
+        return request;
+    }
+}
@@ -0,0 +1,66 @@
+package org.qualv13.iotbackend.service;
+
+import com.iot.backend.proto.IotProtos;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dekoder ingestu kontra generowany parser dla typowego raportu statusu (bez alertów).
+ * Czas w ns na wiadomość; alokację per wiadomość pokazuje profiler GC ({@code gc.alloc.rate.norm}).
+ * Kompilowany tylko w profilu {@code jmh} - uruchomienie w pom.xml.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusReportDecoderBenchmark {
+
+    private byte[] payload;
+    private final DecodedStatus reused = new DecodedStatus();
+
+    @Setup
+    public void setUp() {
+        payload = IotProtos.StatusReport.newBuilder()
+                .setVersion(1)
+                .setTs(1_700_000_123L)
+                .setUptimeSeconds(86_400)
+                .addTemperatureReadings(215)
+                .addTemperatureReadings(230)
+                .addTemperatureReadings(198)
+                .setAmbientLight(350)
+                .setAmbientNoise(42)
+                .setLedSettings(IotProtos.DirectSettings.newBuilder()
+                        .setRed(10).setGreen(20).setBlue(30)
+                        .setColdWhite(40).setNeutralWhite(50).setWarmWhite(60))
+                .setFirmwareVersion("2.0.1")
+                .addAckedCommandIds(1L << 40)
+                .setConfigVersion(7)
+                .build().toByteArray();
+    }
+
+    @Benchmark
+    public DecodedStatus decoder() throws IOException {
+        StatusReportDecoder.decode(payload, reused);
+        return reused;
+    }
+
+    @Benchmark
+    public IotProtos.StatusReport generatedParser() throws IOException {
+        return IotProtos.StatusReport.parseFrom(payload);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(StatusReportDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,196 @@
+package org.qualv13.iotbackend.service;
+
+import com.google.protobuf.CodedOutputStream;
+import com.iot.backend.proto.IotProtos;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StatusReportDecoderTest {
+
+    @Test
+    void decodesPackedFieldsLikeGeneratedParser() throws IOException {
+        // given - generowany serializer koduje pola repeated jako packed
+        byte[] payload = fullReport().build().toByteArray();
+
+        // when / then
+        assertEquivalent(payload);
+    }
+
+    @Test
+    void decodesUnpackedTemperaturesAndAckedIds() throws IOException {
+        // given - starszy firmware wysyła każde powtórzenie osobnym tagiem
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        out.writeUInt32(1, 2);
+        out.writeInt64(2, 1_700_000_000L);
+        out.writeUInt32(4, 215);
+        out.writeUInt32(4, 230);
+        out.writeUInt32(4, 198);
+        out.writeUInt32(5, 420);
+        out.writeUInt64(12, 7L);
+        out.writeUInt64(12, 1L << 40);
+        out.writeUInt32(13, 3);
+        out.flush();
+
+        // when / then
+        DecodedStatus decoded = assertEquivalent(bytes.toByteArray());
+        assertThat(decoded.getTemperatureCount()).isEqualTo(3);
+        assertThat(decoded.getAckedCommandCount()).isEqualTo(2);
+    }
+
+    @Test
+    void growsArraysBeyondInitialCapacity() throws IOException {
+        // given
+        IotProtos.StatusReport.Builder report = IotProtos.StatusReport.newBuilder();
+        for (int i = 0; i < 20; i++) {
+            report.addTemperatureReadings(200 + i);
+            report.addAckedCommandIds(1000L + i);
+        }
+
+        // when / then
+        DecodedStatus decoded = assertEquivalent(report.build().toByteArray());
+        assertThat(decoded.getTemperatureCount()).isEqualTo(20);
+        assertThat(decoded.getAckedCommandCount()).isEqualTo(20);
+    }
+
+    @Test
+    void fallsBackToGeneratedParserForUnknownLedSettingsField() throws IOException {
+        // given - DirectSettings z polem spoza schematu
+        ByteArrayOutputStream led = new ByteArrayOutputStream();
+        CodedOutputStream ledOut = CodedOutputStream.newInstance(led);
+        ledOut.writeUInt32(1, 255);
+        ledOut.writeUInt32(6, 80);
+        ledOut.writeUInt32(9, 1);
+        ledOut.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        out.writeUInt32(5, 120);
+        out.writeByteArray(7, led.toByteArray());
+        out.writeString(11, "1.4.2");
+        out.flush();
+
+        // when / then
+        DecodedStatus decoded = assertEquivalent(bytes.toByteArray());
+        assertThat(decoded.hasLedSettings()).isTrue();
+        assertThat(decoded.getRed()).isEqualTo(255);
+        assertThat(decoded.getWarmWhite()).isEqualTo(80);
+    }
+
+    @Test
+    void fallsBackToGeneratedParserForUnknownTopLevelField() throws IOException {
+        // given - nowsza wersja proto z polem 20
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        fullReport().build().writeTo(out);
+        out.writeString(20, "future");
+        out.writeUInt32(3, 99);
+        out.flush();
+
+        // when / then
+        DecodedStatus decoded = assertEquivalent(bytes.toByteArray());
+        assertThat(decoded.getUptimeSeconds()).isEqualTo(99);
+    }
+
+    @Test
+    void decodesAlertsAndMoreAlertsFlag() throws IOException {
+        // given
+        byte[] payload = IotProtos.StatusReport.newBuilder()
+                .setHasMoreAlerts(true)
+                .addActiveAlerts(alert(1, IotProtos.AlertLevels.WARNING, "Przegrzanie"))
+                .addActiveAlerts(alert(2, IotProtos.AlertLevels.INFO, "Niskie napięcie"))
+                .build().toByteArray();
+
+        // when / then
+        DecodedStatus decoded = assertEquivalent(payload);
+        assertThat(decoded.hasMoreAlerts()).isTrue();
+        assertThat(decoded.getActiveAlerts()).extracting(IotProtos.Alert::getId).containsExactly(1, 2);
+    }
+
+    @Test
+    void reusedInstanceDoesNotKeepPreviousReport() throws IOException {
+        // given
+        DecodedStatus decoded = new DecodedStatus();
+        StatusReportDecoder.decode(fullReport().build().toByteArray(), decoded);
+
+        // when
+        StatusReportDecoder.decode(new byte[0], decoded);
+
+        // then
+        assertMatches(decoded, IotProtos.StatusReport.getDefaultInstance());
+    }
+
+    private static IotProtos.StatusReport.Builder fullReport() {
+        return IotProtos.StatusReport.newBuilder()
+                .setVersion(1)
+                .setTs(1_700_000_123L)
+                .setUptimeSeconds(3600)
+                .addTemperatureReadings(215)
+                .addTemperatureReadings(190)
+                .setAmbientLight(350)
+                .setAmbientNoise(42)
+                .setLedSettings(IotProtos.DirectSettings.newBuilder()
+                        .setRed(10).setGreen(20).setBlue(30)
+                        .setColdWhite(40).setNeutralWhite(50).setWarmWhite(60))
+                .setIsAbnormal(true)
+                .addActiveAlerts(alert(5, IotProtos.AlertLevels.ERROR, "Błąd czujnika"))
+                .setFirmwareVersion("2.0.1")
+                .addAckedCommandIds(11L)
+                .addAckedCommandIds(12L)
+                .setConfigVersion(7);
+    }
+
+    private static IotProtos.Alert alert(int id, IotProtos.AlertLevels level, String message) {
+        return IotProtos.Alert.newBuilder()
+                .setId(id)
+                .setLevel(level)
+                .setMessage(message)
+                .build();
+    }
+
+    private static DecodedStatus assertEquivalent(byte[] payload) throws IOException {
+        DecodedStatus decoded = new DecodedStatus();
+        StatusReportDecoder.decode(payload, decoded);
+        assertMatches(decoded, IotProtos.StatusReport.parseFrom(payload));
+        return decoded;
+    }
+
+    private static void assertMatches(DecodedStatus decoded, IotProtos.StatusReport expected) {
+        assertThat(decoded.getVersion()).isEqualTo(expected.getVersion());
+        assertThat(decoded.getTs()).isEqualTo(expected.getTs());
+        assertThat(decoded.getUptimeSeconds()).isEqualTo(expected.getUptimeSeconds());
+
+        List<Integer> temperatures = new ArrayList<>();
+        for (int i = 0; i < decoded.getTemperatureCount(); i++) temperatures.add(decoded.getTemperature(i));
+        assertThat(temperatures).isEqualTo(expected.getTemperatureReadingsList());
+
+        assertThat(decoded.getAmbientLight()).isEqualTo(expected.getAmbientLight());
+        assertThat(decoded.getAmbientNoise()).isEqualTo(expected.getAmbientNoise());
+
+        assertThat(decoded.hasLedSettings()).isEqualTo(expected.hasLedSettings());
+        IotProtos.DirectSettings led = expected.getLedSettings();
+        assertThat(decoded.getRed()).isEqualTo(led.getRed());
+        assertThat(decoded.getGreen()).isEqualTo(led.getGreen());
+        assertThat(decoded.getBlue()).isEqualTo(led.getBlue());
+        assertThat(decoded.getColdWhite()).isEqualTo(led.getColdWhite());
+        assertThat(decoded.getNeutralWhite()).isEqualTo(led.getNeutralWhite());
+        assertThat(decoded.getWarmWhite()).isEqualTo(led.getWarmWhite());
+
+        assertThat(decoded.isAbnormal()).isEqualTo(expected.getIsAbnormal());
+        assertThat(decoded.hasMoreAlerts()).isEqualTo(expected.getHasMoreAlerts());
+        assertThat(decoded.getActiveAlerts()).isEqualTo(expected.getActiveAlertsList());
+        assertThat(decoded.getFirmwareVersion()).isEqualTo(expected.getFirmwareVersion());
+
+        List<Long> acked = new ArrayList<>();
+        for (int i = 0; i < decoded.getAckedCommandCount(); i++) acked.add(decoded.getAckedCommandId(i));
+        assertThat(acked).isEqualTo(expected.getAckedCommandIdsList());
+
+        assertThat(decoded.getConfigVersion()).isEqualTo(expected.getConfigVersion());
+    }
+}